@@ -9,29 +9,165 @@
  */
 package org.openmrs.module.patientsearch;
 
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.patientsearch.api.PatientSearchAdmission;
+import org.openmrs.module.patientsearch.api.PatientSearchReindexer;
+import org.openmrs.module.patientsearch.api.PatientSearchWarmUp;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchCoalescer;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
+import org.openmrs.module.patientsearch.api.dao.hibernate.PatientDemographicStore;
+import org.openmrs.module.patientsearch.api.dao.hibernate.SubQueryExecutor;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.SegmentFilterCache;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
  */
-public class PatientSearchCriteriaActivator extends BaseModuleActivator {
+public class PatientSearchCriteriaActivator extends BaseModuleActivator implements DaemonTokenAware {
+	
+	public static final String METRICS_OBJECT_NAME = "org.openmrs.module.patientsearch:type=PatientSearchMetrics";
 	
 	private Log log = LogFactory.getLog(this.getClass());
 	
+	private DaemonToken daemonToken;
+	
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	@Override
+	public void setDaemonToken(DaemonToken token) {
+		this.daemonToken = token;
+	}
+	
 	/**
 	 * @see #started()
 	 */
 	public void started() {
+		PatientSearchResultCache resultCache = getResultCache();
+		resultCache.configure(Context.getAdministrationService());
+		Context.getAdministrationService().addGlobalPropertyListener(resultCache);
+		SubQueryExecutor subQueryExecutor = getSubQueryExecutor();
+		subQueryExecutor.configure(Context.getAdministrationService());
+		Context.getAdministrationService().addGlobalPropertyListener(subQueryExecutor);
+		PatientSearchMetrics metrics = getMetrics();
+		metrics.configure(Context.getAdministrationService());
+		Context.getAdministrationService().addGlobalPropertyListener(metrics);
+		registerMetrics(metrics);
+		SearchDeadline searchDeadline = getSearchDeadline();
+		searchDeadline.configure(Context.getAdministrationService());
+		Context.getAdministrationService().addGlobalPropertyListener(searchDeadline);
+		PatientSearchCoalescer coalescer = getCoalescer();
+		coalescer.configure(Context.getAdministrationService());
+		Context.getAdministrationService().addGlobalPropertyListener(coalescer);
+		PatientSearchAdmission admission = getAdmission();
+		admission.configure(Context.getAdministrationService());
+		Context.getAdministrationService().addGlobalPropertyListener(admission);
+		PatientDemographicStore demographicStore = getDemographicStore();
+		demographicStore.setDaemonToken(daemonToken);
+		demographicStore.configure(Context.getAdministrationService());
+		Context.getAdministrationService().addGlobalPropertyListener(demographicStore);
+		// the module is started once the warm-up is running, its progress is served by the REST API
+		getWarmUp().start(Context.getAdministrationService(), daemonToken);
+		PatientSearchReindexer reindexer = getReindexer();
+		reindexer.setDaemonToken(daemonToken);
+		reindexer.resumeInterrupted(Context.getAdministrationService());
 		log.info("Started PatientSearchCriteria");
 	}
 	
 	/**
-	 * @see #shutdown()
+	 * @see #willStop()
 	 */
-	public void shutdown() {
-		log.info("Shutdown PatientSearchCriteria");
+	public void willStop() {
+		getWarmUp().stop();
+		PatientSearchResultCache resultCache = getResultCache();
+		Context.getAdministrationService().removeGlobalPropertyListener(resultCache);
+		resultCache.invalidateAll();
+		SubQueryExecutor subQueryExecutor = getSubQueryExecutor();
+		Context.getAdministrationService().removeGlobalPropertyListener(subQueryExecutor);
+		subQueryExecutor.shutdown();
+		Context.getAdministrationService().removeGlobalPropertyListener(getMetrics());
+		unregisterMetrics();
+		Context.getAdministrationService().removeGlobalPropertyListener(getSearchDeadline());
+		Context.getAdministrationService().removeGlobalPropertyListener(getCoalescer());
+		Context.getAdministrationService().removeGlobalPropertyListener(getAdmission());
+		PatientDemographicStore demographicStore = getDemographicStore();
+		Context.getAdministrationService().removeGlobalPropertyListener(demographicStore);
+		demographicStore.stop();
+		getReindexer().stop();
+		// the cached filters are static, they would outlive the module and its index readers
+		SegmentFilterCache.getInstance().clear();
+		log.info("Stopping PatientSearchCriteria");
+	}
+	
+	private void registerMetrics(PatientSearchMetrics metrics) {
+		try {
+			ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			}
+		}
+		catch (JMException e) {
+			log.warn("Failed to register the patient search metrics in JMX", e);
+		}
+	}
+	
+	private void unregisterMetrics() {
+		try {
+			ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+		}
+		catch (JMException e) {
+			log.warn("Failed to unregister the patient search metrics from JMX", e);
+		}
+	}
+	
+	private PatientSearchResultCache getResultCache() {
+		return Context.getRegisteredComponent("patientsearch.PatientSearchResultCache", PatientSearchResultCache.class);
+	}
+	
+	private SubQueryExecutor getSubQueryExecutor() {
+		return Context.getRegisteredComponent("patientsearch.SubQueryExecutor", SubQueryExecutor.class);
+	}
+	
+	private PatientSearchMetrics getMetrics() {
+		return Context.getRegisteredComponent("patientsearch.PatientSearchMetrics", PatientSearchMetrics.class);
+	}
+	
+	private PatientSearchWarmUp getWarmUp() {
+		return Context.getRegisteredComponent("patientsearch.PatientSearchWarmUp", PatientSearchWarmUp.class);
+	}
+	
+	private PatientSearchReindexer getReindexer() {
+		return Context.getRegisteredComponent("patientsearch.PatientSearchReindexer", PatientSearchReindexer.class);
+	}
+	
+	private PatientDemographicStore getDemographicStore() {
+		return Context.getRegisteredComponent("patientsearch.PatientDemographicStore", PatientDemographicStore.class);
+	}
+	
+	private PatientSearchAdmission getAdmission() {
+		return Context.getRegisteredComponent("patientsearch.PatientSearchAdmission", PatientSearchAdmission.class);
+	}
+	
+	private PatientSearchCoalescer getCoalescer() {
+		return Context.getRegisteredComponent("patientsearch.PatientSearchCoalescer", PatientSearchCoalescer.class);
+	}
+	
+	private SearchDeadline getSearchDeadline() {
+		return Context.getRegisteredComponent("patientsearch.SearchDeadline", SearchDeadline.class);
 	}
 	
 }
@@ -18,4 +18,76 @@ import org.springframework.stereotype.Component;
 public class PatientSearchCriteriaConfig {
 	
 	public final static String MODULE_PRIVILEGE = "PatientSearchCriteria Privilege";
+	
+	public final static String GP_RESULT_CACHE_ENABLED = "patientsearch.resultCache.enabled";
+	
+	public final static String GP_RESULT_CACHE_MAX_SIZE = "patientsearch.resultCache.maxSize";
+	
+	public final static String GP_RESULT_CACHE_TTL_SECONDS = "patientsearch.resultCache.ttlSeconds";
+	
+	public final static int DEFAULT_RESULT_CACHE_MAX_SIZE = 500;
+	
+	public final static int DEFAULT_RESULT_CACHE_TTL_SECONDS = 60;
+	
+	public final static String GP_SUB_QUERY_THREADS = "patientsearch.subQuery.threads";
+	
+	public final static int DEFAULT_SUB_QUERY_THREADS = 4;
+	
+	public final static String GP_METRICS_ENABLED = "patientsearch.metrics.enabled";
+	
+	public final static String GP_SLOW_SEARCH_THRESHOLD_MILLIS = "patientsearch.slowSearch.thresholdMillis";
+	
+	public final static String GP_SLOW_SEARCH_CAPACITY = "patientsearch.slowSearch.capacity";
+	
+	public final static int DEFAULT_SLOW_SEARCH_THRESHOLD_MILLIS = 0;
+	
+	public final static int DEFAULT_SLOW_SEARCH_CAPACITY = 100;
+	
+	public final static String GP_TIMEOUT_MILLIS = "patientsearch.timeoutMillis";
+	
+	public final static long DEFAULT_TIMEOUT_MILLIS = 0;
+	
+	public final static String GP_COALESCING_ENABLED = "patientsearch.coalescing.enabled";
+	
+	public final static String GP_ADMISSION_PERMITS = "patientsearch.admission.permits";
+	
+	public final static String GP_ADMISSION_QUEUE_SIZE = "patientsearch.admission.queueSize";
+	
+	public final static String GP_ADMISSION_MAX_WAIT_MILLIS = "patientsearch.admission.maxWaitMillis";
+	
+	public final static int DEFAULT_ADMISSION_PERMITS = 8;
+	
+	public final static int DEFAULT_ADMISSION_QUEUE_SIZE = 32;
+	
+	public final static long DEFAULT_ADMISSION_MAX_WAIT_MILLIS = 2000;
+	
+	public final static String GP_DEMOGRAPHIC_STORE_ENABLED = "patientsearch.demographicStore.enabled";
+	
+	public final static String GP_WARM_UP_ENABLED = "patientsearch.warmUp.enabled";
+	
+	public final static String GP_WARM_UP_SEARCHES = "patientsearch.warmUp.searches";
+	
+	public final static String GP_WARM_UP_ITERATIONS = "patientsearch.warmUp.iterations";
+	
+	public final static String DEFAULT_WARM_UP_SEARCHES = "gender=F&from=20&to=40;gender=M&from=0&to=5;gender=F";
+	
+	public final static int DEFAULT_WARM_UP_ITERATIONS = 3;
+	
+	public final static String GP_REINDEX_THREADS = "patientsearch.reindex.threads";
+	
+	public final static String GP_REINDEX_BATCH_SIZE = "patientsearch.reindex.batchSize";
+	
+	public final static String GP_REINDEX_MAX_PERSONS_PER_SECOND = "patientsearch.reindex.maxPersonsPerSecond";
+	
+	public final static String GP_REINDEX_CHECKPOINT = "patientsearch.reindex.checkpoint";
+	
+	public final static int DEFAULT_REINDEX_THREADS = 4;
+	
+	public final static int DEFAULT_REINDEX_BATCH_SIZE = 1000;
+	
+	public final static int DEFAULT_REINDEX_MAX_PERSONS_PER_SECOND = 0;
+	
+	public final static String GP_FACETS_AGE_BUCKETS = "patientsearch.facets.ageBuckets";
+	
+	public final static String DEFAULT_FACETS_AGE_BUCKETS = "0,5,15,25,50,65";
 }
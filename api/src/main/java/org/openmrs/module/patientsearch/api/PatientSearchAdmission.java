@@ -0,0 +1,197 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounds the number of searches running at the same time, so a burst of searches does not take
+ * all the database connections from the other requests. A search which finds no free permit waits
+ * for one in a bounded queue, for at most the configured time and the remaining time of its
+ * deadline. It is rejected right away when the queue is full, or when no permit was freed in time.
+ * <p>
+ * The permit is taken by the REST layer before the service is called, so a search waiting in the
+ * queue has not opened its transaction and holds no database connection yet. Only the searches of
+ * the REST API are admitted, by the patient search handler and the facets resource: the warm-up,
+ * other modules and any other caller of PatientSearchCriteriaService are not limited.
+ */
+@Component("patientsearch.PatientSearchAdmission")
+public class PatientSearchAdmission implements GlobalPropertyListener {
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final AtomicInteger waiting = new AtomicInteger();
+	
+	private final AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * Replaced when the number of permits changes, the running searches release the permits to the
+	 * semaphore they acquired them from. Null when the admission control is disabled.
+	 */
+	private volatile Semaphore semaphore;
+	
+	private volatile int permits;
+	
+	private volatile int queueSize = PatientSearchCriteriaConfig.DEFAULT_ADMISSION_QUEUE_SIZE;
+	
+	private volatile long maxWaitMillis = PatientSearchCriteriaConfig.DEFAULT_ADMISSION_MAX_WAIT_MILLIS;
+	
+	public PatientSearchAdmission() {
+		setPermits(PatientSearchCriteriaConfig.DEFAULT_ADMISSION_PERMITS);
+	}
+	
+	public boolean isEnabled() {
+		return semaphore != null;
+	}
+	
+	/**
+	 * Admits a search, waiting for a permit if none is free.
+	 * 
+	 * @return the permit of the search, to give back with {@link #release(Semaphore)}, null if the
+	 *         admission control is disabled
+	 * @throws SearchRejectedException if the queue is full or no permit was freed in time
+	 */
+	public Semaphore acquire() throws SearchRejectedException {
+		Semaphore permit = semaphore;
+		if (permit == null || permit.tryAcquire()) {
+			return permit;
+		}
+		if (waiting.incrementAndGet() > queueSize) {
+			waiting.decrementAndGet();
+			throw reject("Too many patient searches are waiting");
+		}
+		try {
+			long waitMillis = Math.min(maxWaitMillis, SearchDeadline.getRemainingMillis());
+			if (waitMillis > 0 && permit.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+				return permit;
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while waiting to search patients", e);
+		}
+		finally {
+			waiting.decrementAndGet();
+		}
+		throw reject("Too many patient searches are running");
+	}
+	
+	/**
+	 * @param permit : permit returned by {@link #acquire()}
+	 */
+	public void release(Semaphore permit) {
+		if (permit != null) {
+			permit.release();
+		}
+	}
+	
+	private SearchRejectedException reject(String message) {
+		rejected.incrementAndGet();
+		return new SearchRejectedException(message, (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxWaitMillis)));
+	}
+	
+	/**
+	 * @return number of permits, 0 if the admission control is disabled
+	 */
+	public int getPermits() {
+		return permits;
+	}
+	
+	/**
+	 * @return number of searches running with a permit
+	 */
+	public int getActiveCount() {
+		Semaphore permit = semaphore;
+		return permit == null ? 0 : Math.max(0, permits - permit.availablePermits());
+	}
+	
+	public int getWaitingCount() {
+		return waiting.get();
+	}
+	
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Reads the configuration from the global properties.
+	 */
+	public void configure(AdministrationService administrationService) {
+		queueSize = NumberUtils.toInt(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_ADMISSION_QUEUE_SIZE), PatientSearchCriteriaConfig.DEFAULT_ADMISSION_QUEUE_SIZE);
+		maxWaitMillis = NumberUtils.toLong(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_ADMISSION_MAX_WAIT_MILLIS),
+		    PatientSearchCriteriaConfig.DEFAULT_ADMISSION_MAX_WAIT_MILLIS);
+		setPermits(NumberUtils.toInt(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS), PatientSearchCriteriaConfig.DEFAULT_ADMISSION_PERMITS));
+	}
+	
+	private synchronized void setPermits(int permits) {
+		if (Math.max(0, permits) != this.permits) {
+			this.permits = Math.max(0, permits);
+			semaphore = permits > 0 ? new Semaphore(permits, true) : null;
+		}
+		log.info("Patient searches " + (isEnabled() ? "limited to " + permits + " at a time" : "not limited"));
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS.equals(propertyName)
+		        || PatientSearchCriteriaConfig.GP_ADMISSION_QUEUE_SIZE.equals(propertyName)
+		        || PatientSearchCriteriaConfig.GP_ADMISSION_MAX_WAIT_MILLIS.equals(propertyName);
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		if (PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS.equals(newValue.getProperty())) {
+			setPermits(NumberUtils.toInt(newValue.getPropertyValue(), PatientSearchCriteriaConfig.DEFAULT_ADMISSION_PERMITS));
+		} else if (PatientSearchCriteriaConfig.GP_ADMISSION_QUEUE_SIZE.equals(newValue.getProperty())) {
+			queueSize = NumberUtils.toInt(newValue.getPropertyValue(),
+			    PatientSearchCriteriaConfig.DEFAULT_ADMISSION_QUEUE_SIZE);
+		} else {
+			maxWaitMillis = NumberUtils.toLong(newValue.getPropertyValue(),
+			    PatientSearchCriteriaConfig.DEFAULT_ADMISSION_MAX_WAIT_MILLIS);
+		}
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		if (PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS.equals(propertyName)) {
+			setPermits(PatientSearchCriteriaConfig.DEFAULT_ADMISSION_PERMITS);
+		} else if (PatientSearchCriteriaConfig.GP_ADMISSION_QUEUE_SIZE.equals(propertyName)) {
+			queueSize = PatientSearchCriteriaConfig.DEFAULT_ADMISSION_QUEUE_SIZE;
+		} else {
+			maxWaitMillis = PatientSearchCriteriaConfig.DEFAULT_ADMISSION_MAX_WAIT_MILLIS;
+		}
+	}
+	
+}
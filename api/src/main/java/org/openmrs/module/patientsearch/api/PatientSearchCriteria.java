@@ -0,0 +1,166 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.PatientIdentifierType;
+
+/**
+ * Immutable criteria of a patient search. The name or identifier is the text query, gender,
+ * birthdate and the range of birthdates are the demographic criteria. Any combination of them is
+ * planned by the DAO, see {@link PatientSearchPlan}, unless the results are sorted, see
+ * {@link PatientSearchSort}.
+ */
+public final class PatientSearchCriteria {
+	
+	private final String query;
+	
+	private final List<PatientIdentifierType> identifierTypes;
+	
+	private final boolean matchIdentifierExactly;
+	
+	private final String gender;
+	
+	private final Date birthdate;
+	
+	private final Date from;
+	
+	private final Date to;
+	
+	private final boolean includeVoided;
+	
+	private final PatientSearchSort sort;
+	
+	/**
+	 * @param query (optional) : name or identifier of patients
+	 * @param identifierTypes (optional) : types of the identifier to match the query against
+	 * @param gender (optional) : gender of patients
+	 * @param birthdate (optional) : birthdate of patients
+	 * @param from (optional) : latest birthdate of the range of age
+	 * @param to (optional) : earliest birthdate of the range of age
+	 */
+	public PatientSearchCriteria(String query, List<PatientIdentifierType> identifierTypes,
+	    boolean matchIdentifierExactly, String gender, Date birthdate, Date from, Date to, boolean includeVoided) {
+		this.query = StringUtils.isBlank(query) ? null : query.trim();
+		this.identifierTypes = (identifierTypes == null) ? null : Collections
+		        .unmodifiableList(new ArrayList<PatientIdentifierType>(identifierTypes));
+		this.matchIdentifierExactly = matchIdentifierExactly;
+		this.gender = gender;
+		this.birthdate = (birthdate == null) ? null : new Date(birthdate.getTime());
+		this.from = (from == null || to == null) ? null : new Date(from.getTime());
+		this.to = (from == null || to == null) ? null : new Date(to.getTime());
+		this.includeVoided = includeVoided;
+		this.sort = null;
+	}
+	
+	private PatientSearchCriteria(PatientSearchCriteria criteria, PatientSearchSort sort) {
+		this.query = criteria.query;
+		this.identifierTypes = criteria.identifierTypes;
+		this.matchIdentifierExactly = criteria.matchIdentifierExactly;
+		this.gender = criteria.gender;
+		this.birthdate = criteria.birthdate;
+		this.from = criteria.from;
+		this.to = criteria.to;
+		this.includeVoided = criteria.includeVoided;
+		this.sort = sort;
+	}
+	
+	/**
+	 * @param sort (optional) : order of the results, null for the order of relevance
+	 * @return the same criteria with the results in the given order
+	 */
+	public PatientSearchCriteria withSort(PatientSearchSort sort) {
+		return new PatientSearchCriteria(this, sort);
+	}
+	
+	public String getQuery() {
+		return query;
+	}
+	
+	public List<PatientIdentifierType> getIdentifierTypes() {
+		return identifierTypes;
+	}
+	
+	public boolean isMatchIdentifierExactly() {
+		return matchIdentifierExactly;
+	}
+	
+	public String getGender() {
+		return gender;
+	}
+	
+	public Date getBirthdate() {
+		return (birthdate == null) ? null : new Date(birthdate.getTime());
+	}
+	
+	public Date getFrom() {
+		return (from == null) ? null : new Date(from.getTime());
+	}
+	
+	public Date getTo() {
+		return (to == null) ? null : new Date(to.getTime());
+	}
+	
+	public boolean isIncludeVoided() {
+		return includeVoided;
+	}
+	
+	/**
+	 * @return order of the results, null for the order of relevance
+	 */
+	public PatientSearchSort getSort() {
+		return sort;
+	}
+	
+	public boolean hasQuery() {
+		return query != null;
+	}
+	
+	/**
+	 * @return true if any of gender, birthdate or range of age is given
+	 */
+	public boolean hasDemographicCriteria() {
+		return gender != null || birthdate != null || from != null;
+	}
+	
+	/**
+	 * @return normalized form of the criteria, equal for searches which find the same patients
+	 */
+	public String getKey() {
+		StringBuilder key = new StringBuilder();
+		key.append(query == null ? "" : query.toLowerCase()).append('|');
+		if (identifierTypes != null) {
+			for (PatientIdentifierType identifierType : identifierTypes) {
+				key.append(identifierType.getPatientIdentifierTypeId()).append(',');
+			}
+			key.append(matchIdentifierExactly);
+		}
+		key.append('|').append(gender == null ? "" : gender.toUpperCase());
+		key.append('|').append(birthdate == null ? "" : birthdate.getTime());
+		key.append('|').append(from == null ? "" : from.getTime());
+		key.append('|').append(to == null ? "" : to.getTime());
+		key.append('|').append(includeVoided);
+		if (sort != null) {
+			key.append('|').append(sort);
+		}
+		return key.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return "PatientSearchCriteria[" + getKey() + "]";
+	}
+	
+}
@@ -68,4 +68,122 @@ public interface PatientSearchCriteriaService extends PatientService {
 	public List<Patient> getPatients(String name, String identifier, List<PatientIdentifierType> identifierTypes,
 	        boolean matchIdentifierExactly, String gender, Integer from, Integer to, Date birthdate) throws APIException;
 	
+	/**
+	 * Return one page of the patients which have required name or identifier or gender or
+	 * birthdate or age. Only the patients of the requested page are loaded.
+	 * 
+	 * @param start (optional) index of the first patient of the page, 0 if null
+	 * @param length (optional) maximum number of patients of the page, the maximum search results
+	 *            if null
+	 * @return patients of the requested page that matched the given criteria (and are not voided)
+	 * @throws APIException
+	 * @see #getPatients(String, String, List, boolean, String, Integer, Integer, Date)
+	 * @should return requested page of patients that match the given criteria
+	 */
+	@Authorized({ PrivilegeConstants.GET_PATIENTS })
+	public List<Patient> getPatients(String name, String identifier, List<PatientIdentifierType> identifierTypes,
+	        boolean matchIdentifierExactly, String gender, Integer from, Integer to, Date birthdate, Integer start,
+	        Integer length) throws APIException;
+	
+	/**
+	 * Return one page of the patients which have required name or identifier or gender or
+	 * birthdate or age, with the total number of matching patients. The total is counted by the
+	 * same index search which finds the page.
+	 * 
+	 * @return page of patients that matched the given criteria (and are not voided), its total
+	 *         count is null if the search is not run on the search criteria index
+	 * @throws APIException
+	 * @see #getPatients(String, String, List, boolean, String, Integer, Integer, Date, Integer,
+	 *      Integer)
+	 * @should return total count of patients with the page
+	 */
+	@Authorized({ PrivilegeConstants.GET_PATIENTS })
+	public PatientSearchPage<Patient> getPatientPage(String name, String identifier,
+	        List<PatientIdentifierType> identifierTypes, boolean matchIdentifierExactly, String gender, Integer from,
+	        Integer to, Date birthdate, Integer start, Integer length) throws APIException;
+	
+	/**
+	 * Return one page of the patients which have required name or identifier or gender or
+	 * birthdate or age, in the given order. The patients are sorted by the search index, so a page of
+	 * sorted patients costs the same as a page in the order of relevance.
+	 * 
+	 * @param sort (optional) fields to sort the patients on separated by commas, such as
+	 *            <code>familyName,-birthdate</code>, see {@link PatientSearchSort}, the order of
+	 *            relevance if null
+	 * @return page of patients that matched the given criteria (and are not voided) in the given
+	 *         order, with the total count
+	 * @throws APIException if the patients cannot be sorted on a field, or are restricted to
+	 *             identifier types
+	 * @see #getPatientPage(String, String, List, boolean, String, Integer, Integer, Date, Integer,
+	 *      Integer)
+	 * @should return requested page of patients in the given order
+	 * @should fail if a field cannot be sorted on
+	 */
+	@Authorized({ PrivilegeConstants.GET_PATIENTS })
+	public PatientSearchPage<Patient> getPatientPage(String name, String identifier,
+	        List<PatientIdentifierType> identifierTypes, boolean matchIdentifierExactly, String gender, Integer from,
+	        Integer to, Date birthdate, Integer start, Integer length, String sort) throws APIException;
+	
+	/**
+	 * Return the summaries of the patients which have required name or identifier or gender or
+	 * birthdate or age. The summaries are read from the search index, no patient is loaded.
+	 * 
+	 * @param name (optional) patients with a partial match on this name will be returned
+	 * @param identifier (optional) only patients with a matching identifier are returned. This
+	 *            however applies only if <code>name</code> argument is null.
+	 * @param gender (optional) value of gender parameter is either "M" or "F".
+	 * @param from (optional) lower boundary of range of age
+	 * @param to (optional) upper boundary of range of age
+	 * @param birthdate (optional) birthdate of patients
+	 * @param start (optional) index of the first summary of the page, 0 if null
+	 * @param length (optional) maximum number of summaries of the page
+	 * @return page of summaries of the patients that matched the given criteria (and are not
+	 *         voided), with the total count
+	 * @throws APIException
+	 * @should return summaries of patients that match all the given criteria
+	 */
+	@Authorized({ PrivilegeConstants.GET_PATIENTS })
+	public PatientSearchPage<PatientSummary> getPatientSummaries(String name, String identifier, String gender, Integer from,
+	        Integer to, Date birthdate, Integer start, Integer length) throws APIException;
+	
+	/**
+	 * Count the patients which have required name or identifier or gender or birthdate or age, by
+	 * gender and by bucket of age. The patients are counted in one pass over the search index, no
+	 * patient is loaded. Without any criteria, all the patients are counted.
+	 * 
+	 * @param name (optional) patients with a partial match on this name will be counted
+	 * @param identifier (optional) only patients with a matching identifier are counted. This
+	 *            however applies only if <code>name</code> argument is null.
+	 * @param gender (optional) value of gender parameter is either "M" or "F".
+	 * @param from (optional) lower boundary of range of age
+	 * @param to (optional) upper boundary of range of age
+	 * @param birthdate (optional) birthdate of patients
+	 * @param ageBuckets (optional) lowest age in years of each bucket of age, the buckets of the
+	 *            global property patientsearch.facets.ageBuckets if null
+	 * @return counts of the patients that matched the given criteria (and are not voided)
+	 * @throws APIException
+	 * @should count patients that match the given criteria by gender and bucket of age
+	 */
+	@Authorized({ PrivilegeConstants.GET_PATIENTS })
+	public PatientSearchFacets getPatientFacets(String name, String identifier, String gender, Integer from, Integer to,
+	        Date birthdate, int[] ageBuckets) throws APIException;
+	
+	/**
+	 * Return the page of patients which have required gender or birthdate or age after the given
+	 * cursor. Unlike offset paging, the cost of a page does not depend on how deep it is.
+	 * 
+	 * @param gender (optional) value of gender parameter is either "M" or "F".
+	 * @param from (optional) lower boundary of range of age
+	 * @param to (optional) upper boundary of range of age
+	 * @param birthdate (optional) birthdate of patients
+	 * @param cursor (optional) cursor returned with the previous page, null for the first page
+	 * @param length (optional) maximum number of patients of the page
+	 * @return page of patients and the cursor of the next page
+	 * @throws APIException if the cursor is not valid
+	 * @should return next page of patients after given cursor
+	 */
+	@Authorized({ PrivilegeConstants.GET_PATIENTS })
+	public PatientSearchPage<Patient> getPatientsAfter(String gender, Integer from, Integer to, Date birthdate,
+	        String cursor, Integer length) throws APIException;
+	
 }
@@ -0,0 +1,96 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Number of patients matching the search criteria, grouped by gender and by bucket of age. The age
+ * is counted in years like the range of age of the search, from the year of birth.
+ */
+public class PatientSearchFacets {
+	
+	/**
+	 * Key of the patients without gender or birthdate, or born after the first bucket of age
+	 */
+	public static final String UNKNOWN = "unknown";
+	
+	private final long totalCount;
+	
+	private final Map<String, Long> countsByGender;
+	
+	private final Map<String, Long> countsByAgeBucket;
+	
+	private final boolean truncated;
+	
+	/**
+	 * @param countsByGender : number of patients of each gender
+	 * @param countsByAgeBucket : number of patients of each bucket of age, in the order of the
+	 *            buckets, see {@link #getAgeBucketLabel(int[], int)}
+	 * @param truncated : true if the search was cut short and the counts may be incomplete
+	 */
+	public PatientSearchFacets(long totalCount, Map<String, Long> countsByGender, Map<String, Long> countsByAgeBucket,
+	    boolean truncated) {
+		this.totalCount = totalCount;
+		this.countsByGender = countsByGender;
+		this.countsByAgeBucket = countsByAgeBucket;
+		this.truncated = truncated;
+	}
+	
+	public long getTotalCount() {
+		return totalCount;
+	}
+	
+	public Map<String, Long> getCountsByGender() {
+		return countsByGender;
+	}
+	
+	public Map<String, Long> getCountsByAgeBucket() {
+		return countsByAgeBucket;
+	}
+	
+	public boolean isTruncated() {
+		return truncated;
+	}
+	
+	/**
+	 * @param ageBuckets : lowest age of each bucket, in years, separated by commas, such as
+	 *            <code>0,5,18,65</code>
+	 * @return the lowest ages sorted, without duplicates
+	 * @throws IllegalArgumentException if an age is not a number or is negative
+	 */
+	public static int[] parseAgeBuckets(String ageBuckets) {
+		String[] ages = StringUtils.split(StringUtils.defaultString(ageBuckets), ',');
+		int[] parsed = new int[ages.length];
+		for (int i = 0; i < ages.length; i++) {
+			parsed[i] = Integer.parseInt(ages[i].trim());
+			if (parsed[i] < 0) {
+				throw new IllegalArgumentException("The age of a bucket must not be negative: " + parsed[i]);
+			}
+		}
+		return Arrays.stream(parsed).sorted().distinct().toArray();
+	}
+	
+	/**
+	 * @param ageBuckets : lowest ages of the buckets, sorted
+	 * @return label of the bucket, such as <code>5-17</code>, or <code>65+</code> for the last one
+	 */
+	public static String getAgeBucketLabel(int[] ageBuckets, int bucket) {
+		if (bucket == ageBuckets.length - 1) {
+			return ageBuckets[bucket] + "+";
+		}
+		int lastAge = ageBuckets[bucket + 1] - 1;
+		return lastAge == ageBuckets[bucket] ? String.valueOf(lastAge) : ageBuckets[bucket] + "-" + lastAge;
+	}
+	
+}
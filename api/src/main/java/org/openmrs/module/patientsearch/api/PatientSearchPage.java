@@ -0,0 +1,77 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.List;
+
+/**
+ * One page of search results, with the total number of hits counted by the same index search.
+ */
+public class PatientSearchPage<T> {
+	
+	private final List<T> results;
+	
+	private final String nextCursor;
+	
+	private final Long totalCount;
+	
+	private final boolean truncated;
+	
+	/**
+	 * @param results : results of the page
+	 * @param nextCursor : opaque token to get the next page, null if this is the last page
+	 */
+	public PatientSearchPage(List<T> results, String nextCursor) {
+		this(results, nextCursor, null, false);
+	}
+	
+	/**
+	 * @param results : results of the page
+	 * @param totalCount : total number of hits, null if it is unknown
+	 * @param truncated : true if the search was cut short and the results may be incomplete
+	 */
+	public PatientSearchPage(List<T> results, Long totalCount, boolean truncated) {
+		this(results, null, totalCount, truncated);
+	}
+	
+	public PatientSearchPage(List<T> results, String nextCursor, Long totalCount, boolean truncated) {
+		this.results = results;
+		this.nextCursor = nextCursor;
+		this.totalCount = totalCount;
+		this.truncated = truncated;
+	}
+	
+	public List<T> getResults() {
+		return results;
+	}
+	
+	public String getNextCursor() {
+		return nextCursor;
+	}
+	
+	public boolean hasMoreResults() {
+		return nextCursor != null;
+	}
+	
+	/**
+	 * @return total number of hits of the search, null if it is unknown
+	 */
+	public Long getTotalCount() {
+		return totalCount;
+	}
+	
+	/**
+	 * @return true if the search was cut short and the results may be incomplete
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+	
+}
@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+/**
+ * How a {@link PatientSearchCriteria} is searched, chosen from the statistics of the search index.
+ */
+public class PatientSearchPlan {
+	
+	public enum Strategy {
+		/**
+		 * No patient can match the criteria, nothing is searched
+		 */
+		EMPTY,
+		/**
+		 * Only a name or identifier is given, the search of OpenMRS core is used
+		 */
+		CORE,
+		/**
+		 * Only demographic criteria are given, they are filtered on the in-memory demographic store
+		 */
+		DEMOGRAPHIC,
+		/**
+		 * One compiled index query, the name or identifier is matched and the demographic criteria
+		 * are filters
+		 */
+		COMPILED,
+		/**
+		 * The ids of the patients matching the demographic criteria and the ids matching the name or
+		 * identifier are collected separately and intersected
+		 */
+		INTERSECT
+	}
+	
+	/**
+	 * Estimate used when the number of hits was not estimated
+	 */
+	public static final long UNKNOWN = -1;
+	
+	private final Strategy strategy;
+	
+	private final long queryEstimate;
+	
+	private final long demographicEstimate;
+	
+	/**
+	 * @param queryEstimate : estimated number of hits of the name or identifier
+	 * @param demographicEstimate : number of patients matching the demographic criteria
+	 */
+	public PatientSearchPlan(Strategy strategy, long queryEstimate, long demographicEstimate) {
+		this.strategy = strategy;
+		this.queryEstimate = queryEstimate;
+		this.demographicEstimate = demographicEstimate;
+	}
+	
+	public Strategy getStrategy() {
+		return strategy;
+	}
+	
+	public long getQueryEstimate() {
+		return queryEstimate;
+	}
+	
+	public long getDemographicEstimate() {
+		return demographicEstimate;
+	}
+	
+	@Override
+	public String toString() {
+		return strategy + "[query=" + queryEstimate + ", demographic=" + demographicEstimate + "]";
+	}
+	
+}
@@ -0,0 +1,331 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
+import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rebuilds the part of the search index which the module searches: the persons, their names and
+ * their identifiers. The person ids are cut into ranges of
+ * {@link PatientSearchCriteriaConfig#GP_REINDEX_BATCH_SIZE} ids which are indexed concurrently by
+ * {@link PatientSearchCriteriaConfig#GP_REINDEX_THREADS} threads, each range in a session of its
+ * own, see {@link PatientSearchCriteriaDAO#reindexPersons(int, int)}. The rate of the rebuild is
+ * limited by {@link PatientSearchCriteriaConfig#GP_REINDEX_MAX_PERSONS_PER_SECOND}.
+ * <p>
+ * The documents are updated in place, the index is never emptied, so the searches keep finding the
+ * persons which are not indexed again yet. The id below which every range is done is saved as
+ * {@link PatientSearchCriteriaConfig#GP_REINDEX_CHECKPOINT}, a stopped or interrupted rebuild
+ * resumes from there.
+ */
+@Component("patientsearch.PatientSearchReindexer")
+public class PatientSearchReindexer {
+	
+	public enum Status {
+		IDLE,
+		RUNNING,
+		/**
+		 * The rebuild was asked to stop, it waits for the ranges being indexed
+		 */
+		STOPPING,
+		/**
+		 * The rebuild was stopped, it can be resumed from its checkpoint
+		 */
+		STOPPED,
+		DONE,
+		/**
+		 * The rebuild stopped on an error, it can be resumed from its checkpoint
+		 */
+		FAILED
+	}
+	
+	/**
+	 * Least time between two saves of the checkpoint
+	 */
+	private static final long CHECKPOINT_INTERVAL_MILLIS = 10000;
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	private final AtomicLong personsIndexed = new AtomicLong();
+	
+	private final Object throttleLock = new Object();
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchCriteriaDao")
+	private PatientSearchCriteriaDAO dao;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchResultCache")
+	private PatientSearchResultCache resultCache;
+	
+	private volatile DaemonToken daemonToken;
+	
+	private volatile Status status = Status.IDLE;
+	
+	private volatile boolean stopRequested;
+	
+	private volatile int threads;
+	
+	private volatile int maxPersonsPerSecond;
+	
+	private volatile int fromPersonId;
+	
+	private volatile int maxPersonId;
+	
+	private volatile int checkpoint;
+	
+	private volatile long startedMillis;
+	
+	private volatile long finishedMillis;
+	
+	private volatile String error;
+	
+	private long throttleNanos;
+	
+	public void setDaemonToken(DaemonToken daemonToken) {
+		this.daemonToken = daemonToken;
+	}
+	
+	/**
+	 * Resumes the rebuild which was interrupted by the shutdown of the module, if any.
+	 */
+	public void resumeInterrupted(AdministrationService administrationService) {
+		if (getCheckpoint(administrationService) > 0) {
+			log.info("Resuming the rebuild of the patient search index");
+			start(administrationService, true);
+		}
+	}
+	
+	/**
+	 * Starts the rebuild on a daemon thread.
+	 *
+	 * @param resume : true to start from the checkpoint of the previous rebuild, false to start from
+	 *            the first person
+	 * @return false if a rebuild is already running
+	 */
+	public synchronized boolean start(AdministrationService administrationService, boolean resume) {
+		if (status == Status.RUNNING || status == Status.STOPPING) {
+			return false;
+		}
+		if (daemonToken == null) {
+			throw new IllegalStateException("The module is not started");
+		}
+		DaemonToken token = daemonToken;
+		return start(administrationService, resume, task -> Daemon.runInDaemonThread(task, token));
+	}
+	
+	/**
+	 * Starts the rebuild on the executor.
+	 */
+	synchronized boolean start(AdministrationService administrationService, boolean resume, Executor executor) {
+		if (status == Status.RUNNING || status == Status.STOPPING) {
+			return false;
+		}
+		
+		int batchSize = Math.max(1, NumberUtils.toInt(administrationService
+		        .getGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_BATCH_SIZE),
+		    PatientSearchCriteriaConfig.DEFAULT_REINDEX_BATCH_SIZE));
+		threads = Math.max(1, NumberUtils.toInt(administrationService
+		        .getGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_THREADS),
+		    PatientSearchCriteriaConfig.DEFAULT_REINDEX_THREADS));
+		maxPersonsPerSecond = NumberUtils.toInt(administrationService
+		        .getGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_MAX_PERSONS_PER_SECOND),
+		    PatientSearchCriteriaConfig.DEFAULT_REINDEX_MAX_PERSONS_PER_SECOND);
+		
+		status = Status.RUNNING;
+		stopRequested = false;
+		error = null;
+		fromPersonId = resume ? getCheckpoint(administrationService) : 0;
+		checkpoint = fromPersonId;
+		maxPersonId = 0;
+		personsIndexed.set(0);
+		startedMillis = System.currentTimeMillis();
+		finishedMillis = 0;
+		executor.execute(() -> run(batchSize));
+		return true;
+	}
+	
+	/**
+	 * Asks the rebuild to stop once the ranges being indexed are done, it keeps its checkpoint.
+	 */
+	public synchronized void stop() {
+		if (status == Status.RUNNING) {
+			stopRequested = true;
+			status = Status.STOPPING;
+		}
+	}
+	
+	/**
+	 * Sets the status at the end of the rebuild, under the lock of {@link #stop()} so a stop asked
+	 * meanwhile does not leave the rebuild stopping.
+	 */
+	private synchronized void finish(Status outcome) {
+		status = outcome;
+	}
+	
+	private void run(int batchSize) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "patientsearch-reindex-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		AdministrationService administrationService = Context.getAdministrationService();
+		long checkpointMillis = System.currentTimeMillis();
+		Status outcome = Status.FAILED;
+		try {
+			maxPersonId = dao.getMaxPersonId();
+			log.info("Rebuilding the patient search index from person " + fromPersonId + " to " + maxPersonId + " with "
+			        + threads + " threads");
+			
+			// the ranges are done in any order, the checkpoint only moves past the oldest range once it
+			// is done, a few ranges ahead of it are queued to keep every thread busy
+			Deque<Future<Integer>> ranges = new ArrayDeque<Future<Integer>>();
+			int nextPersonId = fromPersonId;
+			while (!ranges.isEmpty() || (nextPersonId <= maxPersonId && !stopRequested)) {
+				if (nextPersonId <= maxPersonId && !stopRequested && ranges.size() < threads * 2) {
+					int rangeStart = nextPersonId;
+					int rangeEnd = (int) Math.min((long) rangeStart + batchSize, Integer.MAX_VALUE);
+					ranges.add(executor.submit(() -> reindexRange(rangeStart, rangeEnd)));
+					nextPersonId = rangeEnd;
+				} else {
+					ranges.peek().get();
+					ranges.poll();
+					checkpoint = (int) Math.min((long) checkpoint + batchSize, (long) maxPersonId + 1);
+					if (System.currentTimeMillis() - checkpointMillis >= CHECKPOINT_INTERVAL_MILLIS) {
+						saveCheckpoint(administrationService, checkpoint);
+						checkpointMillis = System.currentTimeMillis();
+					}
+				}
+			}
+			outcome = stopRequested ? Status.STOPPED : Status.DONE;
+		}
+		catch (ExecutionException e) {
+			log.error("Failed to rebuild the patient search index from person " + checkpoint, e.getCause());
+			error = e.getCause().getMessage();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			outcome = Status.STOPPED;
+		}
+		catch (RuntimeException e) {
+			log.error("Failed to rebuild the patient search index from person " + checkpoint, e);
+			error = e.getMessage();
+		}
+		finally {
+			executor.shutdownNow();
+			finishedMillis = System.currentTimeMillis();
+			saveCheckpoint(administrationService, outcome == Status.DONE ? 0 : checkpoint);
+			resultCache.invalidateAll();
+			finish(outcome);
+		}
+		log.info("Patient search index rebuild " + outcome + ", " + personsIndexed.get() + " persons indexed in "
+		        + (finishedMillis - startedMillis) + " ms");
+	}
+	
+	private Integer reindexRange(int fromPersonId, int toPersonId) throws InterruptedException {
+		int persons = dao.reindexPersons(fromPersonId, toPersonId);
+		personsIndexed.addAndGet(persons);
+		throttle(persons);
+		return persons;
+	}
+	
+	/**
+	 * Holds the calling thread as long as the rebuild is ahead of its maximum rate. The time of the
+	 * persons indexed is booked on a schedule shared by all the threads.
+	 */
+	private void throttle(int persons) throws InterruptedException {
+		int personsPerSecond = maxPersonsPerSecond;
+		if (personsPerSecond <= 0 || persons == 0) {
+			return;
+		}
+		long waitNanos;
+		synchronized (throttleLock) {
+			long now = System.nanoTime();
+			waitNanos = throttleNanos - now;
+			throttleNanos = Math.max(throttleNanos, now) + TimeUnit.SECONDS.toNanos(persons) / personsPerSecond;
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+	
+	/**
+	 * @param personId : id from which the rebuild resumes, 0 when there is nothing to resume
+	 */
+	private void saveCheckpoint(AdministrationService administrationService, int personId) {
+		try {
+			administrationService.setGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_CHECKPOINT,
+			    personId > 0 ? String.valueOf(personId) : "");
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to save the checkpoint of the patient search index rebuild", e);
+		}
+	}
+	
+	private int getCheckpoint(AdministrationService administrationService) {
+		String checkpoint = administrationService.getGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_CHECKPOINT);
+		return StringUtils.isBlank(checkpoint) ? 0 : NumberUtils.toInt(checkpoint.trim());
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return status and progress of the rebuild, with the checkpoint saved by the last one
+	 */
+	public Map<String, Object> getProgress(AdministrationService administrationService) {
+		Map<String, Object> progress = new LinkedHashMap<String, Object>();
+		progress.put("status", status.name());
+		progress.put("checkpoint", getCheckpoint(administrationService));
+		if (status != Status.IDLE) {
+			progress.put("fromPersonId", fromPersonId);
+			progress.put("currentPersonId", checkpoint);
+			progress.put("maxPersonId", maxPersonId);
+			progress.put("personsIndexed", personsIndexed.get());
+			progress.put("threads", threads);
+			progress.put("maxPersonsPerSecond", maxPersonsPerSecond);
+			progress.put("elapsedMillis", (finishedMillis > 0 ? finishedMillis : System.currentTimeMillis())
+			        - startedMillis);
+		}
+		if (error != null) {
+			progress.put("error", error);
+		}
+		return progress;
+	}
+	
+}
@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Immutable order of the results of a patient search, written as the fields to sort on separated
+ * by commas, a field prefixed with <code>-</code> is sorted in descending order, such as
+ * <code>familyName,-birthdate</code>. The patients are sorted by the search index, so a page of
+ * sorted results costs the same as a page of unsorted results.
+ */
+public final class PatientSearchSort {
+	
+	public enum Field {
+		FAMILY_NAME("familyName"),
+		GIVEN_NAME("givenName"),
+		BIRTHDATE("birthdate"),
+		IDENTIFIER("identifier");
+		
+		private final String parameter;
+		
+		private Field(String parameter) {
+			this.parameter = parameter;
+		}
+		
+		/**
+		 * @return the name of the field in the sort parameter
+		 */
+		public String getParameter() {
+			return parameter;
+		}
+		
+		public boolean isName() {
+			return this == FAMILY_NAME || this == GIVEN_NAME;
+		}
+	}
+	
+	/**
+	 * One field of the sort with its direction.
+	 */
+	public static final class Order {
+		
+		private final Field field;
+		
+		private final boolean descending;
+		
+		public Order(Field field, boolean descending) {
+			this.field = field;
+			this.descending = descending;
+		}
+		
+		public Field getField() {
+			return field;
+		}
+		
+		public boolean isDescending() {
+			return descending;
+		}
+		
+		@Override
+		public String toString() {
+			return (descending ? "-" : "") + field.getParameter();
+		}
+	}
+	
+	private final List<Order> orders;
+	
+	private PatientSearchSort(List<Order> orders) {
+		this.orders = Collections.unmodifiableList(orders);
+	}
+	
+	/**
+	 * @param sort : fields to sort on separated by commas, each one optionally prefixed with
+	 *            <code>-</code> for the descending order
+	 * @return the sort, null if the given sort is blank
+	 * @throws IllegalArgumentException if a field cannot be sorted on
+	 */
+	public static PatientSearchSort parse(String sort) {
+		List<Order> orders = new ArrayList<Order>();
+		for (String order : StringUtils.split(StringUtils.defaultString(sort), ',')) {
+			String parameter = order.trim();
+			boolean descending = parameter.startsWith("-");
+			if (descending || parameter.startsWith("+")) {
+				parameter = parameter.substring(1);
+			}
+			orders.add(new Order(getField(parameter), descending));
+		}
+		return orders.isEmpty() ? null : new PatientSearchSort(orders);
+	}
+	
+	private static Field getField(String parameter) {
+		List<String> parameters = new ArrayList<String>();
+		for (Field field : Field.values()) {
+			if (field.getParameter().equals(parameter)) {
+				return field;
+			}
+			parameters.add(field.getParameter());
+		}
+		throw new IllegalArgumentException("The patients cannot be sorted by '" + parameter + "', only by "
+		        + StringUtils.join(parameters, ", "));
+	}
+	
+	public List<Order> getOrders() {
+		return orders;
+	}
+	
+	/**
+	 * @return the field sorted on first, which decides the index searched when there is no name or
+	 *         identifier to match
+	 */
+	public Field getFirstField() {
+		return orders.get(0).getField();
+	}
+	
+	/**
+	 * @return normalized form of the sort, as it is parsed
+	 */
+	@Override
+	public String toString() {
+		return StringUtils.join(orders, ',');
+	}
+	
+}
@@ -0,0 +1,242 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Warms up the search after the module starts, on a daemon thread: the term dictionaries of the
+ * indexes are read, the cached filters of the demographic criteria are filled and the
+ * representative searches of the global property {@link PatientSearchCriteriaConfig#GP_WARM_UP_SEARCHES}
+ * are replayed a few times, so the query paths are compiled and the result cache is filled.
+ * <p>
+ * A representative search is written like the parameters of the REST search, such as
+ * <code>gender=F&amp;from=20&amp;to=40</code>, with the birthdate as <code>yyyy-MM-dd</code>. The
+ * searches are separated by semicolons.
+ */
+@Component("patientsearch.PatientSearchWarmUp")
+public class PatientSearchWarmUp {
+	
+	public enum Status {
+		/**
+		 * The warm-up is disabled
+		 */
+		DISABLED,
+		/**
+		 * The warm-up waits for its thread
+		 */
+		PENDING,
+		RUNNING,
+		DONE,
+		/**
+		 * The warm-up was stopped with the module before it was done
+		 */
+		STOPPED,
+		/**
+		 * The warm-up stopped on an error, the searches work but may be slow at first
+		 */
+		FAILED
+	}
+	
+	public static final String INDEX_PHASE = "index";
+	
+	public static final String SEARCHES_PHASE = "searches";
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final AtomicInteger searchesDone = new AtomicInteger();
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchCriteriaDao")
+	private PatientSearchCriteriaDAO dao;
+	
+	private volatile Status status = Status.DISABLED;
+	
+	private volatile String phase;
+	
+	private volatile int searchesTotal;
+	
+	private volatile int cachedFilters;
+	
+	private volatile long startedMillis;
+	
+	private volatile long finishedMillis;
+	
+	private volatile String error;
+	
+	private volatile boolean stopRequested;
+	
+	/**
+	 * Starts the warm-up on a daemon thread, if it is enabled.
+	 */
+	public synchronized void start(AdministrationService administrationService, DaemonToken daemonToken) {
+		if (status == Status.PENDING || status == Status.RUNNING) {
+			return;
+		}
+		if (daemonToken == null
+		        || !Boolean.parseBoolean(administrationService.getGlobalProperty(
+		            PatientSearchCriteriaConfig.GP_WARM_UP_ENABLED, "false"))) {
+			status = Status.DISABLED;
+			return;
+		}
+		
+		List<Map<String, String>> searches = parseSearches(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_WARM_UP_SEARCHES, PatientSearchCriteriaConfig.DEFAULT_WARM_UP_SEARCHES));
+		int iterations = NumberUtils.toInt(administrationService
+		        .getGlobalProperty(PatientSearchCriteriaConfig.GP_WARM_UP_ITERATIONS),
+		    PatientSearchCriteriaConfig.DEFAULT_WARM_UP_ITERATIONS);
+		start(searches, iterations, task -> Daemon.runInDaemonThread(task, daemonToken));
+	}
+	
+	/**
+	 * Starts the warm-up of the given searches on the executor.
+	 */
+	synchronized void start(List<Map<String, String>> searches, int iterations, Executor executor) {
+		status = Status.PENDING;
+		stopRequested = false;
+		phase = null;
+		error = null;
+		cachedFilters = 0;
+		searchesDone.set(0);
+		searchesTotal = searches.size() * Math.max(0, iterations);
+		startedMillis = System.currentTimeMillis();
+		finishedMillis = 0;
+		executor.execute(() -> run(searches, iterations));
+	}
+	
+	/**
+	 * Asks the warm-up to stop before its next step, when the module stops. The step running is not
+	 * interrupted, as an interrupt closes the files of the index it reads.
+	 */
+	public synchronized void stop() {
+		if (status == Status.PENDING || status == Status.RUNNING) {
+			stopRequested = true;
+		}
+	}
+	
+	private void run(List<Map<String, String>> searches, int iterations) {
+		status = Status.RUNNING;
+		try {
+			if (!stopRequested) {
+				phase = INDEX_PHASE;
+				cachedFilters = dao.warmUpIndex();
+				log.info("Warmed up the patient search index, " + cachedFilters + " cached filters");
+			}
+			
+			phase = SEARCHES_PHASE;
+			PatientSearchCriteriaService service = Context.getService(PatientSearchCriteriaService.class);
+			for (int i = 0; i < iterations && !stopRequested; i++) {
+				for (int j = 0; j < searches.size() && !stopRequested; j++) {
+					search(service, searches.get(j));
+					searchesDone.incrementAndGet();
+				}
+			}
+			status = stopRequested ? Status.STOPPED : Status.DONE;
+		}
+		catch (RuntimeException e) {
+			log.error("Failed to warm up the patient search in the " + phase + " phase", e);
+			error = e.getMessage();
+			status = Status.FAILED;
+		}
+		finally {
+			finishedMillis = System.currentTimeMillis();
+		}
+		log.info("Patient search warm-up " + status + " in " + (finishedMillis - startedMillis) + " ms");
+	}
+	
+	private void search(PatientSearchCriteriaService service, Map<String, String> search) {
+		Date birthdate = null;
+		if (search.get("birthdate") != null) {
+			birthdate = Date.from(LocalDate.parse(search.get("birthdate")).atStartOfDay(ZoneId.systemDefault())
+			        .toInstant());
+		}
+		service.getPatientPage(null, search.get("q"), null, true, search.get("gender"),
+		    search.get("from") == null ? null : Integer.valueOf(search.get("from")),
+		    search.get("to") == null ? null : Integer.valueOf(search.get("to")), birthdate, 0, null);
+	}
+	
+	/**
+	 * @param searches : searches separated by semicolons, each one written like the parameters of
+	 *            the REST search
+	 * @return the parameters of each search
+	 */
+	static List<Map<String, String>> parseSearches(String searches) {
+		List<Map<String, String>> parsed = new ArrayList<Map<String, String>>();
+		for (String search : StringUtils.split(StringUtils.defaultString(searches), ';')) {
+			Map<String, String> parameters = new HashMap<String, String>();
+			for (String parameter : StringUtils.split(search.trim(), '&')) {
+				String[] nameAndValue = StringUtils.split(parameter, "=", 2);
+				if (nameAndValue.length == 2) {
+					parameters.put(nameAndValue[0].trim(), nameAndValue[1].trim());
+				}
+			}
+			if (!parameters.isEmpty()) {
+				parsed.add(parameters);
+			}
+		}
+		return parsed;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return true once the warm-up is over, whatever its outcome, or if it is disabled
+	 */
+	public boolean isWarm() {
+		return status != Status.PENDING && status != Status.RUNNING;
+	}
+	
+	/**
+	 * @return status, phase and progress of the warm-up
+	 */
+	public Map<String, Object> getProgress() {
+		Map<String, Object> progress = new LinkedHashMap<String, Object>();
+		progress.put("status", status.name());
+		progress.put("warm", isWarm());
+		if (status != Status.DISABLED) {
+			progress.put("phase", phase);
+			progress.put("cachedFilters", cachedFilters);
+			progress.put("searchesDone", searchesDone.get());
+			progress.put("searchesTotal", searchesTotal);
+			progress.put("elapsedMillis", (finishedMillis > 0 ? finishedMillis : System.currentTimeMillis())
+			        - startedMillis);
+		}
+		if (error != null) {
+			progress.put("error", error);
+		}
+		return progress;
+	}
+	
+}
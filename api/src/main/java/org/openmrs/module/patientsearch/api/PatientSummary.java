@@ -0,0 +1,79 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Lightweight, immutable view of a patient found by a search. It is built from the fields stored
+ * in the search index, so no Patient entity is loaded.
+ */
+public final class PatientSummary implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final Integer patientId;
+	
+	private final String uuid;
+	
+	private final String display;
+	
+	private final String identifier;
+	
+	private final String gender;
+	
+	private final Long birthdate;
+	
+	public PatientSummary(Integer patientId, String uuid, String display, String identifier, String gender, Date birthdate) {
+		this.patientId = patientId;
+		this.uuid = uuid;
+		this.display = display;
+		this.identifier = identifier;
+		this.gender = gender;
+		this.birthdate = (birthdate == null) ? null : birthdate.getTime();
+	}
+	
+	public Integer getPatientId() {
+		return patientId;
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	/**
+	 * @return given, middle and family name of the patient
+	 */
+	public String getDisplay() {
+		return display;
+	}
+	
+	/**
+	 * @return primary identifier of the patient
+	 */
+	public String getIdentifier() {
+		return identifier;
+	}
+	
+	public String getGender() {
+		return gender;
+	}
+	
+	public Date getBirthdate() {
+		return (birthdate == null) ? null : new Date(birthdate);
+	}
+	
+	@Override
+	public String toString() {
+		return "PatientSummary[" + patientId + ", " + uuid + "]";
+	}
+	
+}
@@ -0,0 +1,176 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.springframework.stereotype.Component;
+
+/**
+ * Time budget of the search running on the current thread. The stages of the search check it
+ * cooperatively: the lucene queries are limited to the remaining time, the hydration stops between
+ * batches and the sub-queries are no longer waited for once it has expired. The search then
+ * returns the results found so far, marked as truncated.
+ * <p>
+ * The budget of a request is given by the caller, such as the <code>timeout</code> parameter of the
+ * REST search, or else by the global property {@link PatientSearchCriteriaConfig#GP_TIMEOUT_MILLIS}
+ * held by this component.
+ */
+@Component("patientsearch.SearchDeadline")
+public class SearchDeadline implements GlobalPropertyListener {
+	
+	private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<Budget>();
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private volatile long defaultTimeoutMillis = PatientSearchCriteriaConfig.DEFAULT_TIMEOUT_MILLIS;
+	
+	/**
+	 * @return the budget of the searches which are not given one, 0 for no limit
+	 */
+	public long getDefaultTimeoutMillis() {
+		return defaultTimeoutMillis;
+	}
+	
+	/**
+	 * Starts a budget on the current thread, unless one is already running.
+	 * 
+	 * @param timeoutMillis : time budget of the search, 0 or less for no limit
+	 * @return true if the budget was started, the caller then ends it with {@link #end()}
+	 */
+	public static boolean begin(long timeoutMillis) {
+		if (timeoutMillis <= 0 || CURRENT.get() != null) {
+			return false;
+		}
+		CURRENT.set(new Budget(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)));
+		return true;
+	}
+	
+	public static void end() {
+		CURRENT.remove();
+	}
+	
+	/**
+	 * @return the time left to the search, {@link Long#MAX_VALUE} if it has no budget
+	 */
+	public static long getRemainingMillis() {
+		Budget budget = CURRENT.get();
+		if (budget == null) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(budget.deadlineNanos - System.nanoTime()));
+	}
+	
+	public static boolean isExpired() {
+		Budget budget = CURRENT.get();
+		return budget != null && System.nanoTime() - budget.deadlineNanos >= 0;
+	}
+	
+	/**
+	 * Records that a stage of the search stopped early because the budget expired.
+	 */
+	public static void markTruncated() {
+		Budget budget = CURRENT.get();
+		if (budget != null) {
+			budget.truncated = true;
+		}
+	}
+	
+	public static boolean isTruncated() {
+		Budget budget = CURRENT.get();
+		return budget != null && budget.truncated;
+	}
+	
+	/**
+	 * @return the budget of the current thread, to continue it on another thread with
+	 *         {@link #attach(Budget)}
+	 */
+	public static Budget current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Continues the given budget on the current thread, for the sub-queries of a search.
+	 * 
+	 * @return the budget of the current thread before, to restore with {@link #restore(Budget)}
+	 */
+	public static Budget attach(Budget budget) {
+		Budget previous = CURRENT.get();
+		restore(budget);
+		return previous;
+	}
+	
+	public static void restore(Budget budget) {
+		if (budget == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(budget);
+		}
+	}
+	
+	/**
+	 * Reads the default budget from the global properties.
+	 */
+	public void configure(AdministrationService administrationService) {
+		setDefaultTimeoutMillis(administrationService.getGlobalProperty(PatientSearchCriteriaConfig.GP_TIMEOUT_MILLIS));
+	}
+	
+	private void setDefaultTimeoutMillis(String value) {
+		defaultTimeoutMillis = NumberUtils.toLong(value, PatientSearchCriteriaConfig.DEFAULT_TIMEOUT_MILLIS);
+		log.info("Patient searches " + (defaultTimeoutMillis > 0 ? "limited to " + defaultTimeoutMillis + " ms"
+		        : "not limited in time"));
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return PatientSearchCriteriaConfig.GP_TIMEOUT_MILLIS.equals(propertyName);
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		setDefaultTimeoutMillis(newValue.getPropertyValue());
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		setDefaultTimeoutMillis(null);
+	}
+	
+	/**
+	 * Deadline of a search, shared with the threads of its sub-queries.
+	 */
+	public static final class Budget {
+		
+		private final long deadlineNanos;
+		
+		private volatile boolean truncated;
+		
+		private Budget(long deadlineNanos) {
+			this.deadlineNanos = deadlineNanos;
+		}
+	}
+	
+}
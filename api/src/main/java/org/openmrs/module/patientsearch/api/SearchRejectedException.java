@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown when a search is not admitted because too many searches are already running, see
+ * {@link PatientSearchAdmission}.
+ */
+public class SearchRejectedException extends APIException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int retryAfterSeconds;
+	
+	/**
+	 * @param retryAfterSeconds : time after which the search may be tried again
+	 */
+	public SearchRejectedException(String message, int retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+	
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+	
+}
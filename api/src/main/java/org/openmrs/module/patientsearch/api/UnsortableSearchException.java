@@ -0,0 +1,27 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown when the results of a search cannot be sorted as asked, because a field of the sort is
+ * missing from the index of the matches or because the name or identifier matches both names and
+ * identifiers, which are sorted in separate indexes.
+ */
+public class UnsortableSearchException extends APIException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public UnsortableSearchException(String message) {
+		super(message);
+	}
+	
+}
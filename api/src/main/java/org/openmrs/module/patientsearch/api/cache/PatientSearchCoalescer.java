@@ -0,0 +1,192 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.cache;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.springframework.stereotype.Component;
+
+/**
+ * Single flight of the identical searches running at the same time. The first caller of a key
+ * runs the search, the callers which join it while it is in flight wait for its page of patient
+ * ids instead of searching the index again. Only the ids are shared, every caller loads the
+ * patients in its own session.
+ */
+@Component("patientsearch.PatientSearchCoalescer")
+public class PatientSearchCoalescer implements GlobalPropertyListener {
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+	
+	private final AtomicLong coalesced = new AtomicLong();
+	
+	private volatile boolean enabled = true;
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Joins the search in flight for the key, or starts it.
+	 * 
+	 * @param key : normalized criteria, page and privileges of the search
+	 * @return the flight of the search, the caller runs the search and completes the flight if it
+	 *         is the leader
+	 */
+	public Flight join(String key) {
+		Flight flight = new Flight(key);
+		Flight inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight == null) {
+			return flight;
+		}
+		coalesced.incrementAndGet();
+		return inFlight;
+	}
+	
+	/**
+	 * @return number of searches which waited for an identical search in flight
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+	
+	/**
+	 * @return number of searches in flight
+	 */
+	public int size() {
+		return flights.size();
+	}
+	
+	/**
+	 * Reads the configuration from the global properties.
+	 */
+	public void configure(AdministrationService administrationService) {
+		setEnabled(administrationService.getGlobalProperty(PatientSearchCriteriaConfig.GP_COALESCING_ENABLED, "true"));
+	}
+	
+	private void setEnabled(String value) {
+		enabled = Boolean.parseBoolean(value);
+		log.info("Coalescing of identical patient searches " + (enabled ? "enabled" : "disabled"));
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return PatientSearchCriteriaConfig.GP_COALESCING_ENABLED.equals(propertyName);
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		setEnabled(newValue.getPropertyValue());
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		setEnabled("true");
+	}
+	
+	/**
+	 * Search in flight, owned by the thread which started it.
+	 */
+	public final class Flight {
+		
+		private final String key;
+		
+		private final Thread leader = Thread.currentThread();
+		
+		private final CompletableFuture<PatientSearchPage<Integer>> result = new CompletableFuture<PatientSearchPage<Integer>>();
+		
+		private Flight(String key) {
+			this.key = key;
+		}
+		
+		/**
+		 * @return true if the current thread runs the search
+		 */
+		public boolean isLeader() {
+			return leader == Thread.currentThread();
+		}
+		
+		/**
+		 * Shares the page found by the leader with the callers waiting for it.
+		 */
+		public void complete(PatientSearchPage<Integer> page) {
+			flights.remove(key, this);
+			result.complete(page);
+		}
+		
+		/**
+		 * Ends the flight, the callers still waiting because the search of the leader failed search
+		 * again on their own.
+		 */
+		public void release() {
+			flights.remove(key, this);
+			result.completeExceptionally(new APIException("The identical search did not complete"));
+		}
+		
+		/**
+		 * Waits for the page of the leader, until the deadline of the current search.
+		 * 
+		 * @return the page of the leader, an empty truncated page if the deadline expired first, or
+		 *         null if the caller must run the search itself because the leader failed or its
+		 *         page was truncated
+		 */
+		public PatientSearchPage<Integer> await() throws APIException {
+			PatientSearchPage<Integer> page;
+			try {
+				long remainingMillis = SearchDeadline.getRemainingMillis();
+				if (remainingMillis == Long.MAX_VALUE) {
+					page = result.get();
+				} else {
+					page = result.get(remainingMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			catch (TimeoutException e) {
+				SearchDeadline.markTruncated();
+				return new PatientSearchPage<Integer>(new ArrayList<Integer>(), null, true);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new APIException("Interrupted while waiting for an identical search", e);
+			}
+			catch (ExecutionException e) {
+				log.debug("The identical search failed, searching again", e.getCause());
+				return null;
+			}
+			return page.isTruncated() ? null : page;
+		}
+	}
+	
+}
@@ -0,0 +1,210 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded cache of the ids of the patients found by a search, keyed by the normalized criteria.
+ * Entries are evicted least recently used first and expire after the configured time to live. Any
+ * change of a patient, person, name or identifier clears the cache, see
+ * {@link org.openmrs.module.patientsearch.api.dao.hibernate.PatientSearchCacheInterceptor}. The
+ * cache is disabled by default.
+ */
+@Component("patientsearch.PatientSearchResultCache")
+public class PatientSearchResultCache implements GlobalPropertyListener {
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Incremented on each invalidation, a result is only added if no invalidation happened since
+	 * its search started.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+	
+	private volatile boolean enabled = false;
+	
+	private volatile int maxSize = PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_MAX_SIZE;
+	
+	private volatile long ttlMillis = TimeUnit.SECONDS.toMillis(PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_TTL_SECONDS);
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * @return current generation of the cache, to pass to {@link #put(String, PatientSearchPage, long)}
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * @return the cached page of patient ids, null if the criteria are not cached or have expired
+	 */
+	public PatientSearchPage<Integer> get(String key) {
+		if (!enabled) {
+			return null;
+		}
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.page;
+	}
+	
+	/**
+	 * @param page : page of patient ids, truncated pages are not cached
+	 * @param searchGeneration : generation of the cache when the search started
+	 */
+	public void put(String key, PatientSearchPage<Integer> page, long searchGeneration) {
+		if (!enabled || page.isTruncated()) {
+			return;
+		}
+		Entry entry = new Entry(new PatientSearchPage<Integer>(Collections.unmodifiableList(new ArrayList<Integer>(page
+		        .getResults())), page.getNextCursor(), page.getTotalCount(), false), System.currentTimeMillis() + ttlMillis);
+		synchronized (entries) {
+			if (generation.get() == searchGeneration) {
+				entries.put(key, entry);
+			}
+		}
+	}
+	
+	public void invalidateAll() {
+		synchronized (entries) {
+			generation.incrementAndGet();
+			entries.clear();
+		}
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+	
+	/**
+	 * Reads the configuration of the cache from the global properties.
+	 */
+	public void configure(AdministrationService administrationService) {
+		enabled = Boolean.parseBoolean(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED, "false"));
+		maxSize = NumberUtils.toInt(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_RESULT_CACHE_MAX_SIZE),
+		    PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_MAX_SIZE);
+		ttlMillis = TimeUnit.SECONDS.toMillis(NumberUtils.toInt(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_RESULT_CACHE_TTL_SECONDS),
+		    PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_TTL_SECONDS));
+		invalidateAll();
+		log.info("Patient search result cache " + (enabled ? "enabled, maximum size " + maxSize : "disabled"));
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED.equals(propertyName)
+		        || PatientSearchCriteriaConfig.GP_RESULT_CACHE_MAX_SIZE.equals(propertyName)
+		        || PatientSearchCriteriaConfig.GP_RESULT_CACHE_TTL_SECONDS.equals(propertyName);
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		if (PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED.equals(newValue.getProperty())) {
+			enabled = Boolean.parseBoolean(newValue.getPropertyValue());
+		} else if (PatientSearchCriteriaConfig.GP_RESULT_CACHE_MAX_SIZE.equals(newValue.getProperty())) {
+			maxSize = NumberUtils.toInt(newValue.getPropertyValue(),
+			    PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_MAX_SIZE);
+		} else {
+			ttlMillis = TimeUnit.SECONDS.toMillis(NumberUtils.toInt(newValue.getPropertyValue(),
+			    PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_TTL_SECONDS));
+		}
+		invalidateAll();
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		if (PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED.equals(propertyName)) {
+			enabled = false;
+		} else if (PatientSearchCriteriaConfig.GP_RESULT_CACHE_MAX_SIZE.equals(propertyName)) {
+			maxSize = PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_MAX_SIZE;
+		} else {
+			ttlMillis = TimeUnit.SECONDS.toMillis(PatientSearchCriteriaConfig.DEFAULT_RESULT_CACHE_TTL_SECONDS);
+		}
+		invalidateAll();
+	}
+	
+	private static class Entry {
+		
+		private final PatientSearchPage<Integer> page;
+		
+		private final long expires;
+		
+		private Entry(PatientSearchPage<Integer> page, long expires) {
+			this.page = page;
+			this.expires = expires;
+		}
+	}
+	
+}
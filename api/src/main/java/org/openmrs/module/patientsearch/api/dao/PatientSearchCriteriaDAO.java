@@ -15,6 +15,12 @@ import java.util.List;
 import org.openmrs.Patient;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.api.db.PatientDAO;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchFacets;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan;
+import org.openmrs.module.patientsearch.api.PatientSummary;
+import org.openmrs.module.patientsearch.api.UnsortableSearchException;
 
 /**
  * methods to search patients with different fields
@@ -114,4 +120,127 @@ public interface PatientSearchCriteriaDAO extends PatientDAO {
 	public List<Patient> getPatientsByGenderAndAge(String gender, Date from, Date to, Integer start, Integer length,
 	        Boolean includeVoided) throws DAOException;
 	
+	/**
+	 * @param patientIds : ids of the patients to load, usually one page of search results
+	 * @return list of patients with names, identifiers and attributes loaded, in the order of the
+	 *         given ids. Ids of unknown patients are skipped.
+	 * @throws DAOException
+	 */
+	public List<Patient> getPatientsByIds(List<Integer> patientIds) throws DAOException;
+	
+	/**
+	 * @param query (optional) : name or identifier of patients
+	 * @param gender (optional) : gender of patients
+	 * @param birthdate (optional) : birthdate of patients
+	 * @param from (optional) : lower boundary of range of age
+	 * @param to (optional) : upper boundary of range of age
+	 * @return page of patients who match all the given criteria, with the total number of hits
+	 *         counted by the same index search. When the identifiers fill the page, the names are
+	 *         only counted.
+	 * @throws DAOException
+	 */
+	public PatientSearchPage<Patient> getPatientPage(String query, String gender, Date birthdate, Date from, Date to,
+	        Integer start, Integer length, Boolean includeVoided) throws DAOException;
+	
+	/**
+	 * @param query (optional) : name or identifier of patients
+	 * @param gender (optional) : gender of patients
+	 * @param birthdate (optional) : birthdate of patients
+	 * @param from (optional) : lower boundary of range of age
+	 * @param to (optional) : upper boundary of range of age
+	 * @return page of summaries of the patients who match all the given criteria, built from the
+	 *         fields stored in the search index without loading any patient
+	 * @throws DAOException
+	 */
+	public PatientSearchPage<PatientSummary> getPatientSummaries(String query, String gender, Date birthdate, Date from, Date to,
+	        Integer start, Integer length, Boolean includeVoided) throws DAOException;
+	
+	/**
+	 * @param gender (optional) : gender of patients
+	 * @param birthdate (optional) : birthdate of patients
+	 * @param from (optional) : lower boundary of range of age
+	 * @param to (optional) : upper boundary of range of age
+	 * @param cursor (optional) : cursor of the previous page, null for the first page
+	 * @param length : maximum number of patients should return
+	 * @return page of patients who match all the given criteria after the cursor, and the cursor of
+	 *         the next page
+	 * @throws DAOException
+	 */
+	public PatientSearchPage<Patient> getPatientsAfter(String gender, Date birthdate, Date from, Date to, String cursor,
+	        Integer length, Boolean includeVoided) throws DAOException;
+	
+	/**
+	 * @param query (optional) : name or identifier of patients
+	 * @param gender (optional) : gender of patients
+	 * @param birthdate (optional) : birthdate of patients
+	 * @param from (optional) : lower boundary of range of age
+	 * @param to (optional) : upper boundary of range of age
+	 * @param ageBuckets : lowest ages of the buckets of age, sorted
+	 * @return number of patients who match all the given criteria by gender and by bucket of age,
+	 *         counted from the search index without loading any patient
+	 * @throws DAOException
+	 */
+	public PatientSearchFacets getPatientFacets(String query, String gender, Date birthdate, Date from, Date to,
+	        int[] ageBuckets, Boolean includeVoided) throws DAOException;
+	
+	/**
+	 * @param criteria : criteria of the search
+	 * @return how to search the given criteria, chosen from the statistics of the search index
+	 * @throws DAOException
+	 */
+	public PatientSearchPlan getSearchPlan(PatientSearchCriteria criteria) throws DAOException;
+	
+	/**
+	 * @param criteria : criteria of the search
+	 * @param plan : plan returned by {@link #getSearchPlan(PatientSearchCriteria)}, the
+	 *            {@link PatientSearchPlan.Strategy#CORE} plan is not supported
+	 * @return page of the ids of the patients who match all the given criteria, with the total count.
+	 *         With a name or identifier, the patients are in the order of relevance, the identifier
+	 *         matches first. Without, they have no relevance, they are in the order of their ids when
+	 *         the demographic store answers and in the order of the index otherwise, use
+	 *         {@link #getSortedPatientIdPage(PatientSearchCriteria, Integer, Integer)} for an order
+	 *         which does not depend on the plan
+	 * @throws DAOException
+	 */
+	public PatientSearchPage<Integer> getPatientIdPage(PatientSearchCriteria criteria, PatientSearchPlan plan,
+	        Integer start, Integer length) throws DAOException;
+	
+	/**
+	 * @param criteria : criteria of the search, with the order of the results, see
+	 *            {@link PatientSearchCriteria#getSort()}
+	 * @return page of the ids of the patients who match all the given criteria in the order of the
+	 *         sort, with the total count
+	 * @throws UnsortableSearchException if the patients matching the name or identifier cannot be
+	 *             sorted in the order of the sort
+	 * @throws DAOException
+	 */
+	public PatientSearchPage<Integer> getSortedPatientIdPage(PatientSearchCriteria criteria, Integer start,
+	        Integer length) throws DAOException;
+	
+	/**
+	 * Reads the term dictionaries of the indexes searched by the module and fills the cached
+	 * filters of gender and of the whole years of birth, so the first searches do not pay for it.
+	 * 
+	 * @return number of cached filters
+	 * @throws DAOException
+	 */
+	public int warmUpIndex() throws DAOException;
+	
+	/**
+	 * @return the greatest id of the persons, 0 if there are none
+	 * @throws DAOException
+	 */
+	public int getMaxPersonId() throws DAOException;
+	
+	/**
+	 * Indexes again the persons whose id is in the given range, with their names and identifiers, in
+	 * a session and a transaction of its own. It can be called from any thread.
+	 * 
+	 * @param fromPersonId : first id of the range, inclusive
+	 * @param toPersonId : last id of the range, exclusive
+	 * @return number of persons indexed
+	 * @throws DAOException
+	 */
+	public int reindexPersons(int fromPersonId, int toPersonId) throws DAOException;
+	
 }
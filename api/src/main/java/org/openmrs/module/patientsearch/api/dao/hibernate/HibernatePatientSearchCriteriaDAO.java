@@ -1,25 +1,74 @@
 package org.openmrs.module.patientsearch.api.dao.hibernate;
 
+import java.io.IOException;
+import java.time.Year;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.hibernate.search.annotations.Store;
+import org.hibernate.search.indexes.IndexReaderAccessor;
+import org.hibernate.search.metadata.FieldDescriptor;
+import org.hibernate.search.metadata.IndexedTypeDescriptor;
+import org.hibernate.search.query.dsl.QueryBuilder;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
-import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
+import org.openmrs.PersonName;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.api.db.hibernate.HibernatePatientDAO;
 import org.openmrs.api.db.hibernate.HibernatePersonDAO;
 import org.openmrs.api.db.hibernate.search.LuceneQuery;
 import org.openmrs.collection.ListPart;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchFacets;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan;
+import org.openmrs.module.patientsearch.api.PatientSearchSort;
+import org.openmrs.module.patientsearch.api.PatientSummary;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.openmrs.module.patientsearch.api.UnsortableSearchException;
 import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.CriteriaLuceneQuery;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.FacetCollector;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.FacetCounter;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.PersonIdCollector;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.PersonIdSet;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.SearchAfterCursor;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.SegmentFilterCache;
 import org.openmrs.util.OpenmrsConstants;
 
 /**
@@ -30,133 +79,1043 @@ import org.openmrs.util.OpenmrsConstants;
 
 public class HibernatePatientSearchCriteriaDAO extends HibernatePatientDAO implements PatientSearchCriteriaDAO {
 	
+	/**
+	 * Number of patients loaded by one IN query, kept below the parameter limits of the databases
+	 */
+	private static final int HYDRATION_BATCH_SIZE = 500;
+	
+	/**
+	 * Person fields projected for a {@link PatientSummary}, the person id must come first
+	 */
+	private static final String[] SUMMARY_FIELDS = { "personId", "uuid", "gender", "birthdate" };
+	
+	/**
+	 * Name fields projected for the display of a {@link PatientSummary}, the person id and the
+	 * preferred flag must come first
+	 */
+	private static final String[] SUMMARY_NAME_FIELDS = { "person.personId", "preferred", "givenNameExact",
+	        "middleNameExact", "familyNameExact" };
+	
+	/**
+	 * Identifier fields projected for a {@link PatientSummary}, the person id and the preferred flag
+	 * must come first
+	 */
+	private static final String[] SUMMARY_IDENTIFIER_FIELDS = { "patient.personId", "preferred", "identifierExact" };
+	
+	private static final Set<String> PERSON_ID_FIELD = Collections.singleton("personId");
+	
+	/**
+	 * Oldest age of the range of age which fills the cached filters of the years of birth
+	 */
+	private static final int WARM_UP_MAX_AGE = 120;
+	
+	/**
+	 * Largest number of ids of the patients matching a name or identifier which are counted by
+	 * gender and age, the counts of more patients are truncated
+	 */
+	private static final int FACET_MAX_IDS = 10000;
+	
+	/**
+	 * Number of person ids searched by one query of the Person index, below the clause limit of
+	 * lucene
+	 */
+	private static final int FACET_ID_CHUNK_SIZE = 1000;
+	
 	private SessionFactory sessionFactory;
 	
+	private SubQueryExecutor subQueryExecutor;
+	
+	private PatientDemographicStore demographicStore;
+	
 	public void setSessionFactory(SessionFactory sessionFactory) {
 		super.setSessionFactory(sessionFactory);
 		this.sessionFactory = sessionFactory;
 	}
 	
+	public void setSubQueryExecutor(SubQueryExecutor subQueryExecutor) {
+		this.subQueryExecutor = subQueryExecutor;
+	}
+	
+	public void setDemographicStore(PatientDemographicStore demographicStore) {
+		this.demographicStore = demographicStore;
+	}
+	
 	@Override
 	public List<Patient> getPatientsByGender(String gender, Integer start, Integer length, Boolean includeVoided)
 	        throws DAOException {
-		
-		PatientLuceneQuery patientLuceneQuery = new PatientLuceneQuery(sessionFactory);
-		LuceneQuery<Person> genderQuery = patientLuceneQuery.getPatinetWithGender(gender, includeVoided);
-		return getPatientsWithLuceneQuery(genderQuery, start, length);
+		return getPatientsByCriteria(gender, null, null, null, start, length, includeVoided);
 	}
 	
 	@Override
 	public List<Patient> getPatientsByRangeOfAge(Date from, Date to, Integer start, Integer length, Boolean includeVoided)
 	        throws DAOException {
-		
-		PatientLuceneQuery personLuceneQuery = new PatientLuceneQuery(sessionFactory);
-		LuceneQuery<Person> ageQuery = personLuceneQuery.getPatinetWithAgeRange(from, to, includeVoided);
-		return getPatientsWithLuceneQuery(ageQuery, start, length);
+		return getPatientsByCriteria(null, null, from, to, start, length, includeVoided);
 	}
 	
 	@Override
 	public List<Patient> getPatientsByBirthdate(Date birthdate, Integer start, Integer length, Boolean includeVoided)
 	        throws DAOException {
-		
-		PatientLuceneQuery personLuceneQuery = new PatientLuceneQuery(sessionFactory);
-		LuceneQuery<Person> birthdateQuery = personLuceneQuery.getPatinetWithBirthdate(birthdate, includeVoided);
-		return getPatientsWithLuceneQuery(birthdateQuery, start, length);
+		return getPatientsByCriteria(null, birthdate, null, null, start, length, includeVoided);
 	}
 	
 	@Override
-	public List<Patient> getPatientsByNameOrIdAndGender(String query, String gender, Integer start, Integer length, Boolean includeVoided)
-	        throws DAOException {
-		return findPatients(query, includeVoided, start, length).stream().filter(patient -> patient.getGender().equals(gender)).collect(Collectors.toList());
+	public List<Patient> getPatientsByNameOrIdAndGender(String query, String gender, Integer start, Integer length,
+	        Boolean includeVoided) throws DAOException {
+		return getPatientsByNameOrIdAndCriteria(query, gender, null, null, null, start, length, includeVoided);
 	}
 	
 	@Override
 	public List<Patient> getPatientsByNameOrIdAndRangeOfAge(String query, Date from, Date to, Integer start, Integer length,
 	        Boolean includeVoided) throws DAOException {
-		
-		PatientLuceneQuery patientLuceneQuery=new PatientLuceneQuery(sessionFactory);
-		LuceneQuery<Person> ageQuery=patientLuceneQuery.getPatinetWithAgeRange(from, to, includeVoided);
-		List<Patient> temp=getPatientsWithLuceneQuery(ageQuery,start,length);
-		return findPatients(query, includeVoided, start, length).stream().filter(patient -> temp.contains(patient)).collect(Collectors.toList());
+		return getPatientsByNameOrIdAndCriteria(query, null, null, from, to, start, length, includeVoided);
 	}
 	
 	@Override
-	public List<Patient> getPatientsByNameOrIdAndBirthdate(String query,Date birthdate, Integer start, Integer length,
+	public List<Patient> getPatientsByNameOrIdAndBirthdate(String query, Date birthdate, Integer start, Integer length,
 	        Boolean includeVoided) throws DAOException {
-		
-		PatientLuceneQuery patientLuceneQuery=new PatientLuceneQuery(sessionFactory);
-		LuceneQuery<Person> birthdateQuery=patientLuceneQuery.getPatinetWithBirthdate(birthdate, includeVoided);
-		List<Patient> temp=getPatientsWithLuceneQuery(birthdateQuery,start,length);
-		return findPatients(query, includeVoided, start, length).stream().filter(patient -> temp.contains(patient)).collect(Collectors.toList());
+		return getPatientsByNameOrIdAndCriteria(query, null, birthdate, null, null, start, length, includeVoided);
 	}
 	
 	@Override
-	public List<Patient> getPatientsByNameOrIdAndGenderAndRangeOfAge(String query, String gender, Date from, Date to, Integer start, Integer length,
-	        Boolean includeVoided) throws DAOException {
-		return getPatientsByNameOrIdAndRangeOfAge(query, from, to, start, length, includeVoided).stream().filter(patient -> patient.getGender().equals(gender)).collect(Collectors.toList());
+	public List<Patient> getPatientsByNameOrIdAndGenderAndRangeOfAge(String query, String gender, Date from, Date to,
+	        Integer start, Integer length, Boolean includeVoided) throws DAOException {
+		return getPatientsByNameOrIdAndCriteria(query, gender, null, from, to, start, length, includeVoided);
 	}
 	
 	@Override
-	public List<Patient> getPatientsByNameOrIdAndGenderAndBirthdate(String query, String gender, Date birthdate, Integer start, Integer length,
-	        Boolean includeVoided) throws DAOException {	
-		return getPatientsByNameOrIdAndBirthdate(query, birthdate, start, length, includeVoided).stream().filter(patient -> patient.getGender().equals(gender)).collect(Collectors.toList());
+	public List<Patient> getPatientsByNameOrIdAndGenderAndBirthdate(String query, String gender, Date birthdate,
+	        Integer start, Integer length, Boolean includeVoided) throws DAOException {
+		return getPatientsByNameOrIdAndCriteria(query, gender, birthdate, null, null, start, length, includeVoided);
 	}
 	
 	@Override
 	public List<Patient> getPatientsByGenderAndBirthdate(String gender, Date birthdate, Integer start, Integer length,
-			Boolean includeVoided) throws DAOException {
-		return getPatientsByBirthdate(birthdate, start, length, includeVoided).stream().filter(patient -> patient.getGender().equals(gender)).collect(Collectors.toList());
+	        Boolean includeVoided) throws DAOException {
+		return getPatientsByCriteria(gender, birthdate, null, null, start, length, includeVoided);
 	}
 	
 	@Override
 	public List<Patient> getPatientsByGenderAndAge(String gender, Date from, Date to, Integer start, Integer length,
-			Boolean includeVoided) throws DAOException {
-		return getPatientsByRangeOfAge(from, to, start, length, includeVoided).stream().filter(patient -> patient.getGender().equals(gender)).collect(Collectors.toList());
+	        Boolean includeVoided) throws DAOException {
+		return getPatientsByCriteria(gender, null, from, to, start, length, includeVoided);
+	}
+	
+	/**
+	 * Builds the summaries from the fields stored in the search index. The page is found with the
+	 * same queries as the patients, then the names and identifiers of that page are projected from
+	 * the PersonName and PatientIdentifier documents, the preferred ones are kept. The fields which
+	 * the mapping of core does not store are read from the database for the persons of the page.
+	 * 
+	 * @see PatientSearchCriteriaDAO#getPatientSummaries(String, String, Date, Date, Date, Integer,
+	 *      Integer, Boolean)
+	 */
+	@Override
+	public PatientSearchPage<PatientSummary> getPatientSummaries(String query, String gender, Date birthdate, Date from,
+	        Date to, Integer start, Integer length, Boolean includeVoided) throws DAOException {
+		boolean personFieldsStored = areStored(Person.class, "", SUMMARY_FIELDS)
+		        && areStored(PersonName.class, "person.", SUMMARY_FIELDS)
+		        && areStored(PatientIdentifier.class, "patient.", SUMMARY_FIELDS);
+		PatientSearchPage<Object[]> projectionPage = getProjectionPage(query, gender, birthdate, from, to, start, length,
+		    includeVoided, null, personFieldsStored ? SUMMARY_FIELDS : new String[] { "personId" });
+		List<Integer> personIds = getPersonIds(projectionPage.getResults());
+		
+		List<PatientSummary> summaries = new ArrayList<>(personIds.size());
+		if (personIds.isEmpty()) {
+			return new PatientSearchPage<PatientSummary>(summaries, projectionPage.getTotalCount(),
+			        projectionPage.isTruncated());
+		}
+		
+		Map<Integer, Object[]> persons = new HashMap<>();
+		if (personFieldsStored) {
+			projectionPage.getResults().forEach(person -> persons.put((Integer) person[0], person));
+		} else {
+			persons.putAll(getRowsByPersonId(listByPersonIds(
+			    "select p.personId, p.uuid, p.gender, p.birthdate from Person p where p.personId in (:ids)", personIds)));
+		}
+		
+		PatientLuceneQuery patientLuceneQuery = new PatientLuceneQuery(sessionFactory);
+		List<Object[]> nameRows;
+		if (areStored(PersonName.class, "", SUMMARY_NAME_FIELDS)) {
+			nameRows = patientLuceneQuery.getPatientNamesOf(personIds).listProjection(SUMMARY_NAME_FIELDS);
+		} else {
+			nameRows = listByPersonIds("select n.person.personId, n.preferred, n.givenName, n.middleName, n.familyName"
+			        + " from PersonName n where n.voided = false and n.person.personId in (:ids)", personIds);
+		}
+		Map<Integer, Object[]> names = getRowsByPersonId(nameRows);
+		List<Object[]> identifierRows;
+		if (areStored(PatientIdentifier.class, "", SUMMARY_IDENTIFIER_FIELDS)) {
+			identifierRows = patientLuceneQuery.getPatientIdentifiersOf(personIds).listProjection(
+			    SUMMARY_IDENTIFIER_FIELDS);
+		} else {
+			identifierRows = listByPersonIds("select i.patient.patientId, i.preferred, i.identifier"
+			        + " from PatientIdentifier i where i.voided = false and i.patient.patientId in (:ids)", personIds);
+		}
+		Map<Integer, Object[]> identifiers = getRowsByPersonId(identifierRows);
+		
+		for (Integer personId : personIds) {
+			Object[] person = persons.get(personId);
+			if (person == null) {
+				continue;
+			}
+			Object[] name = names.get(personId);
+			Object[] identifier = identifiers.get(personId);
+			Object birthdateValue = person[3];
+			Date summaryBirthdate = (birthdateValue instanceof Long) ? new Date((Long) birthdateValue) : (Date) birthdateValue;
+			summaries.add(new PatientSummary(personId, (String) person[1], name == null ? null : getDisplayName(name),
+			        identifier == null ? null : (String) identifier[2], (String) person[2], summaryBirthdate));
+		}
+		return new PatientSearchPage<PatientSummary>(summaries, projectionPage.getTotalCount(),
+		        projectionPage.isTruncated());
+	}
+	
+	/**
+	 * The person id, first of the fields, is projected by every search of the module, only the other
+	 * fields are checked.
+	 * 
+	 * @param prefix : path of the fields in the documents of the index
+	 * @return true if all the given fields are stored in the index of the given type, so they can be
+	 *         projected
+	 */
+	private boolean areStored(Class<?> type, String prefix, String... fields) {
+		IndexedTypeDescriptor typeDescriptor = Search.getFullTextSession(sessionFactory.getCurrentSession())
+		        .getSearchFactory().getIndexedTypeDescriptor(type);
+		for (int i = 1; i < fields.length; i++) {
+			FieldDescriptor fieldDescriptor = typeDescriptor.getIndexedField(prefix + fields[i]);
+			if (fieldDescriptor == null || fieldDescriptor.getStorage() == Store.NO) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs the given query for the persons in batches, the ids are given to its <code>ids</code>
+	 * parameter.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Object[]> listByPersonIds(String hql, List<Integer> personIds) {
+		List<Object[]> rows = new ArrayList<>();
+		for (int i = 0; i < personIds.size(); i += HYDRATION_BATCH_SIZE) {
+			rows.addAll(sessionFactory.getCurrentSession().createQuery(hql)
+			        .setParameterList("ids", personIds.subList(i, Math.min(i + HYDRATION_BATCH_SIZE, personIds.size())))
+			        .list());
+		}
+		return rows;
+	}
+	
+	/**
+	 * Keeps one row per person, the preferred one when the row has a preferred flag in second
+	 * position, else the first one.
+	 * 
+	 * @param rows : rows starting with the person id
+	 */
+	private Map<Integer, Object[]> getRowsByPersonId(List<Object[]> rows) {
+		Map<Integer, Object[]> rowsByPersonId = new HashMap<>();
+		for (Object[] row : rows) {
+			Object[] kept = rowsByPersonId.get(row[0]);
+			if (kept == null || (!isPreferred(kept) && isPreferred(row))) {
+				rowsByPersonId.put((Integer) row[0], row);
+			}
+		}
+		return rowsByPersonId;
+	}
+	
+	private boolean isPreferred(Object[] row) {
+		return row.length > 1 && (Boolean.TRUE.equals(row[1]) || "true".equals(row[1]));
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientPage(String, String, Date, Date, Date, Integer, Integer,
+	 *      Boolean)
+	 */
+	@Override
+	public PatientSearchPage<Patient> getPatientPage(String query, String gender, Date birthdate, Date from, Date to,
+	        Integer start, Integer length, Boolean includeVoided) throws DAOException {
+		if (StringUtils.isBlank(query) && refreshDemographicStore()) {
+			PatientSearchPage<Integer> idPage = getDemographicIdPage(new PatientSearchCriteria(null, null, false, gender,
+			        birthdate, from, to, includeVoided), start, length);
+			return new PatientSearchPage<Patient>(getPatientsByIds(idPage.getResults()), idPage.getTotalCount(), false);
+		}
+		PatientSearchPage<Object[]> projectionPage = getProjectionPage(query, gender, birthdate, from, to, start, length,
+		    includeVoided, null, "personId");
+		return new PatientSearchPage<Patient>(getPatientsByIds(getPersonIds(projectionPage.getResults())),
+		        projectionPage.getTotalCount(), projectionPage.isTruncated());
+	}
+	
+	/**
+	 * Without name or identifier, the patients are counted by one pass of {@link FacetCollector}
+	 * over the Person index. With a name or identifier, the ids of the matching patients are
+	 * projected first, up to {@link #FACET_MAX_IDS} of each of the identifiers and the names, then
+	 * the Person documents of these ids are counted by {@link FacetCollector}, in chunks of
+	 * {@link #FACET_ID_CHUNK_SIZE} ids. The counts are truncated if more patients match or if the
+	 * deadline expires.
+	 * 
+	 * @see PatientSearchCriteriaDAO#getPatientFacets(String, String, Date, Date, Date, int[], Boolean)
+	 */
+	@Override
+	public PatientSearchFacets getPatientFacets(String query, String gender, Date birthdate, Date from, Date to,
+	        int[] ageBuckets, Boolean includeVoided) throws DAOException {
+		FacetCounter counter = new FacetCounter(ageBuckets);
+		PatientLuceneQuery patientLuceneQuery = new PatientLuceneQuery(sessionFactory);
+		Query criteriaQuery = patientLuceneQuery.getPatientWithCriteria(gender, birthdate, from, to, includeVoided)
+		        .getLuceneQuery();
+		if (StringUtils.isBlank(query)) {
+			return counter.toFacets(countFacets(criteriaQuery, counter));
+		}
+		
+		LuceneQuery<PatientIdentifier> identifierQuery = patientLuceneQuery.getPatientIdentifierWithCriteria(
+		    getPatientIdentifierSearchString(query), getPatientIdentifierFields(false), gender, birthdate, from, to,
+		    includeVoided);
+		LuceneQuery<PersonName> nameQuery = patientLuceneQuery.getPatientNameWithCriteria(query, gender, birthdate, from,
+		    to, includeVoided, identifierQuery);
+		ListPart<Object[]> identifiers = identifierQuery.listPartProjection(0, FACET_MAX_IDS, "patient.personId");
+		ListPart<Object[]> names = nameQuery.listPartProjection(0, FACET_MAX_IDS, "person.personId");
+		boolean truncated = identifiers.getList().size() < identifiers.getTotalElements()
+		        || names.getList().size() < names.getTotalElements() || SearchDeadline.isExpired();
+		
+		int[] personIds = new int[identifiers.getList().size() + names.getList().size()];
+		int i = 0;
+		for (Object[] identifier : identifiers.getList()) {
+			personIds[i++] = (Integer) identifier[0];
+		}
+		for (Object[] name : names.getList()) {
+			personIds[i++] = (Integer) name[0];
+		}
+		// a patient may match by several names
+		PersonIdSet personIdSet = PersonIdSet.of(personIds, personIds.length);
+		QueryBuilder queryBuilder = Search.getFullTextSession(sessionFactory.getCurrentSession()).getSearchFactory()
+		        .buildQueryBuilder().forEntity(Person.class).get();
+		for (int chunkStart = 0; chunkStart < personIdSet.size() && !truncated; chunkStart += FACET_ID_CHUNK_SIZE) {
+			BooleanQuery.Builder idQuery = new BooleanQuery.Builder();
+			for (int j = chunkStart; j < Math.min(chunkStart + FACET_ID_CHUNK_SIZE, personIdSet.size()); j++) {
+				idQuery.add(queryBuilder.keyword().onField("personId").matching(personIdSet.get(j)).createQuery(),
+				    Occur.SHOULD);
+			}
+			Query chunkQuery = new BooleanQuery.Builder().add(criteriaQuery, Occur.MUST).add(idQuery.build(),
+			    Occur.FILTER).build();
+			truncated = countFacets(chunkQuery, counter) || SearchDeadline.isExpired();
+		}
+		return counter.toFacets(truncated);
+	}
+	
+	/**
+	 * Counts the Person documents matching the query by gender and age in one pass of
+	 * {@link FacetCollector}.
+	 * 
+	 * @return true if the deadline expired before all the documents were counted
+	 */
+	private boolean countFacets(Query query, FacetCounter counter) {
+		IndexReaderAccessor readerAccessor = Search.getFullTextSession(sessionFactory.getCurrentSession())
+		        .getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = readerAccessor.open(Person.class);
+		try {
+			FacetCollector collector = new FacetCollector(counter);
+			new IndexSearcher(reader).search(query, collector);
+			collector.finish();
+			return collector.isTruncated();
+		}
+		catch (IOException e) {
+			throw new DAOException("Failed to count the patients by gender and age", e);
+		}
+		finally {
+			readerAccessor.close(reader);
+		}
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getSortedPatientIdPage(PatientSearchCriteria, Integer, Integer)
+	 */
+	@Override
+	public PatientSearchPage<Integer> getSortedPatientIdPage(PatientSearchCriteria criteria, Integer start,
+	        Integer length) throws DAOException {
+		PatientSearchPage<Object[]> projectionPage = getProjectionPage(criteria.getQuery(), criteria.getGender(),
+		    criteria.getBirthdate(), criteria.getFrom(), criteria.getTo(), start, length, criteria.isIncludeVoided(),
+		    criteria.getSort(), "personId");
+		return new PatientSearchPage<Integer>(getPersonIds(projectionPage.getResults()), projectionPage.getTotalCount(),
+		        projectionPage.isTruncated());
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getSearchPlan(PatientSearchCriteria)
+	 */
+	@Override
+	public PatientSearchPlan getSearchPlan(PatientSearchCriteria criteria) throws DAOException {
+		PatientSearchPlanner planner = new PatientSearchPlanner(sessionFactory, demographicStore);
+		if (!criteria.hasQuery() || !criteria.hasDemographicCriteria()) {
+			return planner.plan(criteria, null, null);
+		}
+		// with identifier types, only the identifiers are searched
+		CriteriaLuceneQuery<PatientIdentifier> identifierQuery = getQueryIdentifierQuery(criteria);
+		Query nameQuery = criteria.getIdentifierTypes() == null ? getQueryNameQuery(criteria, identifierQuery)
+		        .getLuceneQuery() : null;
+		return planner.plan(criteria, identifierQuery.getLuceneQuery(), nameQuery);
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientIdPage(PatientSearchCriteria, PatientSearchPlan,
+	 *      Integer, Integer)
+	 */
+	@Override
+	public PatientSearchPage<Integer> getPatientIdPage(PatientSearchCriteria criteria, PatientSearchPlan plan,
+	        Integer start, Integer length) throws DAOException {
+		switch (plan.getStrategy()) {
+			case EMPTY:
+				return new PatientSearchPage<Integer>(new ArrayList<Integer>(), 0L, false);
+			case DEMOGRAPHIC:
+				return getDemographicIdPage(criteria, start, length);
+			case COMPILED:
+				return getCompiledIdPage(criteria, start, length);
+			case INTERSECT:
+				return getIntersectedIdPage(criteria, start, length);
+			default:
+				throw new IllegalArgumentException("The plan is not run on the search index: " + plan);
+		}
+	}
+	
+	/**
+	 * Runs the compiled query directly on the Person index searcher and continues after the
+	 * document of the cursor, so every page costs the same no matter how deep it is.
+	 * 
+	 * @see PatientSearchCriteriaDAO#getPatientsAfter(String, Date, Date, Date, String, Integer,
+	 *      Boolean)
+	 */
+	@Override
+	public PatientSearchPage<Patient> getPatientsAfter(String gender, Date birthdate, Date from, Date to, String cursor,
+	        Integer length, Boolean includeVoided) throws DAOException {
+		SearchAfterCursor searchAfterCursor = SearchAfterCursor.decode(cursor);
+		Integer tmpLength = getSearchLength(length);
+		
+		PatientLuceneQuery patientLuceneQuery = new PatientLuceneQuery(sessionFactory);
+		Query query = patientLuceneQuery.getPatientWithCriteria(gender, birthdate, from, to, includeVoided)
+		        .getLuceneQuery();
+		
+		IndexReaderAccessor readerAccessor = Search.getFullTextSession(sessionFactory.getCurrentSession())
+		        .getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = readerAccessor.open(Person.class);
+		try {
+			IndexSearcher searcher = new IndexSearcher(reader);
+			TopDocs topDocs;
+			ScoreDoc[] scoreDocs;
+			int position = 0;
+			if (searchAfterCursor == null) {
+				topDocs = searcher.search(query, tmpLength);
+				scoreDocs = topDocs.scoreDocs;
+			} else if (searchAfterCursor.isValidFor(reader)) {
+				// no more results than documents can precede the cursor
+				position = Math.min(searchAfterCursor.getPosition(), reader.maxDoc());
+				topDocs = searcher.searchAfter(searchAfterCursor.getScoreDoc(), query, tmpLength);
+				scoreDocs = topDocs.scoreDocs;
+			} else {
+				// the index changed since the cursor was created, fall back to the offset
+				position = searchAfterCursor.getPosition();
+				topDocs = searcher.search(query, searchAfterCursor.getOffsetHits(reader, tmpLength));
+				scoreDocs = Arrays.copyOfRange(topDocs.scoreDocs, Math.min(position, topDocs.scoreDocs.length),
+				    topDocs.scoreDocs.length);
+			}
+			
+			List<Integer> personIds = new ArrayList<>(scoreDocs.length);
+			for (ScoreDoc scoreDoc : scoreDocs) {
+				personIds.add(Integer.valueOf(searcher.doc(scoreDoc.doc, PERSON_ID_FIELD).get("personId")));
+			}
+			
+			String nextCursor = null;
+			if (scoreDocs.length == tmpLength) {
+				ScoreDoc last = scoreDocs[scoreDocs.length - 1];
+				nextCursor = new SearchAfterCursor(SearchAfterCursor.getReaderVersion(reader), last.doc, last.score, position
+				        + scoreDocs.length).encode();
+			}
+			return new PatientSearchPage<Patient>(getPatientsByIds(personIds), nextCursor, Long.valueOf(topDocs.totalHits),
+			        false);
+		}
+		catch (IOException e) {
+			throw new DAOException("Failed to search the person index", e);
+		}
+		finally {
+			readerAccessor.close(reader);
+		}
+	}
+	
+	/**
+	 * Compiles the demographic criteria into one lucene query on Person, so only the requested page
+	 * is loaded.
+	 */
+	private List<Patient> getPatientsByCriteria(String gender, Date birthdate, Date from, Date to, Integer start,
+	        Integer length, Boolean includeVoided) {
+		return getPatientPage(null, gender, birthdate, from, to, start, length, includeVoided).getResults();
+	}
+	
+	/**
+	 * Compiles the criteria into one lucene query on PatientIdentifier and one on PersonName, the
+	 * identifier or name is matched and the demographic criteria are filters. Like
+	 * {@link #findPatients(String, boolean, Integer, Integer)}, identifier matches come first.
+	 */
+	private List<Patient> getPatientsByNameOrIdAndCriteria(String query, String gender, Date birthdate, Date from,
+	        Date to, Integer start, Integer length, Boolean includeVoided) {
+		return getPatientPage(query, gender, birthdate, from, to, start, length, includeVoided).getResults();
+	}
+	
+	/**
+	 * With identifier types, only the identifiers of those types are matched, like the search of
+	 * OpenMRS core.
+	 */
+	private PatientSearchPage<Integer> getCompiledIdPage(PatientSearchCriteria criteria, Integer start, Integer length) {
+		if (criteria.getIdentifierTypes() != null) {
+			ListPart<Object[]> identifiers = getIdentifierOfTypesQuery(criteria, criteria.getGender(),
+			    criteria.getBirthdate(), criteria.getFrom(), criteria.getTo()).listPartProjection(
+			    (start == null) ? 0 : start, getSearchLength(length), "patient.personId");
+			return new PatientSearchPage<Integer>(getPersonIds(identifiers.getList()), identifiers.getTotalElements(),
+			        Boolean.TRUE.equals(identifiers.getTimedOut()));
+		}
+		
+		PatientSearchPage<Object[]> projectionPage = getProjectionPage(criteria.getQuery(), criteria.getGender(),
+		    criteria.getBirthdate(), criteria.getFrom(), criteria.getTo(), start, length, criteria.isIncludeVoided(),
+		    null, "personId");
+		return new PatientSearchPage<Integer>(getPersonIds(projectionPage.getResults()), projectionPage.getTotalCount(),
+		        projectionPage.isTruncated());
+	}
+	
+	/**
+	 * @param gender, birthdate, from, to : demographic filters of the identifiers, null for none
+	 */
+	private CriteriaLuceneQuery<PatientIdentifier> getIdentifierOfTypesQuery(PatientSearchCriteria criteria,
+	        String gender, Date birthdate, Date from, Date to) {
+		CriteriaLuceneQuery<PatientIdentifier> identifierQuery = new PatientLuceneQuery(sessionFactory)
+		        .getPatientIdentifierWithCriteria(getPatientIdentifierSearchString(criteria.getQuery()),
+		            getPatientIdentifierFields(criteria.isMatchIdentifierExactly()), gender, birthdate, from, to,
+		            criteria.isIncludeVoided());
+		if (!criteria.getIdentifierTypes().isEmpty()) {
+			Object[] identifierTypeIds = new Object[criteria.getIdentifierTypes().size()];
+			for (int i = 0; i < identifierTypeIds.length; i++) {
+				identifierTypeIds[i] = criteria.getIdentifierTypes().get(i).getId();
+			}
+			identifierQuery.include("identifierType.patientIdentifierTypeId", identifierTypeIds);
+		}
+		return identifierQuery;
+	}
+	
+	/**
+	 * @return true if the demographic store is loaded and has read again the changed persons, so it
+	 *         can answer the search
+	 */
+	private boolean refreshDemographicStore() {
+		return demographicStore != null && demographicStore.refresh();
+	}
+	
+	/**
+	 * Scans the demographic store, the patients are in the order of their ids. When the store is
+	 * being loaded again, the compiled query is run instead.
+	 */
+	private PatientSearchPage<Integer> getDemographicIdPage(PatientSearchCriteria criteria, Integer start,
+	        Integer length) {
+		if (!refreshDemographicStore()) {
+			return getCompiledIdPage(criteria, start, length);
+		}
+		return demographicStore.getPage(criteria, (start == null) ? 0 : start, getSearchLength(length));
 	}
 	
-	private List<Patient> getPatientsWithLuceneQuery(LuceneQuery<Person> query, Integer start, Integer length){
+	/**
+	 * Collects the ids of the patients matching the demographic criteria and the ids matching the
+	 * name or identifier as primitive int arrays, and keeps the latter in their order if they are in
+	 * the former. Only the ids of the requested page are boxed. When the demographic store is
+	 * loaded, the ids matching the name or identifier are filtered on it instead. Each side is
+	 * collected up to {@link PatientSearchPlanner#INTERSECT_MAX_IDS}, if either has more ids than
+	 * the plan estimated, the compiled query is run instead.
+	 */
+	private PatientSearchPage<Integer> getIntersectedIdPage(PatientSearchCriteria criteria, Integer start,
+	        Integer length) {
+		if (refreshDemographicStore()) {
+			int[] queryIds = getQueryIds(criteria);
+			if (queryIds == null) {
+				return getCompiledIdPage(criteria, start, length);
+			}
+			int size = demographicStore.retainMatching(criteria, queryIds, queryIds.length);
+			return checkExpired(getIdPage(queryIds, size, start, length));
+		}
+		
+		// the sides are independent, the demographic ids are collected on another thread when possible
+		Future<int[]> demographicIdsResult = subQueryExecutor.submit(() -> getDemographicIds(criteria));
+		int[] queryIds = getQueryIds(criteria);
+		int[] demographicIds = subQueryExecutor.await(demographicIdsResult);
+		if (demographicIds == null && SearchDeadline.isExpired()) {
+			// the deadline expired before the demographic ids were collected
+			return new PatientSearchPage<Integer>(new ArrayList<Integer>(), null, true);
+		}
+		if (queryIds == null || demographicIds == null) {
+			return getCompiledIdPage(criteria, start, length);
+		}
+		
+		PersonIdSet demographicIdSet = PersonIdSet.of(demographicIds, demographicIds.length);
+		int size = demographicIdSet.retainAll(queryIds, queryIds.length);
+		return checkExpired(getIdPage(queryIds, size, start, length));
+	}
+	
+	/**
+	 * The lucene queries stop collecting when the deadline expires, the ids of either side may be
+	 * partial.
+	 * 
+	 * @return the page marked as truncated, without total count, if the deadline expired
+	 */
+	private PatientSearchPage<Integer> checkExpired(PatientSearchPage<Integer> page) {
+		if (!SearchDeadline.isExpired()) {
+			return page;
+		}
+		SearchDeadline.markTruncated();
+		return new PatientSearchPage<Integer>(page.getResults(), null, true);
+	}
+	
+	/**
+	 * Boxes the ids of the requested page of the given array.
+	 */
+	private PatientSearchPage<Integer> getIdPage(int[] ids, int size, Integer start, Integer length) {
+		int fromIndex = Math.min((start == null) ? 0 : start, size);
+		int toIndex = Math.min(fromIndex + getSearchLength(length), size);
+		List<Integer> personIds = new ArrayList<>(toIndex - fromIndex);
+		for (int i = fromIndex; i < toIndex; i++) {
+			personIds.add(ids[i]);
+		}
+		return new PatientSearchPage<Integer>(personIds, Long.valueOf(size), false);
+	}
+	
+	/**
+	 * Runs the compiled query directly on the Person index searcher, the ids are collected as
+	 * primitive ints. They may be partial if the deadline expires.
+	 * 
+	 * @return ids of the patients matching the demographic criteria, null if there are more than
+	 *         {@link PatientSearchPlanner#INTERSECT_MAX_IDS}
+	 */
+	private int[] getDemographicIds(PatientSearchCriteria criteria) {
+		PatientLuceneQuery patientLuceneQuery = new PatientLuceneQuery(sessionFactory);
+		Query query = patientLuceneQuery.getPatientWithCriteria(criteria.getGender(), criteria.getBirthdate(),
+		    criteria.getFrom(), criteria.getTo(), criteria.isIncludeVoided()).getLuceneQuery();
+		
+		IndexReaderAccessor readerAccessor = Search.getFullTextSession(sessionFactory.getCurrentSession())
+		        .getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = readerAccessor.open(Person.class);
+		try {
+			PersonIdCollector collector = new PersonIdCollector("personId", PatientSearchPlanner.INTERSECT_MAX_IDS);
+			new IndexSearcher(reader).search(query, collector);
+			if (collector.isFull()) {
+				return null;
+			}
+			return Arrays.copyOf(collector.getIds(), collector.size());
+		}
+		catch (IOException e) {
+			throw new DAOException("Failed to search the person index", e);
+		}
+		finally {
+			readerAccessor.close(reader);
+		}
+	}
+	
+	/**
+	 * The identifiers of the given identifier types are searched on the index, as OpenMRS core would,
+	 * so they are not capped by the maximum number of results of core.
+	 * 
+	 * @return ids of the patients matching the name or identifier of the criteria, identifier
+	 *         matches first, null if there are more than {@link PatientSearchPlanner#INTERSECT_MAX_IDS}
+	 */
+	private int[] getQueryIds(PatientSearchCriteria criteria) {
+		CriteriaLuceneQuery<PatientIdentifier> identifierQuery = getQueryIdentifierQuery(criteria);
+		if (criteria.getIdentifierTypes() != null) {
+			ListPart<Object[]> identifiers = identifierQuery.listPartProjection(0, PatientSearchPlanner.INTERSECT_MAX_IDS,
+			    "patient.personId");
+			if (identifiers.getTotalElements() > PatientSearchPlanner.INTERSECT_MAX_IDS) {
+				return null;
+			}
+			return getPersonIdArray(identifiers.getList());
+		}
+		
+		CriteriaLuceneQuery<PersonName> nameQuery = getQueryNameQuery(criteria, identifierQuery);
+		ListPart<Object[]> identifiers = identifierQuery.listPartProjection(0, PatientSearchPlanner.INTERSECT_MAX_IDS,
+		    "patient.personId");
+		ListPart<Object[]> names = nameQuery.listPartProjection(0, PatientSearchPlanner.INTERSECT_MAX_IDS,
+		    "person.personId");
+		if (identifiers.getTotalElements() + names.getTotalElements() > PatientSearchPlanner.INTERSECT_MAX_IDS) {
+			return null;
+		}
+		
+		int[] personIds = new int[identifiers.getList().size() + names.getList().size()];
+		int i = 0;
+		for (Object[] identifier : identifiers.getList()) {
+			personIds[i++] = (Integer) identifier[0];
+		}
+		for (Object[] name : names.getList()) {
+			personIds[i++] = (Integer) name[0];
+		}
+		return personIds;
+	}
+	
+	/**
+	 * @return query of the identifiers matching the name or identifier of the criteria, without its
+	 *         demographic criteria
+	 */
+	private CriteriaLuceneQuery<PatientIdentifier> getQueryIdentifierQuery(PatientSearchCriteria criteria) {
+		if (criteria.getIdentifierTypes() != null) {
+			return getIdentifierOfTypesQuery(criteria, null, null, null, null);
+		}
+		return new PatientLuceneQuery(sessionFactory).getPatientIdentifierWithCriteria(
+		    getPatientIdentifierSearchString(criteria.getQuery()), getPatientIdentifierFields(false), null, null, null,
+		    null, criteria.isIncludeVoided());
+	}
+	
+	/**
+	 * @return query of the names matching the name of the criteria, without its demographic criteria,
+	 *         skipping the persons found by the given identifier query
+	 */
+	private CriteriaLuceneQuery<PersonName> getQueryNameQuery(PatientSearchCriteria criteria,
+	        CriteriaLuceneQuery<PatientIdentifier> identifierQuery) {
+		return new PatientLuceneQuery(sessionFactory).getPatientNameWithCriteria(criteria.getQuery(), null, null, null,
+		    null, criteria.isIncludeVoided(), identifierQuery);
+	}
+	
+	/**
+	 * Without name or identifier, the index searched is the one of the first field of the sort: the
+	 * preferred names for a name, so each patient is found once, the identifiers for an identifier
+	 * and the persons else. The identifiers matching a name or identifier come first, then
+	 * the names. A sorted search must match only identifiers or only names, and the sort must only
+	 * have the fields of their index and the birthdate, else {@link UnsortableSearchException} is
+	 * thrown: the two indexes are sorted apart and their pages cannot be merged.
+	 * 
+	 * @param sort (optional) : order of the results, null for the order of relevance
+	 * @param fields : fields of the person to project, relative to the person of the indexed
+	 *            documents
+	 * @return the projected page, with the total number of hits of the same index search
+	 */
+	private PatientSearchPage<Object[]> getProjectionPage(String query, String gender, Date birthdate, Date from,
+	        Date to, Integer start, Integer length, Boolean includeVoided, PatientSearchSort sort, String... fields) {
 		Integer tmpStart = start;
 		if (tmpStart == null) {
 			tmpStart = 0;
 		}
-		Integer maxLength = HibernatePersonDAO.getMaximumSearchResults();
-		Integer tmpLength = length;
-		if (tmpLength == null || tmpLength > maxLength) {
-			tmpLength = maxLength;
+		Integer tmpLength = getSearchLength(length);
+		
+		PatientLuceneQuery patientLuceneQuery = new PatientLuceneQuery(sessionFactory);
+		if (StringUtils.isBlank(query)) {
+			CriteriaLuceneQuery<?> criteriaQuery;
+			String prefix;
+			if (sort != null && sort.getFirstField().isName()) {
+				criteriaQuery = patientLuceneQuery.getPatientNameWithCriteria("", gender, birthdate, from, to,
+				    includeVoided, null);
+				criteriaQuery.include("preferred", true);
+				prefix = "person.";
+			} else if (sort != null && sort.getFirstField() == PatientSearchSort.Field.IDENTIFIER) {
+				criteriaQuery = patientLuceneQuery.getPatientIdentifierWithCriteria("", null, gender, birthdate, from,
+				    to, includeVoided);
+				prefix = "patient.";
+			} else {
+				criteriaQuery = patientLuceneQuery.getPatientWithCriteria(gender, birthdate, from, to, includeVoided);
+				prefix = "";
+			}
+			criteriaQuery.sortBy(getSort(sort, prefix));
+			ListPart<Object[]> projection = criteriaQuery.listPartProjection(tmpStart, tmpLength, getPrefixedFields(
+			    prefix, fields));
+			return new PatientSearchPage<Object[]>(projection.getList(), projection.getTotalElements(),
+			        Boolean.TRUE.equals(projection.getTimedOut()));
 		}
-
-		List<Patient> patients = new LinkedList<>();
 		
-		long querySize = query.resultSize();
-		if (querySize > tmpStart) {
-			ListPart<Object[]> tempPatients = query.listPartProjection(tmpStart, tmpLength, "personId");
-			tempPatients.getList().forEach(patient -> patients.add(getPatient((Integer) patient[0])));
-		} 
+		CriteriaLuceneQuery<PatientIdentifier> identifierQuery = patientLuceneQuery.getPatientIdentifierWithCriteria(
+		    getPatientIdentifierSearchString(query), getPatientIdentifierFields(false), gender, birthdate, from, to,
+		    includeVoided);
+		CriteriaLuceneQuery<PersonName> nameQuery = patientLuceneQuery.getPatientNameWithCriteria(query, gender,
+		    birthdate, from, to, includeVoided, identifierQuery);
+		identifierQuery.sortBy(getSort(sort, "patient."));
+		nameQuery.sortBy(getSort(sort, "person."));
 		
-		return patients;
+		List<Object[]> projection = new ArrayList<>();
 		
+		// the page and the total size of each query come from one execution of that query
+		ListPart<Object[]> identifiers = identifierQuery.listPartProjection(tmpStart, tmpLength,
+		    getPrefixedFields("patient.", fields));
+		long identifiersSize = identifiers.getTotalElements();
+		boolean truncated = Boolean.TRUE.equals(identifiers.getTimedOut());
+		if (identifiersSize > tmpStart) {
+			projection.addAll(identifiers.getList());
+			tmpLength -= projection.size();
+			tmpStart = 0;
+		} else {
+			tmpStart -= (int) identifiersSize;
+		}
 		
+		long namesSize;
+		if (tmpLength > 0) {
+			ListPart<Object[]> names = nameQuery.listPartProjection(tmpStart, tmpLength, getPrefixedFields("person.",
+			    fields));
+			projection.addAll(names.getList());
+			namesSize = names.getTotalElements();
+			truncated |= Boolean.TRUE.equals(names.getTimedOut());
+		} else {
+			// the identifiers fill the page, the names are only counted
+			namesSize = nameQuery.resultSize();
+		}
+		if (sort != null) {
+			checkSortable(sort, query, identifiersSize, namesSize);
+		}
+		return new PatientSearchPage<Object[]>(projection, identifiersSize + namesSize, truncated);
 	}
 	
-	//Below methods will be removed at time of merging with openmrs core. 
+	/**
+	 * @throws UnsortableSearchException if the matches of a name or identifier cannot be sorted in
+	 *             one order
+	 */
+	private void checkSortable(PatientSearchSort sort, String query, long identifiersSize, long namesSize) {
+		if (identifiersSize > 0 && namesSize > 0) {
+			throw new UnsortableSearchException("The patients matching '" + query
+			        + "' by both identifier and name cannot be sorted");
+		}
+		for (PatientSearchSort.Order order : sort.getOrders()) {
+			if (identifiersSize > 0 && order.getField().isName()) {
+				throw new UnsortableSearchException("The patients matching '" + query
+				        + "' by identifier cannot be sorted by name");
+			}
+			if (namesSize > 0 && order.getField() == PatientSearchSort.Field.IDENTIFIER) {
+				throw new UnsortableSearchException("The patients matching '" + query
+				        + "' by name cannot be sorted by identifier");
+			}
+		}
+	}
+	
+	/**
+	 * The names are only sorted on in the index of the names and the identifiers in the index of the
+	 * identifiers, the birthdate in any index. The order of the documents in the index breaks the
+	 * ties, so the pages of a sort do not overlap.
+	 * 
+	 * @param prefix : path of the person in the indexed documents, see {@link CriteriaLuceneQuery}
+	 * @return the sort of the index, null for the order of relevance
+	 */
+	private Sort getSort(PatientSearchSort sort, String prefix) {
+		if (sort == null) {
+			return null;
+		}
+		List<SortField> sortFields = new ArrayList<>();
+		for (PatientSearchSort.Order order : sort.getOrders()) {
+			switch (order.getField()) {
+				case FAMILY_NAME:
+					if ("person.".equals(prefix)) {
+						sortFields.add(new SortField("familyNameExact", SortField.Type.STRING, order.isDescending()));
+					}
+					break;
+				case GIVEN_NAME:
+					if ("person.".equals(prefix)) {
+						sortFields.add(new SortField("givenNameExact", SortField.Type.STRING, order.isDescending()));
+					}
+					break;
+				case IDENTIFIER:
+					if ("patient.".equals(prefix)) {
+						sortFields.add(new SortField("identifierExact", SortField.Type.STRING, order.isDescending()));
+					}
+					break;
+				case BIRTHDATE:
+					sortFields.add(new SortField(prefix + "birthdate", SortField.Type.LONG, order.isDescending()));
+					break;
+			}
+		}
+		sortFields.add(SortField.FIELD_DOC);
+		return new Sort(sortFields.toArray(new SortField[sortFields.size()]));
+	}
+	
+	/**
+	 * @param name : person id, preferred flag, given, middle and family name
+	 */
+	private String getDisplayName(Object[] name) {
+		List<String> parts = new ArrayList<>();
+		for (int i = 2; i < name.length; i++) {
+			if (name[i] != null && StringUtils.isNotBlank(name[i].toString())) {
+				parts.add(name[i].toString());
+			}
+		}
+		return StringUtils.join(parts, " ");
+	}
 	
-	@SuppressWarnings("unused")
-	private LuceneQuery<PatientIdentifier> getPatientIdentifierLuceneQuery(String query,
-	        List<PatientIdentifierType> identifierTypes, boolean matchExactly) {
-		LuceneQuery<PatientIdentifier> patientIdentifierLuceneQuery = getPatientIdentifierLuceneQuery(query, matchExactly);
-		for (PatientIdentifierType identifierType : identifierTypes) {
-			patientIdentifierLuceneQuery.include("identifierType.patientIdentifierTypeId", identifierType.getId());
+	private String[] getPrefixedFields(String prefix, String... fields) {
+		String[] prefixedFields = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			prefixedFields[i] = prefix + fields[i];
 		}
-		patientIdentifierLuceneQuery.include("patient.isPatient", true);
-		patientIdentifierLuceneQuery.skipSame("patient.personId");
+		return prefixedFields;
+	}
+	
+	private int[] getPersonIdArray(List<Object[]> projection) {
+		int[] personIds = new int[projection.size()];
+		for (int i = 0; i < personIds.length; i++) {
+			personIds[i] = (Integer) projection.get(i)[0];
+		}
+		return personIds;
+	}
+	
+	private List<Integer> getPersonIds(List<Object[]> projection) {
+		List<Integer> personIds = new ArrayList<>(projection.size());
+		projection.forEach(patient -> personIds.add((Integer) patient[0]));
+		return personIds;
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#warmUpIndex()
+	 */
+	@Override
+	public int warmUpIndex() throws DAOException {
+		IndexReaderAccessor readerAccessor = Search.getFullTextSession(sessionFactory.getCurrentSession())
+		        .getSearchFactory().getIndexReaderAccessor();
+		Map<Class<?>, String> prefixes = new HashMap<>();
+		prefixes.put(Person.class, "");
+		prefixes.put(PersonName.class, "person.");
+		prefixes.put(PatientIdentifier.class, "patient.");
 		
-		return patientIdentifierLuceneQuery;
+		ZoneId zone = ZoneId.systemDefault();
+		Date from = Date.from(Year.now().atDay(1).atStartOfDay(zone).toInstant());
+		Date to = Date.from(Year.now().minusYears(WARM_UP_MAX_AGE).atDay(1).atStartOfDay(zone).toInstant());
+		for (Map.Entry<Class<?>, String> prefix : prefixes.entrySet()) {
+			IndexReader reader = readerAccessor.open(prefix.getKey());
+			try {
+				readTerms(reader);
+				IndexSearcher searcher = new IndexSearcher(reader);
+				for (String gender : Arrays.asList(null, "M", "F")) {
+					searcher.count(CriteriaLuceneQuery.newQuery(prefix.getKey(), sessionFactory.getCurrentSession(), null,
+					    null, prefix.getValue(), gender, null, from, to, false).getLuceneQuery());
+				}
+			}
+			catch (IOException e) {
+				throw new DAOException("Failed to warm up the index of " + prefix.getKey().getSimpleName(), e);
+			}
+			finally {
+				readerAccessor.close(reader);
+			}
+		}
+		return SegmentFilterCache.getInstance().size();
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getMaxPersonId()
+	 */
+	@Override
+	public int getMaxPersonId() throws DAOException {
+		Integer maxPersonId = (Integer) sessionFactory.getCurrentSession().createCriteria(Person.class)
+		        .setProjection(Projections.max("personId")).uniqueResult();
+		return maxPersonId == null ? 0 : maxPersonId;
 	}
 	
-	private LuceneQuery<PatientIdentifier> getPatientIdentifierLuceneQuery(String paramQuery, boolean matchExactly) {
+	/**
+	 * Loads the persons of the range, then their names and identifiers, in three queries and adds
+	 * them to the index. The session is read only and thrown away with its entities once the
+	 * documents are flushed, so a batch never holds more than its own range in memory.
+	 * 
+	 * @see PatientSearchCriteriaDAO#reindexPersons(int, int)
+	 */
+	@Override
+	public int reindexPersons(int fromPersonId, int toPersonId) throws DAOException {
+		Session session = sessionFactory.openSession();
+		Transaction transaction = null;
+		try {
+			session.setFlushMode(FlushMode.MANUAL);
+			session.setCacheMode(CacheMode.IGNORE);
+			session.setDefaultReadOnly(true);
+			FullTextSession fullTextSession = Search.getFullTextSession(session);
+			transaction = session.beginTransaction();
+			
+			List<?> persons = session.createCriteria(Person.class).add(Restrictions.ge("personId", fromPersonId))
+			        .add(Restrictions.lt("personId", toPersonId)).list();
+			for (Object person : persons) {
+				fullTextSession.index(person);
+			}
+			for (Object name : session.createCriteria(PersonName.class)
+			        .add(Restrictions.ge("person.personId", fromPersonId))
+			        .add(Restrictions.lt("person.personId", toPersonId)).list()) {
+				fullTextSession.index(name);
+			}
+			for (Object identifier : session.createCriteria(PatientIdentifier.class)
+			        .add(Restrictions.ge("patient.patientId", fromPersonId))
+			        .add(Restrictions.lt("patient.patientId", toPersonId)).list()) {
+				fullTextSession.index(identifier);
+			}
+			fullTextSession.flushToIndexes();
+			transaction.commit();
+			return persons.size();
+		}
+		catch (HibernateException e) {
+			if (transaction != null && transaction.isActive()) {
+				transaction.rollback();
+			}
+			throw new DAOException("Failed to index the persons from " + fromPersonId + " to " + toPersonId, e);
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	/**
+	 * Walks the terms of every field, so the term dictionaries are read from the disk.
+	 */
+	private void readTerms(IndexReader reader) throws IOException {
+		for (LeafReaderContext leaf : reader.leaves()) {
+			Fields fields = leaf.reader().fields();
+			for (String field : fields) {
+				Terms terms = fields.terms(field);
+				if (terms != null) {
+					TermsEnum termsEnum = terms.iterator();
+					while (termsEnum.next() != null) {
+						termsEnum.docFreq();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Loads the patients with their names, identifiers and attributes in a few IN queries per batch
+	 * instead of one lookup per patient, and returns them in the order of the given ids. When the
+	 * deadline of the search expires, the remaining batches are not loaded and the search is marked
+	 * as truncated.
+	 * 
+	 * @see PatientSearchCriteriaDAO#getPatientsByIds(List)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Patient> getPatientsByIds(List<Integer> patientIds) throws DAOException {
+		Map<Integer, Patient> patientsById = new HashMap<>();
+		for (int i = 0; i < patientIds.size(); i += HYDRATION_BATCH_SIZE) {
+			if (SearchDeadline.isExpired()) {
+				SearchDeadline.markTruncated();
+				break;
+			}
+			List<Integer> batch = patientIds.subList(i, Math.min(i + HYDRATION_BATCH_SIZE, patientIds.size()));
+			List<Patient> patients = sessionFactory.getCurrentSession()
+			        .createQuery("select distinct p from Patient p left join fetch p.names where p.patientId in (:ids)")
+			        .setParameterList("ids", batch).list();
+			sessionFactory.getCurrentSession()
+			        .createQuery("select distinct p from Patient p left join fetch p.identifiers where p.patientId in (:ids)")
+			        .setParameterList("ids", batch).list();
+			sessionFactory.getCurrentSession()
+			        .createQuery("select distinct p from Patient p left join fetch p.attributes where p.patientId in (:ids)")
+			        .setParameterList("ids", batch).list();
+			patients.forEach(patient -> patientsById.put(patient.getPatientId(), patient));
+		}
+		
+		List<Patient> patients = new ArrayList<>(patientIds.size());
+		for (Integer patientId : patientIds) {
+			Patient patient = patientsById.get(patientId);
+			if (patient != null) {
+				patients.add(patient);
+			}
+		}
+		return patients;
+	}
+	
+	private Integer getSearchLength(Integer length) {
+		Integer maxLength = HibernatePersonDAO.getMaximumSearchResults();
+		if (length == null || length > maxLength) {
+			return maxLength;
+		}
+		return length;
+	}
+	
+	//Below methods will be removed at time of merging with openmrs core. 
+	
+	private String getPatientIdentifierSearchString(String paramQuery) {
 		String query = removeIdentifierPadding(paramQuery);
 		List<String> tokens = tokenizeIdentifierQuery(query);
-		query = StringUtils.join(tokens, " OR ");
+		return StringUtils.join(tokens, " OR ");
+	}
+	
+	private List<String> getPatientIdentifierFields(boolean matchExactly) {
 		List<String> fields = new ArrayList<>();
 		fields.add("identifierPhrase");
 		fields.add("identifierType");
@@ -171,20 +1130,7 @@ public class HibernatePatientSearchCriteriaDAO extends HibernatePatientDAO imple
 		else  {
 			fields.add("identifierAnywhere");
 		}
-		return LuceneQuery.newQuery(PatientIdentifier.class, sessionFactory.getCurrentSession(), query, fields);
-	
-	}	private LuceneQuery<PatientIdentifier> getPatientIdentifierLuceneQuery(String query, boolean includeVoided,
-	        boolean matchExactly) {
-		LuceneQuery<PatientIdentifier> luceneQuery = getPatientIdentifierLuceneQuery(query, matchExactly);
-		if (!includeVoided) {
-			luceneQuery.include("voided", false);
-			luceneQuery.include("patient.voided", false);
-		}
-		
-		luceneQuery.include("patient.isPatient", true);
-		luceneQuery.skipSame("patient.personId");
-		
-		return luceneQuery;
+		return fields;
 	}
 	
 	private String removeIdentifierPadding(String query) {
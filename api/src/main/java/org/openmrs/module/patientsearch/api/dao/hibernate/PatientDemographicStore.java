@@ -0,0 +1,614 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Columns of the demographic fields of every person, kept in primitive arrays sorted by person id:
+ * the gender as one byte, the birthdate as a day number and the voided and isPatient flags as bits,
+ * 10 bytes per person. The searches on demographic criteria alone are a scan of the arrays instead
+ * of a lucene query, the results are in the order of the person ids. A birthdate criteria matches
+ * the day of the birthdate in the time zone of the server, like the lucene query of the criteria.
+ * <p>
+ * The store is loaded on a daemon thread when the module starts or when it is enabled, the searches
+ * use the index until it is loaded. The persons changed since are marked by
+ * {@link PatientSearchCacheInterceptor} and read again from the database before the next scan, so
+ * the store follows the committed state of the database. A search reads again at most
+ * {@link #REFRESH_MAX_IDS} persons, when more are changed, such as by an import, the store is loaded
+ * again on a daemon thread and the searches use the index meanwhile.
+ * <p>
+ * The persons are read again in the transaction of the search, which under repeatable read sees
+ * the database as it was when the transaction began. Each change is numbered when it is marked and
+ * each transaction when it begins, a changed person stays marked until a transaction which began
+ * after the change reads it, so a read from an older snapshot does not hide the change.
+ */
+@Component("patientsearch.PatientDemographicStore")
+public class PatientDemographicStore implements GlobalPropertyListener {
+	
+	private static final String SELECT_PERSONS = "select p.person_id, p.gender, p.birthdate, p.voided, pt.patient_id"
+	        + " from person p left join patient pt on pt.patient_id = p.person_id";
+	
+	/**
+	 * Largest number of changed persons read again by a search
+	 */
+	public static final int REFRESH_MAX_IDS = 10000;
+	
+	private static final int REFRESH_BATCH_SIZE = 500;
+	
+	private static final int FETCH_SIZE = 10000;
+	
+	private static final byte VOIDED = 1;
+	
+	private static final byte PATIENT = 2;
+	
+	/**
+	 * Code of the genders which are not a single letter, no criteria matches it
+	 */
+	private static final byte OTHER_GENDER = 0;
+	
+	/**
+	 * Day number of the persons without birthdate, below the range of any birthdate criteria
+	 */
+	private static final int NO_BIRTHDAY = Integer.MIN_VALUE;
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Sequence numbers of the transactions which began on the current thread and are not completed,
+	 * the last one is the transaction in use
+	 */
+	private static final ThreadLocal<Deque<Long>> transactionSequences = new ThreadLocal<Deque<Long>>();
+	
+	private final AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * Sequence number of the last change of each person to read again
+	 */
+	private final ConcurrentMap<Integer, Long> changedPersonIds = new ConcurrentHashMap<Integer, Long>();
+	
+	@Autowired
+	@Qualifier("sessionFactory")
+	private SessionFactory sessionFactory;
+	
+	private volatile boolean enabled = false;
+	
+	private volatile boolean loaded = false;
+	
+	private final AtomicBoolean loading = new AtomicBoolean();
+	
+	private volatile DaemonToken daemonToken;
+	
+	private int size;
+	
+	private int[] personIds = new int[0];
+	
+	private byte[] genders = new byte[0];
+	
+	private int[] birthDays = new int[0];
+	
+	private byte[] flags = new byte[0];
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * @return true if the store is enabled and loaded, so it can answer the searches
+	 */
+	public boolean isReady() {
+		return enabled && loaded;
+	}
+	
+	/**
+	 * @return number of persons in the store
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public void setDaemonToken(DaemonToken daemonToken) {
+		this.daemonToken = daemonToken;
+	}
+	
+	/**
+	 * Reads the demographic fields of all the persons in the current session, the store replaces its
+	 * columns at once when they are read. The persons changed before the read began are unmarked.
+	 */
+	public void load() {
+		long started = System.currentTimeMillis();
+		long loadSequence = sequence.get();
+		Columns columns = new Columns(1024);
+		sessionFactory.getCurrentSession().doWork(connection -> {
+			try (Statement statement = connection.createStatement()) {
+				statement.setFetchSize(FETCH_SIZE);
+				try (ResultSet resultSet = statement.executeQuery(SELECT_PERSONS + " order by p.person_id")) {
+					while (resultSet.next()) {
+						columns.add(resultSet);
+					}
+				}
+			}
+		});
+		
+		lock.writeLock().lock();
+		try {
+			if (!enabled) {
+				// disabled while it was read
+				return;
+			}
+			size = columns.size;
+			personIds = columns.personIds;
+			genders = columns.genders;
+			birthDays = columns.birthDays;
+			flags = columns.flags;
+			loaded = true;
+			for (Map.Entry<Integer, Long> entry : changedPersonIds.entrySet()) {
+				if (entry.getValue() <= loadSequence) {
+					changedPersonIds.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		log.info("Loaded the demographics of " + columns.size + " persons in " + (System.currentTimeMillis() - started)
+		        + " ms");
+	}
+	
+	/**
+	 * Loads the store on a daemon thread, unless it is already being loaded. Without the daemon token
+	 * of the module, such as in the tests, it is loaded on the current thread.
+	 */
+	private void loadInBackground() {
+		if (!loading.compareAndSet(false, true)) {
+			return;
+		}
+		Runnable task = () -> {
+			try {
+				load();
+			}
+			catch (RuntimeException e) {
+				log.error("Failed to load the patient demographic store", e);
+			}
+			finally {
+				loading.set(false);
+			}
+		};
+		DaemonToken token = daemonToken;
+		if (token == null) {
+			task.run();
+		} else {
+			Daemon.runInDaemonThread(task, token);
+		}
+	}
+	
+	/**
+	 * Marks a person to read again before the next scan.
+	 */
+	public void markChanged(Integer personId) {
+		if (enabled && personId != null) {
+			changedPersonIds.put(personId, sequence.incrementAndGet());
+		}
+	}
+	
+	/**
+	 * Numbers the transaction which begins on the current thread, the changes marked after it are
+	 * not considered read by it.
+	 */
+	public void transactionBegan() {
+		Deque<Long> sequences = transactionSequences.get();
+		if (sequences == null) {
+			sequences = new ArrayDeque<Long>();
+			transactionSequences.set(sequences);
+		}
+		sequences.push(sequence.get());
+	}
+	
+	/**
+	 * Forgets the number of the transaction which completes on the current thread.
+	 */
+	public void transactionCompleted() {
+		Deque<Long> sequences = transactionSequences.get();
+		if (sequences != null) {
+			sequences.poll();
+			if (sequences.isEmpty()) {
+				transactionSequences.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Reads again the persons changed since the last scan. A person changed after the transaction of
+	 * the current thread began is read but stays marked, the transaction may not see its change yet.
+	 * When more than {@link #REFRESH_MAX_IDS} persons are changed, they are not read, the store is
+	 * loaded again on a daemon thread.
+	 * 
+	 * @return true if the store is ready, so it can answer the search
+	 */
+	public boolean refresh() {
+		if (!isReady()) {
+			return false;
+		}
+		if (changedPersonIds.isEmpty()) {
+			return true;
+		}
+		if (changedPersonIds.size() > REFRESH_MAX_IDS) {
+			log.info("More than " + REFRESH_MAX_IDS + " persons changed, loading the patient demographic store again");
+			loaded = false;
+			loadInBackground();
+			return isReady();
+		}
+		Deque<Long> sequences = transactionSequences.get();
+		Long transactionSequence = (sequences == null) ? null : sequences.peek();
+		List<Integer> changed = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Long> entry : changedPersonIds.entrySet()) {
+			changed.add(entry.getKey());
+			if (transactionSequence == null || entry.getValue() <= transactionSequence) {
+				// removed only if it was not marked again meanwhile
+				changedPersonIds.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		for (int i = 0; i < changed.size(); i += REFRESH_BATCH_SIZE) {
+			List<Integer> batch = changed.subList(i, Math.min(i + REFRESH_BATCH_SIZE, changed.size()));
+			Columns columns = new Columns(batch.size());
+			Set<Integer> found = new HashSet<Integer>();
+			sessionFactory.getCurrentSession().doWork(connection -> {
+				try (Statement statement = connection.createStatement();
+				        ResultSet resultSet = statement.executeQuery(SELECT_PERSONS + " where p.person_id in ("
+				                + join(batch) + ")")) {
+					while (resultSet.next()) {
+						found.add(columns.add(resultSet));
+					}
+				}
+			});
+			
+			lock.writeLock().lock();
+			try {
+				for (int j = 0; j < columns.size; j++) {
+					put(columns.personIds[j], columns.genders[j], columns.birthDays[j], columns.flags[j]);
+				}
+				for (Integer personId : batch) {
+					if (!found.contains(personId)) {
+						// the person was deleted, it is kept as a row which no search matches
+						put(personId, OTHER_GENDER, NO_BIRTHDAY, VOIDED);
+					}
+				}
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return number of patients matching the demographic criteria
+	 */
+	public int count(PatientSearchCriteria criteria) {
+		Filter filter = new Filter(criteria);
+		lock.readLock().lock();
+		try {
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				if (filter.matches(genders[i], birthDays[i], flags[i])) {
+					count++;
+				}
+			}
+			return count;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the ids of the patients matching the demographic criteria in the requested page, with
+	 *         the total number of matches
+	 */
+	public PatientSearchPage<Integer> getPage(PatientSearchCriteria criteria, int start, int length) {
+		Filter filter = new Filter(criteria);
+		List<Integer> page = new ArrayList<Integer>(Math.min(length, 1024));
+		lock.readLock().lock();
+		try {
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				if (filter.matches(genders[i], birthDays[i], flags[i])) {
+					if (count >= start && count - start < length) {
+						page.add(personIds[i]);
+					}
+					count++;
+				}
+			}
+			return new PatientSearchPage<Integer>(page, Long.valueOf(count), false);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Keeps the ids of the given array which match the demographic criteria, in their order.
+	 * 
+	 * @param ids : person ids to filter, compacted in place
+	 * @return number of ids kept at the start of the array
+	 */
+	public int retainMatching(PatientSearchCriteria criteria, int[] ids, int length) {
+		Filter filter = new Filter(criteria);
+		lock.readLock().lock();
+		try {
+			int kept = 0;
+			for (int i = 0; i < length; i++) {
+				int index = Arrays.binarySearch(personIds, 0, size, ids[i]);
+				if (index >= 0 && filter.matches(genders[index], birthDays[index], flags[index])) {
+					ids[kept++] = ids[i];
+				}
+			}
+			return kept;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Updates or inserts the row of a person, called with the write lock.
+	 */
+	private void put(int personId, byte gender, int birthDay, byte flag) {
+		int index = Arrays.binarySearch(personIds, 0, size, personId);
+		if (index < 0) {
+			index = -index - 1;
+			if (size == personIds.length) {
+				int capacity = Math.max(16, size + (size >> 1));
+				personIds = Arrays.copyOf(personIds, capacity);
+				genders = Arrays.copyOf(genders, capacity);
+				birthDays = Arrays.copyOf(birthDays, capacity);
+				flags = Arrays.copyOf(flags, capacity);
+			}
+			// new persons usually have the highest id, so nothing is moved
+			System.arraycopy(personIds, index, personIds, index + 1, size - index);
+			System.arraycopy(genders, index, genders, index + 1, size - index);
+			System.arraycopy(birthDays, index, birthDays, index + 1, size - index);
+			System.arraycopy(flags, index, flags, index + 1, size - index);
+			size++;
+		}
+		personIds[index] = personId;
+		genders[index] = gender;
+		birthDays[index] = birthDay;
+		flags[index] = flag;
+	}
+	
+	private static String join(List<Integer> ids) {
+		StringBuilder joined = new StringBuilder();
+		for (Integer id : ids) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(id.intValue());
+		}
+		return joined.toString();
+	}
+	
+	private static byte getGenderCode(String gender) {
+		if (gender == null || gender.trim().length() != 1) {
+			return OTHER_GENDER;
+		}
+		return (byte) Character.toUpperCase(gender.trim().charAt(0));
+	}
+	
+	private static int getDay(Date date) {
+		return (int) Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+	
+	/**
+	 * Reads the configuration from the global properties, and loads or releases the columns.
+	 */
+	public void configure(AdministrationService administrationService) {
+		setEnabled(administrationService.getGlobalProperty(PatientSearchCriteriaConfig.GP_DEMOGRAPHIC_STORE_ENABLED,
+		    "false"));
+	}
+	
+	private synchronized void setEnabled(String value) {
+		enabled = Boolean.parseBoolean(value);
+		log.info("Patient demographic store " + (enabled ? "enabled" : "disabled"));
+		if (!enabled) {
+			clear();
+		} else if (!loaded) {
+			loadInBackground();
+		}
+	}
+	
+	/**
+	 * Disables the store and frees its columns when the module stops. A load running in the
+	 * background then drops what it read.
+	 */
+	public synchronized void stop() {
+		enabled = false;
+		clear();
+	}
+	
+	private void clear() {
+		lock.writeLock().lock();
+		try {
+			loaded = false;
+			size = 0;
+			personIds = new int[0];
+			genders = new byte[0];
+			birthDays = new int[0];
+			flags = new byte[0];
+			changedPersonIds.clear();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return PatientSearchCriteriaConfig.GP_DEMOGRAPHIC_STORE_ENABLED.equals(propertyName);
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		setEnabled(newValue.getPropertyValue());
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		setEnabled("false");
+	}
+	
+	/**
+	 * Demographic criteria compiled to the codes of the columns.
+	 */
+	private static final class Filter {
+		
+		private final byte gender;
+		
+		private final int firstDay;
+		
+		private final int lastDay;
+		
+		private final byte flagMask;
+		
+		private final byte flagValue;
+		
+		private Filter(PatientSearchCriteria criteria) {
+			gender = criteria.getGender() == null ? 0 : getGenderCode(criteria.getGender());
+			int first = NO_BIRTHDAY;
+			int last = Integer.MAX_VALUE;
+			if (criteria.getBirthdate() != null) {
+				first = getDay(criteria.getBirthdate());
+				last = first;
+			}
+			if (criteria.getFrom() != null && criteria.getTo() != null) {
+				first = Math.max(first, getDay(criteria.getTo()));
+				last = Math.min(last, getDay(criteria.getFrom()));
+			}
+			if (criteria.getGender() != null && gender == OTHER_GENDER) {
+				// a gender which is not a single letter matches no patient
+				first = Integer.MAX_VALUE;
+				last = Integer.MIN_VALUE;
+			}
+			firstDay = first;
+			lastDay = last;
+			flagMask = criteria.isIncludeVoided() ? PATIENT : (byte) (PATIENT | VOIDED);
+			flagValue = PATIENT;
+		}
+		
+		private boolean matches(byte personGender, int birthDay, byte flag) {
+			return (flag & flagMask) == flagValue && (gender == 0 || personGender == gender) && birthDay >= firstDay
+			        && birthDay <= lastDay;
+		}
+	}
+	
+	/**
+	 * Columns being read from the database.
+	 */
+	private static final class Columns {
+		
+		private int size;
+		
+		private int[] personIds;
+		
+		private byte[] genders;
+		
+		private int[] birthDays;
+		
+		private byte[] flags;
+		
+		private Columns(int capacity) {
+			personIds = new int[capacity];
+			genders = new byte[capacity];
+			birthDays = new int[capacity];
+			flags = new byte[capacity];
+		}
+		
+		/**
+		 * @return the id of the person read
+		 */
+		private Integer add(ResultSet resultSet) throws SQLException {
+			if (size == personIds.length) {
+				int capacity = size + (size >> 1);
+				personIds = Arrays.copyOf(personIds, capacity);
+				genders = Arrays.copyOf(genders, capacity);
+				birthDays = Arrays.copyOf(birthDays, capacity);
+				flags = Arrays.copyOf(flags, capacity);
+			}
+			int personId = resultSet.getInt(1);
+			java.sql.Date birthdate = resultSet.getDate(3);
+			byte flag = 0;
+			if (resultSet.getBoolean(4)) {
+				flag |= VOIDED;
+			}
+			resultSet.getInt(5);
+			if (!resultSet.wasNull()) {
+				flag |= PATIENT;
+			}
+			personIds[size] = personId;
+			genders[size] = getGenderCode(resultSet.getString(2));
+			birthDays[size] = (birthdate == null) ? NO_BIRTHDAY : (int) birthdate.toLocalDate().toEpochDay();
+			flags[size] = flag;
+			size++;
+			return personId;
+		}
+	}
+	
+}
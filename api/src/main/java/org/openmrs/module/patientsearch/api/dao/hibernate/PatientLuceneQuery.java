@@ -1,13 +1,21 @@
 package org.openmrs.module.patientsearch.api.dao.hibernate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.lucene.queryparser.classic.QueryParser;
 import org.hibernate.SessionFactory;
+import org.openmrs.PatientIdentifier;
 import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.db.hibernate.search.LuceneQuery;
+import org.openmrs.module.patientsearch.api.metrics.SearchTrace;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.CriteriaLuceneQuery;
 import org.openmrs.module.patientsearch.api.dao.hibernate.search.DateLuceneQuery;
+import org.openmrs.util.OpenmrsConstants;
 
 /*
  
@@ -132,4 +140,77 @@ public class PatientLuceneQuery {
 		
 	}
 	
+	//returns one lucene query on Person for any combination of gender, birthdate and range of age.
+	//There is one document per person, so there is no need to skip the same persons.
+	public CriteriaLuceneQuery<Person> getPatientWithCriteria(String gender, Date birthdate, Date from, Date to,
+	        boolean includeVoided) {
+		return traced(CriteriaLuceneQuery.newQuery(Person.class, sessionFactory.getCurrentSession(), null, null, "",
+		    gender, birthdate, from, to, includeVoided));
+	}
+	
+	//returns one lucene query on PersonName, the name is matched and the other criteria are filters
+	public CriteriaLuceneQuery<PersonName> getPatientNameWithCriteria(String name, String gender, Date birthdate,
+	        Date from, Date to, boolean includeVoided, LuceneQuery<?> skipSame) {
+		CriteriaLuceneQuery<PersonName> luceneQuery = traced(CriteriaLuceneQuery.newQuery(PersonName.class,
+		    sessionFactory.getCurrentSession(), QueryParser.escape(name), getPatientNameFields(), "person.", gender,
+		    birthdate, from, to, includeVoided));
+		if (skipSame != null) {
+			luceneQuery.skipSame("person.personId", skipSame);
+		} else {
+			luceneQuery.skipSame("person.personId");
+		}
+		return luceneQuery;
+	}
+	
+	//returns the fields of PersonName matched by a name, depending on the search match mode
+	public static List<String> getPatientNameFields() {
+		List<String> fields = new ArrayList<>();
+		fields.addAll(Arrays.asList("givenNameExact", "middleNameExact", "familyNameExact", "familyName2Exact"));
+		String matchMode = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_PATIENT_SEARCH_MATCH_MODE);
+		if (OpenmrsConstants.GLOBAL_PROPERTY_PATIENT_SEARCH_MATCH_ANYWHERE.equals(matchMode)) {
+			fields.addAll(Arrays.asList("givenNameAnywhere", "middleNameAnywhere", "familyNameAnywhere",
+			    "familyName2Anywhere"));
+		} else {
+			fields.addAll(Arrays.asList("givenNameStart", "middleNameStart", "familyNameStart", "familyName2Start"));
+		}
+		return fields;
+	}
+	
+	//returns one lucene query on PatientIdentifier, the identifier is matched and the other criteria are filters
+	public CriteriaLuceneQuery<PatientIdentifier> getPatientIdentifierWithCriteria(String identifier,
+	        List<String> fields, String gender, Date birthdate, Date from, Date to, boolean includeVoided) {
+		CriteriaLuceneQuery<PatientIdentifier> luceneQuery = traced(CriteriaLuceneQuery.newQuery(PatientIdentifier.class,
+		    sessionFactory.getCurrentSession(), identifier, fields, "patient.", gender, birthdate, from, to,
+		    includeVoided));
+		luceneQuery.skipSame("patient.personId");
+		return luceneQuery;
+	}
+	
+	//adds the compiled query to the slow search log, when the details of the current search are captured
+	private <T> CriteriaLuceneQuery<T> traced(final CriteriaLuceneQuery<T> luceneQuery) {
+		if (SearchTrace.isCapturing()) {
+			SearchTrace.addQuery(() -> luceneQuery.getLuceneQuery().toString());
+		}
+		return luceneQuery;
+	}
+	
+	//returns the lucene query for all the names of the given persons, the caller picks the preferred one
+	public LuceneQuery<PersonName> getPatientNamesOf(List<Integer> personIds) {
+		LuceneQuery<PersonName> luceneQuery = LuceneQuery.newQuery(PersonName.class, sessionFactory.getCurrentSession(),
+		    "", new ArrayList<String>());
+		luceneQuery.include("person.personId", personIds.toArray());
+		luceneQuery.include("voided", false);
+		return luceneQuery;
+	}
+	
+	//returns the lucene query for all the identifiers of the given patients, the caller picks the preferred one
+	public LuceneQuery<PatientIdentifier> getPatientIdentifiersOf(List<Integer> personIds) {
+		LuceneQuery<PatientIdentifier> luceneQuery = LuceneQuery.newQuery(PatientIdentifier.class,
+		    sessionFactory.getCurrentSession(), "", new ArrayList<String>());
+		luceneQuery.include("patient.personId", personIds.toArray());
+		luceneQuery.include("voided", false);
+		return luceneQuery;
+	}
+	
 }
@@ -0,0 +1,114 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.type.Type;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Clears the {@link PatientSearchResultCache} when a person (so also a patient), a person name or
+ * a patient identifier is saved, updated, voided or deleted. The cache is cleared as soon as the
+ * change is flushed and again when its transaction completes, so a search which ran in between
+ * does not keep the old results. The changed persons are also marked to read again in the
+ * {@link PatientDemographicStore}, when their transaction completes, and the store is told when
+ * the transactions begin and complete to know which changes they can see. The changed entities are
+ * kept until then, as the id of a new person is only generated when it is inserted, and a changed
+ * name or identifier marks the person who owns it.
+ */
+@Component("patientsearch.PatientSearchCacheInterceptor")
+public class PatientSearchCacheInterceptor extends EmptyInterceptor {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final ThreadLocal<Set<Object>> changed = new ThreadLocal<Set<Object>>();
+	
+	@Autowired
+	private transient PatientSearchResultCache resultCache;
+	
+	@Autowired
+	private transient PatientDemographicStore demographicStore;
+	
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		invalidate(entity, id);
+		return false;
+	}
+	
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	        String[] propertyNames, Type[] types) {
+		invalidate(entity, id);
+		return false;
+	}
+	
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		invalidate(entity, id);
+	}
+	
+	@Override
+	public void afterTransactionBegin(Transaction tx) {
+		demographicStore.transactionBegan();
+	}
+	
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		demographicStore.transactionCompleted();
+		Set<Object> entities = changed.get();
+		if (entities != null) {
+			changed.remove();
+			resultCache.invalidateAll();
+			for (Object entity : entities) {
+				demographicStore.markChanged(getPersonId(entity));
+			}
+		}
+	}
+	
+	private void invalidate(Object entity, Serializable id) {
+		if (entity instanceof Person || entity instanceof PersonName || entity instanceof PatientIdentifier) {
+			Set<Object> entities = changed.get();
+			if (entities == null) {
+				entities = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+				changed.set(entities);
+			}
+			entities.add(entity);
+			resultCache.invalidateAll();
+		}
+	}
+	
+	/**
+	 * @return the id of the person of a changed entity, null if it was not inserted
+	 */
+	private Integer getPersonId(Object entity) {
+		if (entity instanceof Person) {
+			return ((Person) entity).getPersonId();
+		}
+		if (entity instanceof PersonName) {
+			Person person = ((PersonName) entity).getPerson();
+			return (person == null) ? null : person.getPersonId();
+		}
+		Patient patient = ((PatientIdentifier) entity).getPatient();
+		return (patient == null) ? null : patient.getPatientId();
+	}
+	
+}
@@ -0,0 +1,208 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.hibernate.SessionFactory;
+import org.hibernate.search.Search;
+import org.hibernate.search.indexes.IndexReaderAccessor;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.api.db.DAOException;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan.Strategy;
+
+/*
+ * Chooses how to search a PatientSearchCriteria from the statistics of the search index. The
+ * demographic criteria are counted on the Person index, which is cheap as they are cached filters,
+ * and the hits of the name or identifier are estimated from the document frequencies of the terms
+ * of their compiled queries, so the estimate follows the analyzers and the identifier search
+ * patterns of the search.
+ *
+ * The compiled query evaluates the name and identifier queries with every demographic filter and
+ * skips the persons already found by identifier. When both sides are small, collecting their ids
+ * and intersecting them costs less and gives the exact total, otherwise the compiled query lets the
+ * index leapfrog between the clauses. With identifier types, only the identifiers of those types
+ * are searched, on the index like OpenMRS core does, and planned the same way.
+ *
+ * When the demographic store is loaded, the demographic criteria are counted on it instead, and the
+ * searches on demographic criteria alone are answered by it.
+ */
+public class PatientSearchPlanner {
+	
+	/**
+	 * Largest number of ids collected from each side of an intersection
+	 */
+	public static final int INTERSECT_MAX_IDS = 1000;
+	
+	private final SessionFactory sessionFactory;
+	
+	private final PatientDemographicStore demographicStore;
+	
+	private final int maxIntersectIds;
+	
+	public PatientSearchPlanner(SessionFactory sessionFactory) {
+		this(sessionFactory, null);
+	}
+	
+	/**
+	 * @param demographicStore : store of the demographic fields, null or not ready to use the index
+	 */
+	public PatientSearchPlanner(SessionFactory sessionFactory, PatientDemographicStore demographicStore) {
+		this(sessionFactory, demographicStore, INTERSECT_MAX_IDS);
+	}
+	
+	/**
+	 * @param maxIntersectIds : largest estimate of each side for which they are intersected
+	 */
+	PatientSearchPlanner(SessionFactory sessionFactory, PatientDemographicStore demographicStore, int maxIntersectIds) {
+		this.sessionFactory = sessionFactory;
+		this.demographicStore = demographicStore;
+		this.maxIntersectIds = maxIntersectIds;
+	}
+	
+	/**
+	 * @param identifierQuery : compiled query on PatientIdentifier of the name or identifier of the
+	 *            criteria without the demographic criteria, null without name or identifier
+	 * @param nameQuery : compiled query on PersonName of the name of the criteria without the
+	 *            demographic criteria, null if only the identifiers are searched
+	 */
+	public PatientSearchPlan plan(PatientSearchCriteria criteria, Query identifierQuery, Query nameQuery) {
+		if (!criteria.hasDemographicCriteria()) {
+			return new PatientSearchPlan(Strategy.CORE, PatientSearchPlan.UNKNOWN, PatientSearchPlan.UNKNOWN);
+		}
+		
+		boolean storeReady = demographicStore != null && demographicStore.refresh();
+		long demographicEstimate;
+		if (storeReady) {
+			demographicEstimate = demographicStore.count(criteria);
+		} else {
+			demographicEstimate = countDemographicCriteria(criteria);
+		}
+		if (demographicEstimate == 0) {
+			return new PatientSearchPlan(Strategy.EMPTY, PatientSearchPlan.UNKNOWN, demographicEstimate);
+		}
+		if (!criteria.hasQuery()) {
+			return new PatientSearchPlan(storeReady ? Strategy.DEMOGRAPHIC : Strategy.COMPILED, PatientSearchPlan.UNKNOWN,
+			        demographicEstimate);
+		}
+		
+		long queryEstimate = estimateQuery(identifierQuery, nameQuery);
+		if (demographicEstimate <= maxIntersectIds && queryEstimate <= maxIntersectIds) {
+			return new PatientSearchPlan(Strategy.INTERSECT, queryEstimate, demographicEstimate);
+		}
+		return new PatientSearchPlan(Strategy.COMPILED, queryEstimate, demographicEstimate);
+	}
+	
+	private long countDemographicCriteria(PatientSearchCriteria criteria) {
+		PatientLuceneQuery patientLuceneQuery = new PatientLuceneQuery(sessionFactory);
+		IndexReaderAccessor readerAccessor = getIndexReaderAccessor();
+		IndexReader reader = readerAccessor.open(Person.class);
+		try {
+			return new IndexSearcher(reader).count(patientLuceneQuery.getPatientWithCriteria(criteria.getGender(),
+			    criteria.getBirthdate(), criteria.getFrom(), criteria.getTo(), criteria.isIncludeVoided())
+			        .getLuceneQuery());
+		}
+		catch (IOException e) {
+			throw new DAOException("Failed to count the person index", e);
+		}
+		finally {
+			readerAccessor.close(reader);
+		}
+	}
+	
+	/**
+	 * The persons found by identifier are skipped by the names, so the hits of the name or
+	 * identifier are at most the sum of both.
+	 */
+	private long estimateQuery(Query identifierQuery, Query nameQuery) {
+		IndexReaderAccessor readerAccessor = getIndexReaderAccessor();
+		IndexReader identifierReader = readerAccessor.open(PatientIdentifier.class);
+		IndexReader nameReader = readerAccessor.open(PersonName.class);
+		try {
+			long estimate = estimate(identifierReader, identifierQuery);
+			if (nameQuery != null) {
+				estimate += estimate(nameReader, nameQuery);
+			}
+			return estimate;
+		}
+		catch (IOException e) {
+			throw new DAOException("Failed to read the statistics of the search index", e);
+		}
+		finally {
+			readerAccessor.close(identifierReader);
+			readerAccessor.close(nameReader);
+		}
+	}
+	
+	/**
+	 * Bounds the hits of a query by the document frequencies of its terms. The required clauses of a
+	 * boolean query, such as the terms of a name, match at most the hits of the rarest one, and its
+	 * optional clauses, such as the fields of a term or the identifier search patterns, at most the
+	 * sum of theirs. The hits of the other queries, such as the cached filters, are only bounded by
+	 * the number of documents.
+	 */
+	static long estimate(IndexReader reader, Query query) throws IOException {
+		if (query instanceof TermQuery) {
+			return reader.docFreq(((TermQuery) query).getTerm());
+		}
+		if (query instanceof PhraseQuery) {
+			long estimate = reader.maxDoc();
+			for (Term term : ((PhraseQuery) query).getTerms()) {
+				estimate = Math.min(estimate, reader.docFreq(term));
+			}
+			return estimate;
+		}
+		if (query instanceof BoostQuery) {
+			return estimate(reader, ((BoostQuery) query).getQuery());
+		}
+		if (query instanceof ConstantScoreQuery) {
+			return estimate(reader, ((ConstantScoreQuery) query).getQuery());
+		}
+		if (query instanceof BooleanQuery) {
+			long required = reader.maxDoc();
+			long optional = 0;
+			boolean hasRequired = false;
+			boolean hasOptional = false;
+			for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+				if (clause.getOccur() == BooleanClause.Occur.SHOULD) {
+					optional += estimate(reader, clause.getQuery());
+					hasOptional = true;
+				} else if (clause.isRequired()) {
+					required = Math.min(required, estimate(reader, clause.getQuery()));
+					hasRequired = true;
+				}
+			}
+			if (hasRequired || !hasOptional) {
+				return required;
+			}
+			return Math.min(optional, reader.maxDoc());
+		}
+		return reader.maxDoc();
+	}
+	
+	private IndexReaderAccessor getIndexReaderAccessor() {
+		return Search.getFullTextSession(sessionFactory.getCurrentSession()).getSearchFactory().getIndexReaderAccessor();
+	}
+	
+}
@@ -0,0 +1,197 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.api.db.DAOException;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.openmrs.module.patientsearch.api.metrics.SearchTrace;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded pool which runs the independent sub-queries of a search concurrently with the request
+ * thread. A worker opens its own OpenMRS session with the user context of the caller and closes
+ * it when the sub-query is done. The sub-queries are not queued: when the pool is disabled, with 0
+ * threads, or all its threads are busy, the sub-query runs on the caller thread instead of waiting
+ * for a thread while the caller waits for it. The trace and the deadline of the search are
+ * continued on the worker.
+ */
+@Component("patientsearch.SubQueryExecutor")
+public class SubQueryExecutor implements GlobalPropertyListener {
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	private final ThreadPoolExecutor executor;
+	
+	private volatile boolean enabled = true;
+	
+	public SubQueryExecutor() {
+		int threads = PatientSearchCriteriaConfig.DEFAULT_SUB_QUERY_THREADS;
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+		        new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "patientsearch-sub-query-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * @return future result of the sub-query, already done if it ran on the caller thread
+	 */
+	public <T> Future<T> submit(final Callable<T> subQuery) {
+		if (enabled) {
+			final UserContext userContext = Context.getUserContext();
+			final SearchTrace trace = SearchTrace.current();
+			final SearchDeadline.Budget budget = SearchDeadline.current();
+			FutureTask<T> task = new FutureTask<T>(() -> {
+				Context.openSession();
+				SearchTrace previous = SearchTrace.attach(trace);
+				SearchDeadline.Budget previousBudget = SearchDeadline.attach(budget);
+				try {
+					Context.setUserContext(userContext);
+					return subQuery.call();
+				}
+				finally {
+					SearchDeadline.restore(previousBudget);
+					SearchTrace.restore(previous);
+					Context.clearUserContext();
+					Context.closeSession();
+				}
+			});
+			try {
+				executor.execute(task);
+				return task;
+			}
+			catch (RejectedExecutionException e) {
+				log.debug("The sub-query threads are busy, running the sub-query on the caller thread");
+			}
+		}
+		
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			result.complete(subQuery.call());
+		}
+		catch (Exception e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+	
+	/**
+	 * Waits for the result of a sub-query, its exceptions are thrown again on the caller thread.
+	 * 
+	 * @return the result, or null if the deadline of the search expired first, the sub-query is then
+	 *         cancelled and the search marked as truncated
+	 */
+	public <T> T await(Future<T> future) throws DAOException {
+		try {
+			long remainingMillis = SearchDeadline.getRemainingMillis();
+			if (remainingMillis == Long.MAX_VALUE) {
+				return future.get();
+			}
+			return future.get(remainingMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			future.cancel(true);
+			SearchDeadline.markTruncated();
+			return null;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			throw new DAOException("Interrupted while waiting for a sub-query", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new DAOException("Failed to run a sub-query", e.getCause());
+		}
+	}
+	
+	/**
+	 * Reads the number of threads from the global properties.
+	 */
+	public void configure(AdministrationService administrationService) {
+		setThreads(NumberUtils.toInt(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_SUB_QUERY_THREADS), PatientSearchCriteriaConfig.DEFAULT_SUB_QUERY_THREADS));
+	}
+	
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return PatientSearchCriteriaConfig.GP_SUB_QUERY_THREADS.equals(propertyName);
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		setThreads(NumberUtils.toInt(newValue.getPropertyValue(), PatientSearchCriteriaConfig.DEFAULT_SUB_QUERY_THREADS));
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		setThreads(PatientSearchCriteriaConfig.DEFAULT_SUB_QUERY_THREADS);
+	}
+	
+	private synchronized void setThreads(int threads) {
+		enabled = threads > 0;
+		if (enabled) {
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+		log.info("Patient search sub-queries " + (enabled ? "run on " + threads + " threads" : "run sequentially"));
+	}
+	
+}
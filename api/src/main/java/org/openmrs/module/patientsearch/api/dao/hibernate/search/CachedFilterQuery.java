@@ -0,0 +1,82 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+
+/*
+ * Non scoring query which matches the documents of the wrapped filter from the bitsets of the
+ * SegmentFilterCache. Used for the low cardinality criteria, such as isPatient, voided and gender,
+ * which are the same on nearly every search.
+ */
+public class CachedFilterQuery extends Query {
+	
+	private final Query filter;
+	
+	private final SegmentFilterCache cache;
+	
+	public CachedFilterQuery(Query filter) {
+		this(filter, SegmentFilterCache.getInstance());
+	}
+	
+	public CachedFilterQuery(Query filter, SegmentFilterCache cache) {
+		this.filter = filter;
+		this.cache = cache;
+	}
+	
+	public Query getFilter() {
+		return filter;
+	}
+	
+	@Override
+	public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+		return new ConstantScoreWeight(this) {
+			
+			@Override
+			public Scorer scorer(LeafReaderContext context) throws IOException {
+				FixedBitSet bits = cache.getBits(filter, context);
+				int cardinality = bits.cardinality();
+				if (cardinality == 0) {
+					return null;
+				}
+				return new ConstantScoreScorer(this, score(), new BitSetIterator(bits, cardinality));
+			}
+		};
+	}
+	
+	@Override
+	public String toString(String field) {
+		return "cached(" + filter.toString(field) + ")";
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (!super.equals(obj)) {
+			return false;
+		}
+		return filter.equals(((CachedFilterQuery) obj).filter);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * super.hashCode() + filter.hashCode();
+	}
+	
+}
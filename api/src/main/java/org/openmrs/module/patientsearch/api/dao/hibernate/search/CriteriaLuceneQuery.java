@@ -0,0 +1,219 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.time.Instant;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.hibernate.Session;
+import org.hibernate.search.FullTextQuery;
+import org.hibernate.search.query.dsl.QueryBuilder;
+import org.openmrs.api.db.hibernate.search.LuceneQuery;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+
+/*
+ * Lucene query which compiles the patient search criteria into one boolean query. The name or
+ * identifier query is the only scoring (MUST) clause, gender, birthdate, range of age, voided and
+ * isPatient are added as FILTER clauses, so the index does the intersection. Gender, voided and
+ * isPatient are cached filters, see CachedFilterQuery. A range of age is the union of the cached
+ * filters of the whole years it covers. The birthdate and the boundaries of the range of age are
+ * whole days in the time zone of the server, a birthdate matches the persons born on its day. The
+ * collection of the documents stops when the deadline of
+ * the search expires, the results are then partial, see SearchDeadline. The results are in the
+ * order of relevance unless a sort is given, see #sortBy(Sort).
+ */
+public class CriteriaLuceneQuery<T> extends LuceneQuery<T> {
+	
+	private final Class<T> type;
+	
+	private final String query;
+	
+	private final Collection<String> fields;
+	
+	private final String prefix;
+	
+	private final String gender;
+	
+	private final Date birthdate;
+	
+	private final Date from;
+	
+	private final Date to;
+	
+	private final boolean includeVoided;
+	
+	private Sort sort;
+	
+	/**
+	 * @param query : text query parsed against the given fields, null or blank to match all documents
+	 * @param prefix : path of the person in the indexed document, such as "person." for PersonName
+	 *            or "patient." for PatientIdentifier. Empty for Person itself.
+	 * @param from : upper boundary of birthdate (lower boundary of range of age)
+	 * @param to : lower boundary of birthdate (upper boundary of range of age)
+	 */
+	public static <T> CriteriaLuceneQuery<T> newQuery(final Class<T> type, final Session session, final String query,
+	        final Collection<String> fields, final String prefix, final String gender, final Date birthdate,
+	        final Date from, final Date to, final boolean includeVoided) {
+		return new CriteriaLuceneQuery<T>(type, session, query, fields, prefix, gender, birthdate, from, to,
+		                                  includeVoided);
+	}
+	
+	public CriteriaLuceneQuery(Class<T> type, Session session, String query, Collection<String> fields, String prefix,
+	    String gender, Date birthdate, Date from, Date to, boolean includeVoided) {
+		super(type, session);
+		this.type = type;
+		this.query = query;
+		this.fields = fields;
+		this.prefix = prefix;
+		this.gender = gender;
+		this.birthdate = birthdate;
+		this.from = from;
+		this.to = to;
+		this.includeVoided = includeVoided;
+	}
+	
+	/**
+	 * @return the compiled lucene query, to run it directly on an index searcher
+	 */
+	public Query getLuceneQuery() {
+		try {
+			return prepareQuery();
+		}
+		catch (ParseException e) {
+			throw new IllegalStateException("Failed to parse query: " + query, e);
+		}
+	}
+	
+	@Override
+	protected Query prepareQuery() throws ParseException {
+		QueryBuilder queryBuilder = getFullTextSession().getSearchFactory().buildQueryBuilder().forEntity(type).get();
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		
+		if (StringUtils.isBlank(query) || fields == null || fields.isEmpty()) {
+			builder.add(new MatchAllDocsQuery(), Occur.MUST);
+		} else {
+			MultiFieldQueryParser queryParser = new MultiFieldQueryParser(fields.toArray(new String[fields.size()]),
+			        getFullTextSession().getSearchFactory().getAnalyzer(type));
+			queryParser.setDefaultOperator(QueryParser.Operator.AND);
+			builder.add(queryParser.parse(query), Occur.MUST);
+		}
+		
+		if (gender != null) {
+			builder.add(cached(queryBuilder.keyword().onField(prefix + "gender").matching(gender).createQuery()),
+			    Occur.FILTER);
+		}
+		ZoneId zone = ZoneId.systemDefault();
+		if (birthdate != null) {
+			builder.add(queryBuilder.range().onField(prefix + "birthdate").from(getStartOfDay(birthdate, 0, zone))
+			        .to(getStartOfDay(birthdate, 1, zone)).excludeLimit().createQuery(), Occur.FILTER);
+		}
+		if (from != null && to != null) {
+			builder.add(getBirthdateRangeQuery(queryBuilder, prefix + "birthdate", getStartOfDay(to, 0, zone),
+			    getStartOfDay(from, 1, zone) - 1), Occur.FILTER);
+		}
+		if (!includeVoided) {
+			builder.add(cached(queryBuilder.keyword().onField("voided").matching(false).createQuery()), Occur.FILTER);
+			if (!prefix.isEmpty()) {
+				builder.add(cached(queryBuilder.keyword().onField(prefix + "voided").matching(false).createQuery()),
+				    Occur.FILTER);
+			}
+		}
+		builder.add(cached(queryBuilder.keyword().onField(prefix + "isPatient").matching(true).createQuery()),
+		    Occur.FILTER);
+		
+		return builder.build();
+	}
+	
+	/**
+	 * Sorts the results by the given fields of the index instead of by relevance. The index collects
+	 * the top documents of the sort, so only the requested page is projected or loaded.
+	 * 
+	 * @param sort : sort on the fields of the indexed documents, null for the order of relevance
+	 */
+	public CriteriaLuceneQuery<T> sortBy(Sort sort) {
+		this.sort = sort;
+		return this;
+	}
+	
+	@Override
+	protected void adjustFullTextQuery(FullTextQuery fullTextQuery) {
+		super.adjustFullTextQuery(fullTextQuery);
+		if (sort != null) {
+			fullTextQuery.setSort(sort);
+		}
+		long remainingMillis = SearchDeadline.getRemainingMillis();
+		if (remainingMillis != Long.MAX_VALUE) {
+			fullTextQuery.limitExecutionTimeTo(Math.max(1, remainingMillis), TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Splits the range of birthdates at the year boundaries. The whole years are cached filters, they
+	 * are shared by all the ranges of age which cover them, only the partial years at both ends are
+	 * searched as plain ranges.
+	 * 
+	 * @param lower : earliest birthdate in millis, inclusive
+	 * @param upper : latest birthdate in millis, inclusive
+	 */
+	private Query getBirthdateRangeQuery(QueryBuilder queryBuilder, String field, long lower, long upper) {
+		ZoneId zone = ZoneId.systemDefault();
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		long rangeStart = lower;
+		int year = Instant.ofEpochMilli(lower).atZone(zone).getYear();
+		while (rangeStart <= upper) {
+			long yearStart = getStartOfYear(year, zone);
+			long nextYearStart = getStartOfYear(year + 1, zone);
+			if (rangeStart == yearStart && upper >= nextYearStart - 1) {
+				builder.add(cached(queryBuilder.range().onField(field).from(yearStart).to(nextYearStart).excludeLimit()
+				        .createQuery()), Occur.SHOULD);
+			} else {
+				builder.add(queryBuilder.range().onField(field).from(rangeStart).to(Math.min(upper, nextYearStart - 1))
+				        .createQuery(), Occur.SHOULD);
+			}
+			rangeStart = nextYearStart;
+			year++;
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * @param days : number of days to add to the day of the date
+	 */
+	private long getStartOfDay(Date date, int days, ZoneId zone) {
+		return Instant.ofEpochMilli(date.getTime()).atZone(zone).toLocalDate().plusDays(days).atStartOfDay(zone)
+		        .toInstant().toEpochMilli();
+	}
+	
+	private long getStartOfYear(int year, ZoneId zone) {
+		return Year.of(year).atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+	}
+	
+	/**
+	 * The low cardinality criteria are the same on nearly every search, their documents are read
+	 * from the bitsets cached per segment.
+	 */
+	private Query cached(Query filter) {
+		return new CachedFilterQuery(filter);
+	}
+	
+}
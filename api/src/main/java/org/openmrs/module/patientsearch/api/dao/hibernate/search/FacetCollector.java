@@ -0,0 +1,171 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.NumericUtils;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+
+/*
+ * Collector of the Person index which counts the matching patients by gender and by bucket of age
+ * in the same pass, without loading any document. The gender and the birthdate of the documents
+ * are read from columns built once per segment from the postings of the fields, like doc values,
+ * and dropped when the core of the segment is closed. The collection stops when the deadline of the
+ * search expires, see SearchDeadline.
+ */
+public class FacetCollector extends SimpleCollector {
+	
+	private static final int DEADLINE_CHECK_INTERVAL = 4096;
+	
+	private static final ConcurrentMap<Object, Columns> SEGMENTS = new ConcurrentHashMap<Object, Columns>();
+	
+	private static final LeafReader.CoreClosedListener CLOSED_LISTENER = new LeafReader.CoreClosedListener() {
+		
+		@Override
+		public void onClose(Object ownerCoreCacheKey) {
+			SEGMENTS.remove(ownerCoreCacheKey);
+		}
+	};
+	
+	private final FacetCounter counter;
+	
+	private Columns columns;
+	
+	/**
+	 * Number of patients of each gender of the current segment, by position of the gender
+	 */
+	private long[] genderCounts;
+	
+	private int collected;
+	
+	private boolean truncated;
+	
+	public FacetCollector(FacetCounter counter) {
+		this.counter = counter;
+	}
+	
+	/**
+	 * @return true if the deadline of the search expired before all the patients were counted
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+	
+	/**
+	 * Adds the counts by gender of the last segment to the counter, to call once the search is done.
+	 */
+	public void finish() {
+		if (columns != null) {
+			for (int i = 0; i < genderCounts.length; i++) {
+				counter.addGender(columns.genderValues.get(i), genderCounts[i]);
+			}
+			columns = null;
+		}
+	}
+	
+	@Override
+	protected void doSetNextReader(LeafReaderContext context) throws IOException {
+		finish();
+		if (truncated) {
+			throw new CollectionTerminatedException();
+		}
+		columns = getColumns(context.reader());
+		genderCounts = new long[columns.genderValues.size()];
+	}
+	
+	@Override
+	public void collect(int doc) {
+		if (++collected % DEADLINE_CHECK_INTERVAL == 0 && SearchDeadline.isExpired()) {
+			truncated = true;
+			throw new CollectionTerminatedException();
+		}
+		genderCounts[columns.genders[doc]]++;
+		counter.addBirthdate(columns.birthdates[doc]);
+	}
+	
+	@Override
+	public boolean needsScores() {
+		return false;
+	}
+	
+	private static Columns getColumns(LeafReader reader) throws IOException {
+		Object coreKey = reader.getCoreCacheKey();
+		Columns columns = SEGMENTS.get(coreKey);
+		if (columns == null) {
+			columns = new Columns(reader);
+			if (SEGMENTS.putIfAbsent(coreKey, columns) == null) {
+				reader.addCoreClosedListener(CLOSED_LISTENER);
+			}
+		}
+		return columns;
+	}
+	
+	/**
+	 * Gender and birthdate of every document of a segment. The gender is the position of its term,
+	 * 0 for no gender, the birthdate is in millis.
+	 */
+	private static final class Columns {
+		
+		private final List<String> genderValues = new ArrayList<String>();
+		
+		private final short[] genders;
+		
+		private final long[] birthdates;
+		
+		Columns(LeafReader reader) throws IOException {
+			genders = new short[reader.maxDoc()];
+			birthdates = new long[reader.maxDoc()];
+			Arrays.fill(birthdates, FacetCounter.NO_BIRTHDATE);
+			genderValues.add(null);
+			
+			PostingsEnum postings = null;
+			Terms genderTerms = reader.terms("gender");
+			if (genderTerms != null) {
+				TermsEnum termsEnum = genderTerms.iterator();
+				while (termsEnum.next() != null && genderValues.size() <= Short.MAX_VALUE) {
+					short gender = (short) genderValues.size();
+					// the analyzer of the field may have changed the case of the gender
+					genderValues.add(termsEnum.term().utf8ToString().toUpperCase());
+					postings = termsEnum.postings(postings, PostingsEnum.NONE);
+					for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+						genders[doc] = gender;
+					}
+				}
+			}
+			Terms birthdateTerms = reader.terms("birthdate");
+			if (birthdateTerms != null) {
+				// only the full precision terms, the others are the prefixes of the numeric ranges
+				TermsEnum termsEnum = NumericUtils.filterPrefixCodedLongs(birthdateTerms.iterator());
+				while (termsEnum.next() != null) {
+					long birthdate = NumericUtils.prefixCodedToLong(termsEnum.term());
+					postings = termsEnum.postings(postings, PostingsEnum.NONE);
+					for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+						birthdates[doc] = birthdate;
+					}
+				}
+			}
+		}
+	}
+	
+}
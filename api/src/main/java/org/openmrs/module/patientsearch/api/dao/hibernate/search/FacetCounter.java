@@ -0,0 +1,103 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openmrs.module.patientsearch.api.PatientSearchFacets;
+
+/*
+ * Counts the patients by gender and by bucket of age. A bucket is found by comparing the birthdate
+ * with the first day of the year after the latest year of birth of each bucket, so the count does
+ * not convert any date.
+ */
+public class FacetCounter {
+	
+	/**
+	 * Birthdate of the patients without birthdate
+	 */
+	public static final long NO_BIRTHDATE = Long.MIN_VALUE;
+	
+	private final int[] ageBuckets;
+	
+	/**
+	 * Birthdates below which a patient is at least the age of each bucket, in decreasing order
+	 */
+	private final long[] bucketEnds;
+	
+	private final long[] bucketCounts;
+	
+	private final Map<String, Long> genderCounts = new TreeMap<String, Long>();
+	
+	private long unknownAgeCount;
+	
+	private long totalCount;
+	
+	/**
+	 * @param ageBuckets : lowest ages of the buckets, sorted, see
+	 *            {@link PatientSearchFacets#parseAgeBuckets(String)}
+	 */
+	public FacetCounter(int[] ageBuckets) {
+		this.ageBuckets = ageBuckets;
+		this.bucketEnds = new long[ageBuckets.length];
+		this.bucketCounts = new long[ageBuckets.length];
+		ZoneId zone = ZoneId.systemDefault();
+		int year = Year.now().getValue();
+		for (int i = 0; i < ageBuckets.length; i++) {
+			bucketEnds[i] = Year.of(year - ageBuckets[i] + 1).atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+		}
+	}
+	
+	/**
+	 * Adds patients to the count of a gender, they are counted in total by {@link #addBirthdate(long)}.
+	 */
+	public void addGender(String gender, long count) {
+		if (count > 0) {
+			genderCounts.merge(gender == null ? PatientSearchFacets.UNKNOWN : gender, count, Long::sum);
+		}
+	}
+	
+	/**
+	 * Adds one patient to the count of its bucket of age and to the total count.
+	 */
+	public void addBirthdate(long birthdate) {
+		totalCount++;
+		if (birthdate != NO_BIRTHDATE) {
+			for (int i = bucketEnds.length - 1; i >= 0; i--) {
+				if (birthdate < bucketEnds[i]) {
+					bucketCounts[i]++;
+					return;
+				}
+			}
+		}
+		unknownAgeCount++;
+	}
+	
+	/**
+	 * @param truncated : true if the count was cut short by the deadline of the search or by the
+	 *            largest number of patients counted
+	 */
+	public PatientSearchFacets toFacets(boolean truncated) {
+		Map<String, Long> ageBucketCounts = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < ageBuckets.length; i++) {
+			ageBucketCounts.put(PatientSearchFacets.getAgeBucketLabel(ageBuckets, i), bucketCounts[i]);
+		}
+		if (unknownAgeCount > 0) {
+			ageBucketCounts.put(PatientSearchFacets.UNKNOWN, unknownAgeCount);
+		}
+		return new PatientSearchFacets(totalCount, new LinkedHashMap<String, Long>(genderCounts), ageBucketCounts,
+		        truncated);
+	}
+	
+}
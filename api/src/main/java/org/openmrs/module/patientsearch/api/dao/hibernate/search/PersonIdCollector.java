@@ -0,0 +1,113 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.SimpleCollector;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+
+/*
+ * Collector of the person ids of the matching documents into an array of primitive ints, read from
+ * the stored id field of each document, so no projection row or boxed Integer is created. The
+ * collection stops once more than the given number of ids match, or when the deadline of the
+ * search expires, see SearchDeadline. The ids are in the order of the documents in the index.
+ */
+public class PersonIdCollector extends SimpleCollector {
+	
+	private static final int DEADLINE_CHECK_INTERVAL = 4096;
+	
+	private final String field;
+	
+	private final Set<String> fieldsToLoad;
+	
+	private final int maxIds;
+	
+	private LeafReader reader;
+	
+	private int[] ids = new int[16];
+	
+	private int size;
+	
+	private boolean full;
+	
+	private boolean truncated;
+	
+	/**
+	 * @param field : stored field of the person id, such as "personId" on Person
+	 * @param maxIds : largest number of ids to collect
+	 */
+	public PersonIdCollector(String field, int maxIds) {
+		this.field = field;
+		this.fieldsToLoad = Collections.singleton(field);
+		this.maxIds = maxIds;
+	}
+	
+	/**
+	 * @return the collected ids, only the first {@link #size()} are used
+	 */
+	public int[] getIds() {
+		return ids;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return true if more documents matched than the largest number of ids to collect
+	 */
+	public boolean isFull() {
+		return full;
+	}
+	
+	/**
+	 * @return true if the deadline of the search expired before all the ids were collected
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+	
+	@Override
+	protected void doSetNextReader(LeafReaderContext context) throws IOException {
+		if (full || truncated) {
+			throw new CollectionTerminatedException();
+		}
+		reader = context.reader();
+	}
+	
+	@Override
+	public void collect(int doc) throws IOException {
+		if (size == maxIds) {
+			full = true;
+			throw new CollectionTerminatedException();
+		}
+		if ((size + 1) % DEADLINE_CHECK_INTERVAL == 0 && SearchDeadline.isExpired()) {
+			truncated = true;
+			throw new CollectionTerminatedException();
+		}
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, Math.min(maxIds, size * 2));
+		}
+		ids[size++] = Integer.parseInt(reader.document(doc, fieldsToLoad).get(field));
+	}
+	
+	@Override
+	public boolean needsScores() {
+		return false;
+	}
+	
+}
@@ -0,0 +1,78 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.util.Arrays;
+
+/*
+ * Set of person ids kept as a sorted array of primitive ints. Lookups are binary searches and the
+ * ids of another sub-query are filtered in place, so no boxed Integer or entity is created to
+ * intersect the results of two sub-queries.
+ */
+public class PersonIdSet {
+	
+	private final int[] ids;
+	
+	private final int size;
+	
+	private PersonIdSet(int[] ids, int size) {
+		this.ids = ids;
+		this.size = size;
+	}
+	
+	/**
+	 * @param ids : person ids in any order, the array is sorted in place and owned by the set
+	 * @param length : number of ids used in the array
+	 */
+	public static PersonIdSet of(int[] ids, int length) {
+		Arrays.sort(ids, 0, length);
+		int size = 0;
+		for (int i = 0; i < length; i++) {
+			if (size == 0 || ids[size - 1] != ids[i]) {
+				ids[size++] = ids[i];
+			}
+		}
+		return new PersonIdSet(ids, size);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @param index : position in the set, from 0 to {@link #size()} excluded
+	 * @return the id at the given position, the ids are in increasing order
+	 */
+	public int get(int index) {
+		return ids[index];
+	}
+	
+	public boolean contains(int personId) {
+		return Arrays.binarySearch(ids, 0, size, personId) >= 0;
+	}
+	
+	/**
+	 * Keeps the ids of the given array which are in this set, in their order.
+	 * 
+	 * @param personIds : ids to filter, compacted in place
+	 * @param length : number of ids used in the array
+	 * @return number of ids kept at the start of the array
+	 */
+	public int retainAll(int[] personIds, int length) {
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			if (contains(personIds[i])) {
+				personIds[kept++] = personIds[i];
+			}
+		}
+		return kept;
+	}
+	
+}
@@ -0,0 +1,122 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ScoreDoc;
+import org.openmrs.api.APIException;
+
+/*
+ * Opaque position in the results of a lucene query. It holds the last document and score of a
+ * page, so the next page is collected with IndexSearcher#searchAfter at the same cost at any
+ * depth. Document numbers are only valid for the segments they were read from, so the cursor also
+ * keeps the version of the reader and the position to fall back to offset paging when the index
+ * has changed in between. The token comes from the client, so its values are checked before use.
+ */
+public class SearchAfterCursor {
+	
+	private static final String VERSION_PREFIX = "1:";
+	
+	private final long readerVersion;
+	
+	private final int doc;
+	
+	private final float score;
+	
+	private final int position;
+	
+	public SearchAfterCursor(long readerVersion, int doc, float score, int position) {
+		this.readerVersion = readerVersion;
+		this.doc = doc;
+		this.score = score;
+		this.position = position;
+	}
+	
+	/**
+	 * @param token : token returned by {@link #encode()}
+	 * @return the decoded cursor, null if the token is null or empty
+	 * @throws APIException if the token is not a valid cursor, or its document or position is
+	 *             negative
+	 */
+	public static SearchAfterCursor decode(String token) throws APIException {
+		if (token == null || token.isEmpty()) {
+			return null;
+		}
+		try {
+			String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			if (!value.startsWith(VERSION_PREFIX)) {
+				throw new APIException("Invalid search cursor: " + token);
+			}
+			String[] parts = value.substring(VERSION_PREFIX.length()).split(":");
+			if (parts.length != 4) {
+				throw new APIException("Invalid search cursor: " + token);
+			}
+			SearchAfterCursor cursor = new SearchAfterCursor(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), Float
+			        .intBitsToFloat(Integer.parseInt(parts[2])), Integer.parseInt(parts[3]));
+			if (cursor.doc < 0 || cursor.position < 0) {
+				throw new APIException("Invalid search cursor: " + token);
+			}
+			return cursor;
+		}
+		catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			throw new APIException("Invalid search cursor: " + token, e);
+		}
+	}
+	
+	/**
+	 * @return version of the given reader, which changes when its segments change
+	 */
+	public static long getReaderVersion(IndexReader reader) {
+		long version = 17;
+		for (LeafReaderContext leaf : reader.leaves()) {
+			version = 31 * version + System.identityHashCode(leaf.reader().getCoreCacheKey());
+			version = 31 * version + leaf.docBase;
+		}
+		return version;
+	}
+	
+	public String encode() {
+		String value = VERSION_PREFIX + readerVersion + ":" + doc + ":" + Float.floatToIntBits(score) + ":" + position;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * @return true if the documents of this cursor can be used with the given reader
+	 */
+	public boolean isValidFor(IndexReader reader) {
+		return readerVersion == getReaderVersion(reader) && doc < reader.maxDoc();
+	}
+	
+	public ScoreDoc getScoreDoc() {
+		return new ScoreDoc(doc, score);
+	}
+	
+	/**
+	 * @return number of results before the cursor
+	 */
+	public int getPosition() {
+		return position;
+	}
+	
+	/**
+	 * @param reader : reader of the index to page again from the position
+	 * @param length : number of results of the page
+	 * @return number of top documents to collect to page again from the position, bounded by the
+	 *         number of documents of the index so a forged position cannot overflow
+	 */
+	public int getOffsetHits(IndexReader reader, int length) {
+		return (int) Math.max(1, Math.min((long) position + length, reader.maxDoc()));
+	}
+	
+}
@@ -0,0 +1,116 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.FixedBitSet;
+
+/*
+ * Cache of the documents matched by filter queries, one bitset per segment. Segments never change
+ * once written, so a bitset is valid as long as the core of its segment is open and is dropped when
+ * the core is closed. Deleted documents are left to the live docs of the searching reader.
+ */
+public class SegmentFilterCache {
+	
+	private static final SegmentFilterCache INSTANCE = new SegmentFilterCache();
+	
+	private final ConcurrentMap<Object, ConcurrentMap<Query, FixedBitSet>> segments = new ConcurrentHashMap<Object, ConcurrentMap<Query, FixedBitSet>>();
+	
+	private final LeafReader.CoreClosedListener closedListener = new LeafReader.CoreClosedListener() {
+		
+		@Override
+		public void onClose(Object ownerCoreCacheKey) {
+			segments.remove(ownerCoreCacheKey);
+		}
+	};
+	
+	SegmentFilterCache() {
+	}
+	
+	public static SegmentFilterCache getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * @param filter : query of the filter, used as the key of the cache
+	 * @param context : segment to get the documents of
+	 * @return documents of the segment matched by the filter, collected on the first call
+	 */
+	public FixedBitSet getBits(Query filter, LeafReaderContext context) throws IOException {
+		ConcurrentMap<Query, FixedBitSet> filters = getFilters(context.reader());
+		FixedBitSet bits = filters.get(filter);
+		if (bits == null) {
+			bits = collect(filter, context.reader());
+			FixedBitSet previous = filters.putIfAbsent(filter, bits);
+			if (previous != null) {
+				bits = previous;
+			}
+		}
+		return bits;
+	}
+	
+	/**
+	 * @return number of bitsets in the cache
+	 */
+	public int size() {
+		int size = 0;
+		for (ConcurrentMap<Query, FixedBitSet> filters : segments.values()) {
+			size += filters.size();
+		}
+		return size;
+	}
+	
+	public void clear() {
+		segments.clear();
+	}
+	
+	private ConcurrentMap<Query, FixedBitSet> getFilters(LeafReader reader) {
+		Object coreKey = reader.getCoreCacheKey();
+		ConcurrentMap<Query, FixedBitSet> filters = segments.get(coreKey);
+		if (filters == null) {
+			filters = new ConcurrentHashMap<Query, FixedBitSet>();
+			ConcurrentMap<Query, FixedBitSet> previous = segments.putIfAbsent(coreKey, filters);
+			if (previous == null) {
+				reader.addCoreClosedListener(closedListener);
+			} else {
+				filters = previous;
+			}
+		}
+		return filters;
+	}
+	
+	private FixedBitSet collect(Query filter, LeafReader reader) throws IOException {
+		final FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+		IndexSearcher searcher = new IndexSearcher(reader);
+		searcher.setQueryCache(null);
+		searcher.search(filter, new SimpleCollector() {
+			
+			@Override
+			public void collect(int doc) {
+				bits.set(doc);
+			}
+			
+			@Override
+			public boolean needsScores() {
+				return false;
+			}
+		});
+		return bits;
+	}
+	
+}
@@ -9,17 +9,41 @@
  */
 package org.openmrs.module.patientsearch.api.impl;
 
-import java.util.Calendar;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.openmrs.Patient;
+import org.apache.commons.lang3.StringUtils;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.Role;
+import org.openmrs.User;
 import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.PatientServiceImpl;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
 import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openmrs.module.patientsearch.api.PatientSearchFacets;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan.Strategy;
+import org.openmrs.module.patientsearch.api.PatientSearchSort;
+import org.openmrs.module.patientsearch.api.PatientSummary;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchCoalescer;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchCoalescer.Flight;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
 import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics.Stage;
+import org.openmrs.module.patientsearch.api.metrics.SearchTrace;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -33,76 +57,359 @@ public class PatientSearchCriteriaServiceImpl extends PatientServiceImpl impleme
 	
 	PatientSearchCriteriaDAO dao;
 	
+	PatientSearchResultCache resultCache;
+	
+	PatientSearchMetrics metrics;
+	
+	SearchDeadline searchDeadline;
+	
+	PatientSearchCoalescer coalescer;
+	
 	public void setDao(PatientSearchCriteriaDAO dao) {
 		this.dao = dao;
 	}
 	
+	public void setResultCache(PatientSearchResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	public void setMetrics(PatientSearchMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public void setSearchDeadline(SearchDeadline searchDeadline) {
+		this.searchDeadline = searchDeadline;
+	}
+	
+	public void setCoalescer(PatientSearchCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+	
 	@Override
 	public List<Patient> getPatients(String name, String identifier, List<PatientIdentifierType> identifierTypes,
 	        boolean matchIdentifierExactly, String gender, Integer from, Integer to, Date birthdate) throws APIException {
-		if (identifierTypes == null) {
-			Date fromDate = null;
-			Date toDate = null;
-			
-			if (to != null && from != null) {
-				Calendar today = Calendar.getInstance();
-				fromDate = new GregorianCalendar(today.get(Calendar.YEAR) - from, 0, 1).getTime();
-				toDate = new GregorianCalendar(today.get(Calendar.YEAR) - to, 11, 31).getTime();
-			}
-			
-			if (gender == null && to == null && from == null && birthdate == null) {
-				return dao.getPatients(name != null ? name : identifier, 0, null);
-			}
-			
-			else if (gender != null && to == null && from == null && birthdate == null) {
-				if (name == null && identifier == null) {
-					return dao.getPatientsByGender(gender, 0, null, false);
-				}
-				return dao.getPatientsByNameOrIdAndGender(name != null ? name : identifier, gender, 0, null, false);
-			}
-			
-			else if (name == null && identifier == null && gender == null && to != null && from != null && birthdate == null) {
-				return dao.getPatientsByRangeOfAge(fromDate, toDate, 0, null, false);
-			}
-			
-			else if (name == null && identifier == null && gender == null && to == null && from == null && birthdate != null) {
-				return dao.getPatientsByBirthdate(birthdate, 0, null, false);
-			}
-			
-			else {
-				return getPatientsBySeachCriteria(name, identifier, identifierTypes, gender, fromDate, toDate, birthdate);
-			}
-			
-		} else {
-			return dao.getPatients(name != null ? name : identifier, identifierTypes, matchIdentifierExactly, 0, null);
+		return getPatients(name, identifier, identifierTypes, matchIdentifierExactly, gender, from, to, birthdate, 0, null);
+	}
+	
+	@Override
+	public List<Patient> getPatients(String name, String identifier, List<PatientIdentifierType> identifierTypes,
+	        boolean matchIdentifierExactly, String gender, Integer from, Integer to, Date birthdate, Integer start,
+	        Integer length) throws APIException {
+		return getPatientPage(name, identifier, identifierTypes, matchIdentifierExactly, gender, from, to, birthdate,
+		    start, length).getResults();
+	}
+	
+	@Override
+	public PatientSearchPage<Patient> getPatientPage(String name, String identifier,
+	        List<PatientIdentifierType> identifierTypes, boolean matchIdentifierExactly, String gender, Integer from,
+	        Integer to, Date birthdate, Integer start, Integer length) throws APIException {
+		return getPatientPage(name, identifier, identifierTypes, matchIdentifierExactly, gender, from, to, birthdate,
+		    start, length, null);
+	}
+	
+	@Override
+	public PatientSearchPage<Patient> getPatientPage(String name, String identifier,
+	        List<PatientIdentifierType> identifierTypes, boolean matchIdentifierExactly, String gender, Integer from,
+	        Integer to, Date birthdate, Integer start, Integer length, String sort) throws APIException {
+		PatientSearchSort patientSearchSort;
+		try {
+			patientSearchSort = PatientSearchSort.parse(sort);
+		}
+		catch (IllegalArgumentException e) {
+			throw new APIException(e.getMessage(), e);
+		}
+		if (patientSearchSort != null && identifierTypes != null) {
+			// core searches the identifiers of given types, in its own order
+			throw new APIException("The patients cannot be sorted when restricted to identifier types");
+		}
+		PatientSearchCriteria criteria = new PatientSearchCriteria(name != null ? name : identifier, identifierTypes,
+		        matchIdentifierExactly, gender, birthdate, getFromDate(from, to), getToDate(from, to), false)
+		        .withSort(patientSearchSort);
+		SearchTrace trace = beginTrace(PatientSearchMetrics.getShape(criteria), criteria);
+		boolean deadline = beginDeadline();
+		PatientSearchPage<Patient> page = null;
+		try {
+			page = getPatientPage(criteria, start, length);
+			return page;
+		}
+		finally {
+			endDeadline(deadline);
+			endTrace(trace, page);
+		}
+	}
+	
+	private PatientSearchPage<Patient> getPatientPage(PatientSearchCriteria criteria, Integer start, Integer length) {
+		if (resultCache == null || !resultCache.isEnabled()) {
+			return searchPatientPage(criteria, start, length);
+		}
+		
+		String key = criteria.getKey() + "|" + (start == null ? 0 : start) + "|" + length;
+		PatientSearchPage<Integer> cachedPage = resultCache.get(key);
+		if (cachedPage != null) {
+			SearchTrace.tag("CACHE");
+			return checkTruncated(new PatientSearchPage<Patient>(getPatientsByIds(cachedPage.getResults()),
+			        cachedPage.getTotalCount(), false));
 		}
 		
+		long generation = resultCache.getGeneration();
+		PatientSearchPage<Patient> page = searchPatientPage(criteria, start, length);
+		resultCache.put(key, getIdPage(page), generation);
+		return page;
 	}
 	
-	private List<Patient> getPatientsBySeachCriteria(String name, String identifier,
-	        List<PatientIdentifierType> identifierTypes, String gender, Date from, Date to, Date birthdate) {
-		if (name == null && identifier == null) {
-			if (birthdate == null) {
-				return dao.getPatientsByGenderAndAge(gender, from, to, 0, null, false);
-			} else {
-				return dao.getPatientsByGenderAndBirthdate(gender, birthdate, 0, null, false);
+	/**
+	 * Identical searches running at the same time share one execution of the index stage, the
+	 * callers which join a search in flight only load the patients of its page.
+	 */
+	private PatientSearchPage<Patient> searchPatientPage(PatientSearchCriteria criteria, Integer start, Integer length) {
+		if (coalescer == null || !coalescer.isEnabled()) {
+			return searchPatientPage(criteria, start, length, null);
+		}
+		
+		Flight flight = coalescer.join(criteria.getKey() + "|" + (start == null ? 0 : start) + "|" + length + "|"
+		        + getPrivilegeKey());
+		if (!flight.isLeader()) {
+			PatientSearchPage<Integer> idPage = flight.await();
+			if (idPage == null) {
+				return searchPatientPage(criteria, start, length, null);
 			}
+			SearchTrace.tag("COALESCED");
+			return checkTruncated(new PatientSearchPage<Patient>(getPatientsByIds(idPage.getResults()),
+			        idPage.getTotalCount(), idPage.isTruncated()));
+		}
+		try {
+			return searchPatientPage(criteria, start, length, flight);
+		}
+		finally {
+			flight.release();
+		}
+	}
+	
+	/**
+	 * The DAO plans the search from the statistics of the index, only the searches without any
+	 * demographic criteria are left to OpenMRS core. The sorted searches are not planned, the index
+	 * sorts the whole matching set whatever its size.
+	 * 
+	 * @param flight : flight to complete with the page of patient ids, null if the search is not
+	 *            shared
+	 */
+	private PatientSearchPage<Patient> searchPatientPage(PatientSearchCriteria criteria, Integer start, Integer length,
+	        Flight flight) {
+		if (criteria.getSort() != null) {
+			SearchTrace.tag("SORTED");
+			long started = SearchTrace.start();
+			PatientSearchPage<Integer> idPage = dao.getSortedPatientIdPage(criteria, start, length);
+			SearchTrace.stop(Stage.INDEX, started);
+			return hydratePage(idPage, flight);
 		}
-		if (gender == null) {
-			if (birthdate == null) {
-				return dao.getPatientsByNameOrIdAndRangeOfAge(name != null ? name : identifier, from, to, 0, null, false);
+		
+		long started = SearchTrace.start();
+		PatientSearchPlan plan = dao.getSearchPlan(criteria);
+		SearchTrace.stop(Stage.PLAN, started);
+		SearchTrace.tag(plan.getStrategy().name());
+		
+		started = SearchTrace.start();
+		if (plan.getStrategy() == Strategy.CORE) {
+			// core searches and hydrates the patients at once, it is all timed as the index stage
+			List<Patient> patients;
+			if (criteria.getIdentifierTypes() != null) {
+				patients = dao.getPatients(criteria.getQuery(), criteria.getIdentifierTypes(),
+				    criteria.isMatchIdentifierExactly(), start, length);
 			} else {
-				return dao.getPatientsByNameOrIdAndBirthdate(name != null ? name : identifier, birthdate, 0, null, false);
+				patients = dao.getPatients(criteria.getQuery(), start, length);
+			}
+			SearchTrace.stop(Stage.INDEX, started);
+			PatientSearchPage<Patient> page = checkTruncated(new PatientSearchPage<Patient>(patients, null, false));
+			if (flight != null) {
+				flight.complete(getIdPage(page));
 			}
+			return page;
 		}
 		
-		if (birthdate == null) {
-			return dao.getPatientsByNameOrIdAndGenderAndRangeOfAge(name != null ? name : identifier, gender, from, to, 0,
-			    null, false);
-		} else {
-			return dao.getPatientsByNameOrIdAndGenderAndBirthdate(name != null ? name : identifier, gender, birthdate, 0,
-			    null, false);
+		PatientSearchPage<Integer> idPage = dao.getPatientIdPage(criteria, plan, start, length);
+		SearchTrace.stop(Stage.INDEX, started);
+		return hydratePage(idPage, flight);
+	}
+	
+	/**
+	 * @param flight : flight to complete with the page of patient ids, null if the search is not
+	 *            shared
+	 */
+	private PatientSearchPage<Patient> hydratePage(PatientSearchPage<Integer> idPage, Flight flight) {
+		if (flight != null) {
+			// the waiting callers are released before this one loads its patients
+			flight.complete(checkTruncated(idPage));
+		}
+		return checkTruncated(new PatientSearchPage<Patient>(getPatientsByIds(idPage.getResults()),
+		        idPage.getTotalCount(), idPage.isTruncated()));
+	}
+	
+	private PatientSearchPage<Integer> getIdPage(PatientSearchPage<Patient> page) {
+		List<Integer> patientIds = new ArrayList<Integer>(page.getResults().size());
+		for (Patient patient : page.getResults()) {
+			patientIds.add(patient.getPatientId());
+		}
+		return new PatientSearchPage<Integer>(patientIds, page.getTotalCount(), page.isTruncated());
+	}
+	
+	/**
+	 * @return the roles of the authenticated user, which grant the privileges of the search
+	 */
+	private String getPrivilegeKey() {
+		User user = Context.getAuthenticatedUser();
+		if (user == null) {
+			return "";
+		}
+		if (user.isSuperUser()) {
+			return "*";
+		}
+		Set<String> roles = new TreeSet<String>();
+		for (Role role : user.getAllRoles()) {
+			roles.add(role.getRole());
+		}
+		return StringUtils.join(roles, ',');
+	}
+	
+	private List<Patient> getPatientsByIds(List<Integer> patientIds) {
+		long started = SearchTrace.start();
+		List<Patient> patients = dao.getPatientsByIds(patientIds);
+		SearchTrace.stop(Stage.HYDRATION, started);
+		return patients;
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public PatientSearchPage<PatientSummary> getPatientSummaries(String name, String identifier, String gender,
+	        Integer from, Integer to, Date birthdate, Integer start, Integer length) throws APIException {
+		if (name == null && identifier == null && gender == null && (to == null || from == null) && birthdate == null) {
+			return new PatientSearchPage<PatientSummary>(new ArrayList<PatientSummary>(), 0L, false);
+		}
+		PatientSearchCriteria criteria = new PatientSearchCriteria(name != null ? name : identifier, null, false, gender,
+		        birthdate, getFromDate(from, to), getToDate(from, to), false);
+		SearchTrace trace = beginTrace(PatientSearchMetrics.getShape(criteria), criteria);
+		SearchTrace.tag("SUMMARY");
+		boolean deadline = beginDeadline();
+		PatientSearchPage<PatientSummary> page = null;
+		try {
+			long started = SearchTrace.start();
+			page = checkTruncated(dao.getPatientSummaries(criteria.getQuery(), gender, birthdate, criteria.getFrom(),
+			    criteria.getTo(), start, length, false));
+			SearchTrace.stop(Stage.INDEX, started);
+			return page;
+		}
+		finally {
+			endDeadline(deadline);
+			endTrace(trace, page);
+		}
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public PatientSearchFacets getPatientFacets(String name, String identifier, String gender, Integer from, Integer to,
+	        Date birthdate, int[] ageBuckets) throws APIException {
+		if (ageBuckets == null) {
+			ageBuckets = PatientSearchFacets.parseAgeBuckets(Context.getAdministrationService().getGlobalProperty(
+			    PatientSearchCriteriaConfig.GP_FACETS_AGE_BUCKETS, PatientSearchCriteriaConfig.DEFAULT_FACETS_AGE_BUCKETS));
+		}
+		PatientSearchCriteria criteria = new PatientSearchCriteria(name != null ? name : identifier, null, false, gender,
+		        birthdate, getFromDate(from, to), getToDate(from, to), false);
+		SearchTrace trace = beginTrace(PatientSearchMetrics.getShape(criteria), criteria);
+		SearchTrace.tag("FACETS");
+		boolean deadline = beginDeadline();
+		PatientSearchPage<Object> page = null;
+		try {
+			long started = SearchTrace.start();
+			PatientSearchFacets facets = dao.getPatientFacets(criteria.getQuery(), gender, birthdate, criteria.getFrom(),
+			    criteria.getTo(), ageBuckets, false);
+			SearchTrace.stop(Stage.INDEX, started);
+			if (!facets.isTruncated() && SearchDeadline.isTruncated()) {
+				facets = new PatientSearchFacets(facets.getTotalCount(), facets.getCountsByGender(),
+				        facets.getCountsByAgeBucket(), true);
+			}
+			// the metrics record the searches as pages, the facets as an empty page of their total count
+			page = new PatientSearchPage<Object>(new ArrayList<Object>(), facets.getTotalCount(), facets.isTruncated());
+			return facets;
+		}
+		finally {
+			endDeadline(deadline);
+			endTrace(trace, page);
+		}
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public PatientSearchPage<Patient> getPatientsAfter(String gender, Integer from, Integer to, Date birthdate,
+	        String cursor, Integer length) throws APIException {
+		PatientSearchCriteria criteria = new PatientSearchCriteria(null, null, false, gender, birthdate, getFromDate(from,
+		    to), getToDate(from, to), false);
+		SearchTrace trace = beginTrace(PatientSearchMetrics.getShape(criteria), criteria);
+		SearchTrace.tag("CURSOR");
+		boolean deadline = beginDeadline();
+		PatientSearchPage<Patient> page = null;
+		try {
+			long started = SearchTrace.start();
+			page = checkTruncated(dao.getPatientsAfter(gender, birthdate, criteria.getFrom(), criteria.getTo(), cursor,
+			    length, false));
+			SearchTrace.stop(Stage.INDEX, started);
+			return page;
+		}
+		finally {
+			endDeadline(deadline);
+			endTrace(trace, page);
+		}
+	}
+	
+	/**
+	 * Starts the default deadline, unless the caller already started one for this search.
+	 * 
+	 * @return true if the deadline was started here
+	 */
+	private boolean beginDeadline() {
+		return searchDeadline != null && SearchDeadline.begin(searchDeadline.getDefaultTimeoutMillis());
+	}
+	
+	private void endDeadline(boolean deadline) {
+		if (deadline) {
+			SearchDeadline.end();
+		}
+	}
+	
+	/**
+	 * @return the page marked as truncated if a stage of the search stopped at the deadline
+	 */
+	private <T> PatientSearchPage<T> checkTruncated(PatientSearchPage<T> page) {
+		if (page.isTruncated() || !SearchDeadline.isTruncated()) {
+			return page;
+		}
+		return new PatientSearchPage<T>(page.getResults(), page.getNextCursor(), page.getTotalCount(), true);
+	}
+	
+	private SearchTrace beginTrace(String shape, PatientSearchCriteria criteria) {
+		return metrics == null ? null : metrics.begin(shape, criteria);
+	}
+	
+	private void endTrace(SearchTrace trace, PatientSearchPage<?> page) {
+		if (trace != null) {
+			metrics.end(trace, page);
+		}
+	}
+	
+	//returns the latest birthdate of the range of age, first day of the year
+	private Date getFromDate(Integer from, Integer to) {
+		if (to == null || from == null) {
+			return null;
+		}
+		LocalDate firstDay = Year.now().minusYears(from).atDay(1);
+		return Date.from(firstDay.atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+	
+	//returns the earliest birthdate of the range of age, last day of the year
+	private Date getToDate(Integer from, Integer to) {
+		if (to == null || from == null) {
+			return null;
 		}
+		LocalDate lastDay = Year.now().minusYears(to).atMonth(Month.DECEMBER).atEndOfMonth();
+		return Date.from(lastDay.atStartOfDay(ZoneId.systemDefault()).toInstant());
 	}
 	
 }
@@ -0,0 +1,424 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counters and timers of the patient searches, tagged by the shape of their criteria. Each search
+ * records its total time, its outcome, the strategy it was run with and the size of its result, and
+ * the time of its stages: the index query, the planning of the search from the statistics of the
+ * index, the hydration of the patients and the serialization of the REST response. The counters are
+ * {@link LongAdder}, so that concurrent searches do not contend on them. The metrics are disabled by default, then a search
+ * only costs a volatile read and a thread local lookup per stage.
+ * <p>
+ * When a threshold is set, the searches slower than it are kept with their criteria and lucene
+ * queries in the {@link SlowSearchLog}, whether the metrics are enabled or not. The log is disabled
+ * by default, as it makes every search capture its details.
+ */
+@Component("patientsearch.PatientSearchMetrics")
+public class PatientSearchMetrics implements PatientSearchMetricsMXBean, GlobalPropertyListener {
+	
+	public enum Stage {
+		INDEX, PLAN, HYDRATION, SERIALIZATION
+	}
+	
+	/**
+	 * Upper bounds of the buckets of result sizes, the last bucket is unbounded.
+	 */
+	private static final long[] RESULT_SIZE_BOUNDS = { 0, 1, 10, 100, 1000 };
+	
+	private static final String[] RESULT_SIZE_BUCKETS = { "0", "1", "2-10", "11-100", "101-1000", ">1000" };
+	
+	private static final double NANOS_PER_MILLI = 1e6;
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	private final ConcurrentMap<String, ShapeMetrics> shapes = new ConcurrentHashMap<String, ShapeMetrics>();
+	
+	private final SlowSearchLog slowSearchLog = new SlowSearchLog(
+	        PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_CAPACITY,
+	        PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_THRESHOLD_MILLIS);
+	
+	private volatile boolean enabled = false;
+	
+	/**
+	 * @return the shape of the criteria, the names of the given criteria joined with '+'
+	 */
+	public static String getShape(boolean query, boolean gender, boolean birthdate, boolean age) {
+		StringBuilder shape = new StringBuilder();
+		appendShape(shape, query, "q");
+		appendShape(shape, gender, "gender");
+		appendShape(shape, birthdate, "birthdate");
+		appendShape(shape, age, "age");
+		return shape.length() == 0 ? "none" : shape.toString();
+	}
+	
+	public static String getShape(PatientSearchCriteria criteria) {
+		return getShape(criteria.hasQuery(), criteria.getGender() != null, criteria.getBirthdate() != null,
+		    criteria.getFrom() != null);
+	}
+	
+	private static void appendShape(StringBuilder shape, boolean given, String name) {
+		if (given) {
+			if (shape.length() > 0) {
+				shape.append('+');
+			}
+			shape.append(name);
+		}
+	}
+	
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	public SlowSearchLog getSlowSearchLog() {
+		return slowSearchLog;
+	}
+	
+	/**
+	 * Starts the trace of a search on the current thread, see {@link SearchTrace}.
+	 * 
+	 * @param criteria : criteria of the search, described in the slow search log
+	 * @return the trace to pass to {@link #end(SearchTrace, PatientSearchPage)}, null if neither the
+	 *         metrics nor the slow search log are enabled or a search is already traced on the
+	 *         current thread
+	 */
+	public SearchTrace begin(String shape, Object criteria) {
+		boolean logging = slowSearchLog.isEnabled();
+		if (!enabled && !logging) {
+			return null;
+		}
+		return SearchTrace.begin(shape, logging ? criteria : null, logging);
+	}
+	
+	/**
+	 * Ends the trace of a search and records it.
+	 * 
+	 * @param trace : trace returned by {@link #begin(String, Object)}, ignored if null
+	 * @param page : page found by the search, null if it failed
+	 */
+	public void end(SearchTrace trace, PatientSearchPage<?> page) {
+		if (trace == null) {
+			return;
+		}
+		trace.end();
+		if (trace.isCapturingDetails() && slowSearchLog.isSlow(trace.getElapsedNanos())) {
+			slowSearchLog.record(new SlowSearch(trace, getUser(), page == null ? null : page.getResults().size(),
+			        page == null ? null : page.getTotalCount()));
+		}
+		if (!enabled) {
+			return;
+		}
+		ShapeMetrics metrics = getShapeMetrics(trace.getShape());
+		metrics.searches.record(trace.getElapsedNanos());
+		if (page == null) {
+			metrics.errors.increment();
+		} else {
+			long size = page.getTotalCount() != null ? page.getTotalCount() : page.getResults().size();
+			metrics.resultSizes[getResultSizeBucket(size)].increment();
+		}
+		if (trace.getStrategy() != null) {
+			metrics.strategies.computeIfAbsent(trace.getStrategy(), s -> new LongAdder()).increment();
+		}
+		for (Stage stage : Stage.values()) {
+			long nanos = trace.getStageNanos(stage);
+			if (nanos > 0) {
+				metrics.stages[stage.ordinal()].record(nanos);
+			}
+		}
+	}
+	
+	/**
+	 * Records a stage which runs outside of the traced search, such as the serialization of the
+	 * response.
+	 */
+	public void record(String shape, Stage stage, long nanos) {
+		if (enabled) {
+			getShapeMetrics(shape).stages[stage.ordinal()].record(nanos);
+		}
+	}
+	
+	private String getUser() {
+		if (!Context.isAuthenticated()) {
+			return null;
+		}
+		String username = Context.getAuthenticatedUser().getUsername();
+		return username != null ? username : Context.getAuthenticatedUser().getSystemId();
+	}
+	
+	private ShapeMetrics getShapeMetrics(String shape) {
+		ShapeMetrics metrics = shapes.get(shape);
+		if (metrics == null) {
+			metrics = shapes.computeIfAbsent(shape, s -> new ShapeMetrics());
+		}
+		return metrics;
+	}
+	
+	private int getResultSizeBucket(long size) {
+		for (int i = 0; i < RESULT_SIZE_BOUNDS.length; i++) {
+			if (size <= RESULT_SIZE_BOUNDS[i]) {
+				return i;
+			}
+		}
+		return RESULT_SIZE_BOUNDS.length;
+	}
+	
+	/**
+	 * @return the metrics of each shape, to serialize as JSON
+	 */
+	public Map<String, Object> getSnapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("enabled", enabled);
+		Map<String, Object> shapesSnapshot = new TreeMap<String, Object>();
+		for (Map.Entry<String, ShapeMetrics> shape : shapes.entrySet()) {
+			ShapeMetrics metrics = shape.getValue();
+			Map<String, Object> shapeSnapshot = new LinkedHashMap<String, Object>();
+			shapeSnapshot.put("searches", metrics.searches.getSnapshot());
+			shapeSnapshot.put("errors", metrics.errors.sum());
+			Map<String, Object> stages = new LinkedHashMap<String, Object>();
+			for (Stage stage : Stage.values()) {
+				if (metrics.stages[stage.ordinal()].count.sum() > 0) {
+					stages.put(stage.name().toLowerCase(), metrics.stages[stage.ordinal()].getSnapshot());
+				}
+			}
+			shapeSnapshot.put("stages", stages);
+			Map<String, Long> strategies = new TreeMap<String, Long>();
+			for (Map.Entry<String, LongAdder> strategy : metrics.strategies.entrySet()) {
+				strategies.put(strategy.getKey(), strategy.getValue().sum());
+			}
+			shapeSnapshot.put("strategies", strategies);
+			Map<String, Long> resultSizes = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < RESULT_SIZE_BUCKETS.length; i++) {
+				resultSizes.put(RESULT_SIZE_BUCKETS[i], metrics.resultSizes[i].sum());
+			}
+			shapeSnapshot.put("resultSizes", resultSizes);
+			shapesSnapshot.put(shape.getKey(), shapeSnapshot);
+		}
+		snapshot.put("shapes", shapesSnapshot);
+		return snapshot;
+	}
+	
+	@Override
+	public long getSearchCount() {
+		long count = 0;
+		for (ShapeMetrics metrics : shapes.values()) {
+			count += metrics.searches.count.sum();
+		}
+		return count;
+	}
+	
+	@Override
+	public long getErrorCount() {
+		long count = 0;
+		for (ShapeMetrics metrics : shapes.values()) {
+			count += metrics.errors.sum();
+		}
+		return count;
+	}
+	
+	@Override
+	public Map<String, Long> getSearchCountByShape() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, ShapeMetrics> shape : shapes.entrySet()) {
+			counts.put(shape.getKey(), shape.getValue().searches.count.sum());
+		}
+		return counts;
+	}
+	
+	@Override
+	public Map<String, Double> getMeanMillisByShape() {
+		Map<String, Double> means = new TreeMap<String, Double>();
+		for (Map.Entry<String, ShapeMetrics> shape : shapes.entrySet()) {
+			means.put(shape.getKey(), shape.getValue().searches.getMeanMillis());
+		}
+		return means;
+	}
+	
+	@Override
+	public Map<String, Double> getMaxMillisByShape() {
+		Map<String, Double> maxima = new TreeMap<String, Double>();
+		for (Map.Entry<String, ShapeMetrics> shape : shapes.entrySet()) {
+			maxima.put(shape.getKey(), shape.getValue().searches.max.get() / NANOS_PER_MILLI);
+		}
+		return maxima;
+	}
+	
+	@Override
+	public Map<String, Double> getMeanMillisByStage() {
+		Map<String, Double> means = new LinkedHashMap<String, Double>();
+		for (Stage stage : Stage.values()) {
+			long count = 0;
+			long nanos = 0;
+			for (ShapeMetrics metrics : shapes.values()) {
+				count += metrics.stages[stage.ordinal()].count.sum();
+				nanos += metrics.stages[stage.ordinal()].nanos.sum();
+			}
+			means.put(stage.name().toLowerCase(), count == 0 ? 0 : nanos / NANOS_PER_MILLI / count);
+		}
+		return means;
+	}
+	
+	@Override
+	public Map<String, Long> getSearchCountByStrategy() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (ShapeMetrics metrics : shapes.values()) {
+			for (Map.Entry<String, LongAdder> strategy : metrics.strategies.entrySet()) {
+				counts.merge(strategy.getKey(), strategy.getValue().sum(), Long::sum);
+			}
+		}
+		return counts;
+	}
+	
+	@Override
+	public Map<String, Long> getSearchCountByResultSize() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < RESULT_SIZE_BUCKETS.length; i++) {
+			long count = 0;
+			for (ShapeMetrics metrics : shapes.values()) {
+				count += metrics.resultSizes[i].sum();
+			}
+			counts.put(RESULT_SIZE_BUCKETS[i], count);
+		}
+		return counts;
+	}
+	
+	@Override
+	public void reset() {
+		shapes.clear();
+	}
+	
+	/**
+	 * Reads the configuration of the metrics from the global properties.
+	 */
+	public void configure(AdministrationService administrationService) {
+		enabled = Boolean.parseBoolean(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_METRICS_ENABLED, "false"));
+		slowSearchLog.configure(NumberUtils.toInt(administrationService.getGlobalProperty(
+		    PatientSearchCriteriaConfig.GP_SLOW_SEARCH_CAPACITY), PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_CAPACITY),
+		    NumberUtils.toLong(administrationService.getGlobalProperty(
+		        PatientSearchCriteriaConfig.GP_SLOW_SEARCH_THRESHOLD_MILLIS),
+		        PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_THRESHOLD_MILLIS));
+		log.info("Patient search metrics " + (enabled ? "enabled" : "disabled") + ", searches slower than "
+		        + slowSearchLog.getThresholdMillis() + " ms logged");
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return PatientSearchCriteriaConfig.GP_METRICS_ENABLED.equals(propertyName)
+		        || PatientSearchCriteriaConfig.GP_SLOW_SEARCH_THRESHOLD_MILLIS.equals(propertyName)
+		        || PatientSearchCriteriaConfig.GP_SLOW_SEARCH_CAPACITY.equals(propertyName);
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		if (PatientSearchCriteriaConfig.GP_METRICS_ENABLED.equals(newValue.getProperty())) {
+			enabled = Boolean.parseBoolean(newValue.getPropertyValue());
+		} else if (PatientSearchCriteriaConfig.GP_SLOW_SEARCH_CAPACITY.equals(newValue.getProperty())) {
+			slowSearchLog.configure(NumberUtils.toInt(newValue.getPropertyValue(),
+			    PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_CAPACITY), slowSearchLog.getThresholdMillis());
+		} else {
+			slowSearchLog.configure(slowSearchLog.getCapacity(), NumberUtils.toLong(newValue.getPropertyValue(),
+			    PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_THRESHOLD_MILLIS));
+		}
+	}
+	
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		if (PatientSearchCriteriaConfig.GP_METRICS_ENABLED.equals(propertyName)) {
+			enabled = false;
+		} else if (PatientSearchCriteriaConfig.GP_SLOW_SEARCH_CAPACITY.equals(propertyName)) {
+			slowSearchLog.configure(PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_CAPACITY,
+			    slowSearchLog.getThresholdMillis());
+		} else {
+			slowSearchLog.configure(slowSearchLog.getCapacity(),
+			    PatientSearchCriteriaConfig.DEFAULT_SLOW_SEARCH_THRESHOLD_MILLIS);
+		}
+	}
+	
+	private static class ShapeMetrics {
+		
+		private final Timer searches = new Timer();
+		
+		private final LongAdder errors = new LongAdder();
+		
+		private final Timer[] stages = new Timer[Stage.values().length];
+		
+		private final ConcurrentMap<String, LongAdder> strategies = new ConcurrentHashMap<String, LongAdder>();
+		
+		private final LongAdder[] resultSizes = new LongAdder[RESULT_SIZE_BUCKETS.length];
+		
+		private ShapeMetrics() {
+			for (int i = 0; i < stages.length; i++) {
+				stages[i] = new Timer();
+			}
+			for (int i = 0; i < resultSizes.length; i++) {
+				resultSizes[i] = new LongAdder();
+			}
+		}
+	}
+	
+	private static class Timer {
+		
+		private final LongAdder count = new LongAdder();
+		
+		private final LongAdder nanos = new LongAdder();
+		
+		private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+		
+		private void record(long elapsedNanos) {
+			count.increment();
+			nanos.add(elapsedNanos);
+			max.accumulate(elapsedNanos);
+		}
+		
+		private double getMeanMillis() {
+			long n = count.sum();
+			return n == 0 ? 0 : nanos.sum() / NANOS_PER_MILLI / n;
+		}
+		
+		private Map<String, Object> getSnapshot() {
+			Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+			snapshot.put("count", count.sum());
+			snapshot.put("meanMillis", getMeanMillis());
+			snapshot.put("maxMillis", max.get() / NANOS_PER_MILLI);
+			return snapshot;
+		}
+	}
+	
+}
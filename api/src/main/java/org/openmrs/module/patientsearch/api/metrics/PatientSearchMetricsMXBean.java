@@ -0,0 +1,40 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link PatientSearchMetrics}, the maps are keyed by the shape of the criteria, such as
+ * "q+gender+age", or by stage or strategy.
+ */
+public interface PatientSearchMetricsMXBean {
+	
+	public boolean isEnabled();
+	
+	public long getSearchCount();
+	
+	public long getErrorCount();
+	
+	public Map<String, Long> getSearchCountByShape();
+	
+	public Map<String, Double> getMeanMillisByShape();
+	
+	public Map<String, Double> getMaxMillisByShape();
+	
+	public Map<String, Double> getMeanMillisByStage();
+	
+	public Map<String, Long> getSearchCountByStrategy();
+	
+	public Map<String, Long> getSearchCountByResultSize();
+	
+	public void reset();
+	
+}
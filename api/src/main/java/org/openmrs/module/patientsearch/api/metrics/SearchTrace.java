@@ -0,0 +1,197 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics.Stage;
+
+/**
+ * Trace of the search running on the current thread, started by {@link PatientSearchMetrics#begin}.
+ * The stages of the search add their time to it with {@link #start()} and {@link #stop(Stage, long)},
+ * which do nothing when no search is traced, so that the instrumentation costs a thread local
+ * lookup when the metrics are disabled. When the slow searches are logged, the trace also captures
+ * the criteria and the lucene queries of the search, they are only described if the search turns
+ * out to be slow.
+ */
+public class SearchTrace {
+	
+	private static final ThreadLocal<SearchTrace> CURRENT = new ThreadLocal<SearchTrace>();
+	
+	private final String shape;
+	
+	private final Object criteria;
+	
+	private final boolean capturing;
+	
+	private final List<Supplier<String>> queries = new CopyOnWriteArrayList<Supplier<String>>();
+	
+	private final long startNanos = System.nanoTime();
+	
+	/**
+	 * The sub-queries of the search add to the stages from other threads
+	 */
+	private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+	
+	private String strategy;
+	
+	private long elapsedNanos = -1;
+	
+	private SearchTrace(String shape, Object criteria, boolean capturing) {
+		this.shape = shape;
+		this.criteria = criteria;
+		this.capturing = capturing;
+	}
+	
+	/**
+	 * @return the trace of the current thread, null if its search is not traced
+	 */
+	public static SearchTrace current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * @return the start of a stage of the traced search, 0 if the search is not traced
+	 */
+	public static long start() {
+		return CURRENT.get() == null ? 0 : System.nanoTime();
+	}
+	
+	/**
+	 * Adds the time since the given start to the stage of the traced search.
+	 * 
+	 * @param started : value returned by {@link #start()}
+	 */
+	public static void stop(Stage stage, long started) {
+		if (started != 0) {
+			SearchTrace trace = CURRENT.get();
+			if (trace != null) {
+				trace.stageNanos.addAndGet(stage.ordinal(), System.nanoTime() - started);
+			}
+		}
+	}
+	
+	/**
+	 * Tags the traced search with the way it was run, such as the strategy of its plan.
+	 */
+	public static void tag(String strategy) {
+		SearchTrace trace = CURRENT.get();
+		if (trace != null) {
+			trace.strategy = strategy;
+		}
+	}
+	
+	/**
+	 * @return true if the details of the search traced on the current thread are captured
+	 */
+	public static boolean isCapturing() {
+		SearchTrace trace = CURRENT.get();
+		return trace != null && trace.capturing;
+	}
+	
+	/**
+	 * Adds a lucene query run by the traced search, if its details are captured.
+	 * 
+	 * @param query : description of the query, only called if the search is slow
+	 */
+	public static void addQuery(Supplier<String> query) {
+		SearchTrace trace = CURRENT.get();
+		if (trace != null && trace.capturing) {
+			trace.queries.add(query);
+		}
+	}
+	
+	/**
+	 * Continues the given trace on the current thread, for the sub-queries of a search which run on
+	 * other threads.
+	 * 
+	 * @return the trace of the current thread before, to restore with {@link #restore(SearchTrace)}
+	 */
+	public static SearchTrace attach(SearchTrace trace) {
+		SearchTrace previous = CURRENT.get();
+		restore(trace);
+		return previous;
+	}
+	
+	public static void restore(SearchTrace trace) {
+		if (trace == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(trace);
+		}
+	}
+	
+	/**
+	 * @param criteria : criteria of the search, only kept if the details are captured
+	 * @return a trace for the current thread, null if a search is already traced on it
+	 */
+	static SearchTrace begin(String shape, Object criteria, boolean capturing) {
+		if (CURRENT.get() != null) {
+			return null;
+		}
+		SearchTrace trace = new SearchTrace(shape, criteria, capturing);
+		CURRENT.set(trace);
+		return trace;
+	}
+	
+	void end() {
+		elapsedNanos = System.nanoTime() - startNanos;
+		CURRENT.remove();
+	}
+	
+	public String getShape() {
+		return shape;
+	}
+	
+	public String getStrategy() {
+		return strategy;
+	}
+	
+	public String getCriteria() {
+		return criteria == null ? null : criteria.toString();
+	}
+	
+	public boolean isCapturingDetails() {
+		return capturing;
+	}
+	
+	/**
+	 * @return the descriptions of the lucene queries of the search
+	 */
+	public List<String> getQueries() {
+		List<String> descriptions = new ArrayList<String>(queries.size());
+		for (Supplier<String> query : queries) {
+			try {
+				descriptions.add(query.get());
+			}
+			catch (RuntimeException e) {
+				// the session of a sub-query may be closed already
+				descriptions.add("? (" + e.getMessage() + ")");
+			}
+		}
+		return descriptions;
+	}
+	
+	public long getStageNanos(Stage stage) {
+		return stageNanos.get(stage.ordinal());
+	}
+	
+	/**
+	 * @return the duration of the search, -1 until it has ended
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+	
+}
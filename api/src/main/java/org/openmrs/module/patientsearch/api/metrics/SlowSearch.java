@@ -0,0 +1,132 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.metrics;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics.Stage;
+
+/**
+ * Immutable record of a search which took longer than the threshold of the {@link SlowSearchLog}.
+ */
+public class SlowSearch {
+	
+	private static final double NANOS_PER_MILLI = 1e6;
+	
+	private final Date date;
+	
+	private final String user;
+	
+	private final String shape;
+	
+	private final String criteria;
+	
+	private final String strategy;
+	
+	private final List<String> queries;
+	
+	private final Integer resultSize;
+	
+	private final Long totalCount;
+	
+	private final double elapsedMillis;
+	
+	private final Map<String, Double> stageMillis;
+	
+	/**
+	 * @param resultSize : number of results of the page, null if the search failed
+	 */
+	public SlowSearch(SearchTrace trace, String user, Integer resultSize, Long totalCount) {
+		this.date = new Date();
+		this.user = user;
+		this.shape = trace.getShape();
+		this.criteria = trace.getCriteria();
+		this.strategy = trace.getStrategy();
+		this.queries = Collections.unmodifiableList(trace.getQueries());
+		this.resultSize = resultSize;
+		this.totalCount = totalCount;
+		this.elapsedMillis = trace.getElapsedNanos() / NANOS_PER_MILLI;
+		Map<String, Double> stages = new LinkedHashMap<String, Double>();
+		for (Stage stage : Stage.values()) {
+			if (trace.getStageNanos(stage) > 0) {
+				stages.put(stage.name().toLowerCase(), trace.getStageNanos(stage) / NANOS_PER_MILLI);
+			}
+		}
+		this.stageMillis = Collections.unmodifiableMap(stages);
+	}
+	
+	public Date getDate() {
+		return date;
+	}
+	
+	public String getUser() {
+		return user;
+	}
+	
+	public String getShape() {
+		return shape;
+	}
+	
+	public String getCriteria() {
+		return criteria;
+	}
+	
+	public String getStrategy() {
+		return strategy;
+	}
+	
+	public List<String> getQueries() {
+		return queries;
+	}
+	
+	public Integer getResultSize() {
+		return resultSize;
+	}
+	
+	public Long getTotalCount() {
+		return totalCount;
+	}
+	
+	public boolean isFailed() {
+		return resultSize == null;
+	}
+	
+	public double getElapsedMillis() {
+		return elapsedMillis;
+	}
+	
+	public Map<String, Double> getStageMillis() {
+		return stageMillis;
+	}
+	
+	/**
+	 * @return the properties of the search, to serialize as JSON
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("date", date);
+		map.put("user", user);
+		map.put("shape", shape);
+		map.put("criteria", criteria);
+		map.put("strategy", strategy);
+		map.put("queries", queries);
+		map.put("resultSize", resultSize);
+		map.put("totalCount", totalCount);
+		map.put("failed", isFailed());
+		map.put("elapsedMillis", elapsedMillis);
+		map.put("stageMillis", stageMillis);
+		return map;
+	}
+	
+}
@@ -0,0 +1,98 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded log of the slowest searches. It is a ring buffer: each slow search claims the next slot
+ * with an atomic increment and replaces the oldest entry, so that recording never blocks the
+ * searches. Reading is a best effort snapshot, an entry being replaced may be skipped.
+ */
+public class SlowSearchLog {
+	
+	private final AtomicLong next = new AtomicLong();
+	
+	private volatile AtomicReferenceArray<SlowSearch> entries;
+	
+	private volatile long thresholdNanos;
+	
+	/**
+	 * @param capacity : maximum number of searches kept
+	 * @param thresholdMillis : minimum duration of a logged search, 0 to disable the log
+	 */
+	public SlowSearchLog(int capacity, long thresholdMillis) {
+		configure(capacity, thresholdMillis);
+	}
+	
+	public boolean isEnabled() {
+		return thresholdNanos > 0;
+	}
+	
+	public long getThresholdMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+	}
+	
+	public int getCapacity() {
+		return entries.length();
+	}
+	
+	/**
+	 * @return true if a search which took the given time is logged
+	 */
+	public boolean isSlow(long elapsedNanos) {
+		long threshold = thresholdNanos;
+		return threshold > 0 && elapsedNanos >= threshold;
+	}
+	
+	public void record(SlowSearch search) {
+		AtomicReferenceArray<SlowSearch> ring = entries;
+		ring.set((int) (next.getAndIncrement() % ring.length()), search);
+	}
+	
+	/**
+	 * @return the logged searches, the latest first
+	 */
+	public List<SlowSearch> getEntries() {
+		AtomicReferenceArray<SlowSearch> ring = entries;
+		long last = next.get();
+		List<SlowSearch> searches = new ArrayList<SlowSearch>();
+		for (long i = last - 1; i >= 0 && i >= last - ring.length(); i--) {
+			SlowSearch search = ring.get((int) (i % ring.length()));
+			if (search != null) {
+				searches.add(search);
+			}
+		}
+		return searches;
+	}
+	
+	public void clear() {
+		entries = new AtomicReferenceArray<SlowSearch>(entries.length());
+		next.set(0);
+	}
+	
+	/**
+	 * Changes the capacity and the threshold of the log, the logged searches are cleared if the
+	 * capacity changes.
+	 */
+	public synchronized void configure(int capacity, long thresholdMillis) {
+		int size = Math.max(1, capacity);
+		if (entries == null || entries.length() != size) {
+			entries = new AtomicReferenceArray<SlowSearch>(size);
+			next.set(0);
+		}
+		thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, thresholdMillis));
+	}
+	
+}
@@ -0,0 +1,68 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.concurrent.Semaphore;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+
+public class PatientSearchAdmissionTest {
+	
+	@Test
+	public void acquire_shouldRejectWhenNoPermitIsFreedInTime() {
+		PatientSearchAdmission admission = new PatientSearchAdmission();
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_MAX_WAIT_MILLIS, "10"));
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS, "1"));
+		
+		Semaphore permit = admission.acquire();
+		Assert.assertEquals(1, admission.getActiveCount());
+		try {
+			admission.acquire();
+			Assert.fail("The search should have been rejected");
+		}
+		catch (SearchRejectedException e) {
+			Assert.assertEquals(1, e.getRetryAfterSeconds());
+		}
+		Assert.assertEquals(1, admission.getRejectedCount());
+		
+		admission.release(permit);
+		admission.release(admission.acquire());
+		Assert.assertEquals(0, admission.getActiveCount());
+	}
+	
+	@Test
+	public void acquire_shouldRejectRightAwayWhenTheQueueIsFull() {
+		PatientSearchAdmission admission = new PatientSearchAdmission();
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_QUEUE_SIZE, "0"));
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS, "1"));
+		admission.acquire();
+		
+		long started = System.nanoTime();
+		try {
+			admission.acquire();
+			Assert.fail("The search should have been rejected");
+		}
+		catch (SearchRejectedException e) {
+			Assert.assertTrue(System.nanoTime() - started < 1000000000L);
+		}
+	}
+	
+	@Test
+	public void acquire_shouldAdmitAllSearchesWhenDisabled() {
+		PatientSearchAdmission admission = new PatientSearchAdmission();
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS, "0"));
+		Assert.assertFalse(admission.isEnabled());
+		Assert.assertNull(admission.acquire());
+	}
+	
+}
@@ -2,13 +2,22 @@ package org.openmrs.module.patientsearch.api;
 
 import java.sql.SQLException;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonName;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
 import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.SkipBaseSetup;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,6 +29,12 @@ public class PatientSearchCriteriaServiceTest extends BaseModuleContextSensitive
 	@Autowired
 	private PatientSearchCriteriaService patientservice;
 	
+	@Autowired
+	private PatientSearchResultCache resultCache;
+	
+	@Autowired
+	private PatientSearchMetrics metrics;
+	
 	@Before
 	public void runBeforeEachTest() {
 		try {
@@ -114,4 +129,170 @@ public class PatientSearchCriteriaServiceTest extends BaseModuleContextSensitive
 		Assert.assertEquals("Frank", patients.get(0).getMiddleName());
 	}
 	
+	@Test
+	public void getPatientByPatientIdentifierAndBirthdate() {
+		GregorianCalendar birthdate = new GregorianCalendar(2014, 7, 28);
+		List<Patient> patients = patientservice.getPatients(null, "82-82-82", null, true, null, null, null,
+		    birthdate.getTime());
+		Assert.assertEquals(1, patients.size());
+		Assert.assertEquals(82, patients.get(0).getId().longValue());
+	}
+	
+	@Test
+	public void getTotalCountWhenTheIdentifiersFillThePage() {
+		GregorianCalendar birthdate = new GregorianCalendar(2014, 7, 28);
+		PatientSearchPage<PatientSummary> page = patientservice.getPatientSummaries(null, "82-82-82", null, null, null,
+		    birthdate.getTime(), 0, 1);
+		Assert.assertEquals(1, page.getResults().size());
+		Assert.assertEquals(Long.valueOf(1), page.getTotalCount());
+	}
+	
+	@Test
+	public void getPageOfPatientsByAgeRange() {
+		List<Patient> firstPage = patientservice.getPatients(null, null, null, false, null, 3, 10, null, 0, 2);
+		List<Patient> secondPage = patientservice.getPatients(null, null, null, false, null, 3, 10, null, 2, 2);
+		Assert.assertEquals(2, firstPage.size());
+		Assert.assertEquals(1, secondPage.size());
+		Assert.assertFalse(firstPage.contains(secondPage.get(0)));
+	}
+	
+	@Test
+	public void getSortedPageOfPatientsByAgeRange() {
+		List<Patient> patients = patientservice.getPatientPage(null, null, null, false, null, 3, 10, null, 0, null,
+		    "-birthdate").getResults();
+		Assert.assertEquals(3, patients.size());
+		for (int i = 1; i < patients.size(); i++) {
+			Assert.assertFalse(patients.get(i).getBirthdate().after(patients.get(i - 1).getBirthdate()));
+		}
+		
+		List<Patient> secondPage = patientservice.getPatientPage(null, null, null, false, null, 3, 10, null, 2, 2,
+		    "-birthdate").getResults();
+		Assert.assertEquals(1, secondPage.size());
+		Assert.assertEquals(patients.get(2), secondPage.get(0));
+		
+		patients = patientservice.getPatientPage("Frank", null, null, false, null, null, null, null, 0, null,
+		    "familyName").getResults();
+		Assert.assertFalse(patients.isEmpty());
+		for (int i = 1; i < patients.size(); i++) {
+			String previousFamilyName = patients.get(i - 1).getFamilyName();
+			Assert.assertTrue(previousFamilyName.compareToIgnoreCase(patients.get(i).getFamilyName()) <= 0);
+		}
+	}
+	
+	@Test(expected = APIException.class)
+	public void getPatientPageFailsToSortOnAnUnknownField() {
+		patientservice.getPatientPage(null, null, null, false, null, 3, 10, null, 0, null, "weight");
+	}
+	
+	@Test(expected = UnsortableSearchException.class)
+	public void getPatientPageFailsToSortTheMatchesOfBothAnIdentifierAndAName() {
+		// the identifier of one patient is the family name of another one
+		PatientIdentifier identifier = Context.getPatientService().getPatientIdentifier(82);
+		identifier.setIdentifier("Took");
+		Context.flushSession();
+		updateSearchIndex();
+		
+		List<Patient> patients = patientservice.getPatientPage("Took", null, null, false, null, null, null, null, 0,
+		    null).getResults();
+		Assert.assertEquals(2, patients.size());
+		Assert.assertTrue(patients.contains(Context.getPatientService().getPatient(82)));
+		Assert.assertTrue(patients.contains(Context.getPatientService().getPatient(85)));
+		
+		patientservice.getPatientPage("Took", null, null, false, null, null, null, null, 0, null, "familyName");
+	}
+	
+	@Test
+	public void getSortedPageOfPatientsByNameFindsEachPatientOnce() {
+		PersonName otherName = new PersonName("Zed", null, "Aaron");
+		otherName.setPreferred(false);
+		Patient patient = Context.getPatientService().getPatient(84);
+		patient.addName(otherName);
+		Context.getPatientService().savePatient(patient);
+		Context.flushSession();
+		updateSearchIndex();
+		
+		PatientSearchPage<Patient> page = patientservice.getPatientPage(null, null, null, false, null, 3, 10, null, 0,
+		    null, "familyName");
+		Assert.assertEquals(Long.valueOf(3), page.getTotalCount());
+		Assert.assertEquals(3, page.getResults().size());
+		Assert.assertEquals(3, new HashSet<Patient>(page.getResults()).size());
+	}
+	
+	@Test
+	public void getPatientFacetsByGenderAndAgeBucket() {
+		PatientSearchFacets facets = patientservice.getPatientFacets(null, null, null, 3, 10, null, new int[] { 0, 18 });
+		Assert.assertEquals(3, facets.getTotalCount());
+		Assert.assertEquals(Long.valueOf(1), facets.getCountsByGender().get("F"));
+		Assert.assertEquals(Long.valueOf(3), facets.getCountsByAgeBucket().get("0-17"));
+		Assert.assertEquals(Long.valueOf(0), facets.getCountsByAgeBucket().get("18+"));
+		Assert.assertFalse(facets.isTruncated());
+		
+		facets = patientservice.getPatientFacets("Frank", null, "F", 3, 10, null, new int[] { 0 });
+		Assert.assertEquals(1, facets.getTotalCount());
+		Assert.assertEquals(Long.valueOf(1), facets.getCountsByAgeBucket().get("0+"));
+	}
+	
+	@Test
+	public void getPatientsFromResultCacheUntilPatientChanges() {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED, "true"));
+		resultCache.configure(Context.getAdministrationService());
+		try {
+			long hits = resultCache.getHits();
+			List<Patient> patients = patientservice.getPatients(null, null, null, false, "F", 3, 10, null);
+			Assert.assertEquals(1, resultCache.size());
+			Assert.assertEquals(patients, patientservice.getPatients(null, null, null, false, "F", 3, 10, null));
+			Assert.assertEquals(hits + 1, resultCache.getHits());
+			
+			Patient patient = patients.get(0);
+			patient.setGender("M");
+			Context.getPatientService().savePatient(patient);
+			Context.flushSession();
+			Assert.assertEquals(0, resultCache.size());
+		}
+		finally {
+			Context.getAdministrationService().saveGlobalProperty(
+			    new GlobalProperty(PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED, "false"));
+			resultCache.configure(Context.getAdministrationService());
+		}
+	}
+	
+	@Test
+	public void getPatientPageIsTruncatedWhenTheDeadlineExpires() throws InterruptedException {
+		Assert.assertTrue(SearchDeadline.begin(1));
+		try {
+			Thread.sleep(10);
+			PatientSearchPage<Patient> page = patientservice.getPatientPage(null, null, null, false, "F", 3, 10, null, 0,
+			    null);
+			Assert.assertTrue(page.isTruncated());
+			Assert.assertTrue(page.getResults().isEmpty());
+		}
+		finally {
+			SearchDeadline.end();
+		}
+		Assert.assertFalse(patientservice.getPatientPage(null, null, null, false, "F", 3, 10, null, 0, null).isTruncated());
+	}
+	
+	@Test
+	public void getPatientsRecordsMetricsPerShapeWhenEnabled() {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(PatientSearchCriteriaConfig.GP_METRICS_ENABLED, "true"));
+		metrics.configure(Context.getAdministrationService());
+		metrics.reset();
+		try {
+			patientservice.getPatients("Frank", null, null, false, "F", 3, 10, null);
+			patientservice.getPatients(null, null, null, false, "F", 3, 10, null);
+			Assert.assertEquals(2, metrics.getSearchCount());
+			Assert.assertEquals(Long.valueOf(1), metrics.getSearchCountByShape().get("q+gender+age"));
+			Assert.assertEquals(Long.valueOf(1), metrics.getSearchCountByShape().get("gender+age"));
+			Assert.assertEquals(0, metrics.getErrorCount());
+		}
+		finally {
+			Context.getAdministrationService().saveGlobalProperty(
+			    new GlobalProperty(PatientSearchCriteriaConfig.GP_METRICS_ENABLED, "false"));
+			metrics.configure(Context.getAdministrationService());
+			metrics.reset();
+		}
+	}
+	
 }
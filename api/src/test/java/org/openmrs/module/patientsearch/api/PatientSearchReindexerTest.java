@@ -0,0 +1,190 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntBinaryOperator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.DAOException;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
+import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.openmrs.module.patientsearch.api.test.PatientDatasetGenerator;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PatientSearchReindexerTest extends BaseModuleContextSensitiveTest {
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchCriteriaDao")
+	private PatientSearchCriteriaDAO dao;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchResultCache")
+	private PatientSearchResultCache resultCache;
+	
+	private AdministrationService administrationService;
+	
+	private final Queue<Integer> rangeStarts = new ConcurrentLinkedQueue<Integer>();
+	
+	@Before
+	public void runBeforeEachTest() {
+		administrationService = Context.getAdministrationService();
+		setGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_BATCH_SIZE, "10");
+		setGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_THREADS, "4");
+		setGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_MAX_PERSONS_PER_SECOND, "0");
+		setGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_CHECKPOINT, "");
+	}
+	
+	@Test
+	public void reindexPersons_shouldIndexThePersonsOfTheRangeOnly() throws Exception {
+		Connection connection = getConnection();
+		int firstPersonId = new PatientDatasetGenerator(42, LocalDate.of(2019, 1, 1)).generate(connection, 20);
+		connection.commit();
+		try {
+			Assert.assertEquals(0, countByIdentifier(firstPersonId + 5));
+			
+			Assert.assertEquals(5, dao.reindexPersons(firstPersonId + 5, firstPersonId + 10));
+			Assert.assertEquals(0, countByIdentifier(firstPersonId + 4));
+			Assert.assertEquals(1, countByIdentifier(firstPersonId + 5));
+			Assert.assertEquals(1, countByIdentifier(firstPersonId + 9));
+			Assert.assertEquals(0, countByIdentifier(firstPersonId + 10));
+		}
+		finally {
+			PatientDatasetGenerator.delete(connection, firstPersonId);
+			connection.commit();
+			updateSearchIndex();
+		}
+	}
+	
+	@Test
+	public void start_shouldOnlyMoveTheCheckpointPastContiguousDoneRanges() {
+		CountDownLatch laterRangesDone = new CountDownLatch(3);
+		PatientSearchReindexer reindexer = newReindexer(59, (from, to) -> {
+			if (from == 20) {
+				try {
+					laterRangesDone.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new DAOException("Failed to index the persons from 20");
+			}
+			if (from > 20) {
+				laterRangesDone.countDown();
+			}
+			return to - from;
+		});
+		
+		run(reindexer, false);
+		
+		Assert.assertEquals(PatientSearchReindexer.Status.FAILED, reindexer.getStatus());
+		Assert.assertTrue(rangeStarts.contains(50));
+		Assert.assertEquals(20, reindexer.getProgress(administrationService).get("checkpoint"));
+		Assert.assertEquals(20, reindexer.getProgress(administrationService).get("currentPersonId"));
+	}
+	
+	@Test
+	public void start_shouldResumeFromTheSavedCheckpoint() {
+		setGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_CHECKPOINT, "30");
+		PatientSearchReindexer reindexer = newReindexer(59, (from, to) -> to - from);
+		
+		run(reindexer, true);
+		
+		Assert.assertEquals(PatientSearchReindexer.Status.DONE, reindexer.getStatus());
+		Assert.assertEquals("[30, 40, 50]", new TreeSet<Integer>(rangeStarts).toString());
+		Assert.assertEquals(30, reindexer.getProgress(administrationService).get("fromPersonId"));
+		Assert.assertEquals(30L, reindexer.getProgress(administrationService).get("personsIndexed"));
+		Assert.assertEquals(0, reindexer.getProgress(administrationService).get("checkpoint"));
+	}
+	
+	@Test
+	public void stop_shouldStopAfterTheQueuedRangesAndKeepTheCheckpoint() {
+		setGlobalProperty(PatientSearchCriteriaConfig.GP_REINDEX_THREADS, "1");
+		PatientSearchReindexer[] reindexer = new PatientSearchReindexer[1];
+		reindexer[0] = newReindexer(59, (from, to) -> {
+			if (from == 0) {
+				reindexer[0].stop();
+				Assert.assertEquals(PatientSearchReindexer.Status.STOPPING, reindexer[0].getStatus());
+			}
+			return to - from;
+		});
+		
+		run(reindexer[0], false);
+		
+		// the range after the first one may be queued before the stop
+		Assert.assertEquals(PatientSearchReindexer.Status.STOPPED, reindexer[0].getStatus());
+		Assert.assertTrue(rangeStarts.size() <= 2);
+		int checkpoint = 10 * rangeStarts.size();
+		Assert.assertEquals(checkpoint, reindexer[0].getProgress(administrationService).get("checkpoint"));
+		reindexer[0].stop();
+		Assert.assertEquals(PatientSearchReindexer.Status.STOPPED, reindexer[0].getStatus());
+		
+		rangeStarts.clear();
+		run(reindexer[0], true);
+		Assert.assertEquals(PatientSearchReindexer.Status.DONE, reindexer[0].getStatus());
+		Assert.assertEquals(checkpoint, new TreeSet<Integer>(rangeStarts).first().intValue());
+		Assert.assertEquals(50, new TreeSet<Integer>(rangeStarts).last().intValue());
+	}
+	
+	/**
+	 * Starts the rebuild and runs it on the test thread, once the reindexer is unlocked.
+	 */
+	private void run(PatientSearchReindexer reindexer, boolean resume) {
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		Assert.assertTrue(reindexer.start(administrationService, resume, tasks::add));
+		tasks.get(0).run();
+	}
+	
+	private PatientSearchReindexer newReindexer(int maxPersonId, IntBinaryOperator reindexPersons) {
+		PatientSearchCriteriaDAO stub = (PatientSearchCriteriaDAO) Proxy.newProxyInstance(getClass().getClassLoader(),
+		    new Class<?>[] { PatientSearchCriteriaDAO.class }, (proxy, method, args) -> {
+			    if ("getMaxPersonId".equals(method.getName())) {
+				    return maxPersonId;
+			    } else if ("reindexPersons".equals(method.getName())) {
+				    rangeStarts.add((Integer) args[0]);
+				    return reindexPersons.applyAsInt((Integer) args[0], (Integer) args[1]);
+			    }
+			    throw new UnsupportedOperationException(method.getName());
+		    });
+		PatientSearchReindexer reindexer = new PatientSearchReindexer();
+		ReflectionTestUtils.setField(reindexer, "dao", stub);
+		ReflectionTestUtils.setField(reindexer, "resultCache", resultCache);
+		return reindexer;
+	}
+	
+	private int countByIdentifier(int personId) {
+		PatientSearchCriteria criteria = new PatientSearchCriteria(PatientDatasetGenerator.getIdentifier(personId), null,
+		        true, null, null, null, null, false);
+		return dao.getPatientIdPage(criteria, dao.getSearchPlan(criteria), 0, 10).getResults().size();
+	}
+	
+	private void setGlobalProperty(String property, String value) {
+		administrationService.saveGlobalProperty(new GlobalProperty(property, value));
+	}
+	
+}
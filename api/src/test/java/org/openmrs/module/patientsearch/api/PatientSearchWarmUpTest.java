@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+public class PatientSearchWarmUpTest extends BaseModuleContextSensitiveTest {
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchWarmUp")
+	private PatientSearchWarmUp warmUp;
+	
+	@Test
+	public void parseSearches_shouldReadTheParametersOfEachSearch() {
+		List<Map<String, String>> searches = PatientSearchWarmUp
+		        .parseSearches("gender=F&from=20&to=40; q=john ;;birthdate=2000-01-31&bad");
+		Assert.assertEquals(3, searches.size());
+		Assert.assertEquals("F", searches.get(0).get("gender"));
+		Assert.assertEquals("40", searches.get(0).get("to"));
+		Assert.assertEquals("john", searches.get(1).get("q"));
+		Assert.assertEquals(1, searches.get(2).size());
+		Assert.assertEquals("2000-01-31", searches.get(2).get("birthdate"));
+	}
+	
+	@Test
+	public void getProgress_shouldBeWarmWhenDisabled() {
+		PatientSearchWarmUp warmUp = new PatientSearchWarmUp();
+		Assert.assertTrue(warmUp.isWarm());
+		Assert.assertEquals("DISABLED", warmUp.getProgress().get("status"));
+		Assert.assertTrue(PatientSearchWarmUp.parseSearches(null).isEmpty());
+	}
+	
+	@Test
+	public void start_shouldWarmUpTheIndexThenReplayTheSearchesUntilDone() {
+		updateSearchIndex();
+		List<Map<String, String>> searches = PatientSearchWarmUp.parseSearches("gender=M&from=0&to=120;q=Horatio");
+		List<Map<String, Object>> progresses = new ArrayList<Map<String, Object>>();
+		warmUp.start(searches, 2, task -> {
+			progresses.add(warmUp.getProgress());
+			task.run();
+		});
+		
+		Assert.assertEquals("PENDING", progresses.get(0).get("status"));
+		Assert.assertEquals(false, progresses.get(0).get("warm"));
+		Assert.assertEquals(0, progresses.get(0).get("searchesDone"));
+		
+		Map<String, Object> progress = warmUp.getProgress();
+		Assert.assertEquals(PatientSearchWarmUp.Status.DONE, warmUp.getStatus());
+		Assert.assertEquals(true, progress.get("warm"));
+		Assert.assertEquals(PatientSearchWarmUp.SEARCHES_PHASE, progress.get("phase"));
+		Assert.assertEquals(4, progress.get("searchesDone"));
+		Assert.assertEquals(4, progress.get("searchesTotal"));
+		Assert.assertTrue((Integer) progress.get("cachedFilters") > 0);
+		Assert.assertNull(progress.get("error"));
+	}
+	
+	@Test
+	public void stop_shouldStopTheWarmUpBeforeItsNextStep() {
+		List<Map<String, String>> searches = PatientSearchWarmUp.parseSearches("gender=M&from=0&to=120;q=Horatio");
+		warmUp.start(searches, 2, task -> {
+			warmUp.stop();
+			task.run();
+		});
+		
+		Map<String, Object> progress = warmUp.getProgress();
+		Assert.assertEquals(PatientSearchWarmUp.Status.STOPPED, warmUp.getStatus());
+		Assert.assertEquals(true, progress.get("warm"));
+		Assert.assertEquals(0, progress.get("searchesDone"));
+		Assert.assertEquals(0, progress.get("cachedFilters"));
+	}
+	
+}
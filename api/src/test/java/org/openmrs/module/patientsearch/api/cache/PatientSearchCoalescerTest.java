@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchCoalescer.Flight;
+
+public class PatientSearchCoalescerTest {
+	
+	@Test
+	public void join_shouldShareThePageOfTheLeader() throws Exception {
+		PatientSearchCoalescer coalescer = new PatientSearchCoalescer();
+		Flight flight = coalescer.join("key");
+		Assert.assertTrue(flight.isLeader());
+		
+		CompletableFuture<PatientSearchPage<Integer>> follower = CompletableFuture.supplyAsync(() -> {
+			Flight joined = coalescer.join("key");
+			Assert.assertFalse(joined.isLeader());
+			return joined.await();
+		});
+		while (coalescer.getCoalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		flight.complete(new PatientSearchPage<Integer>(Arrays.asList(7, 3), 2L, false));
+		flight.release();
+		
+		PatientSearchPage<Integer> page = follower.get(10, TimeUnit.SECONDS);
+		Assert.assertEquals(Arrays.asList(7, 3), page.getResults());
+		Assert.assertEquals(0, coalescer.size());
+		Assert.assertTrue(coalescer.join("key").isLeader());
+	}
+	
+	@Test
+	public void await_shouldReturnNullWhenTheLeaderFailed() throws Exception {
+		PatientSearchCoalescer coalescer = new PatientSearchCoalescer();
+		Flight flight = coalescer.join("key");
+		
+		CompletableFuture<PatientSearchPage<Integer>> follower = CompletableFuture.supplyAsync(() -> coalescer.join("key")
+		        .await());
+		while (coalescer.getCoalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		flight.release();
+		
+		Assert.assertNull(follower.get(10, TimeUnit.SECONDS));
+	}
+	
+}
@@ -0,0 +1,98 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.cache;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+
+public class PatientSearchResultCacheTest {
+	
+	private PatientSearchResultCache cache;
+	
+	@Before
+	public void createCache() {
+		cache = new PatientSearchResultCache();
+		cache.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED, "true"));
+	}
+	
+	@Test
+	public void get_shouldReturnThePageOfTheKey() {
+		cache.put("gender=M", page(1, 2), cache.getGeneration());
+		
+		Assert.assertEquals(Arrays.asList(1, 2), cache.get("gender=M").getResults());
+		Assert.assertNull(cache.get("gender=F"));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+	}
+	
+	@Test
+	public void put_shouldEvictTheLeastRecentlyUsedPage() {
+		cache.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_RESULT_CACHE_MAX_SIZE, "2"));
+		cache.put("a", page(1), cache.getGeneration());
+		cache.put("b", page(2), cache.getGeneration());
+		Assert.assertNotNull(cache.get("a"));
+		
+		cache.put("c", page(3), cache.getGeneration());
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNotNull(cache.get("a"));
+		Assert.assertNull(cache.get("b"));
+		Assert.assertNotNull(cache.get("c"));
+	}
+	
+	@Test
+	public void get_shouldNotReturnAnExpiredPage() throws Exception {
+		cache.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_RESULT_CACHE_TTL_SECONDS, "0"));
+		cache.put("a", page(1), cache.getGeneration());
+		Thread.sleep(5);
+		
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void put_shouldNotAddTheResultOfASearchWhichStartedBeforeAnInvalidation() {
+		long generation = cache.getGeneration();
+		// a patient changed while the search was running
+		cache.invalidateAll();
+		cache.put("a", page(1), generation);
+		
+		Assert.assertNull(cache.get("a"));
+		cache.put("a", page(1), cache.getGeneration());
+		Assert.assertNotNull(cache.get("a"));
+	}
+	
+	@Test
+	public void put_shouldNotAddATruncatedPage() {
+		cache.put("a", new PatientSearchPage<Integer>(Arrays.asList(1), null, true), cache.getGeneration());
+		
+		Assert.assertNull(cache.get("a"));
+	}
+	
+	@Test
+	public void get_shouldReturnNothingWhenDisabled() {
+		cache.put("a", page(1), cache.getGeneration());
+		cache.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED, "false"));
+		
+		Assert.assertNull(cache.get("a"));
+		cache.put("a", page(1), cache.getGeneration());
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	private static PatientSearchPage<Integer> page(Integer... personIds) {
+		return new PatientSearchPage<Integer>(Arrays.asList(personIds), Long.valueOf(personIds.length), false);
+	}
+	
+}
@@ -1,14 +1,30 @@
 package org.openmrs.module.patientsearch.api.dao;
 
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan.Strategy;
 import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.openmrs.module.patientsearch.api.dao.hibernate.PatientDemographicStore;
+import org.openmrs.module.patientsearch.api.dao.hibernate.PatientSearchCacheInterceptor;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.SegmentFilterCache;
+import org.openmrs.module.patientsearch.api.test.PatientDatasetGenerator;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.SkipBaseSetup;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,6 +36,12 @@ public class PatientSearchCriteriaDAOTest extends BaseModuleContextSensitiveTest
 	@Autowired
 	private PatientSearchCriteriaDAO dao;
 	
+	@Autowired
+	private PatientDemographicStore demographicStore;
+	
+	@Autowired
+	private PatientSearchCacheInterceptor interceptor;
+	
 	@Before
 	public void runBeforeEachTest() {
 		try {
@@ -260,4 +282,220 @@ public class PatientSearchCriteriaDAOTest extends BaseModuleContextSensitiveTest
 		Assert.assertEquals(1, patients.size());
 		Assert.assertEquals("Adam", patients.get(0).getGivenName());
 	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientsByNameOrIdAndGender(String, String, Integer, Integer,
+	 *      Boolean)
+	 */
+	@Test
+	public void getPatients_shouldFillRequestedPageWithPatientsHavingRequiredNameAndGender() {
+		List<Patient> patients = dao.getPatientsByNameOrIdAndGender("Frank", "F", 0, 1, false);
+		Assert.assertEquals(1, patients.size());
+		Assert.assertEquals("Bethany", patients.get(0).getGivenName());
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientsByGenderAndAge(String, java.util.Date, java.util.Date,
+	 *      Integer, Integer, Boolean)
+	 */
+	@Test
+	public void getPatients_shouldReturnSecondPageOfPatientsWithRequiredGenderAndAgeRange() {
+		GregorianCalendar to = new GregorianCalendar(2013, 7, 28);
+		GregorianCalendar from = new GregorianCalendar(2015, 7, 28);
+		List<Patient> firstPage = dao.getPatientsByGenderAndAge("M", from.getTime(), to.getTime(), 0, 1, false);
+		List<Patient> secondPage = dao.getPatientsByGenderAndAge("M", from.getTime(), to.getTime(), 1, 1, false);
+		Assert.assertEquals(1, firstPage.size());
+		Assert.assertEquals(1, secondPage.size());
+		Assert.assertNotEquals(firstPage.get(0), secondPage.get(0));
+		Assert.assertEquals("M", secondPage.get(0).getGender());
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientsByIds(List)
+	 */
+	@Test
+	public void getPatientsByIds_shouldReturnPatientsInOrderOfGivenIds() {
+		List<Patient> patients = dao.getPatientsByIds(Arrays.asList(85, 82, 999, 84));
+		Assert.assertEquals(3, patients.size());
+		Assert.assertEquals(85, patients.get(0).getPatientId().intValue());
+		Assert.assertEquals(82, patients.get(1).getPatientId().intValue());
+		Assert.assertEquals(84, patients.get(2).getPatientId().intValue());
+		Assert.assertEquals("Bethany", patients.get(0).getGivenName());
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientsByGender(String, Integer, Integer, Boolean)
+	 */
+	@Test
+	public void getPatients_shouldReuseCachedFiltersOfGender() {
+		SegmentFilterCache.getInstance().clear();
+		List<Patient> patients = dao.getPatientsByGender("M", 0, 11, false);
+		int cachedFilters = SegmentFilterCache.getInstance().size();
+		Assert.assertTrue(cachedFilters > 0);
+		
+		Assert.assertEquals(patients, dao.getPatientsByGender("M", 0, 11, false));
+		Assert.assertEquals(cachedFilters, SegmentFilterCache.getInstance().size());
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientsByRangeOfAge(java.util.Date, java.util.Date, Integer,
+	 *      Integer, Boolean)
+	 */
+	@Test
+	public void getPatient_shouldReturnListOfPatientsBornInWholeYearsOfAgeRange() {
+		GregorianCalendar to = new GregorianCalendar(2014, 0, 1);
+		GregorianCalendar from = new GregorianCalendar(2016, 0, 1);
+		from.add(GregorianCalendar.MILLISECOND, -1);
+		SegmentFilterCache.getInstance().clear();
+		List<Patient> patients = dao.getPatientsByRangeOfAge(from.getTime(), to.getTime(), 0, 11, false);
+		Assert.assertEquals(3, patients.size());
+		Assert.assertTrue(SegmentFilterCache.getInstance().size() > 0);
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getSearchPlan(PatientSearchCriteria)
+	 */
+	@Test
+	public void getSearchPlan_shouldNotSearchCriteriaWhichNoPatientMatches() {
+		GregorianCalendar birthdate = new GregorianCalendar(1850, 0, 1);
+		PatientSearchCriteria criteria = new PatientSearchCriteria("Frank", null, false, null, birthdate.getTime(), null,
+		        null, false);
+		PatientSearchPlan plan = dao.getSearchPlan(criteria);
+		Assert.assertEquals(Strategy.EMPTY, plan.getStrategy());
+		Assert.assertEquals(0, dao.getPatientIdPage(criteria, plan, 0, 10).getResults().size());
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientIdPage(PatientSearchCriteria, PatientSearchPlan,
+	 *      Integer, Integer)
+	 */
+	@Test
+	public void getPatientIdPage_shouldReturnSamePatientsWithIntersectedAndCompiledPlans() {
+		PatientSearchCriteria criteria = new PatientSearchCriteria("Frank", null, false, "M", null, null, null, false);
+		Assert.assertEquals(Strategy.INTERSECT, dao.getSearchPlan(criteria).getStrategy());
+		
+		PatientSearchPage<Integer> intersected = dao.getPatientIdPage(criteria, new PatientSearchPlan(Strategy.INTERSECT,
+		        PatientSearchPlan.UNKNOWN, PatientSearchPlan.UNKNOWN), 0, 10);
+		PatientSearchPage<Integer> compiled = dao.getPatientIdPage(criteria, new PatientSearchPlan(Strategy.COMPILED,
+		        PatientSearchPlan.UNKNOWN, PatientSearchPlan.UNKNOWN), 0, 10);
+		Assert.assertEquals(new HashSet<Integer>(compiled.getResults()), new HashSet<Integer>(intersected.getResults()));
+		Assert.assertEquals(Long.valueOf(intersected.getResults().size()), intersected.getTotalCount());
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientIdPage(PatientSearchCriteria, PatientSearchPlan,
+	 *      Integer, Integer)
+	 */
+	@Test
+	public void getPatientIdPage_shouldPlanAndSearchIdentifiersOfTheGivenTypes() {
+		Patient patient = Context.getPatientService().getPatient(2);
+		PatientIdentifier identifier = patient.getPatientIdentifier();
+		PatientSearchCriteria criteria = new PatientSearchCriteria(identifier.getIdentifier(), Arrays
+		        .asList(identifier.getIdentifierType()), true, patient.getGender(), null, null, null, false);
+		PatientSearchPlan plan = dao.getSearchPlan(criteria);
+		Assert.assertEquals(Strategy.INTERSECT, plan.getStrategy());
+		Assert.assertNotEquals(PatientSearchPlan.UNKNOWN, plan.getQueryEstimate());
+		
+		PatientSearchPage<Integer> intersected = dao.getPatientIdPage(criteria, plan, 0, 10);
+		PatientSearchPage<Integer> compiled = dao.getPatientIdPage(criteria, new PatientSearchPlan(Strategy.COMPILED,
+		        PatientSearchPlan.UNKNOWN, PatientSearchPlan.UNKNOWN), 0, 10);
+		Assert.assertTrue(intersected.getResults().contains(patient.getPatientId()));
+		Assert.assertEquals(new HashSet<Integer>(compiled.getResults()), new HashSet<Integer>(intersected.getResults()));
+		Assert.assertEquals(compiled.getTotalCount(), intersected.getTotalCount());
+		
+		for (PatientIdentifierType identifierType : Context.getPatientService().getAllPatientIdentifierTypes()) {
+			if (!identifierType.equals(identifier.getIdentifierType())) {
+				PatientSearchCriteria otherType = new PatientSearchCriteria(identifier.getIdentifier(), Arrays
+				        .asList(identifierType), true, patient.getGender(), null, null, null, false);
+				Assert.assertFalse(dao.getPatientIdPage(otherType, dao.getSearchPlan(otherType), 0, 10).getResults()
+				        .contains(patient.getPatientId()));
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientIdPage(PatientSearchCriteria, PatientSearchPlan,
+	 *      Integer, Integer)
+	 */
+	@Test
+	public void getPatientIdPage_shouldReturnSamePatientsFromDemographicStoreAndIndex() {
+		GregorianCalendar to = new GregorianCalendar(2013, 7, 28);
+		GregorianCalendar from = new GregorianCalendar(2015, 7, 28);
+		PatientSearchCriteria criteria = new PatientSearchCriteria(null, null, false, "M", null, from.getTime(), to
+		        .getTime(), false);
+		PatientSearchCriteria nameCriteria = new PatientSearchCriteria("Frank", null, false, "M", null, null, null, false);
+		PatientSearchPage<Integer> compiled = dao.getPatientIdPage(criteria, dao.getSearchPlan(criteria), 0, 10);
+		PatientSearchPage<Integer> intersected = dao.getPatientIdPage(nameCriteria, dao.getSearchPlan(nameCriteria), 0, 10);
+		
+		setDemographicStoreEnabled(true);
+		try {
+			Assert.assertTrue(demographicStore.isReady());
+			PatientSearchPlan plan = dao.getSearchPlan(criteria);
+			Assert.assertEquals(Strategy.DEMOGRAPHIC, plan.getStrategy());
+			PatientSearchPage<Integer> scanned = dao.getPatientIdPage(criteria, plan, 0, 10);
+			Assert.assertEquals(new HashSet<Integer>(compiled.getResults()), new HashSet<Integer>(scanned.getResults()));
+			Assert.assertEquals(compiled.getTotalCount(), scanned.getTotalCount());
+			
+			PatientSearchPage<Integer> filtered = dao.getPatientIdPage(nameCriteria, dao.getSearchPlan(nameCriteria), 0,
+			    10);
+			Assert.assertEquals(new HashSet<Integer>(intersected.getResults()), new HashSet<Integer>(filtered
+			        .getResults()));
+			
+			Patient patient = Context.getPatientService().getPatient(scanned.getResults().get(0));
+			patient.setGender("F");
+			Context.getPatientService().savePatient(patient);
+			Context.flushSession();
+			// the transaction of the test is never committed, its completion is simulated
+			interceptor.afterTransactionCompletion(null);
+			Assert.assertFalse(dao.getPatientIdPage(criteria, plan, 0, 10).getResults().contains(patient.getPatientId()));
+		}
+		finally {
+			setDemographicStoreEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see PatientSearchCriteriaDAO#getPatientIdPage(PatientSearchCriteria, PatientSearchPlan,
+	 *      Integer, Integer)
+	 */
+	@Test
+	public void getPatientIdPage_shouldFindPatientCreatedAfterDemographicStoreIsLoaded() {
+		setDemographicStoreEnabled(true);
+		try {
+			GregorianCalendar birthdate = new GregorianCalendar(1984, 4, 17);
+			PatientIdentifier existing = Context.getPatientService().getAllPatients().get(0).getPatientIdentifier();
+			Patient patient = new Patient();
+			patient.setGender("F");
+			patient.setBirthdate(birthdate.getTime());
+			patient.addName(new PersonName("Lobelia", null, "Bracegirdle"));
+			PatientIdentifier identifier = new PatientIdentifier(PatientDatasetGenerator.getIdentifier(987654), existing
+			        .getIdentifierType(), existing.getLocation());
+			identifier.setPreferred(true);
+			patient.addIdentifier(identifier);
+			Context.getPatientService().savePatient(patient);
+			Context.flushSession();
+			// the transaction of the test is never committed, its completion is simulated
+			interceptor.afterTransactionCompletion(null);
+			
+			PatientSearchCriteria criteria = new PatientSearchCriteria(null, null, false, "F", birthdate.getTime(), null,
+			        null, false);
+			PatientSearchPlan plan = dao.getSearchPlan(criteria);
+			Assert.assertEquals(Strategy.DEMOGRAPHIC, plan.getStrategy());
+			Assert.assertEquals(Arrays.asList(patient.getPatientId()), dao.getPatientIdPage(criteria, plan, 0, 10)
+			        .getResults());
+		}
+		finally {
+			setDemographicStoreEnabled(false);
+		}
+	}
+	
+	/**
+	 * The store is loaded on the thread of the test, as the module is not started.
+	 */
+	private void setDemographicStoreEnabled(boolean enabled) {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(PatientSearchCriteriaConfig.GP_DEMOGRAPHIC_STORE_ENABLED, String.valueOf(enabled)));
+		demographicStore.configure(Context.getAdministrationService());
+	}
 }
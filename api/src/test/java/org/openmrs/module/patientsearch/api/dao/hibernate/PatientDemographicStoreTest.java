@@ -0,0 +1,197 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PatientDemographicStoreTest extends BaseModuleContextSensitiveTest {
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientDemographicStore")
+	private PatientDemographicStore store;
+	
+	/**
+	 * The store is loaded on the thread of the test, as the module is not started.
+	 */
+	@Before
+	public void enableStore() {
+		setEnabled(true);
+		Assert.assertTrue(store.isReady());
+	}
+	
+	@After
+	public void disableStore() {
+		setEnabled(false);
+	}
+	
+	@Test
+	public void count_shouldCountThePatientsOfTheGender() {
+		for (String gender : Arrays.asList("M", "F")) {
+			Assert.assertEquals(getPatientIds(gender).size(), store.count(getCriteria(gender, null)));
+		}
+		Assert.assertEquals(0, store.count(getCriteria("male", null)));
+	}
+	
+	@Test
+	public void count_shouldMatchTheDayOfTheBirthdate() {
+		Patient patient = null;
+		for (Integer patientId : getPatientIds(null)) {
+			patient = Context.getPatientService().getPatient(patientId);
+			if (patient.getBirthdate() != null) {
+				break;
+			}
+		}
+		Calendar birthdate = Calendar.getInstance();
+		birthdate.setTime(patient.getBirthdate());
+		birthdate.set(Calendar.HOUR_OF_DAY, 23);
+		Assert.assertTrue(store.getPage(getCriteria(null, birthdate.getTime()), 0, 100).getResults().contains(
+		    patient.getPatientId()));
+		
+		birthdate.add(Calendar.HOUR_OF_DAY, 1);
+		Assert.assertFalse(store.getPage(getCriteria(null, birthdate.getTime()), 0, 100).getResults().contains(
+		    patient.getPatientId()));
+	}
+	
+	@Test
+	public void getPage_shouldPageThePatientsInTheOrderOfTheirIds() {
+		List<Integer> expected = getPatientIds(null);
+		PatientSearchCriteria criteria = getCriteria(null, null);
+		List<Integer> paged = new ArrayList<Integer>();
+		for (int start = 0; start < expected.size(); start += 2) {
+			PatientSearchPage<Integer> page = store.getPage(criteria, start, 2);
+			Assert.assertEquals(Long.valueOf(expected.size()), page.getTotalCount());
+			paged.addAll(page.getResults());
+		}
+		Assert.assertEquals(expected, paged);
+		Assert.assertTrue(store.getPage(criteria, expected.size(), 2).getResults().isEmpty());
+	}
+	
+	@Test
+	public void retainMatching_shouldKeepTheMatchingIdsInTheirOrder() {
+		List<Integer> males = getPatientIds("M");
+		List<Integer> females = getPatientIds("F");
+		Collections.reverse(males);
+		int[] ids = new int[males.size() + 2];
+		ids[0] = females.get(0);
+		for (int i = 0; i < males.size(); i++) {
+			ids[i + 1] = males.get(i);
+		}
+		ids[ids.length - 1] = Integer.MAX_VALUE;
+		
+		int kept = store.retainMatching(getCriteria("M", null), ids, ids.length);
+		Assert.assertEquals(males.size(), kept);
+		for (int i = 0; i < kept; i++) {
+			Assert.assertEquals(males.get(i).intValue(), ids[i]);
+		}
+	}
+	
+	@Test
+	public void refresh_shouldGrowTheColumnsForThePersonsNotLoaded() {
+		int size = store.size();
+		int count = store.count(getCriteria(null, null));
+		for (int i = 1; i <= 100; i++) {
+			store.markChanged(Integer.MAX_VALUE - i);
+		}
+		Assert.assertTrue(store.refresh());
+		// the persons do not exist, they are kept as rows which no search matches
+		Assert.assertEquals(size + 100, store.size());
+		Assert.assertEquals(count, store.count(getCriteria(null, null)));
+		Assert.assertEquals(count, store.getPage(getCriteria(null, null), 0, count + 100).getResults().size());
+	}
+	
+	@Test
+	public void refresh_shouldKeepAChangeMarkedUntilANewerTransactionReadsIt() {
+		Integer personId = getPatientIds(null).get(0);
+		store.transactionBegan();
+		store.markChanged(personId);
+		Assert.assertTrue(store.refresh());
+		Assert.assertTrue(getChangedPersonIds().containsKey(personId));
+		store.transactionCompleted();
+		
+		store.transactionBegan();
+		Assert.assertTrue(store.refresh());
+		Assert.assertFalse(getChangedPersonIds().containsKey(personId));
+		store.transactionCompleted();
+	}
+	
+	@Test
+	public void refresh_shouldLoadTheStoreAgainWhenTooManyPersonsChanged() {
+		int size = store.size();
+		for (int i = 1; i <= PatientDemographicStore.REFRESH_MAX_IDS + 1; i++) {
+			store.markChanged(Integer.MAX_VALUE - i);
+		}
+		// loaded again on the thread of the test, which reads the persons changed before
+		Assert.assertTrue(store.refresh());
+		Assert.assertEquals(size, store.size());
+		Assert.assertTrue(getChangedPersonIds().isEmpty());
+	}
+	
+	@Test
+	public void stop_shouldDisableTheStoreAndFreeItsColumns() {
+		store.markChanged(Integer.MAX_VALUE);
+		store.stop();
+		Assert.assertFalse(store.isReady());
+		Assert.assertEquals(0, store.size());
+		Assert.assertTrue(getChangedPersonIds().isEmpty());
+		Assert.assertFalse(store.refresh());
+	}
+	
+	private void setEnabled(boolean enabled) {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(PatientSearchCriteriaConfig.GP_DEMOGRAPHIC_STORE_ENABLED, String.valueOf(enabled)));
+		store.configure(Context.getAdministrationService());
+	}
+	
+	private PatientSearchCriteria getCriteria(String gender, Date birthdate) {
+		return new PatientSearchCriteria(null, null, false, gender, birthdate, null, null, false);
+	}
+	
+	/**
+	 * @param gender : gender of the patients, null for all
+	 * @return ids of the patients which are not voided, in increasing order
+	 */
+	private List<Integer> getPatientIds(String gender) {
+		List<Integer> patientIds = new ArrayList<Integer>();
+		for (Patient patient : Context.getPatientService().getAllPatients(false)) {
+			if (gender == null || gender.equals(patient.getGender())) {
+				patientIds.add(patient.getPatientId());
+			}
+		}
+		Collections.sort(patientIds);
+		return patientIds;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<Integer, Long> getChangedPersonIds() {
+		return (Map<Integer, Long>) ReflectionTestUtils.getField(store, "changedPersonIds");
+	}
+	
+}
@@ -0,0 +1,109 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PatientSearchCacheInterceptorTest {
+	
+	private PatientSearchCacheInterceptor interceptor;
+	
+	private PatientSearchResultCache resultCache;
+	
+	private PatientDemographicStore demographicStore;
+	
+	@Before
+	public void createInterceptor() {
+		resultCache = new PatientSearchResultCache();
+		resultCache.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_RESULT_CACHE_ENABLED, "true"));
+		// enabled without being loaded, to record the changed persons
+		demographicStore = new PatientDemographicStore();
+		ReflectionTestUtils.setField(demographicStore, "enabled", true);
+		interceptor = new PatientSearchCacheInterceptor();
+		ReflectionTestUtils.setField(interceptor, "resultCache", resultCache);
+		ReflectionTestUtils.setField(interceptor, "demographicStore", demographicStore);
+	}
+	
+	@Test
+	public void onSave_shouldClearTheCacheWhenAPersonANameOrAnIdentifierIsSaved() {
+		for (Object entity : Arrays.asList(new Person(), new Patient(), new PersonName(), new PatientIdentifier())) {
+			putPage();
+			interceptor.onSave(entity, null, null, null, null);
+			Assert.assertEquals(entity.getClass().getSimpleName(), 0, resultCache.size());
+			interceptor.afterTransactionCompletion(null);
+		}
+	}
+	
+	@Test
+	public void onSave_shouldKeepTheCacheWhenAnotherEntityIsSaved() {
+		putPage();
+		interceptor.onSave(new Location(), 1, null, null, null);
+		interceptor.afterTransactionCompletion(null);
+		
+		Assert.assertEquals(1, resultCache.size());
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldClearTheCacheFilledSinceTheChange() {
+		interceptor.onFlushDirty(new PersonName(), 1, null, null, null, null);
+		// a search which ran before the commit
+		putPage();
+		interceptor.afterTransactionCompletion(null);
+		
+		Assert.assertEquals(0, resultCache.size());
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldMarkThePersonsOfTheChangedEntities() {
+		// the id of a new patient is generated when it is inserted, after onSave
+		Patient patient = new Patient();
+		interceptor.onSave(patient, null, null, null, null);
+		patient.setPatientId(10);
+		PersonName name = new PersonName();
+		name.setPerson(new Person(11));
+		interceptor.onSave(name, null, null, null, null);
+		PatientIdentifier identifier = new PatientIdentifier();
+		identifier.setPatient(new Patient(12));
+		interceptor.onDelete(identifier, 3, null, null, null);
+		interceptor.onSave(new PersonName(), null, null, null, null);
+		
+		interceptor.afterTransactionCompletion(null);
+		
+		Assert.assertEquals(new HashSet<Integer>(Arrays.asList(10, 11, 12)), getChangedPersonIds().keySet());
+	}
+	
+	private void putPage() {
+		resultCache.put("gender=M", new PatientSearchPage<Integer>(Arrays.asList(1), 1L, false), resultCache
+		        .getGeneration());
+		Assert.assertEquals(1, resultCache.size());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<Integer, Long> getChangedPersonIds() {
+		return (Map<Integer, Long>) ReflectionTestUtils.getField(demographicStore, "changedPersonIds");
+	}
+	
+}
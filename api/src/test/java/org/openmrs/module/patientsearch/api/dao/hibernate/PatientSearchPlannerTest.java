@@ -0,0 +1,184 @@
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+
+import org.apache.lucene.search.Query;
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan.Strategy;
+import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.openmrs.module.patientsearch.api.test.PatientDatasetGenerator;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.OpenmrsConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class PatientSearchPlannerTest extends BaseModuleContextSensitiveTest {
+	
+	private final static String PATIENTS_XML = "org/openmrs/module/patientsearch/api/dao/include/PatientSearchCriteriaDAOTest-patients.xml";
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Autowired
+	private PatientSearchCriteriaDAO dao;
+	
+	@Autowired
+	private PatientDemographicStore demographicStore;
+	
+	@Before
+	public void runBeforeEachTest() {
+		executeDataSet(PATIENTS_XML);
+		updateSearchIndex();
+	}
+	
+	/**
+	 * @see PatientSearchPlanner#plan(PatientSearchCriteria, Query, Query)
+	 */
+	@Test
+	public void plan_shouldLeaveSearchWithoutDemographicCriteriaToCore() {
+		PatientSearchCriteria criteria = new PatientSearchCriteria("Frank", null, false, null, null, null, null, false);
+		PatientSearchPlan plan = new PatientSearchPlanner(sessionFactory).plan(criteria, null, null);
+		Assert.assertEquals(Strategy.CORE, plan.getStrategy());
+		Assert.assertEquals(PatientSearchPlan.UNKNOWN, plan.getDemographicEstimate());
+	}
+	
+	/**
+	 * @see PatientSearchPlanner#plan(PatientSearchCriteria, Query, Query)
+	 */
+	@Test
+	public void plan_shouldNotSearchDemographicCriteriaWhichNoPatientMatches() {
+		GregorianCalendar birthdate = new GregorianCalendar(1850, 0, 1);
+		PatientSearchCriteria criteria = new PatientSearchCriteria("Frank", null, false, null, birthdate.getTime(), null,
+		        null, false);
+		PatientSearchPlan plan = new PatientSearchPlanner(sessionFactory).plan(criteria, getIdentifierQuery("Frank"),
+		    getNameQuery("Frank"));
+		Assert.assertEquals(Strategy.EMPTY, plan.getStrategy());
+		Assert.assertEquals(0, plan.getDemographicEstimate());
+	}
+	
+	/**
+	 * @see PatientSearchPlanner#plan(PatientSearchCriteria, Query, Query)
+	 */
+	@Test
+	public void plan_shouldAnswerDemographicCriteriaAloneFromDemographicStoreWhenReady() {
+		PatientSearchCriteria criteria = new PatientSearchCriteria(null, null, false, "M", null, null, null, false);
+		PatientSearchPlan compiled = new PatientSearchPlanner(sessionFactory, demographicStore).plan(criteria, null, null);
+		Assert.assertEquals(Strategy.COMPILED, compiled.getStrategy());
+		Assert.assertTrue(compiled.getDemographicEstimate() > 0);
+		
+		setDemographicStoreEnabled(true);
+		try {
+			PatientSearchPlan demographic = new PatientSearchPlanner(sessionFactory, demographicStore).plan(criteria,
+			    null, null);
+			Assert.assertEquals(Strategy.DEMOGRAPHIC, demographic.getStrategy());
+			Assert.assertEquals(compiled.getDemographicEstimate(), demographic.getDemographicEstimate());
+		}
+		finally {
+			setDemographicStoreEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see PatientSearchPlanner#plan(PatientSearchCriteria, Query, Query)
+	 */
+	@Test
+	public void plan_shouldIntersectWhenBothEstimatesAreAtMostTheMaximumNumberOfIds() {
+		PatientSearchCriteria criteria = new PatientSearchCriteria("Frank", null, false, "M", null, null, null, false);
+		Query identifierQuery = getIdentifierQuery("Frank");
+		Query nameQuery = getNameQuery("Frank");
+		PatientSearchPlan plan = new PatientSearchPlanner(sessionFactory, null, Integer.MAX_VALUE).plan(criteria,
+		    identifierQuery, nameQuery);
+		Assert.assertEquals(Strategy.INTERSECT, plan.getStrategy());
+		Assert.assertTrue(plan.getQueryEstimate() > 0);
+		Assert.assertTrue(plan.getDemographicEstimate() > 0);
+		
+		int maxIds = (int) Math.max(plan.getQueryEstimate(), plan.getDemographicEstimate());
+		PatientSearchPlan atMax = new PatientSearchPlanner(sessionFactory, null, maxIds).plan(criteria, identifierQuery,
+		    nameQuery);
+		Assert.assertEquals(Strategy.INTERSECT, atMax.getStrategy());
+		PatientSearchPlan overMax = new PatientSearchPlanner(sessionFactory, null, maxIds - 1).plan(criteria,
+		    identifierQuery, nameQuery);
+		Assert.assertEquals(Strategy.COMPILED, overMax.getStrategy());
+		Assert.assertEquals(plan.getQueryEstimate(), overMax.getQueryEstimate());
+		Assert.assertEquals(plan.getDemographicEstimate(), overMax.getDemographicEstimate());
+	}
+	
+	/**
+	 * @see PatientSearchPlanner#plan(PatientSearchCriteria, Query, Query)
+	 */
+	@Test
+	public void plan_shouldNotEstimateNamesWhenOnlyIdentifiersAreSearched() {
+		PatientSearchCriteria criteria = new PatientSearchCriteria("Frank", null, false, "M", null, null, null, false);
+		PatientSearchPlanner planner = new PatientSearchPlanner(sessionFactory);
+		Query identifierQuery = getIdentifierQuery("Frank");
+		Assert.assertEquals(0, planner.plan(criteria, identifierQuery, null).getQueryEstimate());
+		Assert.assertTrue(planner.plan(criteria, identifierQuery, getNameQuery("Frank")).getQueryEstimate() > 0);
+	}
+	
+	/**
+	 * @see HibernatePatientSearchCriteriaDAO#getSearchPlan(PatientSearchCriteria)
+	 */
+	@Test
+	public void getSearchPlan_shouldEstimateIdentifiersWithTheIdentifierSearchPatterns() {
+		PatientIdentifier existing = Context.getPatientService().getAllPatients().get(0).getPatientIdentifier();
+		Patient patient = new Patient();
+		patient.setGender("F");
+		patient.addName(new PersonName("Lobelia", null, "Bracegirdle"));
+		String identifier = PatientDatasetGenerator.getIdentifier(987654);
+		PatientIdentifier patientIdentifier = new PatientIdentifier(identifier, existing.getIdentifierType(), existing
+		        .getLocation());
+		patientIdentifier.setPreferred(true);
+		patient.addIdentifier(patientIdentifier);
+		Context.getPatientService().savePatient(patient);
+		Context.flushSession();
+		updateSearchIndex();
+		
+		long exactEstimate = dao.getSearchPlan(getIdentifierCriteria(identifier, existing)).getQueryEstimate();
+		Assert.assertTrue(exactEstimate > 0);
+		
+		// the identifier is searched without the dash of its check digit
+		String searched = identifier.replace("-", "");
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_PATIENT_IDENTIFIER_SEARCH_PATTERN,
+		            "@SEARCH@,@SEARCH-1@-@CHECKDIGIT@"));
+		PatientSearchPlan plan = dao.getSearchPlan(getIdentifierCriteria(searched, existing));
+		Assert.assertEquals(Strategy.INTERSECT, plan.getStrategy());
+		Assert.assertTrue(plan.getQueryEstimate() >= exactEstimate);
+	}
+	
+	private PatientSearchCriteria getIdentifierCriteria(String identifier, PatientIdentifier existing) {
+		return new PatientSearchCriteria(identifier, Arrays.asList(existing.getIdentifierType()), true, "F", null, null,
+		        null, false);
+	}
+	
+	private Query getIdentifierQuery(String query) {
+		return new PatientLuceneQuery(sessionFactory).getPatientIdentifierWithCriteria(query,
+		    Collections.singletonList("identifierExact"), null, null, null, null, false).getLuceneQuery();
+	}
+	
+	private Query getNameQuery(String query) {
+		return new PatientLuceneQuery(sessionFactory).getPatientNameWithCriteria(query, null, null, null, null, false,
+		    null).getLuceneQuery();
+	}
+	
+	/**
+	 * The store is loaded on the thread of the test, as the module is not started.
+	 */
+	private void setDemographicStoreEnabled(boolean enabled) {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(PatientSearchCriteriaConfig.GP_DEMOGRAPHIC_STORE_ENABLED, String.valueOf(enabled)));
+		demographicStore.configure(Context.getAdministrationService());
+	}
+}
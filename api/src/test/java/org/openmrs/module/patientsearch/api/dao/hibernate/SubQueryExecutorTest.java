@@ -0,0 +1,123 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics.Stage;
+import org.openmrs.module.patientsearch.api.metrics.SearchTrace;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+public class SubQueryExecutorTest extends BaseModuleContextSensitiveTest {
+	
+	private SubQueryExecutor executor;
+	
+	private final CountDownLatch release = new CountDownLatch(1);
+	
+	@Before
+	public void createExecutor() {
+		executor = new SubQueryExecutor();
+	}
+	
+	@After
+	public void shutdownExecutor() {
+		release.countDown();
+		executor.shutdown();
+		SearchTrace.restore(null);
+		SearchDeadline.end();
+	}
+	
+	@Test
+	public void submit_shouldRunOnTheCallerThreadWhenAllThreadsAreBusy() throws Exception {
+		executor.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_SUB_QUERY_THREADS, "1"));
+		CountDownLatch started = new CountDownLatch(1);
+		Future<Thread> busy = executor.submit(() -> {
+			started.countDown();
+			release.await(10, TimeUnit.SECONDS);
+			return Thread.currentThread();
+		});
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		
+		Future<Thread> saturated = executor.submit(() -> Thread.currentThread());
+		Assert.assertTrue(saturated.isDone());
+		Assert.assertSame(Thread.currentThread(), executor.await(saturated));
+		
+		release.countDown();
+		Assert.assertNotSame(Thread.currentThread(), executor.await(busy));
+	}
+	
+	@Test
+	public void submit_shouldRunOnTheCallerThreadWhenDisabled() throws Exception {
+		executor.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_SUB_QUERY_THREADS, "0"));
+		
+		Assert.assertSame(Thread.currentThread(), executor.await(executor.submit(() -> Thread.currentThread())));
+	}
+	
+	@Test
+	public void submit_shouldContinueTheSearchOfTheCallerOnTheWorker() throws Exception {
+		SearchDeadline.begin(60000);
+		PatientSearchMetrics metrics = new PatientSearchMetrics();
+		metrics.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_METRICS_ENABLED, "true"));
+		SearchTrace trace = metrics.begin("q", "criteria");
+		Assert.assertNotNull(trace);
+		SearchDeadline.Budget budget = SearchDeadline.current();
+		User user = Context.getAuthenticatedUser();
+		
+		Future<Object[]> result = executor.submit(() -> {
+			long started = SearchTrace.start();
+			Thread.sleep(1);
+			SearchTrace.stop(Stage.INDEX, started);
+			return new Object[] { Thread.currentThread(), SearchTrace.current(), SearchDeadline.current(),
+			        Context.getAuthenticatedUser() };
+		});
+		Object[] worker = executor.await(result);
+		
+		Assert.assertNotSame(Thread.currentThread(), worker[0]);
+		Assert.assertSame(trace, worker[1]);
+		Assert.assertSame(budget, worker[2]);
+		Assert.assertEquals(user, worker[3]);
+		Assert.assertTrue(trace.getStageNanos(Stage.INDEX) > 0);
+	}
+	
+	@Test
+	public void await_shouldCancelTheSubQueryAndMarkTheSearchTruncatedWhenTheDeadlineExpires() throws Exception {
+		SearchDeadline.begin(50);
+		Future<Integer> result = executor.submit(() -> {
+			release.await(10, TimeUnit.SECONDS);
+			return 1;
+		});
+		
+		long started = System.nanoTime();
+		Assert.assertNull(executor.await(result));
+		Assert.assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+		Assert.assertTrue(result.isCancelled());
+		Assert.assertTrue(SearchDeadline.isTruncated());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void await_shouldThrowTheExceptionOfTheSubQueryOnTheCaller() {
+		executor.await(executor.submit(() -> {
+			throw new IllegalStateException("failed");
+		}));
+	}
+	
+}
@@ -0,0 +1,156 @@
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.io.IOException;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.hibernate.SessionFactory;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.hibernate.search.query.dsl.QueryBuilder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.api.dao.hibernate.PatientLuceneQuery;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class CriteriaLuceneQueryTest extends BaseModuleContextSensitiveTest {
+	
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+	
+	/**
+	 * Birthdates at the boundaries of the year 2000
+	 */
+	private static final LocalDate[] BIRTHDATES = { LocalDate.of(1999, 12, 31), LocalDate.of(2000, 1, 1),
+	        LocalDate.of(2000, 1, 2), LocalDate.of(2000, 6, 15), LocalDate.of(2000, 12, 30), LocalDate.of(2000, 12, 31),
+	        LocalDate.of(2001, 1, 1) };
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Before
+	public void setBirthdatesAtTheBoundariesOfAYear() {
+		List<Patient> patients = Context.getPatientService().getAllPatients(false);
+		Assert.assertTrue(patients.size() >= BIRTHDATES.length);
+		for (int i = 0; i < BIRTHDATES.length; i++) {
+			patients.get(i).setBirthdate(getDate(BIRTHDATES[i]));
+			Context.getPatientService().savePatient(patients.get(i));
+		}
+		Context.flushSession();
+		updateSearchIndex();
+		SegmentFilterCache.getInstance().clear();
+	}
+	
+	@Test
+	public void getLuceneQuery_shouldMatchTheSameRangesOfAgeAsAnUncachedRange() {
+		assertSameAsUncachedRange(LocalDate.of(1999, 12, 31), LocalDate.of(2000, 12, 31));
+		assertSameAsUncachedRange(LocalDate.of(2000, 1, 1), LocalDate.of(2000, 12, 31));
+		assertSameAsUncachedRange(LocalDate.of(2000, 1, 2), LocalDate.of(2000, 12, 30));
+		assertSameAsUncachedRange(LocalDate.of(1999, 12, 31), LocalDate.of(2001, 1, 1));
+		assertSameAsUncachedRange(LocalDate.of(2000, 12, 31), LocalDate.of(2001, 1, 1));
+		assertSameAsUncachedRange(LocalDate.of(2000, 6, 15), LocalDate.of(2000, 6, 15));
+		assertSameAsUncachedRange(LocalDate.of(1990, 1, 1), LocalDate.of(2009, 12, 31));
+	}
+	
+	@Test
+	public void getLuceneQuery_shouldMatchTheBirthdateAsAWholeDay() {
+		Date noon = Date.from(LocalDate.of(2000, 12, 31).atTime(12, 0).atZone(ZONE).toInstant());
+		Set<Integer> expected = getPersonIds(LocalDate.of(2000, 12, 31), LocalDate.of(2000, 12, 31));
+		Assert.assertEquals(1, expected.size());
+		Assert.assertEquals(expected, getPersonIds(list(getCriteriaQuery(noon, null, null))));
+		Assert.assertEquals(expected, getPersonIds(list(getCriteriaQuery(getDate(LocalDate.of(2000, 12, 31)), null,
+		    null))));
+	}
+	
+	@Test
+	public void getLuceneQuery_shouldOnlyCacheTheWholeYearsOfTheRange() {
+		list(getCriteriaQuery(null, null, null));
+		int withoutRange = SegmentFilterCache.getInstance().size();
+		
+		// a range of age from the 31st of December starts with a single day of its first year
+		list(getCriteriaQuery(null, getDate(LocalDate.of(2000, 12, 30)), getDate(LocalDate.of(1999, 12, 31))));
+		Assert.assertEquals(withoutRange, SegmentFilterCache.getInstance().size());
+		list(getCriteriaQuery(null, getDate(LocalDate.of(2000, 12, 31)), getDate(LocalDate.of(2000, 1, 2))));
+		Assert.assertEquals(withoutRange, SegmentFilterCache.getInstance().size());
+		
+		list(getCriteriaQuery(null, getDate(LocalDate.of(2000, 12, 31)), getDate(LocalDate.of(2000, 1, 1))));
+		Assert.assertTrue(SegmentFilterCache.getInstance().size() > withoutRange);
+	}
+	
+	/**
+	 * @param lower : first day of birth of the range
+	 * @param upper : last day of birth of the range
+	 */
+	private void assertSameAsUncachedRange(LocalDate lower, LocalDate upper) {
+		FullTextSession session = Search.getFullTextSession(sessionFactory.getCurrentSession());
+		QueryBuilder queryBuilder = session.getSearchFactory().buildQueryBuilder().forEntity(Person.class).get();
+		BooleanQuery.Builder uncached = new BooleanQuery.Builder();
+		uncached.add(queryBuilder.range().onField("birthdate").from(getDate(lower).getTime()).to(
+		    getDate(upper.plusDays(1)).getTime()).excludeLimit().createQuery(), Occur.MUST);
+		uncached.add(queryBuilder.keyword().onField("voided").matching(false).createQuery(), Occur.FILTER);
+		uncached.add(queryBuilder.keyword().onField("isPatient").matching(true).createQuery(), Occur.FILTER);
+		@SuppressWarnings("unchecked")
+		List<Person> expected = session.createFullTextQuery(uncached.build(), Person.class).list();
+		
+		String range = lower + " to " + upper;
+		Assert.assertEquals(range, getPersonIds(lower, upper), getPersonIds(expected));
+		Assert.assertEquals(range, getPersonIds(expected), getPersonIds(list(getCriteriaQuery(null, getDate(upper),
+		    getDate(lower)))));
+	}
+	
+	private CriteriaLuceneQuery<Person> getCriteriaQuery(Date birthdate, Date from, Date to) {
+		return new PatientLuceneQuery(sessionFactory).getPatientWithCriteria(null, birthdate, from, to, false);
+	}
+	
+	private List<Person> list(CriteriaLuceneQuery<Person> query) {
+		return query.list();
+	}
+	
+	/**
+	 * @return ids of the patients which are not voided, born between the given days
+	 */
+	private Set<Integer> getPersonIds(LocalDate lower, LocalDate upper) {
+		Set<Integer> personIds = new HashSet<Integer>();
+		for (Patient patient : Context.getPatientService().getAllPatients(false)) {
+			if (patient.getBirthdate() != null) {
+				LocalDate birthdate = Instant.ofEpochMilli(patient.getBirthdate().getTime()).atZone(ZONE).toLocalDate();
+				if (!birthdate.isBefore(lower) && !birthdate.isAfter(upper)) {
+					personIds.add(patient.getPersonId());
+				}
+			}
+		}
+		return personIds;
+	}
+	
+	private static Set<Integer> getPersonIds(List<Person> persons) {
+		Set<Integer> personIds = new HashSet<Integer>();
+		for (Person person : persons) {
+			personIds.add(person.getPersonId());
+		}
+		return personIds;
+	}
+	
+	private static Date getDate(LocalDate day) {
+		return Date.from(day.atStartOfDay(ZONE).toInstant());
+	}
+	
+}
@@ -0,0 +1,90 @@
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.io.IOException;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+
+public class PersonIdCollectorTest {
+	
+	@Test
+	public void collect_shouldCollectTheIdsOfTheMatchingDocuments() throws Exception {
+		PersonIdCollector collector = search(10, 100);
+		
+		Assert.assertEquals(10, collector.size());
+		Assert.assertFalse(collector.isFull());
+		Assert.assertFalse(collector.isTruncated());
+		PersonIdSet set = PersonIdSet.of(collector.getIds(), collector.size());
+		Assert.assertEquals(10, set.size());
+		for (int personId = 1; personId <= 10; personId++) {
+			Assert.assertTrue(set.contains(personId));
+		}
+	}
+	
+	@Test
+	public void collect_shouldStopWhenMoreDocumentsMatchThanTheLargestNumberOfIds() throws Exception {
+		PersonIdCollector collector = search(10, 5);
+		
+		Assert.assertTrue(collector.isFull());
+		Assert.assertEquals(5, collector.size());
+	}
+	
+	@Test
+	public void collect_shouldStopInTheMiddleOfTheCollectionWhenTheDeadlineExpires() throws Exception {
+		SearchDeadline.begin(1);
+		try {
+			Thread.sleep(10);
+			PersonIdCollector collector = search(10000, 100000);
+			
+			Assert.assertTrue(collector.isTruncated());
+			Assert.assertFalse(collector.isFull());
+			// the deadline is checked every 4096 documents
+			Assert.assertEquals(4095, collector.size());
+		}
+		finally {
+			SearchDeadline.end();
+		}
+	}
+	
+	/**
+	 * Searches all the documents of an index of the given number of persons, with ids from 1.
+	 */
+	private PersonIdCollector search(int persons, int maxIds) throws IOException {
+		Directory directory = new RAMDirectory();
+		try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+			for (int personId = 1; personId <= persons; personId++) {
+				Document document = new Document();
+				document.add(new StringField("personId", String.valueOf(personId), Store.YES));
+				writer.addDocument(document);
+			}
+		}
+		try (IndexReader reader = DirectoryReader.open(directory)) {
+			PersonIdCollector collector = new PersonIdCollector("personId", maxIds);
+			new IndexSearcher(reader).search(new MatchAllDocsQuery(), collector);
+			return collector;
+		}
+	}
+	
+}
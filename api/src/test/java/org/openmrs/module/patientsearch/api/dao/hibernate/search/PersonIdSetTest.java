@@ -0,0 +1,59 @@
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.io.IOException;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PersonIdSetTest {
+	
+	@Test
+	public void of_shouldSortTheIdsAndDropTheDuplicates() {
+		PersonIdSet set = PersonIdSet.of(new int[] { 7, 3, 9, 3, 7, 1, 0 }, 6);
+		
+		Assert.assertEquals(4, set.size());
+		for (int personId : new int[] { 1, 3, 7, 9 }) {
+			Assert.assertTrue(set.contains(personId));
+		}
+		Assert.assertFalse(set.contains(0));
+		Assert.assertFalse(set.contains(5));
+	}
+	
+	@Test
+	public void of_shouldBeEmptyWithoutIds() {
+		PersonIdSet set = PersonIdSet.of(new int[] { 4 }, 0);
+		
+		Assert.assertEquals(0, set.size());
+		Assert.assertFalse(set.contains(4));
+	}
+	
+	@Test
+	public void retainAll_shouldKeepTheIdsInTheSetInTheirOrder() {
+		PersonIdSet set = PersonIdSet.of(new int[] { 2, 4, 6, 8 }, 4);
+		int[] personIds = { 8, 5, 2, 2, 7, 6, 4 };
+		
+		int kept = set.retainAll(personIds, 6);
+		
+		Assert.assertEquals(4, kept);
+		Assert.assertArrayEquals(new int[] { 8, 2, 2, 6 }, Arrays.copyOf(personIds, kept));
+		Assert.assertEquals(4, set.size());
+	}
+	
+	@Test
+	public void retainAll_shouldKeepNothingOfDisjointIds() {
+		PersonIdSet set = PersonIdSet.of(new int[] { 1, 3 }, 2);
+		int[] personIds = { 2, 4 };
+		
+		Assert.assertEquals(0, set.retainAll(personIds, personIds.length));
+	}
+	
+}
@@ -0,0 +1,118 @@
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.io.IOException;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.api.APIException;
+
+public class SearchAfterCursorTest {
+	
+	@Test
+	public void decode_shouldReadTheValuesOfTheEncodedCursor() {
+		SearchAfterCursor cursor = SearchAfterCursor.decode(new SearchAfterCursor(-42L, 7, 0.5f, 20).encode());
+		
+		Assert.assertEquals(7, cursor.getScoreDoc().doc);
+		Assert.assertEquals(0.5f, cursor.getScoreDoc().score, 0f);
+		Assert.assertEquals(20, cursor.getPosition());
+	}
+	
+	@Test
+	public void decode_shouldReturnNullForAnEmptyToken() {
+		Assert.assertNull(SearchAfterCursor.decode(null));
+		Assert.assertNull(SearchAfterCursor.decode(""));
+	}
+	
+	@Test(expected = APIException.class)
+	public void decode_shouldRejectATokenWhichIsNotBase64() {
+		SearchAfterCursor.decode("not a cursor!");
+	}
+	
+	@Test(expected = APIException.class)
+	public void decode_shouldRejectATokenOfAnotherVersion() {
+		SearchAfterCursor.decode(encode("2:1:2:3:4"));
+	}
+	
+	@Test(expected = APIException.class)
+	public void decode_shouldRejectATokenWithMissingValues() {
+		SearchAfterCursor.decode(encode("1:1:2"));
+	}
+	
+	@Test(expected = APIException.class)
+	public void decode_shouldRejectANegativeDocument() {
+		SearchAfterCursor.decode(new SearchAfterCursor(1L, -1, 1f, 10).encode());
+	}
+	
+	@Test(expected = APIException.class)
+	public void decode_shouldRejectANegativePosition() {
+		SearchAfterCursor.decode(new SearchAfterCursor(1L, 1, 1f, -10).encode());
+	}
+	
+	@Test(expected = APIException.class)
+	public void decode_shouldRejectAPositionWhichIsNotAnInt() {
+		SearchAfterCursor.decode(encode("1:1:2:" + Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void isValidFor_shouldRejectTheCursorOfAReaderWhoseSegmentsChanged() throws Exception {
+		Directory directory = new RAMDirectory();
+		try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+			addDocuments(writer, 10);
+			try (DirectoryReader reader = DirectoryReader.open(writer, true)) {
+				SearchAfterCursor cursor = new SearchAfterCursor(SearchAfterCursor.getReaderVersion(reader), 9, 1f, 10);
+				Assert.assertTrue(cursor.isValidFor(reader));
+				Assert.assertFalse(new SearchAfterCursor(SearchAfterCursor.getReaderVersion(reader), 10, 1f, 10)
+				        .isValidFor(reader));
+				
+				addDocuments(writer, 10);
+				try (DirectoryReader changed = DirectoryReader.openIfChanged(reader, writer, true)) {
+					Assert.assertFalse(cursor.isValidFor(changed));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void getOffsetHits_shouldBeBoundedByTheDocumentsOfTheIndex() throws Exception {
+		Directory directory = new RAMDirectory();
+		try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+			addDocuments(writer, 10);
+			try (DirectoryReader reader = DirectoryReader.open(writer, true)) {
+				Assert.assertEquals(7, new SearchAfterCursor(0, 1, 1f, 5).getOffsetHits(reader, 2));
+				Assert.assertEquals(10, new SearchAfterCursor(0, 1, 1f, Integer.MAX_VALUE).getOffsetHits(reader, 50));
+			}
+		}
+	}
+	
+	private static String encode(String value) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static void addDocuments(IndexWriter writer, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			Document document = new Document();
+			document.add(new StringField("personId", String.valueOf(i), Store.YES));
+			writer.addDocument(document);
+		}
+	}
+	
+}
@@ -0,0 +1,133 @@
+package org.openmrs.module.patientsearch.api.dao.hibernate;
+
+import java.io.IOException;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+package org.openmrs.module.patientsearch.api.dao.hibernate.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentFilterCacheTest {
+	
+	private static final Query FEMALE = new TermQuery(new Term("gender", "F"));
+	
+	private final SegmentFilterCache cache = new SegmentFilterCache();
+	
+	private Directory directory;
+	
+	@Before
+	public void createIndex() throws IOException {
+		directory = new RAMDirectory();
+		// three segments of 10 persons, every other one female
+		try (IndexWriter writer = newWriter()) {
+			for (int segment = 0; segment < 3; segment++) {
+				for (int i = 0; i < 10; i++) {
+					addPerson(writer, segment * 10 + i);
+				}
+				writer.commit();
+			}
+		}
+	}
+	
+	@Test
+	public void getBits_shouldCacheTheDocumentsOfEachSegment() throws Exception {
+		try (DirectoryReader reader = DirectoryReader.open(directory)) {
+			Assert.assertEquals(3, reader.leaves().size());
+			Assert.assertEquals(15, count(reader, new CachedFilterQuery(FEMALE, cache)));
+			Assert.assertEquals(3, cache.size());
+			
+			Assert.assertEquals(15, count(reader, new CachedFilterQuery(FEMALE, cache)));
+			Assert.assertEquals(3, cache.size());
+		}
+	}
+	
+	@Test
+	public void getBits_shouldDropTheBitsetsOfASegmentWhenItsCoreIsClosed() throws Exception {
+		DirectoryReader reader = DirectoryReader.open(directory);
+		count(reader, new CachedFilterQuery(FEMALE, cache));
+		Assert.assertEquals(3, cache.size());
+		
+		reader.close();
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void getBits_shouldMatchTheSameDocumentsAsTheFilterAfterTheSegmentsAreMerged() throws Exception {
+		DirectoryReader reader = DirectoryReader.open(directory);
+		Assert.assertEquals(count(reader, FEMALE), count(reader, new CachedFilterQuery(FEMALE, cache)));
+		
+		try (IndexWriter writer = newWriter()) {
+			addPerson(writer, 30);
+			writer.deleteDocuments(new Term("personId", "0"));
+			writer.forceMerge(1);
+		}
+		DirectoryReader merged = DirectoryReader.openIfChanged(reader);
+		reader.close();
+		try {
+			// the bitsets of the old segments are dropped with them
+			Assert.assertEquals(0, cache.size());
+			Assert.assertEquals(1, merged.leaves().size());
+			Assert.assertEquals(15, count(merged, FEMALE));
+			Assert.assertEquals(15, count(merged, new CachedFilterQuery(FEMALE, cache)));
+			Assert.assertEquals(1, cache.size());
+		}
+		finally {
+			merged.close();
+		}
+	}
+	
+	@Test
+	public void getBits_shouldLeaveTheDeletedDocumentsToTheLiveDocsOfTheReader() throws Exception {
+		try (DirectoryReader reader = DirectoryReader.open(directory)) {
+			count(reader, new CachedFilterQuery(FEMALE, cache));
+			try (IndexWriter writer = newWriter()) {
+				writer.deleteDocuments(new Term("personId", "2"));
+			}
+			// the reopened reader shares the cores of the segments, with new live docs
+			try (DirectoryReader reopened = DirectoryReader.openIfChanged(reader)) {
+				Assert.assertEquals(14, count(reopened, FEMALE));
+				Assert.assertEquals(14, count(reopened, new CachedFilterQuery(FEMALE, cache)));
+				Assert.assertEquals(3, cache.size());
+			}
+		}
+	}
+	
+	private IndexWriter newWriter() throws IOException {
+		return new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()));
+	}
+	
+	private static void addPerson(IndexWriter writer, int personId) throws IOException {
+		Document document = new Document();
+		document.add(new StringField("personId", String.valueOf(personId), Store.YES));
+		document.add(new StringField("gender", personId % 2 == 0 ? "F" : "M", Store.NO));
+		writer.addDocument(document);
+	}
+	
+	private static int count(DirectoryReader reader, Query query) throws IOException {
+		IndexSearcher searcher = new IndexSearcher(reader);
+		searcher.setQueryCache(null);
+		return searcher.count(query);
+	}
+	
+}
@@ -0,0 +1,156 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaActivator;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics.Stage;
+
+public class PatientSearchMetricsTest {
+	
+	private static final String SHAPE = "q+gender";
+	
+	@Test
+	public void end_shouldRecordTheTimeOfEachStageOfTheSearch() throws Exception {
+		PatientSearchMetrics metrics = newEnabledMetrics();
+		search(metrics);
+		metrics.record(SHAPE, Stage.SERIALIZATION, 5000000);
+		
+		Map<String, Double> meanMillis = metrics.getMeanMillisByStage();
+		Assert.assertTrue(meanMillis.get("index") > 0);
+		Assert.assertTrue(meanMillis.get("plan") > 0);
+		Assert.assertTrue(meanMillis.get("hydration") > 0);
+		Assert.assertEquals(5.0, meanMillis.get("serialization"), 0.001);
+		
+		Map<?, ?> shape = (Map<?, ?>) ((Map<?, ?>) metrics.getSnapshot().get("shapes")).get(SHAPE);
+		Map<?, ?> stages = (Map<?, ?>) shape.get("stages");
+		Assert.assertEquals(Arrays.asList("index", "plan", "hydration", "serialization"), Arrays.asList(stages.keySet()
+		        .toArray()));
+		Assert.assertEquals(1L, ((Map<?, ?>) stages.get("plan")).get("count"));
+		Assert.assertEquals(1L, ((Map<?, ?>) shape.get("strategies")).get("INTERSECT"));
+	}
+	
+	@Test
+	public void end_shouldRecordNothingWhenDisabled() throws Exception {
+		PatientSearchMetrics metrics = new PatientSearchMetrics();
+		metrics.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_SLOW_SEARCH_THRESHOLD_MILLIS,
+		        "0"));
+		
+		Assert.assertNull(metrics.begin(SHAPE, "criteria"));
+		Assert.assertEquals(0, metrics.getSearchCount());
+		Assert.assertEquals(0.0, metrics.getMeanMillisByStage().get("plan"), 0);
+	}
+	
+	@Test
+	public void begin_shouldNotCaptureTheDetailsOfTheSearchByDefault() {
+		PatientSearchMetrics metrics = newEnabledMetrics();
+		SearchTrace trace = metrics.begin(SHAPE, "criteria");
+		try {
+			Assert.assertFalse(metrics.getSlowSearchLog().isEnabled());
+			Assert.assertFalse(trace.isCapturingDetails());
+			Assert.assertFalse(SearchTrace.isCapturing());
+			Assert.assertNull(trace.getCriteria());
+		}
+		finally {
+			metrics.end(trace, null);
+		}
+	}
+	
+	@Test
+	public void stop_shouldAddTheTimeOfSubQueriesRunningOnOtherThreads() throws Exception {
+		SearchTrace trace = SearchTrace.begin(SHAPE, null, false);
+		int threads = 4;
+		int stops = 10000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					SearchTrace previous = SearchTrace.attach(trace);
+					try {
+						for (int j = 0; j < stops; j++) {
+							// every stop adds at least a millisecond
+							SearchTrace.stop(Stage.INDEX, System.nanoTime() - 1000000);
+						}
+					}
+					finally {
+						SearchTrace.restore(previous);
+					}
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get(10, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			trace.end();
+		}
+		Assert.assertTrue(trace.getStageNanos(Stage.INDEX) >= threads * stops * 1000000L);
+	}
+	
+	@Test
+	public void getSearchCount_shouldBeReadThroughTheMXBean() throws Exception {
+		PatientSearchMetrics metrics = newEnabledMetrics();
+		search(metrics);
+		
+		MBeanServer server = MBeanServerFactory.newMBeanServer();
+		ObjectName name = new ObjectName(PatientSearchCriteriaActivator.METRICS_OBJECT_NAME);
+		server.registerMBean(metrics, name);
+		PatientSearchMetricsMXBean proxy = JMX.newMXBeanProxy(server, name, PatientSearchMetricsMXBean.class);
+		
+		Assert.assertTrue(proxy.isEnabled());
+		Assert.assertEquals(1, proxy.getSearchCount());
+		Assert.assertEquals(Long.valueOf(1), proxy.getSearchCountByShape().get(SHAPE));
+		Assert.assertEquals(Long.valueOf(1), proxy.getSearchCountByStrategy().get("INTERSECT"));
+		Assert.assertEquals(Long.valueOf(1), proxy.getSearchCountByResultSize().get("2-10"));
+		Assert.assertTrue(proxy.getMeanMillisByStage().get("plan") > 0);
+		Assert.assertEquals(1L, server.getAttribute(name, "SearchCount"));
+		
+		proxy.reset();
+		Assert.assertEquals(0, metrics.getSearchCount());
+	}
+	
+	private PatientSearchMetrics newEnabledMetrics() {
+		PatientSearchMetrics metrics = new PatientSearchMetrics();
+		metrics.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_METRICS_ENABLED, "true"));
+		return metrics;
+	}
+	
+	private void search(PatientSearchMetrics metrics) throws InterruptedException {
+		SearchTrace trace = metrics.begin(SHAPE, "criteria");
+		for (Stage stage : new Stage[] { Stage.PLAN, Stage.INDEX, Stage.HYDRATION }) {
+			long started = SearchTrace.start();
+			Thread.sleep(1);
+			SearchTrace.stop(stage, started);
+		}
+		SearchTrace.tag("INTERSECT");
+		metrics.end(trace, new PatientSearchPage<Integer>(Arrays.asList(1, 2, 3), 3L, false));
+	}
+	
+}
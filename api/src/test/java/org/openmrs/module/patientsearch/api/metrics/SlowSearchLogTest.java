@@ -0,0 +1,48 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.metrics;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlowSearchLogTest {
+	
+	@Test
+	public void getEntries_shouldReturnLatestSearchesUpToCapacity() {
+		SlowSearchLog log = new SlowSearchLog(3, 1);
+		for (int i = 0; i < 5; i++) {
+			log.record(newSlowSearch("shape" + i));
+		}
+		List<SlowSearch> entries = log.getEntries();
+		Assert.assertEquals(3, entries.size());
+		Assert.assertEquals("shape4", entries.get(0).getShape());
+		Assert.assertEquals("shape2", entries.get(2).getShape());
+	}
+	
+	@Test
+	public void isSlow_shouldBeFalseWhenDisabled() {
+		SlowSearchLog log = new SlowSearchLog(3, 0);
+		Assert.assertFalse(log.isEnabled());
+		Assert.assertFalse(log.isSlow(Long.MAX_VALUE));
+		log.configure(3, 10);
+		Assert.assertTrue(log.isSlow(10000000));
+		Assert.assertFalse(log.isSlow(9999999));
+	}
+	
+	private SlowSearch newSlowSearch(String shape) {
+		SearchTrace trace = SearchTrace.begin(shape, "criteria", true);
+		SearchTrace.addQuery(() -> "+gender:F");
+		trace.end();
+		return new SlowSearch(trace, "admin", 1, 1L);
+	}
+	
+}
@@ -0,0 +1,325 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Random;
+import java.util.UUID;
+
+import org.hibernate.Session;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+
+/**
+ * Seedable generator of a large population of patients for performance tests. The same seed and
+ * size always generate the same patients. Names follow a skewed distribution, a few common names
+ * and a long tail of rare ones, gender is slightly more female and ages decrease linearly from 0
+ * to 100 years, so that the selectivity of the criteria is close to a real population.
+ * <p>
+ * The patients are bulk inserted with JDBC batches after the existing persons, the location and
+ * the patient identifier type must already exist, such as in
+ * <code>PatientSearchCriteriaServiceTest-patients.xml</code>. The rows are not committed, the
+ * caller commits them before building the search index with {@link #buildIndex(Session, int)}.
+ */
+public class PatientDatasetGenerator {
+	
+	public static final int BATCH_SIZE = 1000;
+	
+	private static final String[] GIVEN_NAMES = { "John", "Mary", "James", "Fatima", "Joseph", "Grace", "David", "Amina",
+	        "Peter", "Sarah", "Paul", "Esther", "Frank", "Ruth", "Samuel", "Agnes", "Daniel", "Alice", "Moses", "Rose",
+	        "Michael", "Faith", "Emmanuel", "Mercy", "Isaac", "Joyce", "Patrick", "Irene", "George", "Florence", "Adam",
+	        "Bethany" };
+	
+	private static final String[] FAMILY_NAMES = { "Okello", "Mwangi", "Banda", "Phiri", "Otieno", "Kamau", "Mensah",
+	        "Nakato", "Smith", "Franklin", "Garcia", "Nguyen", "Silva", "Kariuki", "Ochieng", "Moyo", "Dube", "Tembo",
+	        "Juma", "Achieng", "Benet", "Took" };
+	
+	private static final String[] SYLLABLES = { "ka", "mo", "ri", "ta", "na", "be", "lo", "si", "we", "du", "ma", "ke",
+	        "zi", "ra", "no", "pe", "ha", "gu", "li", "so" };
+	
+	private static final int MAX_AGE = 100;
+	
+	private static final double FEMALE_RATIO = 0.51;
+	
+	private static final double MIDDLE_NAME_RATIO = 0.3;
+	
+	private static final double RARE_NAME_RATIO = 0.3;
+	
+	private final Random random;
+	
+	private final LocalDate today;
+	
+	private double voidedRatio = 0;
+	
+	/**
+	 * @param seed : seed of the random generator, the same seed generates the same patients
+	 * @param today : date from which the ages are computed, fixed to generate the same birthdates
+	 */
+	public PatientDatasetGenerator(long seed, LocalDate today) {
+		this.random = new Random(seed);
+		this.today = today;
+	}
+	
+	/**
+	 * @param voidedRatio : ratio of the patients which are voided, none by default
+	 */
+	public void setVoidedRatio(double voidedRatio) {
+		this.voidedRatio = voidedRatio;
+	}
+	
+	/**
+	 * @return the next generated patient, the person id is assigned when it is inserted
+	 */
+	public GeneratedPatient next() {
+		GeneratedPatient patient = new GeneratedPatient();
+		patient.gender = random.nextDouble() < FEMALE_RATIO ? "F" : "M";
+		patient.birthdate = getBirthdate();
+		patient.givenName = getName(GIVEN_NAMES);
+		patient.middleName = random.nextDouble() < MIDDLE_NAME_RATIO ? getName(GIVEN_NAMES) : "";
+		patient.familyName = getName(FAMILY_NAMES);
+		patient.voided = random.nextDouble() < voidedRatio;
+		patient.personUuid = getUuid();
+		patient.nameUuid = getUuid();
+		patient.identifierUuid = getUuid();
+		return patient;
+	}
+	
+	/**
+	 * Inserts the given number of patients, each with one person, preferred name and preferred
+	 * identifier.
+	 * 
+	 * @return the id of the first inserted person, the others follow it
+	 */
+	public int generate(Connection connection, int patients) throws SQLException {
+		int firstPersonId = getNextId(connection, "person", "person_id");
+		int firstNameId = getNextId(connection, "person_name", "person_name_id");
+		int firstIdentifierId = getNextId(connection, "patient_identifier", "patient_identifier_id");
+		int identifierTypeId = getFirstId(connection, "patient_identifier_type", "patient_identifier_type_id");
+		int locationId = getFirstId(connection, "location", "location_id");
+		Timestamp dateCreated = new Timestamp(System.currentTimeMillis());
+		
+		try (PreparedStatement person = connection.prepareStatement("insert into person (person_id, gender, birthdate,"
+		        + " birthdate_estimated, dead, creator, date_created, voided, uuid) values (?, ?, ?, 0, 0, 1, ?, ?, ?)");
+		        PreparedStatement name = connection.prepareStatement("insert into person_name (person_name_id, preferred,"
+		                + " person_id, given_name, middle_name, family_name, creator, date_created, voided, uuid)"
+		                + " values (?, 1, ?, ?, ?, ?, 1, ?, ?, ?)");
+		        PreparedStatement patient = connection.prepareStatement("insert into patient (patient_id, creator,"
+		                + " date_created, voided) values (?, 1, ?, ?)");
+		        PreparedStatement identifier = connection.prepareStatement("insert into patient_identifier"
+		                + " (patient_identifier_id, patient_id, identifier, identifier_type, preferred, location_id,"
+		                + " creator, date_created, voided, uuid) values (?, ?, ?, ?, 1, ?, 1, ?, ?, ?)")) {
+			for (int i = 0; i < patients; i++) {
+				GeneratedPatient generated = next();
+				int personId = firstPersonId + i;
+				
+				person.setInt(1, personId);
+				person.setString(2, generated.gender);
+				person.setTimestamp(3, Timestamp.valueOf(generated.birthdate.atStartOfDay()));
+				person.setTimestamp(4, dateCreated);
+				person.setBoolean(5, generated.voided);
+				person.setString(6, generated.personUuid);
+				person.addBatch();
+				
+				name.setInt(1, firstNameId + i);
+				name.setInt(2, personId);
+				name.setString(3, generated.givenName);
+				name.setString(4, generated.middleName);
+				name.setString(5, generated.familyName);
+				name.setTimestamp(6, dateCreated);
+				name.setBoolean(7, generated.voided);
+				name.setString(8, generated.nameUuid);
+				name.addBatch();
+				
+				patient.setInt(1, personId);
+				patient.setTimestamp(2, dateCreated);
+				patient.setBoolean(3, generated.voided);
+				patient.addBatch();
+				
+				identifier.setInt(1, firstIdentifierId + i);
+				identifier.setInt(2, personId);
+				identifier.setString(3, getIdentifier(personId));
+				identifier.setInt(4, identifierTypeId);
+				identifier.setInt(5, locationId);
+				identifier.setTimestamp(6, dateCreated);
+				identifier.setBoolean(7, generated.voided);
+				identifier.setString(8, generated.identifierUuid);
+				identifier.addBatch();
+				
+				if ((i + 1) % BATCH_SIZE == 0 || i + 1 == patients) {
+					person.executeBatch();
+					name.executeBatch();
+					patient.executeBatch();
+					identifier.executeBatch();
+				}
+			}
+		}
+		return firstPersonId;
+	}
+	
+	/**
+	 * Deletes the patients inserted by {@link #generate(Connection, int)} from the given person id,
+	 * for tests which commit them.
+	 */
+	public static void delete(Connection connection, int firstPersonId) throws SQLException {
+		for (String delete : new String[] { "delete from patient_identifier where patient_id >= ?",
+		        "delete from patient where patient_id >= ?", "delete from person_name where person_id >= ?",
+		        "delete from person where person_id >= ?" }) {
+			try (PreparedStatement statement = connection.prepareStatement(delete)) {
+				statement.setInt(1, firstPersonId);
+				statement.executeUpdate();
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds the search index of persons, names and identifiers in bulk, from the committed rows.
+	 */
+	public static void buildIndex(Session session, int threads) {
+		FullTextSession fullTextSession = Search.getFullTextSession(session);
+		try {
+			fullTextSession.createIndexer(Person.class, PersonName.class, PatientIdentifier.class)
+			        .batchSizeToLoadObjects(BATCH_SIZE / 10).threadsToLoadObjects(threads).startAndWait();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while building the search index", e);
+		}
+	}
+	
+	/**
+	 * @return the identifier of the given person, its number followed by a Luhn check digit
+	 */
+	public static String getIdentifier(int personId) {
+		String number = String.valueOf(personId);
+		int sum = 0;
+		for (int i = 0; i < number.length(); i++) {
+			int digit = number.charAt(number.length() - 1 - i) - '0';
+			if (i % 2 == 0) {
+				digit *= 2;
+				if (digit > 9) {
+					digit -= 9;
+				}
+			}
+			sum += digit;
+		}
+		return number + "-" + (10 - sum % 10) % 10;
+	}
+	
+	/**
+	 * Picks a common name with a probability decreasing with its rank, or a rare generated name.
+	 */
+	private String getName(String[] commonNames) {
+		if (random.nextDouble() < RARE_NAME_RATIO) {
+			StringBuilder name = new StringBuilder();
+			int syllables = 2 + random.nextInt(3);
+			for (int i = 0; i < syllables; i++) {
+				name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		}
+		// the square of a uniform number favours the first ranks
+		double rank = random.nextDouble();
+		return commonNames[(int) (rank * rank * commonNames.length)];
+	}
+	
+	private LocalDate getBirthdate() {
+		// the minimum of two uniform ages decreases linearly from 0 to MAX_AGE
+		int days = Math.min(random.nextInt(MAX_AGE * 365), random.nextInt(MAX_AGE * 365));
+		return today.minusDays(days);
+	}
+	
+	private String getUuid() {
+		return new UUID(random.nextLong(), random.nextLong()).toString();
+	}
+	
+	private int getNextId(Connection connection, String table, String column) throws SQLException {
+		try (Statement statement = connection.createStatement();
+		        ResultSet result = statement.executeQuery("select max(" + column + ") from " + table)) {
+			result.next();
+			return result.getInt(1) + 1;
+		}
+	}
+	
+	private int getFirstId(Connection connection, String table, String column) throws SQLException {
+		try (Statement statement = connection.createStatement();
+		        ResultSet result = statement.executeQuery("select min(" + column + ") from " + table)) {
+			result.next();
+			int id = result.getInt(1);
+			if (result.wasNull()) {
+				throw new IllegalStateException("The " + table + " table is empty, load its reference data first");
+			}
+			return id;
+		}
+	}
+	
+	/**
+	 * Generated demographics of one patient.
+	 */
+	public static class GeneratedPatient {
+		
+		private String gender;
+		
+		private LocalDate birthdate;
+		
+		private String givenName;
+		
+		private String middleName;
+		
+		private String familyName;
+		
+		private boolean voided;
+		
+		private String personUuid;
+		
+		private String nameUuid;
+		
+		private String identifierUuid;
+		
+		public String getGender() {
+			return gender;
+		}
+		
+		public LocalDate getBirthdate() {
+			return birthdate;
+		}
+		
+		public String getGivenName() {
+			return givenName;
+		}
+		
+		public String getMiddleName() {
+			return middleName;
+		}
+		
+		public String getFamilyName() {
+			return familyName;
+		}
+		
+		public boolean isVoided() {
+			return voided;
+		}
+		
+		public String getPersonUuid() {
+			return personUuid;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,124 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.api.test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+import org.apache.lucene.index.IndexReader;
+import org.hibernate.SessionFactory;
+import org.hibernate.search.Search;
+import org.hibernate.search.indexes.IndexReaderAccessor;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.module.patientsearch.api.test.PatientDatasetGenerator.GeneratedPatient;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class PatientDatasetGeneratorTest extends BaseModuleContextSensitiveTest {
+	
+	private static final LocalDate TODAY = LocalDate.of(2019, 1, 1);
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Test
+	public void next_shouldGenerateSamePatientsWithSameSeed() {
+		PatientDatasetGenerator generator = new PatientDatasetGenerator(42, TODAY);
+		PatientDatasetGenerator other = new PatientDatasetGenerator(42, TODAY);
+		for (int i = 0; i < 1000; i++) {
+			GeneratedPatient patient = generator.next();
+			GeneratedPatient same = other.next();
+			Assert.assertEquals(patient.getPersonUuid(), same.getPersonUuid());
+			Assert.assertEquals(patient.getGender(), same.getGender());
+			Assert.assertEquals(patient.getBirthdate(), same.getBirthdate());
+			Assert.assertEquals(patient.getGivenName(), same.getGivenName());
+			Assert.assertEquals(patient.getFamilyName(), same.getFamilyName());
+		}
+	}
+	
+	@Test
+	public void next_shouldGenerateBothGendersAndAgesUpToHundredYears() {
+		PatientDatasetGenerator generator = new PatientDatasetGenerator(42, TODAY);
+		int females = 0;
+		int children = 0;
+		for (int i = 0; i < 10000; i++) {
+			GeneratedPatient patient = generator.next();
+			if ("F".equals(patient.getGender())) {
+				females++;
+			}
+			if (patient.getBirthdate().isAfter(TODAY.minusYears(18))) {
+				children++;
+			}
+			Assert.assertFalse(patient.getBirthdate().isBefore(TODAY.minusYears(101)));
+			Assert.assertFalse(patient.isVoided());
+		}
+		Assert.assertTrue(females > 4500 && females < 5700);
+		// the linear decrease of ages puts about a third of the population under 18
+		Assert.assertTrue(children > 2500 && children < 4000);
+	}
+	
+	@Test
+	public void getIdentifier_shouldAppendLuhnCheckDigit() {
+		Assert.assertEquals("12345-5", PatientDatasetGenerator.getIdentifier(12345));
+	}
+	
+	@Test
+	public void generate_shouldInsertRowsWhichBuildIndexIndexes() throws Exception {
+		Connection connection = getConnection();
+		int firstPersonId = new PatientDatasetGenerator(42, TODAY).generate(connection, 50);
+		connection.commit();
+		try {
+			for (String table : new String[] { "person", "person_name", "patient", "patient_identifier" }) {
+				String personIdColumn = table.startsWith("patient") ? "patient_id" : "person_id";
+				Assert.assertEquals(table, 50, count(connection, "select count(*) from " + table + " where "
+				        + personIdColumn + " >= " + firstPersonId));
+			}
+			
+			PatientDatasetGenerator.buildIndex(sessionFactory.getCurrentSession(), 2);
+			Assert.assertEquals(count(connection, "select count(*) from person"), countDocuments(Person.class));
+			Assert.assertEquals(count(connection, "select count(*) from person_name"), countDocuments(PersonName.class));
+			Assert.assertEquals(count(connection, "select count(*) from patient_identifier"),
+			    countDocuments(PatientIdentifier.class));
+		}
+		finally {
+			PatientDatasetGenerator.delete(connection, firstPersonId);
+			connection.commit();
+			updateSearchIndex();
+		}
+	}
+	
+	private int count(Connection connection, String sql) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(sql);
+		        ResultSet resultSet = statement.executeQuery()) {
+			resultSet.next();
+			return resultSet.getInt(1);
+		}
+	}
+	
+	private int countDocuments(Class<?> type) {
+		IndexReaderAccessor readerAccessor = Search.getFullTextSession(sessionFactory.getCurrentSession())
+		        .getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = readerAccessor.open(type);
+		try {
+			return reader.numDocs();
+		}
+		finally {
+			readerAccessor.close(reader);
+		}
+	}
+	
+}
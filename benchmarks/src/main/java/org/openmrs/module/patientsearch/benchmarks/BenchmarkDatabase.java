@@ -0,0 +1,109 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.benchmarks;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+import org.hibernate.SessionFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.openmrs.module.patientsearch.api.test.PatientDatasetGenerator;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Embedded database and search index shared by all the threads of a benchmark. The OpenMRS test
+ * context is started outside of JUnit, on the same in-memory H2 database and temporary index as the
+ * module tests. The patients of the service tests are loaded into it, followed by the given number
+ * of patients generated from the given seed, see {@link PatientDatasetGenerator}.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+	
+	public static final String PATIENTS_XML = "org/openmrs/module/patientsearch/api/include/PatientSearchCriteriaServiceTest-patients.xml";
+	
+	private static final String[] CONTEXT_LOCATIONS = { "classpath:applicationContext-service.xml",
+	        "classpath*:moduleApplicationContext.xml", "classpath*:TestingApplicationContext.xml" };
+	
+	@Param({ "100000" })
+	public int patients;
+	
+	@Param({ "42" })
+	public long seed;
+	
+	private ClassPathXmlApplicationContext applicationContext;
+	
+	private PatientSearchCriteriaDAO dao;
+	
+	private PatientSearchCriteriaService service;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException {
+		// the constructor points the runtime properties at the in-memory database
+		Loader loader = new Loader();
+		applicationContext = new ClassPathXmlApplicationContext(CONTEXT_LOCATIONS);
+		AutowireCapableBeanFactory beanFactory = applicationContext.getAutowireCapableBeanFactory();
+		beanFactory.autowireBeanProperties(loader, AutowireCapableBeanFactory.AUTOWIRE_NO, false);
+		beanFactory.initializeBean(loader, Loader.class.getName());
+		
+		Context.openSession();
+		try {
+			loader.load(new PatientDatasetGenerator(seed, LocalDate.now()), patients);
+			PatientDatasetGenerator.buildIndex(applicationContext.getBean("sessionFactory", SessionFactory.class)
+			        .getCurrentSession(), Runtime.getRuntime().availableProcessors());
+		}
+		finally {
+			Context.closeSession();
+		}
+		
+		dao = applicationContext.getBean("patientsearch.PatientSearchCriteriaDao", PatientSearchCriteriaDAO.class);
+		service = applicationContext.getBean(PatientSearchCriteriaService.class);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (applicationContext != null) {
+			applicationContext.close();
+		}
+	}
+	
+	public PatientSearchCriteriaDAO getDao() {
+		return dao;
+	}
+	
+	public PatientSearchCriteriaService getService() {
+		return service;
+	}
+	
+	/**
+	 * Reuses the database setup of the module tests, it is never run as a test itself.
+	 */
+	static class Loader extends BaseModuleContextSensitiveTest {
+		
+		void load(PatientDatasetGenerator generator, int patients) throws SQLException {
+			initializeInMemoryDatabase();
+			executeDataSet(PATIENTS_XML);
+			Context.flushSession();
+			generator.generate(getConnection(), patients);
+			getConnection().commit();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,52 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count, 1, 2, 4... up to the maximum, with the GC profiler,
+ * to see how the searches scale under concurrency. The results of each run are written to
+ * <code>jmh-threads-N.json</code>.
+ * <p>
+ * Usage: <code>java -jar benchmarks.jar [maxThreads] [include regex]</code>, the maximum defaults
+ * to the number of processors and the regex to all the benchmarks of the module.
+ */
+public class BenchmarkRunner {
+	
+	public static void main(String[] args) throws RunnerException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		String include = args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + ".*";
+		
+		for (int threads : getThreadCounts(maxThreads)) {
+			Options options = new OptionsBuilder().include(include).threads(threads).addProfiler(GCProfiler.class)
+			        .resultFormat(ResultFormatType.JSON).result("jmh-threads-" + threads + ".json").build();
+			new Runner(options).run();
+		}
+	}
+	
+	static List<Integer> getThreadCounts(int maxThreads) {
+		List<Integer> threadCounts = new ArrayList<Integer>();
+		for (int threads = 1; threads < maxThreads; threads *= 2) {
+			threadCounts.add(threads);
+		}
+		threadCounts.add(Math.max(1, maxThreads));
+		return threadCounts;
+	}
+	
+}
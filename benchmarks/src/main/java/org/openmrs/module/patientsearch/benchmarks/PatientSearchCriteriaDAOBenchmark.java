@@ -0,0 +1,157 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.benchmarks;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openmrs.Patient;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteria;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.PatientSearchPlan;
+import org.openmrs.module.patientsearch.api.PatientSummary;
+import org.openmrs.module.patientsearch.api.dao.PatientSearchCriteriaDAO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One benchmark per search path of {@link PatientSearchCriteriaDAO}, each returns its result so
+ * that it is not eliminated as dead code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PatientSearchCriteriaDAOBenchmark {
+	
+	@Param({ "Frank" })
+	public String query;
+	
+	@Param({ "M" })
+	public String gender;
+	
+	@Param({ "20" })
+	public int length;
+	
+	private Date birthdate;
+	
+	private Date from;
+	
+	private Date to;
+	
+	private PatientSearchCriteria criteria;
+	
+	private PatientSearchPlan plan;
+	
+	private List<Integer> patientIds;
+	
+	private PatientSearchCriteriaDAO dao;
+	
+	@Setup
+	public void setUp(BenchmarkDatabase database, SearchSession session) {
+		dao = database.getDao();
+		birthdate = new GregorianCalendar(2014, 7, 28).getTime();
+		from = new GregorianCalendar(2016, 11, 31).getTime();
+		to = new GregorianCalendar(1970, 0, 1).getTime();
+		criteria = new PatientSearchCriteria(query, null, false, gender, null, from, to, false);
+		plan = dao.getSearchPlan(criteria);
+		patientIds = Arrays.asList(82, 83, 84, 85);
+	}
+	
+	@Benchmark
+	public List<Patient> nameOrIdAndGender(SearchSession session) {
+		return dao.getPatientsByNameOrIdAndGender(query, gender, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> gender(SearchSession session) {
+		return dao.getPatientsByGender(gender, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> rangeOfAge(SearchSession session) {
+		return dao.getPatientsByRangeOfAge(from, to, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> birthdate(SearchSession session) {
+		return dao.getPatientsByBirthdate(birthdate, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> nameOrIdAndGenderAndRangeOfAge(SearchSession session) {
+		return dao.getPatientsByNameOrIdAndGenderAndRangeOfAge(query, gender, from, to, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> nameOrIdAndGenderAndBirthdate(SearchSession session) {
+		return dao.getPatientsByNameOrIdAndGenderAndBirthdate(query, gender, birthdate, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> nameOrIdAndRangeOfAge(SearchSession session) {
+		return dao.getPatientsByNameOrIdAndRangeOfAge(query, from, to, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> nameOrIdAndBirthdate(SearchSession session) {
+		return dao.getPatientsByNameOrIdAndBirthdate(query, birthdate, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> genderAndBirthdate(SearchSession session) {
+		return dao.getPatientsByGenderAndBirthdate(gender, birthdate, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> genderAndAge(SearchSession session) {
+		return dao.getPatientsByGenderAndAge(gender, from, to, 0, length, false);
+	}
+	
+	@Benchmark
+	public List<Patient> byIds(SearchSession session) {
+		return dao.getPatientsByIds(patientIds);
+	}
+	
+	@Benchmark
+	public PatientSearchPage<PatientSummary> summaries(SearchSession session) {
+		return dao.getPatientSummaries(query, gender, null, from, to, 0, length, false);
+	}
+	
+	@Benchmark
+	public PatientSearchPage<Patient> after(SearchSession session) {
+		return dao.getPatientsAfter(gender, null, from, to, null, length, false);
+	}
+	
+	@Benchmark
+	public PatientSearchPlan searchPlan(SearchSession session) {
+		return dao.getSearchPlan(criteria);
+	}
+	
+	@Benchmark
+	public PatientSearchPage<Integer> idPage(SearchSession session) {
+		return dao.getPatientIdPage(criteria, plan, 0, length);
+	}
+	
+}
@@ -0,0 +1,106 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.benchmarks;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openmrs.Patient;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link PatientSearchCriteriaService#getPatients} end to end, through the planner, the optional
+ * result cache and the hydration of the patients, for the shapes of criteria of the REST search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PatientSearchCriteriaServiceBenchmark {
+	
+	@Param({ "Frank" })
+	public String name;
+	
+	@Param({ "82-82-82" })
+	public String identifier;
+	
+	@Param({ "M" })
+	public String gender;
+	
+	@Param({ "3" })
+	public int from;
+	
+	@Param({ "10" })
+	public int to;
+	
+	@Param({ "20" })
+	public int length;
+	
+	private Date birthdate;
+	
+	private PatientSearchCriteriaService service;
+	
+	@Setup
+	public void setUp(BenchmarkDatabase database) {
+		service = database.getService();
+		birthdate = new GregorianCalendar(2014, 7, 28).getTime();
+	}
+	
+	@Benchmark
+	public List<Patient> name(SearchSession session) {
+		return service.getPatients(name, null, null, false, null, null, null, null, 0, length);
+	}
+	
+	@Benchmark
+	public List<Patient> identifier(SearchSession session) {
+		return service.getPatients(null, identifier, null, true, null, null, null, null, 0, length);
+	}
+	
+	@Benchmark
+	public List<Patient> gender(SearchSession session) {
+		return service.getPatients(null, null, null, false, gender, null, null, null, 0, length);
+	}
+	
+	@Benchmark
+	public List<Patient> rangeOfAge(SearchSession session) {
+		return service.getPatients(null, null, null, false, null, from, to, null, 0, length);
+	}
+	
+	@Benchmark
+	public List<Patient> nameAndGenderAndRangeOfAge(SearchSession session) {
+		return service.getPatients(name, null, null, false, gender, from, to, null, 0, length);
+	}
+	
+	@Benchmark
+	public List<Patient> nameAndBirthdate(SearchSession session) {
+		return service.getPatients(name, null, null, false, null, null, null, birthdate, 0, length);
+	}
+	
+	@Benchmark
+	public List<Patient> identifierAndBirthdate(SearchSession session) {
+		return service.getPatients(null, identifier, null, true, null, null, null, birthdate, 0, length);
+	}
+	
+}
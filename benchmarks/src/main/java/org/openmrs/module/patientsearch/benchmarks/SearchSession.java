@@ -0,0 +1,43 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.benchmarks;
+
+import org.openmrs.api.context.Context;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * OpenMRS session of a benchmark thread, authenticated as the admin of the test data. The
+ * hibernate session is cleared before each invocation, so each search hydrates its patients from the
+ * database as it would on a new request.
+ */
+@State(Scope.Thread)
+public class SearchSession {
+	
+	@Setup(Level.Trial)
+	public void open(BenchmarkDatabase database) {
+		Context.openSession();
+		Context.authenticate("admin", "test");
+	}
+	
+	@Setup(Level.Invocation)
+	public void clear() {
+		Context.clearSession();
+	}
+	
+	@TearDown(Level.Trial)
+	public void close() {
+		Context.closeSession();
+	}
+	
+}
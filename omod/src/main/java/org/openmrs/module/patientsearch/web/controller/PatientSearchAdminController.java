@@ -0,0 +1,91 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.web.controller;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.api.PatientSearchReindexer;
+import org.openmrs.module.patientsearch.api.PatientSearchWarmUp;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics;
+import org.openmrs.module.patientsearch.api.metrics.SlowSearchLog;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Administration page of the module, linked from {@link org.openmrs.module.patientsearch.extension.html.AdminList}.
+ * It shows the search metrics, the slow search log, the progress of the warm-up and of the rebuild
+ * of the search index, which it starts and stops.
+ */
+@Controller("patientsearch.PatientSearchAdminController")
+@RequestMapping(value = "module/patientsearch/patientsearch.form")
+public class PatientSearchAdminController {
+	
+	public static final String VIEW = "/module/patientsearch/patientsearch";
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchMetrics")
+	private PatientSearchMetrics metrics;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchWarmUp")
+	private PatientSearchWarmUp warmUp;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchReindexer")
+	private PatientSearchReindexer reindexer;
+	
+	@RequestMapping(method = RequestMethod.GET)
+	public String showPage(ModelMap model) {
+		SlowSearchLog slowSearchLog = metrics.getSlowSearchLog();
+		model.addAttribute("metricsEnabled", metrics.isEnabled());
+		model.addAttribute("searchCountByShape", metrics.getSearchCountByShape());
+		model.addAttribute("meanMillisByShape", metrics.getMeanMillisByShape());
+		model.addAttribute("maxMillisByShape", metrics.getMaxMillisByShape());
+		model.addAttribute("meanMillisByStage", metrics.getMeanMillisByStage());
+		model.addAttribute("slowSearchThreshold", slowSearchLog.getThresholdMillis());
+		model.addAttribute("slowSearchCapacity", slowSearchLog.getCapacity());
+		model.addAttribute("slowSearches", slowSearchLog.getEntries());
+		model.addAttribute("warmUp", warmUp.getProgress());
+		model.addAttribute("reindex", reindexer.getProgress(Context.getAdministrationService()));
+		return VIEW;
+	}
+	
+	/**
+	 * Clears the slow search log.
+	 */
+	@RequestMapping(method = RequestMethod.POST)
+	public String clearSlowSearches() {
+		Context.requirePrivilege(PrivilegeConstants.VIEW_ADMIN_FUNCTIONS);
+		metrics.getSlowSearchLog().clear();
+		return "redirect:patientsearch.form";
+	}
+	
+	/**
+	 * Starts, resumes or stops the rebuild of the search index.
+	 * 
+	 * @param action : start, resume or stop
+	 */
+	@RequestMapping(method = RequestMethod.POST, params = "reindex")
+	public String reindex(@RequestParam("reindex") String action) {
+		Context.requirePrivilege(PrivilegeConstants.MANAGE_SEARCH_INDEX);
+		if ("stop".equals(action)) {
+			reindexer.stop();
+		} else {
+			reindexer.start(Context.getAdministrationService(), "resume".equals(action));
+		}
+		return "redirect:patientsearch.form";
+	}
+	
+}
@@ -0,0 +1,115 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.web.controller;
+
+import java.util.Date;
+import java.util.concurrent.Semaphore;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.api.PatientSearchAdmission;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openmrs.module.patientsearch.api.PatientSearchFacets;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.openmrs.module.patientsearch.api.SearchRejectedException;
+import org.openmrs.module.patientsearch.web.search.PatientSearchHandler;
+import org.openmrs.module.patientsearch.web.search.SearchUnavailableException;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RestConstants;
+import org.openmrs.module.webservices.rest.web.response.IllegalRequestException;
+import org.openmrs.module.webservices.rest.web.v1_0.controller.BaseRestController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves at <code>/ws/rest/v1/patientsearch/facets</code> the number of patients matching the
+ * criteria of the patient search (q, gender, birthdate, from and to), by gender and by bucket of
+ * age. The lowest ages of the buckets are given by the <code>buckets</code> parameter, such as
+ * <code>0,5,18,65</code>, else by the global property patientsearch.facets.ageBuckets. The
+ * <code>timeout</code> parameter bounds the count like the search, a count cut short is returned
+ * with <code>"truncated": true</code>. Like the search, the count waits for a permit of
+ * {@link PatientSearchAdmission} before the service opens its transaction.
+ */
+@Controller
+@RequestMapping("/rest/" + RestConstants.VERSION_1 + PatientSearchCriteriaController.PATIENTSEARCH_REST_NAMESPACE)
+public class PatientSearchFacetsController extends BaseRestController {
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchAdmission")
+	private PatientSearchAdmission admission;
+	
+	@RequestMapping(value = "/facets", method = RequestMethod.GET)
+	@ResponseBody
+	public SimpleObject getFacets(@RequestParam(value = "q", required = false) String q,
+	        @RequestParam(value = "gender", required = false) String gender,
+	        @RequestParam(value = "birthdate", required = false) Long birthdate,
+	        @RequestParam(value = "from", required = false) Integer from,
+	        @RequestParam(value = "to", required = false) Integer to,
+	        @RequestParam(value = "buckets", required = false) String buckets,
+	        @RequestParam(value = PatientSearchHandler.TIMEOUT_PARAMETER, required = false) String timeout,
+	        HttpServletResponse response) {
+		int[] ageBuckets = null;
+		if (buckets != null) {
+			try {
+				ageBuckets = PatientSearchFacets.parseAgeBuckets(buckets);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalRequestException("The buckets must be ages in years separated by commas: " + buckets);
+			}
+		}
+		
+		boolean deadline = SearchDeadline.begin(getTimeoutMillis(timeout));
+		PatientSearchFacets facets;
+		Semaphore permit = null;
+		try {
+			permit = admission.acquire();
+			facets = Context.getService(PatientSearchCriteriaService.class).getPatientFacets(null, q, gender, from, to,
+			    birthdate == null ? null : new Date(birthdate), ageBuckets);
+		}
+		catch (SearchRejectedException e) {
+			response.setHeader(PatientSearchHandler.RETRY_AFTER_HEADER, String.valueOf(e.getRetryAfterSeconds()));
+			throw new SearchUnavailableException(e.getMessage(), e);
+		}
+		finally {
+			admission.release(permit);
+			if (deadline) {
+				SearchDeadline.end();
+			}
+		}
+		
+		SimpleObject result = new SimpleObject();
+		result.add(PatientSearchHandler.TOTAL_COUNT_PROPERTY, facets.getTotalCount());
+		result.add("gender", facets.getCountsByGender());
+		result.add("age", facets.getCountsByAgeBucket());
+		if (facets.isTruncated()) {
+			result.add(PatientSearchHandler.TRUNCATED_PROPERTY, true);
+		}
+		return result;
+	}
+	
+	private long getTimeoutMillis(String timeout) {
+		if (timeout == null) {
+			return 0;
+		}
+		long timeoutMillis = NumberUtils.toLong(timeout, -1);
+		if (timeoutMillis > 0) {
+			return timeoutMillis;
+		}
+		throw new IllegalRequestException("The timeout must be a positive number of milliseconds: " + timeout);
+	}
+	
+}
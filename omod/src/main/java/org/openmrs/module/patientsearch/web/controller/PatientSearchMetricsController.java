@@ -0,0 +1,124 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.web.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.api.PatientSearchAdmission;
+import org.openmrs.module.patientsearch.api.PatientSearchWarmUp;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchCoalescer;
+import org.openmrs.module.patientsearch.api.cache.PatientSearchResultCache;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.SegmentFilterCache;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics;
+import org.openmrs.module.patientsearch.api.metrics.SlowSearch;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RestConstants;
+import org.openmrs.module.webservices.rest.web.v1_0.controller.BaseRestController;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves the search metrics at <code>/ws/rest/v1/patientsearch/metrics</code>, with the statistics
+ * of the result cache, of the cached filters, of the coalescing and of the admission control, and the slow search log at
+ * <code>/ws/rest/v1/patientsearch/slowsearches</code>. The progress of the warm-up is served at
+ * <code>/ws/rest/v1/patientsearch/warmup</code>.
+ */
+@Controller
+@RequestMapping("/rest/" + RestConstants.VERSION_1 + PatientSearchCriteriaController.PATIENTSEARCH_REST_NAMESPACE)
+public class PatientSearchMetricsController extends BaseRestController {
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchMetrics")
+	private PatientSearchMetrics metrics;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchResultCache")
+	private PatientSearchResultCache resultCache;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchCoalescer")
+	private PatientSearchCoalescer coalescer;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchAdmission")
+	private PatientSearchAdmission admission;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchWarmUp")
+	private PatientSearchWarmUp warmUp;
+	
+	@RequestMapping(value = "/metrics", method = RequestMethod.GET)
+	@ResponseBody
+	public SimpleObject getMetrics() {
+		Context.requirePrivilege(PrivilegeConstants.VIEW_ADMIN_FUNCTIONS);
+		SimpleObject result = new SimpleObject();
+		for (Map.Entry<String, Object> metric : metrics.getSnapshot().entrySet()) {
+			result.add(metric.getKey(), metric.getValue());
+		}
+		result.add("resultCache", new SimpleObject().add("enabled", resultCache.isEnabled())
+		        .add("hits", resultCache.getHits()).add("misses", resultCache.getMisses()).add("size", resultCache.size()));
+		result.add("filterCache", new SimpleObject().add("bitsets", SegmentFilterCache.getInstance().size()));
+		result.add("coalescing", new SimpleObject().add("enabled", coalescer.isEnabled())
+		        .add("coalesced", coalescer.getCoalescedCount()).add("inFlight", coalescer.size()));
+		result.add("admission", new SimpleObject().add("permits", admission.getPermits())
+		        .add("active", admission.getActiveCount()).add("waiting", admission.getWaitingCount())
+		        .add("rejected", admission.getRejectedCount()));
+		return result;
+	}
+	
+	/**
+	 * @return the logged slow searches, the latest first
+	 */
+	@RequestMapping(value = "/slowsearches", method = RequestMethod.GET)
+	@ResponseBody
+	public SimpleObject getSlowSearches() {
+		Context.requirePrivilege(PrivilegeConstants.VIEW_ADMIN_FUNCTIONS);
+		List<Map<String, Object>> searches = new ArrayList<Map<String, Object>>();
+		for (SlowSearch search : metrics.getSlowSearchLog().getEntries()) {
+			searches.add(search.toMap());
+		}
+		return new SimpleObject().add("thresholdMillis", metrics.getSlowSearchLog().getThresholdMillis()).add("results",
+		    searches);
+	}
+	
+	/**
+	 * Answers 503 Service Unavailable while the warm-up runs, so a load balancer can wait for the
+	 * node to be warm. It requires an authenticated user but no privilege.
+	 * 
+	 * @return the progress of the warm-up
+	 */
+	@RequestMapping(value = "/warmup", method = RequestMethod.GET)
+	@ResponseBody
+	public SimpleObject getWarmUp(HttpServletResponse response) {
+		if (!Context.isAuthenticated()) {
+			throw new APIAuthenticationException("The progress of the warm-up requires an authenticated user");
+		}
+		if (!warmUp.isWarm()) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+		SimpleObject result = new SimpleObject();
+		for (Map.Entry<String, Object> progress : warmUp.getProgress().entrySet()) {
+			result.add(progress.getKey(), progress.getValue());
+		}
+		return result;
+	}
+	
+}
@@ -4,13 +4,44 @@ import org.openmrs.Patient;
 import org.openmrs.module.patientsearch.web.controller.PatientSearchCriteriaController;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.annotation.Resource;
+import org.openmrs.module.webservices.rest.web.representation.NamedRepresentation;
+import org.openmrs.module.webservices.rest.web.representation.Representation;
+import org.openmrs.module.webservices.rest.web.resource.impl.DelegatingResourceDescription;
 import org.openmrs.module.webservices.rest.web.v1_0.resource.openmrs1_8.PatientResource1_8;
 
 @Resource(name = RestConstants.VERSION_1 + PatientSearchCriteriaController.PATIENTSEARCH_REST_NAMESPACE + "/patient", supportedClass = Patient.class, supportedOpenmrsVersions = {
         "1.8.*", "1.9.*", "1.10.*, 1.11.*", "1.12.*", "2.0.*", "2.1.*", "2.2.*", "2.3.*" })
 public class PatientSearchCriteriaResource extends PatientResource1_8 {
 	
+	/**
+	 * Representation served straight from the search index, requested with <code>v=summary</code>
+	 *
+	 * @see PatientSummaryConverter
+	 */
+	public static final NamedRepresentation SUMMARY_REPRESENTATION = new NamedRepresentation("summary");
+	
 	public PatientSearchCriteriaResource() {
 	}
 	
+	public static boolean isSummaryRepresentation(Representation rep) {
+		return rep != null && SUMMARY_REPRESENTATION.getRepresentation().equals(rep.getRepresentation());
+	}
+	
+	/**
+	 * @see org.openmrs.module.webservices.rest.web.resource.impl.BaseDelegatingResource#getRepresentationDescription(org.openmrs.module.webservices.rest.web.representation.Representation)
+	 */
+	@Override
+	public DelegatingResourceDescription getRepresentationDescription(Representation rep) {
+		if (isSummaryRepresentation(rep)) {
+			DelegatingResourceDescription description = new DelegatingResourceDescription();
+			description.addProperty("uuid");
+			description.addProperty("display");
+			description.addProperty("identifier", "patientIdentifier.identifier");
+			description.addProperty("gender");
+			description.addProperty("birthdate");
+			return description;
+		}
+		return super.getRepresentationDescription(rep);
+	}
+	
 }
@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.web.resources;
+
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.patientsearch.api.PatientSummary;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.ConversionUtil;
+import org.openmrs.module.webservices.rest.web.representation.Representation;
+import org.openmrs.module.webservices.rest.web.resource.api.Converter;
+import org.openmrs.module.webservices.rest.web.response.ConversionException;
+import org.openmrs.module.webservices.rest.web.response.ResourceDoesNotSupportOperationException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Converts the read only {@link PatientSummary} to the
+ * {@link PatientSearchCriteriaResource#SUMMARY_REPRESENTATION} of a patient.
+ */
+@Component
+@Handler(supports = PatientSummary.class, order = 0)
+public class PatientSummaryConverter implements Converter<PatientSummary> {
+	
+	@Override
+	public PatientSummary newInstance(String type) {
+		throw new ResourceDoesNotSupportOperationException();
+	}
+	
+	@Override
+	public PatientSummary getByUniqueId(String string) {
+		throw new ResourceDoesNotSupportOperationException();
+	}
+	
+	@Override
+	public SimpleObject asRepresentation(PatientSummary instance, Representation rep) throws ConversionException {
+		SimpleObject summary = new SimpleObject();
+		summary.add("uuid", instance.getUuid());
+		summary.add("display", instance.getDisplay());
+		summary.add("identifier", instance.getIdentifier());
+		summary.add("gender", instance.getGender());
+		summary.add("birthdate", ConversionUtil.convertToRepresentation(instance.getBirthdate(), Representation.REF));
+		return summary;
+	}
+	
+	@Override
+	public Object getProperty(PatientSummary instance, String propertyName) throws ConversionException {
+		return asRepresentation(instance, Representation.DEFAULT).get(propertyName);
+	}
+	
+	@Override
+	public void setProperty(Object instance, String propertyName, Object value) throws ConversionException {
+		throw new ResourceDoesNotSupportOperationException();
+	}
+	
+}
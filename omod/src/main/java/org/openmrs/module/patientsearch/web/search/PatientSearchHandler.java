@@ -3,25 +3,56 @@ package org.openmrs.module.patientsearch.web.search;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
+import org.apache.commons.lang3.math.NumberUtils;
 import org.openmrs.Patient;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.api.PatientSearchAdmission;
 import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openmrs.module.patientsearch.api.PatientSearchPage;
+import org.openmrs.module.patientsearch.api.PatientSearchSort;
+import org.openmrs.module.patientsearch.api.PatientSummary;
+import org.openmrs.module.patientsearch.api.SearchDeadline;
+import org.openmrs.module.patientsearch.api.SearchRejectedException;
+import org.openmrs.module.patientsearch.api.UnsortableSearchException;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics;
+import org.openmrs.module.patientsearch.api.metrics.PatientSearchMetrics.Stage;
 import org.openmrs.module.patientsearch.web.controller.PatientSearchCriteriaController;
+import org.openmrs.module.patientsearch.web.resources.PatientSearchCriteriaResource;
+import org.openmrs.module.patientsearch.web.resources.PatientSummaryConverter;
+import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
+import org.openmrs.module.webservices.rest.web.resource.api.Converter;
 import org.openmrs.module.webservices.rest.web.resource.api.PageableResult;
 import org.openmrs.module.webservices.rest.web.resource.api.SearchConfig;
 import org.openmrs.module.webservices.rest.web.resource.api.SearchHandler;
 import org.openmrs.module.webservices.rest.web.resource.api.SearchQuery;
+import org.openmrs.module.webservices.rest.web.resource.impl.AlreadyPaged;
 import org.openmrs.module.webservices.rest.web.resource.impl.EmptySearchResult;
-import org.openmrs.module.webservices.rest.web.resource.impl.NeedsPaging;
+import org.openmrs.module.webservices.rest.web.response.IllegalRequestException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 @Component
 public class PatientSearchHandler implements SearchHandler {
 	
+	public static final String CURSOR_PARAMETER = "cursor";
+	
+	public static final String TOTAL_COUNT_PROPERTY = "totalCount";
+	
+	public static final String TIMEOUT_PARAMETER = "timeout";
+	
+	public static final String SORT_PARAMETER = "sort";
+	
+	public static final String TRUNCATED_PROPERTY = "truncated";
+	
+	public static final String RETRY_AFTER_HEADER = "Retry-After";
+	
 	private final SearchConfig searchConfig = new SearchConfig("patientBySearchCriteria", RestConstants.VERSION_1
 	        + PatientSearchCriteriaController.PATIENTSEARCH_REST_NAMESPACE + "/patient", Arrays.asList("1.8.*", "1.9.*",
 	    "1.10.*, 1.11.*", "1.12.*", "2.0.*", "2.1.*", "2.2.*", "2.3.*"), Arrays.asList(new SearchQuery.Builder(
@@ -41,13 +72,79 @@ public class PatientSearchHandler implements SearchHandler {
 	            .build(), new SearchQuery.Builder("Allow you to find Patients by birthdate and gender")
 	            .withRequiredParameters("gender", "birthdate").build()));
 	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchMetrics")
+	private PatientSearchMetrics metrics;
+	
+	@Autowired
+	@Qualifier("patientsearch.PatientSearchAdmission")
+	private PatientSearchAdmission admission;
+	
 	@Override
 	public SearchConfig getSearchConfig() {
 		return this.searchConfig;
 	}
 	
+	/**
+	 * The search is bounded by the <code>timeout</code> parameter in milliseconds when it is given,
+	 * else by the default deadline of the module. The patients found before the deadline are
+	 * returned with <code>"truncated": true</code>. When too many searches are running, the search
+	 * is rejected with 503 Service Unavailable and a <code>Retry-After</code> header. The search
+	 * waits for its permit before the service opens a transaction, so a queued search holds no
+	 * database connection. The
+	 * <code>sort</code> parameter orders the patients by the fields of the search index, such as
+	 * <code>familyName,-birthdate</code>, see {@link PatientSearchSort}. The <code>cursor</code>
+	 * parameter pages the patients found by gender, birthdate or range of age alone, it is rejected
+	 * with a name or identifier and with the summary representation.
+	 */
 	@Override
 	public PageableResult search(RequestContext context) throws ResponseException {
+		boolean deadline = SearchDeadline.begin(getTimeoutMillis(context));
+		Semaphore permit = null;
+		try {
+			permit = admission.acquire();
+			return searchPatients(context);
+		}
+		catch (SearchRejectedException e) {
+			if (context.getResponse() != null) {
+				context.getResponse().setHeader(RETRY_AFTER_HEADER, String.valueOf(e.getRetryAfterSeconds()));
+			}
+			throw new SearchUnavailableException(e.getMessage(), e);
+		}
+		finally {
+			admission.release(permit);
+			if (deadline) {
+				SearchDeadline.end();
+			}
+		}
+	}
+	
+	private long getTimeoutMillis(RequestContext context) {
+		String timeout = context.getParameter(TIMEOUT_PARAMETER);
+		if (timeout == null) {
+			return 0;
+		}
+		long timeoutMillis = NumberUtils.toLong(timeout, -1);
+		if (timeoutMillis > 0) {
+			return timeoutMillis;
+		}
+		throw new IllegalRequestException("The timeout must be a positive number of milliseconds: " + timeout);
+	}
+	
+	/**
+	 * @return the sort parameter in its normalized form, null if there is none
+	 */
+	private String getSort(RequestContext context) {
+		try {
+			PatientSearchSort sort = PatientSearchSort.parse(context.getParameter(SORT_PARAMETER));
+			return sort == null ? null : sort.toString();
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalRequestException(e.getMessage());
+		}
+	}
+	
+	private PageableResult searchPatients(RequestContext context) {
 		String q = context.getParameter("q");
 		String gender = context.getParameter("gender");
 		String toString = context.getParameter("to");
@@ -56,12 +153,137 @@ public class PatientSearchHandler implements SearchHandler {
 		Integer to = (toString == null) ? null : Integer.parseInt(toString);
 		Integer from = (fromString == null) ? null : Integer.parseInt(fromString);
 		Date birthdate = (birthdateString == null) ? null : new Date(Long.valueOf(birthdateString));
-		List<Patient> patients = Context.getService(PatientSearchCriteriaService.class).getPatients(null, q, null, true,
-		    gender, from, to, birthdate);
-		if (patients != null && patients.size() > 0) {
-			return new NeedsPaging<Patient>(patients, context);
+		String shape = PatientSearchMetrics.getShape(q != null, gender != null, birthdate != null, from != null
+		        && to != null);
+		String sort = getSort(context);
+		String cursor = context.getParameter(CURSOR_PARAMETER);
+		if (cursor != null && q != null) {
+			throw new IllegalRequestException("The patients found by name or identifier cannot be searched after a cursor");
+		}
+		if (PatientSearchCriteriaResource.isSummaryRepresentation(context.getRepresentation())) {
+			if (cursor != null) {
+				throw new IllegalRequestException("The summaries of the patients cannot be searched after a cursor");
+			}
+			if (sort != null) {
+				throw new IllegalRequestException("The summaries of the patients cannot be sorted");
+			}
+			return searchSummaries(context, q, gender, from, to, birthdate, shape);
+		}
+		if (cursor != null) {
+			if (sort != null) {
+				// the cursor is the id of the last patient, the pages after it follow the ids
+				throw new IllegalRequestException("The patients cannot be sorted when searched after a cursor");
+			}
+			return searchAfter(context, gender, from, to, birthdate, cursor, shape);
+		}
+		// one more patient than the limit is requested to know if there is a next page
+		PatientSearchPage<Patient> page;
+		try {
+			page = Context.getService(PatientSearchCriteriaService.class).getPatientPage(null, q, null, true, gender,
+			    from, to, birthdate, context.getStartIndex(), context.getLimit() + 1, sort);
+		}
+		catch (UnsortableSearchException e) {
+			throw new IllegalRequestException(e.getMessage());
+		}
+		if (page.getResults() != null && (page.getResults().size() > 0 || page.isTruncated())) {
+			boolean hasMoreResults = page.getResults().size() > context.getLimit();
+			return new PatientSearchResult<Patient>(context, getPage(page.getResults(), context), hasMoreResults, page,
+			        null, shape);
 		}
 		return new EmptySearchResult();
 	}
 	
+	/**
+	 * Searches the summaries of the patients, which are read from the search index and converted
+	 * by {@link PatientSummaryConverter} instead of the patient resource.
+	 */
+	private PageableResult searchSummaries(RequestContext context, String q, String gender, Integer from, Integer to,
+	        Date birthdate, String shape) {
+		PatientSearchPage<PatientSummary> page = Context.getService(PatientSearchCriteriaService.class)
+		        .getPatientSummaries(null, q, gender, from, to, birthdate, context.getStartIndex(), context.getLimit() + 1);
+		if (page.getResults() == null || (page.getResults().isEmpty() && !page.isTruncated())) {
+			return new EmptySearchResult();
+		}
+		boolean hasMoreResults = page.getResults().size() > context.getLimit();
+		return new PatientSearchResult<PatientSummary>(context, getPage(page.getResults(), context), hasMoreResults,
+		        page, new PatientSummaryConverter(), shape);
+	}
+	
+	/**
+	 * Searches the page of patients after the given cursor. The cursor of the next page is returned
+	 * in the <code>cursor</code> property of the response, an empty cursor starts from the first page.
+	 */
+	private PageableResult searchAfter(RequestContext context, String gender, Integer from, Integer to, Date birthdate,
+	        String cursor, String shape) {
+		PatientSearchPage<Patient> page;
+		try {
+			page = Context.getService(PatientSearchCriteriaService.class).getPatientsAfter(gender, from, to, birthdate,
+			    cursor, context.getLimit());
+		}
+		catch (SearchRejectedException e) {
+			throw e;
+		}
+		catch (APIException e) {
+			throw new IllegalRequestException(e.getMessage());
+		}
+		if (page.getResults().isEmpty() && !page.isTruncated()) {
+			return new EmptySearchResult();
+		}
+		return new PatientSearchResult<Patient>(context, page.getResults(), false, page, null, shape);
+	}
+	
+	private <T> List<T> getPage(List<T> results, RequestContext context) {
+		if (results.size() > context.getLimit()) {
+			return results.subList(0, context.getLimit());
+		}
+		return results;
+	}
+	
+	/**
+	 * Page of results which adds the <code>totalCount</code> and the <code>cursor</code> of the
+	 * search page to the response, when they are known, and <code>truncated</code> when the search
+	 * stopped at its deadline. The conversion of the results is recorded
+	 * as the serialization stage of the search metrics.
+	 */
+	private class PatientSearchResult<T> extends AlreadyPaged<T> {
+		
+		private final PatientSearchPage<?> page;
+		
+		private final Converter<T> converter;
+		
+		private final String shape;
+		
+		/**
+		 * @param converter : converter of the results, null to use the preferred converter
+		 * @param shape : shape of the criteria of the search, see {@link PatientSearchMetrics}
+		 */
+		public PatientSearchResult(RequestContext context, List<T> results, boolean hasMoreResults,
+		    PatientSearchPage<?> page, Converter<T> converter, String shape) {
+			super(context, results, hasMoreResults);
+			this.page = page;
+			this.converter = converter;
+			this.shape = shape;
+		}
+		
+		@Override
+		public SimpleObject toSimpleObject(Converter preferredConverter) throws ResponseException {
+			boolean timed = metrics != null && metrics.isEnabled();
+			long started = timed ? System.nanoTime() : 0;
+			SimpleObject result = super.toSimpleObject(converter != null ? converter : preferredConverter);
+			if (timed) {
+				metrics.record(shape, Stage.SERIALIZATION, System.nanoTime() - started);
+			}
+			if (page.getTotalCount() != null) {
+				result.add(TOTAL_COUNT_PROPERTY, page.getTotalCount());
+			}
+			if (page.hasMoreResults()) {
+				result.add(CURSOR_PARAMETER, page.getNextCursor());
+			}
+			if (page.isTruncated()) {
+				result.add(TRUNCATED_PROPERTY, true);
+			}
+			return result;
+		}
+	}
+	
 }
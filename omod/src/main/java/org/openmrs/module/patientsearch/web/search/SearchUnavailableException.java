@@ -0,0 +1,29 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.web.search;
+
+import org.openmrs.module.webservices.rest.web.response.ResponseException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Answers a rejected search with 503 Service Unavailable, the client retries after the delay of the
+ * <code>Retry-After</code> header.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class SearchUnavailableException extends ResponseException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public SearchUnavailableException(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+}
@@ -0,0 +1,144 @@
+<%@ include file="/WEB-INF/template/include.jsp"%>
+<openmrs:require privilege="View Administration Functions" otherwise="/login.htm" redirect="/module/patientsearch/patientsearch.form" />
+<%@ include file="/WEB-INF/template/header.jsp"%>
+
+<h2><spring:message code="patientsearch.title" /></h2>
+
+<b class="boxHeader"><spring:message code="patientsearch.metrics" /></b>
+<div class="box">
+	<c:choose>
+		<c:when test="${metricsEnabled}">
+			<table>
+				<tr>
+					<th><spring:message code="patientsearch.shape" /></th>
+					<th><spring:message code="patientsearch.searches" /></th>
+					<th><spring:message code="patientsearch.meanMillis" /></th>
+					<th><spring:message code="patientsearch.maxMillis" /></th>
+				</tr>
+				<c:forEach var="shape" items="${searchCountByShape}">
+					<tr>
+						<td>${shape.key}</td>
+						<td>${shape.value}</td>
+						<td><fmt:formatNumber value="${meanMillisByShape[shape.key]}" maxFractionDigits="1" /></td>
+						<td><fmt:formatNumber value="${maxMillisByShape[shape.key]}" maxFractionDigits="1" /></td>
+					</tr>
+				</c:forEach>
+			</table>
+			<p>
+				<spring:message code="patientsearch.meanMillisByStage" />:
+				<c:forEach var="stage" items="${meanMillisByStage}" varStatus="status">
+					${stage.key} <fmt:formatNumber value="${stage.value}" maxFractionDigits="1" /><c:if test="${!status.last}">,</c:if>
+				</c:forEach>
+			</p>
+		</c:when>
+		<c:otherwise>
+			<spring:message code="patientsearch.metricsDisabled" />
+		</c:otherwise>
+	</c:choose>
+	<p><a href="${pageContext.request.contextPath}/ws/rest/v1/patientsearch/metrics">JSON</a></p>
+</div>
+
+<br />
+
+<b class="boxHeader"><spring:message code="patientsearch.slowSearches" arguments="${slowSearchThreshold},${slowSearchCapacity}" /></b>
+<div class="box">
+	<c:choose>
+		<c:when test="${empty slowSearches}">
+			<spring:message code="patientsearch.noSlowSearches" />
+		</c:when>
+		<c:otherwise>
+			<table>
+				<tr>
+					<th><spring:message code="general.dateCreated" /></th>
+					<th><spring:message code="general.user" /></th>
+					<th><spring:message code="patientsearch.criteria" /></th>
+					<th><spring:message code="patientsearch.strategy" /></th>
+					<th><spring:message code="patientsearch.results" /></th>
+					<th><spring:message code="patientsearch.elapsedMillis" /></th>
+					<th><spring:message code="patientsearch.stages" /></th>
+					<th><spring:message code="patientsearch.queries" /></th>
+				</tr>
+				<c:forEach var="search" items="${slowSearches}">
+					<tr>
+						<td><openmrs:formatDate date="${search.date}" type="long" /></td>
+						<td><c:out value="${search.user}" /></td>
+						<td><c:out value="${search.criteria}" /></td>
+						<td><c:out value="${search.strategy}" /></td>
+						<td>
+							<c:choose>
+								<c:when test="${search.failed}"><spring:message code="patientsearch.failed" /></c:when>
+								<c:otherwise>${search.resultSize}<c:if test="${search.totalCount != null}"> / ${search.totalCount}</c:if></c:otherwise>
+							</c:choose>
+						</td>
+						<td><fmt:formatNumber value="${search.elapsedMillis}" maxFractionDigits="1" /></td>
+						<td>
+							<c:forEach var="stage" items="${search.stageMillis}">
+								${stage.key} <fmt:formatNumber value="${stage.value}" maxFractionDigits="1" /><br />
+							</c:forEach>
+						</td>
+						<td>
+							<c:forEach var="query" items="${search.queries}">
+								<code><c:out value="${query}" /></code><br />
+							</c:forEach>
+						</td>
+					</tr>
+				</c:forEach>
+			</table>
+		</c:otherwise>
+	</c:choose>
+	<p>
+		<a href="${pageContext.request.contextPath}/ws/rest/v1/patientsearch/slowsearches">JSON</a>
+	</p>
+	<form method="post">
+		<input type="submit" value="<spring:message code="patientsearch.clearSlowSearches" />" />
+	</form>
+</div>
+
+<br />
+
+<b class="boxHeader"><spring:message code="patientsearch.warmUp" /></b>
+<div class="box">
+	<p>
+		${warmUp.status}
+		<c:if test="${warmUp.status != 'DISABLED'}">
+			- <spring:message code="patientsearch.warmUpProgress" arguments="${warmUp.searchesDone},${warmUp.searchesTotal},${warmUp.cachedFilters},${warmUp.elapsedMillis}" />
+		</c:if>
+		<c:if test="${not empty warmUp.error}">
+			- <c:out value="${warmUp.error}" />
+		</c:if>
+	</p>
+	<p><a href="${pageContext.request.contextPath}/ws/rest/v1/patientsearch/warmup">JSON</a></p>
+</div>
+
+<br />
+
+<b class="boxHeader"><spring:message code="patientsearch.reindex" /></b>
+<div class="box">
+	<p>
+		${reindex.status}
+		<c:if test="${reindex.status != 'IDLE'}">
+			- <spring:message code="patientsearch.reindexProgress" arguments="${reindex.currentPersonId},${reindex.maxPersonId},${reindex.personsIndexed},${reindex.threads},${reindex.elapsedMillis}" />
+		</c:if>
+		<c:if test="${not empty reindex.error}">
+			- <c:out value="${reindex.error}" />
+		</c:if>
+	</p>
+	<c:if test="${reindex.checkpoint > 0 && reindex.status != 'RUNNING' && reindex.status != 'STOPPING'}">
+		<p><spring:message code="patientsearch.reindexCheckpoint" arguments="${reindex.checkpoint}" /></p>
+	</c:if>
+	<form method="post">
+		<c:choose>
+			<c:when test="${reindex.status == 'RUNNING'}">
+				<button type="submit" name="reindex" value="stop"><spring:message code="patientsearch.reindexStop" /></button>
+			</c:when>
+			<c:when test="${reindex.status != 'STOPPING'}">
+				<button type="submit" name="reindex" value="start"><spring:message code="patientsearch.reindexStart" /></button>
+				<c:if test="${reindex.checkpoint > 0}">
+					<button type="submit" name="reindex" value="resume"><spring:message code="patientsearch.reindexResume" /></button>
+				</c:if>
+			</c:when>
+		</c:choose>
+	</form>
+</div>
+
+<%@ include file="/WEB-INF/template/footer.jsp"%>
@@ -0,0 +1,98 @@
+package org.openmrs.module.patientsearch.web.controller;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchAdmission;
+import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openmrs.module.patientsearch.web.search.PatientSearchHandler;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.response.IllegalRequestException;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PatientSearchFacetsControllerTest extends BaseModuleWebContextSensitiveTest {
+	
+	@Autowired
+	private PatientSearchFacetsController controller;
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getFacets_shouldCountAllThePatientsByGenderAndAgeBucket() {
+		SimpleObject result = controller.getFacets(null, null, null, null, null, "18,0", null,
+		    new MockHttpServletResponse());
+		
+		long totalCount = ((Number) result.get(PatientSearchHandler.TOTAL_COUNT_PROPERTY)).longValue();
+		Assert.assertEquals(Context.getService(PatientSearchCriteriaService.class).getAllPatients(false).size(),
+		    totalCount);
+		Map<String, Long> ages = (Map<String, Long>) result.get("age");
+		Assert.assertTrue(ages.containsKey("0-17"));
+		Assert.assertTrue(ages.containsKey("18+"));
+		Assert.assertEquals(totalCount, sum(ages));
+		Assert.assertEquals(totalCount, sum((Map<String, Long>) result.get("gender")));
+		Assert.assertNull(result.get(PatientSearchHandler.TRUNCATED_PROPERTY));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getFacets_shouldCountThePatientsMatchingANameOrIdentifier() {
+		SimpleObject result = controller.getFacets("Horatio", null, null, null, null, "0,18", null,
+		    new MockHttpServletResponse());
+		Assert.assertEquals(1L, ((Number) result.get(PatientSearchHandler.TOTAL_COUNT_PROPERTY)).longValue());
+		Assert.assertEquals(Long.valueOf(1), ((Map<String, Long>) result.get("gender")).get("M"));
+		Assert.assertEquals(Long.valueOf(1), ((Map<String, Long>) result.get("age")).get("18+"));
+		
+		result = controller.getFacets("7TU-8", null, null, null, null, "0,18", null, new MockHttpServletResponse());
+		Assert.assertEquals(1L, ((Number) result.get(PatientSearchHandler.TOTAL_COUNT_PROPERTY)).longValue());
+		
+		result = controller.getFacets("Horatio", "F", null, null, null, "0,18", null, new MockHttpServletResponse());
+		Assert.assertEquals(0L, ((Number) result.get(PatientSearchHandler.TOTAL_COUNT_PROPERTY)).longValue());
+	}
+	
+	@Test(expected = IllegalRequestException.class)
+	public void getFacets_shouldRejectBucketsWhichAreNotAges() {
+		controller.getFacets(null, null, null, null, null, "0,teen", null, new MockHttpServletResponse());
+	}
+	
+	@Test
+	public void getFacets_shouldReturnTruncatedCountsWhenTheTimeoutExpires() {
+		// the admission of the count outlasts its timeout, the service starts past the deadline
+		PatientSearchAdmission admission = new PatientSearchAdmission() {
+			
+			@Override
+			public Semaphore acquire() {
+				try {
+					Thread.sleep(20);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.acquire();
+			}
+		};
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS, "0"));
+		
+		Object defaultAdmission = ReflectionTestUtils.getField(controller, "admission");
+		ReflectionTestUtils.setField(controller, "admission", admission);
+		try {
+			SimpleObject result = controller.getFacets("Horatio", null, null, null, null, null, "1",
+			    new MockHttpServletResponse());
+			Assert.assertEquals(Boolean.TRUE, result.get(PatientSearchHandler.TRUNCATED_PROPERTY));
+		}
+		finally {
+			ReflectionTestUtils.setField(controller, "admission", defaultAdmission);
+		}
+	}
+	
+	private long sum(Map<String, Long> counts) {
+		return counts.values().stream().mapToLong(Long::longValue).sum();
+	}
+	
+}
@@ -0,0 +1,168 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.web.search;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.api.test.PatientDatasetGenerator;
+import org.openmrs.module.webservices.rest.web.resource.api.SearchQuery;
+import org.openmrs.module.webservices.rest.web.v1_0.controller.RestControllerTestUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Load test of the whole REST search, from the request through the handler, the service, the DAO
+ * and the serialization of the representation. It only runs with <code>-Dpatientsearch.loadTest=true</code>
+ * and is tuned with these system properties:
+ * <ul>
+ * <li>patientsearch.loadTest.patients : generated patients, 10000 by default</li>
+ * <li>patientsearch.loadTest.rate : requests per second, 100 by default</li>
+ * <li>patientsearch.loadTest.warmUp : seconds not recorded, 10 by default</li>
+ * <li>patientsearch.loadTest.duration : seconds recorded, 30 by default</li>
+ * <li>patientsearch.loadTest.threads : threads running the requests, 16 by default</li>
+ * <li>patientsearch.loadTest.mix : weights of the shapes, such as "q=4,gender+to+from=1", every
+ * shape of the search handler once by default</li>
+ * <li>patientsearch.loadTest.seed : seed of the patients and of the requests, 42 by default</li>
+ * </ul>
+ * The generated patients are committed for the threads of the driver to see them, they are deleted
+ * at the end of the test.
+ */
+public class PatientSearchHandlerLoadTest extends RestControllerTestUtils {
+	
+	private static final String PROPERTY_PREFIX = "patientsearch.loadTest";
+	
+	private static final String[] NAMES = { "John", "Mary", "Frank", "Grace", "Okello", "Mwangi", "Banda", "Smith" };
+	
+	private final Log log = LogFactory.getLog(getClass());
+	
+	@Autowired
+	private PatientSearchHandler searchHandler;
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	@Test
+	public void search_shouldSustainMixOfSearchesAtTargetRate() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean(PROPERTY_PREFIX));
+		
+		long seed = Long.getLong(PROPERTY_PREFIX + ".seed", 42);
+		int patients = Integer.getInteger(PROPERTY_PREFIX + ".patients", 10000);
+		int firstPersonId = new PatientDatasetGenerator(seed, LocalDate.now()).generate(getConnection(), patients);
+		getConnection().commit();
+		try {
+			PatientDatasetGenerator.buildIndex(sessionFactory.getCurrentSession(), Runtime.getRuntime()
+			        .availableProcessors());
+			
+			PatientSearchLoadDriver driver = new PatientSearchLoadDriver(new PatientSearchLoadDriver.SearchRequestHandler() {
+				
+				@Override
+				public int handle(Map<String, String> parameters) throws Exception {
+					MockHttpServletRequest request = request(RequestMethod.GET, "patientsearch/patient");
+					for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+						request.addParameter(parameter.getKey(), parameter.getValue());
+					}
+					return handle(request).getStatus();
+				}
+			}, new GeneratedParameterValues(firstPersonId, patients), seed);
+			Map<String, Integer> mix = getMix();
+			for (SearchQuery searchQuery : searchHandler.getSearchConfig().getSearchQueries()) {
+				String shape = PatientSearchLoadDriver.getShapeName(searchQuery);
+				driver.addShape(searchQuery, mix.isEmpty() ? 1 : mix.getOrDefault(shape, 0));
+			}
+			
+			String report = driver.run(Integer.getInteger(PROPERTY_PREFIX + ".rate", 100),
+			    Long.getLong(PROPERTY_PREFIX + ".warmUp", 10), Long.getLong(PROPERTY_PREFIX + ".duration", 30),
+			    Integer.getInteger(PROPERTY_PREFIX + ".threads", 16));
+			log.info("Patient search load test of " + patients + " patients:\n" + report);
+			Assert.assertFalse(report.isEmpty());
+		}
+		finally {
+			PatientDatasetGenerator.delete(getConnection(), firstPersonId);
+			getConnection().commit();
+			updateSearchIndex();
+		}
+	}
+	
+	private Map<String, Integer> getMix() {
+		Map<String, Integer> mix = new HashMap<String, Integer>();
+		String property = System.getProperty(PROPERTY_PREFIX + ".mix");
+		if (property != null) {
+			for (String weight : property.split(",")) {
+				String[] shapeAndWeight = weight.trim().split("=");
+				mix.put(shapeAndWeight[0], Integer.valueOf(shapeAndWeight[1]));
+			}
+		}
+		return mix;
+	}
+	
+	/**
+	 * Values of the search parameters which match the generated patients: common names,
+	 * identifiers of generated patients, ages up to 100 years and birthdates of the last 100 years.
+	 */
+	private static class GeneratedParameterValues implements PatientSearchLoadDriver.ParameterValues {
+		
+		private final int firstPersonId;
+		
+		private final int patients;
+		
+		private final LocalDate today = LocalDate.now();
+		
+		GeneratedParameterValues(int firstPersonId, int patients) {
+			this.firstPersonId = firstPersonId;
+			this.patients = patients;
+		}
+		
+		@Override
+		public Map<String, String> get(List<String> parameters, Random random) {
+			Map<String, String> values = new LinkedHashMap<String, String>();
+			for (String parameter : parameters) {
+				if ("q".equals(parameter)) {
+					if (random.nextInt(4) == 0) {
+						int personId = firstPersonId + random.nextInt(patients);
+						values.put(parameter, PatientDatasetGenerator.getIdentifier(personId));
+					} else {
+						values.put(parameter, NAMES[random.nextInt(NAMES.length)]);
+					}
+				} else if ("gender".equals(parameter)) {
+					values.put(parameter, random.nextBoolean() ? "F" : "M");
+				} else if ("birthdate".equals(parameter)) {
+					LocalDate birthdate = today.minusDays(random.nextInt(100 * 365));
+					values.put(parameter,
+					    String.valueOf(birthdate.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+				} else if ("from".equals(parameter) || "to".equals(parameter)) {
+					if (!values.containsKey("from")) {
+						// a range of up to 20 years, from is the youngest age
+						int from = random.nextInt(80);
+						values.put("from", String.valueOf(from));
+						values.put("to", String.valueOf(from + 1 + random.nextInt(20)));
+					}
+				} else {
+					throw new IllegalArgumentException("Unknown search parameter: " + parameter);
+				}
+			}
+			return values;
+		}
+	}
+	
+}
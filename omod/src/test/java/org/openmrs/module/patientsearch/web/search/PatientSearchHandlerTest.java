@@ -1,23 +1,41 @@
 package org.openmrs.module.patientsearch.web.search;
 
+import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Assert;
 import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
+import org.openmrs.PersonName;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.patientsearch.PatientSearchCriteriaConfig;
+import org.openmrs.module.patientsearch.api.PatientSearchAdmission;
 import org.openmrs.module.patientsearch.api.PatientSearchCriteriaService;
+import org.openmrs.module.patientsearch.api.dao.hibernate.search.SearchAfterCursor;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.response.IllegalRequestException;
 import org.openmrs.module.webservices.rest.web.response.ResourceDoesNotSupportOperationException;
 import org.openmrs.module.webservices.rest.web.v1_0.controller.MainResourceControllerTest;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.bind.annotation.RequestMethod;
 
 public class PatientSearchHandlerTest extends MainResourceControllerTest {
 	
 	private final static String PATIENT_UUID = "da7f524f-27ce-4bb2-86d6-6d1d05312bd5";
 	
+	@Autowired
+	private PatientSearchHandler handler;
+	
 	/**
 	 * @see MainResourceControllerTest#getURI()
 	 */
@@ -216,4 +234,199 @@ public class PatientSearchHandlerTest extends MainResourceControllerTest {
 		    PropertyUtils.getProperty(hits.get(0), "uuid"));
 	}
 	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientSummariesByGenderAndRangeOfAge() throws Exception {
+		MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+		req.addParameter("from", String.valueOf(40));
+		req.addParameter("to", String.valueOf(50));
+		req.addParameter("gender", "F");
+		req.addParameter("v", "summary");
+		SimpleObject result = deserialize(handle(req));
+		List<Object> hits = (List<Object>) result.get("results");
+		Assert.assertEquals(1, hits.size());
+		Assert.assertNull(PropertyUtils.getProperty(hits.get(0), "identifiers"));
+		
+		// the summary shows the preferred name and identifier, like the patient resource
+		Patient patient = Context.getPatientService().getPatient(7);
+		PersonName name = patient.getPersonName();
+		String display = StringUtils.join(Arrays.asList(name.getGivenName(), name.getMiddleName(), name.getFamilyName())
+		        .stream().filter(StringUtils::isNotBlank).toArray(), " ");
+		Assert.assertEquals(patient.getUuid(), PropertyUtils.getProperty(hits.get(0), "uuid"));
+		Assert.assertEquals(display, PropertyUtils.getProperty(hits.get(0), "display"));
+		Assert.assertEquals(patient.getPatientIdentifier().getIdentifier(),
+		    PropertyUtils.getProperty(hits.get(0), "identifier"));
+		Assert.assertEquals("F", PropertyUtils.getProperty(hits.get(0), "gender"));
+		Assert.assertNotNull(PropertyUtils.getProperty(hits.get(0), "birthdate"));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getSecondPageOfPatientsByRangeOfAge() throws Exception {
+		MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+		req.addParameter("from", String.valueOf(40));
+		req.addParameter("to", String.valueOf(50));
+		req.addParameter("startIndex", String.valueOf(1));
+		req.addParameter("limit", String.valueOf(1));
+		SimpleObject result = deserialize(handle(req));
+		List<Object> hits = (List<Object>) result.get("results");
+		Assert.assertEquals(1, hits.size());
+		Assert.assertEquals(Context.getPatientService().getPatient(6).getUuid(),
+		    PropertyUtils.getProperty(hits.get(0), "uuid"));
+		Assert.assertNotNull(result.get("links"));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getTotalCountOfPatientsByRangeOfAge() throws Exception {
+		MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+		req.addParameter("from", String.valueOf(40));
+		req.addParameter("to", String.valueOf(50));
+		req.addParameter("limit", String.valueOf(1));
+		SimpleObject result = deserialize(handle(req));
+		List<Object> hits = (List<Object>) result.get("results");
+		Assert.assertEquals(1, hits.size());
+		Assert.assertEquals(3L, ((Number) result.get("totalCount")).longValue());
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientsByRangeOfAgeWithCursor() throws Exception {
+		MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+		req.addParameter("from", String.valueOf(40));
+		req.addParameter("to", String.valueOf(50));
+		req.addParameter("limit", String.valueOf(2));
+		req.addParameter("cursor", "");
+		SimpleObject result = deserialize(handle(req));
+		List<Object> hits = (List<Object>) result.get("results");
+		Assert.assertEquals(2, hits.size());
+		String cursor = (String) result.get("cursor");
+		Assert.assertNotNull(cursor);
+		
+		req = request(RequestMethod.GET, getURI());
+		req.addParameter("from", String.valueOf(40));
+		req.addParameter("to", String.valueOf(50));
+		req.addParameter("limit", String.valueOf(2));
+		req.addParameter("cursor", cursor);
+		result = deserialize(handle(req));
+		hits = (List<Object>) result.get("results");
+		Assert.assertEquals(1, hits.size());
+		Assert.assertNull(result.get("cursor"));
+	}
+	
+	@Test(expected = IllegalRequestException.class)
+	public void getPatientsByRangeOfAgeWithTamperedCursor() throws Exception {
+		MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+		req.addParameter("from", String.valueOf(40));
+		req.addParameter("to", String.valueOf(50));
+		req.addParameter("cursor", new SearchAfterCursor(0, -1, 1f, Integer.MAX_VALUE).encode());
+		handle(req);
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getPatientsByRangeOfAgeWithForgedCursor() throws Exception {
+		// a cursor of another index, with a document and a position past its end
+		MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+		req.addParameter("from", String.valueOf(40));
+		req.addParameter("to", String.valueOf(50));
+		req.addParameter("cursor", new SearchAfterCursor(0, Integer.MAX_VALUE, 1f, Integer.MAX_VALUE - 1).encode());
+		SimpleObject result = deserialize(handle(req));
+		Assert.assertTrue(((List<Object>) result.get("results")).isEmpty());
+	}
+	
+	@Test(expected = IllegalRequestException.class)
+	public void getPatientsByNameWithCursor() throws Exception {
+		MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+		req.addParameter("q", "Horatio");
+		req.addParameter("cursor", "");
+		handle(req);
+	}
+	
+	@Test
+	public void search_shouldReturnTheTruncatedPageWhenTheTimeoutExpires() throws Exception {
+		// the admission of the search outlasts its timeout, the service starts past the deadline
+		PatientSearchAdmission admission = new PatientSearchAdmission() {
+			
+			@Override
+			public Semaphore acquire() {
+				try {
+					Thread.sleep(20);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.acquire();
+			}
+		};
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS, "0"));
+		
+		Object defaultAdmission = ReflectionTestUtils.getField(handler, "admission");
+		ReflectionTestUtils.setField(handler, "admission", admission);
+		try {
+			MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+			req.addParameter("gender", "M");
+			req.addParameter(PatientSearchHandler.TIMEOUT_PARAMETER, "1");
+			SimpleObject result = deserialize(handle(req));
+			Assert.assertEquals(Boolean.TRUE, result.get(PatientSearchHandler.TRUNCATED_PROPERTY));
+		}
+		finally {
+			ReflectionTestUtils.setField(handler, "admission", defaultAdmission);
+		}
+	}
+	
+	@Test
+	public void search_shouldWaitForAPermitWithoutHoldingAConnection() throws Exception {
+		final AtomicReference<Boolean> queuedInTransaction = new AtomicReference<Boolean>();
+		final Thread testThread = Thread.currentThread();
+		PatientSearchAdmission admission = new PatientSearchAdmission() {
+			
+			@Override
+			public Semaphore acquire() {
+				if (Thread.currentThread() != testThread) {
+					// the transaction of the service would bind its session and connection to the thread
+					queuedInTransaction.set(TransactionSynchronizationManager.isActualTransactionActive()
+					        || !TransactionSynchronizationManager.getResourceMap().isEmpty());
+				}
+				return super.acquire();
+			}
+		};
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_MAX_WAIT_MILLIS,
+		        "1000"));
+		admission.globalPropertyChanged(new GlobalProperty(PatientSearchCriteriaConfig.GP_ADMISSION_PERMITS, "1"));
+		Semaphore permit = admission.acquire();
+		
+		Object defaultAdmission = ReflectionTestUtils.getField(handler, "admission");
+		ReflectionTestUtils.setField(handler, "admission", admission);
+		try {
+			MockHttpServletRequest req = request(RequestMethod.GET, getURI());
+			req.addParameter("q", "Collet");
+			final RequestContext context = new RequestContext();
+			context.setRequest(req);
+			final AtomicReference<Exception> error = new AtomicReference<Exception>();
+			Thread search = new Thread(() -> {
+				try {
+					handler.search(context);
+				}
+				catch (Exception e) {
+					error.set(e);
+				}
+			});
+			search.start();
+			
+			long deadline = System.currentTimeMillis() + 5000;
+			while (admission.getWaitingCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			Assert.assertEquals(1, admission.getWaitingCount());
+			search.join(5000);
+			Assert.assertTrue(error.get() instanceof SearchUnavailableException);
+			Assert.assertEquals(Boolean.FALSE, queuedInTransaction.get());
+		}
+		finally {
+			ReflectionTestUtils.setField(handler, "admission", defaultAdmission);
+			admission.release(permit);
+		}
+	}
+	
 }
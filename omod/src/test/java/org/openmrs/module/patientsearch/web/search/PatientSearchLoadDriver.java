@@ -0,0 +1,263 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.patientsearch.web.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.web.resource.api.SearchQuery;
+
+/**
+ * Open loop load driver of the patient searches. Requests are started at a fixed rate whatever the
+ * latency of the previous ones, with a weighted mix of the shapes of {@link SearchQuery}, and run
+ * by a pool of threads which each hold an authenticated OpenMRS session.
+ * <p>
+ * The latency of a request is measured from the time it was scheduled to start, not from the time a
+ * thread picked it up, so the time spent queued behind slow requests is counted. This corrects the
+ * coordinated omission of a closed loop driver, which would only measure the requests it managed to
+ * send.
+ */
+public class PatientSearchLoadDriver {
+	
+	/**
+	 * Executes one search request with the given parameters.
+	 */
+	public interface SearchRequestHandler {
+		
+		/**
+		 * @return the HTTP status of the response
+		 */
+		int handle(Map<String, String> parameters) throws Exception;
+	}
+	
+	/**
+	 * Values of the search parameters of the next request.
+	 */
+	public interface ParameterValues {
+		
+		/**
+		 * @param parameters : required parameters of the shape of the request
+		 * @return the value of each parameter
+		 */
+		Map<String, String> get(List<String> parameters, Random random);
+	}
+	
+	private final Map<String, Shape> shapes = new LinkedHashMap<String, Shape>();
+	
+	private final SearchRequestHandler handler;
+	
+	private final ParameterValues parameterValues;
+	
+	private final Random random;
+	
+	private int totalWeight;
+	
+	/**
+	 * @param seed : seed of the mix of shapes and of the parameter values
+	 */
+	public PatientSearchLoadDriver(SearchRequestHandler handler, ParameterValues parameterValues, long seed) {
+		this.handler = handler;
+		this.parameterValues = parameterValues;
+		this.random = new Random(seed);
+	}
+	
+	/**
+	 * Adds a shape of search to the mix, sent in proportion to its weight.
+	 */
+	public void addShape(SearchQuery searchQuery, int weight) {
+		if (weight <= 0) {
+			return;
+		}
+		Shape shape = new Shape(getShapeName(searchQuery), new ArrayList<String>(searchQuery.getRequiredParameters()),
+		        weight);
+		shapes.put(shape.name, shape);
+		totalWeight += weight;
+	}
+	
+	/**
+	 * @return the name of the shape, its required parameters joined with '+', such as "q+gender"
+	 */
+	public static String getShapeName(SearchQuery searchQuery) {
+		StringBuilder name = new StringBuilder();
+		for (String parameter : searchQuery.getRequiredParameters()) {
+			if (name.length() > 0) {
+				name.append('+');
+			}
+			name.append(parameter);
+		}
+		return name.toString();
+	}
+	
+	/**
+	 * Sends the requests at the given rate, the requests of the warm-up are not recorded.
+	 * 
+	 * @return the report of the recorded requests, per shape
+	 */
+	public String run(int requestsPerSecond, long warmUpSeconds, long durationSeconds, int threads)
+	        throws InterruptedException {
+		if (shapes.isEmpty()) {
+			throw new IllegalStateException("No shape of search to send");
+		}
+		ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+		        new LinkedBlockingQueue<Runnable>(), new SessionThreadFactory());
+		long interval = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+		long start = System.nanoTime();
+		long recordFrom = start + TimeUnit.SECONDS.toNanos(warmUpSeconds);
+		long end = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+		try {
+			for (long scheduled = start; scheduled < end; scheduled += interval) {
+				long delay = scheduled - System.nanoTime();
+				if (delay > 0) {
+					LockSupport.parkNanos(delay);
+				}
+				Shape shape = nextShape();
+				executor.execute(new Request(shape, parameterValues.get(shape.parameters, random), scheduled,
+				        scheduled >= recordFrom));
+			}
+		}
+		finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.HOURS);
+		}
+		return getReport(System.nanoTime() - recordFrom);
+	}
+	
+	private Shape nextShape() {
+		int weight = random.nextInt(totalWeight);
+		for (Shape shape : shapes.values()) {
+			weight -= shape.weight;
+			if (weight < 0) {
+				return shape;
+			}
+		}
+		throw new IllegalStateException("The weights of the shapes changed");
+	}
+	
+	private String getReport(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		StringBuilder report = new StringBuilder(String.format("%-22s %8s %8s %8s %10s %10s %10s %10s%n", "shape",
+		    "requests", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Shape shape : shapes.values()) {
+			Histogram latencies = shape.latencies;
+			long requests = latencies.getTotalCount();
+			report.append(String.format("%-22s %8d %8.1f %7.2f%% %10.2f %10.2f %10.2f %10.2f%n", shape.name, requests,
+			    requests / seconds, requests == 0 ? 0 : 100.0 * shape.errors.sum() / requests,
+			    toMillis(latencies.getValueAtPercentile(50)), toMillis(latencies.getValueAtPercentile(99)),
+			    toMillis(latencies.getValueAtPercentile(99.9)), toMillis(latencies.getMaxValue())));
+		}
+		return report.toString();
+	}
+	
+	private double toMillis(long nanos) {
+		return nanos / 1e6;
+	}
+	
+	private static class Shape {
+		
+		private final String name;
+		
+		private final List<String> parameters;
+		
+		private final int weight;
+		
+		private final Histogram latencies = new ConcurrentHistogram(3);
+		
+		private final LongAdder errors = new LongAdder();
+		
+		Shape(String name, List<String> parameters, int weight) {
+			this.name = name;
+			this.parameters = parameters;
+			this.weight = weight;
+		}
+	}
+	
+	private class Request implements Runnable {
+		
+		private final Shape shape;
+		
+		private final Map<String, String> parameters;
+		
+		private final long scheduled;
+		
+		private final boolean recorded;
+		
+		Request(Shape shape, Map<String, String> parameters, long scheduled, boolean recorded) {
+			this.shape = shape;
+			this.parameters = parameters;
+			this.scheduled = scheduled;
+			this.recorded = recorded;
+		}
+		
+		@Override
+		public void run() {
+			boolean failed;
+			try {
+				failed = handler.handle(parameters) >= 400;
+			}
+			catch (Exception e) {
+				failed = true;
+			}
+			finally {
+				// each request hydrates its patients in an empty session
+				Context.clearSession();
+			}
+			if (recorded) {
+				shape.latencies.recordValue(System.nanoTime() - scheduled);
+				if (failed) {
+					shape.errors.increment();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Threads which open an OpenMRS session, authenticated as the admin of the test data, for the
+	 * requests they run.
+	 */
+	private static class SessionThreadFactory implements ThreadFactory {
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					Context.openSession();
+					try {
+						Context.authenticate("admin", "test");
+						runnable.run();
+					}
+					finally {
+						Context.closeSession();
+					}
+				}
+			}, "patientsearch-load-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}